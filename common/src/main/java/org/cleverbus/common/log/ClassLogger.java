@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cleverbus.common.log;
+
+import org.slf4j.Logger;
+import org.slf4j.helpers.FormattingTuple;
+import org.slf4j.helpers.MessageFormatter;
+
+
+/**
+ * Logging handle bound to one class, it's alternative to static methods of {@link Log} for frequently called code.
+ * <p/>
+ * Logger name is resolved only once when the handle is created, there is no stack walking
+ * per log invocation - disabled log levels cost only one level check.
+ * <pre>
+ * private static final ClassLogger LOG = Log.forClass(MyClass.class);
+ * ...
+ * LOG.debug("Processing message {}", msgId);
+ * </pre>
+ *
+ * @see Log#forClass(Class)
+ * @since 2.1
+ */
+public final class ClassLogger {
+
+    private final Logger logger;
+
+    ClassLogger(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Gets name of the underlying logger.
+     *
+     * @return logger name
+     */
+    public String getName() {
+        return logger.getName();
+    }
+
+    // ----------------------------------------------------------------------
+    // logging level status
+    // ----------------------------------------------------------------------
+
+    public boolean isDebugEnabled() {
+        return logger.isDebugEnabled();
+    }
+
+    public boolean isInfoEnabled() {
+        return logger.isInfoEnabled();
+    }
+
+    public boolean isWarnEnabled() {
+        return logger.isWarnEnabled();
+    }
+
+    public boolean isErrorEnabled() {
+        return logger.isErrorEnabled();
+    }
+
+    // ----------------------------------------------------------------------
+    // debug
+    // ----------------------------------------------------------------------
+
+    public void debug(String message) {
+        logger.debug(message);
+    }
+
+    public void debug(String message, Object... values) {
+        logger.debug(message, values);
+    }
+
+    public void debug(String message, Throwable t) {
+        logger.debug(message, t);
+    }
+
+    public void debug(String message, Throwable t, Object... values) {
+        if (logger.isDebugEnabled()) {
+            FormattingTuple ft = MessageFormatter.arrayFormat(message, values);
+            logger.debug(ft.getMessage(), t);
+        }
+    }
+
+    // ----------------------------------------------------------------------
+    // info
+    // ----------------------------------------------------------------------
+
+    public void info(String message) {
+        logger.info(message);
+    }
+
+    public void info(String message, Object... values) {
+        logger.info(message, values);
+    }
+
+    public void info(String message, Throwable t) {
+        logger.info(message, t);
+    }
+
+    public void info(String message, Throwable t, Object... values) {
+        if (logger.isInfoEnabled()) {
+            FormattingTuple ft = MessageFormatter.arrayFormat(message, values);
+            logger.info(ft.getMessage(), t);
+        }
+    }
+
+    // ----------------------------------------------------------------------
+    // warn
+    // ----------------------------------------------------------------------
+
+    public void warn(String message) {
+        logger.warn(message);
+    }
+
+    public void warn(String message, Object... values) {
+        logger.warn(message, values);
+    }
+
+    public void warn(String message, Throwable t) {
+        logger.warn(message, t);
+    }
+
+    public void warn(String message, Throwable t, Object... values) {
+        if (logger.isWarnEnabled()) {
+            FormattingTuple ft = MessageFormatter.arrayFormat(message, values);
+            logger.warn(ft.getMessage(), t);
+        }
+    }
+
+    // ----------------------------------------------------------------------
+    // error
+    // ----------------------------------------------------------------------
+
+    public void error(String message) {
+        logger.error(message);
+    }
+
+    public void error(String message, Object... values) {
+        logger.error(message, values);
+    }
+
+    public void error(String message, Throwable t) {
+        logger.error(message, t);
+    }
+
+    public void error(String message, Throwable t, Object... values) {
+        if (logger.isErrorEnabled()) {
+            FormattingTuple ft = MessageFormatter.arrayFormat(message, values);
+            logger.error(ft.getMessage(), t);
+        }
+    }
+}
@@ -16,6 +16,13 @@
 
 package org.cleverbus.common.log;
 
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
@@ -24,6 +31,9 @@ import org.slf4j.helpers.MessageFormatter;
 
 /**
  * This class provides access to logging facilities.
+ * <p/>
+ * Logger name is resolved from the calling class for each invocation of static methods, use {@link #forClass(Class)}
+ * handle in frequently called code to avoid this overhead.
  *
  * @author <a href="mailto:michal.palicka@cleverlance.com">Michal Palicka</a>
  * @author <a href="mailto:jan.loose@cleverlance.com">Jan Loose</a>
@@ -35,19 +45,110 @@ public final class Log {
     // util
     // ----------------------------------------------------------------------
 
-    private static String getLogger() {
+    /**
+     * Max. count of stack frames walked when searching for the calling class.
+     */
+    private static final int MAX_CALLER_DEPTH = 8;
+
+    private static final ConcurrentMap<String, ClassLogger> CLASS_LOGGERS
+            = new ConcurrentHashMap<String, ClassLogger>();
+
+    // StackWalker (Java 9+) walks only few top frames, it's used via reflection because Java 8 is supported too
+    private static final Object STACK_WALKER;
+    private static final Method STACK_WALKER_WALK;
+    private static final Method STACK_FRAME_GET_CLASS_NAME;
+
+    static {
+        Object stackWalker = null;
+        Method walk = null;
+        Method getClassName = null;
+        try {
+            Class<?> stackWalkerClass = Class.forName("java.lang.StackWalker");
+            stackWalker = stackWalkerClass.getMethod("getInstance").invoke(null);
+            walk = stackWalkerClass.getMethod("walk", Function.class);
+            getClassName = Class.forName("java.lang.StackWalker$StackFrame").getMethod("getClassName");
+        } catch (Exception ex) {
+            // StackWalker isn't available, full stack trace is used
+            stackWalker = null;
+        }
+        STACK_WALKER = stackWalker;
+        STACK_WALKER_WALK = walk;
+        STACK_FRAME_GET_CLASS_NAME = getClassName;
+    }
+
+    private static final Function<Stream<?>, String> CALLER_FINDER = new Function<Stream<?>, String>() {
+        @Override
+        public String apply(Stream<?> frames) {
+            try {
+                Iterator<?> it = frames.limit(MAX_CALLER_DEPTH).iterator();
+                while (it.hasNext()) {
+                    String className = (String) STACK_FRAME_GET_CLASS_NAME.invoke(it.next());
+                    if (!isLogClass(className)) {
+                        return className;
+                    }
+                }
+                return Logger.ROOT_LOGGER_NAME;
+            } catch (Exception ex) {
+                throw new IllegalStateException("Error occurred during resolving of logger name", ex);
+            }
+        }
+    };
+
+    /**
+     * Gets logging handle for specified class. Handles are cached, it's recommended to store them
+     * in static fields of the class.
+     *
+     * @param clazz the class
+     * @return logging handle
+     * @since 2.1
+     */
+    public static ClassLogger forClass(Class<?> clazz) {
+        String name = clazz.getName();
+
+        ClassLogger classLogger = CLASS_LOGGERS.get(name);
+        if (classLogger == null) {
+            classLogger = new ClassLogger(LoggerFactory.getLogger(name));
+            ClassLogger prevClassLogger = CLASS_LOGGERS.putIfAbsent(name, classLogger);
+            if (prevClassLogger != null) {
+                classLogger = prevClassLogger;
+            }
+        }
+        return classLogger;
+    }
+
+    /**
+     * Gets logger name of the calling class (first class outside this class).
+     *
+     * @return logger name
+     */
+    static String getLogger() {
+        if (STACK_WALKER != null) {
+            try {
+                return (String) STACK_WALKER_WALK.invoke(STACK_WALKER, CALLER_FINDER);
+            } catch (Exception ex) {
+                throw new IllegalStateException("Error occurred during resolving of logger name", ex);
+            }
+        }
+
         StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
         String logger = Logger.ROOT_LOGGER_NAME;
         int i = 3;
         if (stackTrace.length >= i) {
             logger = stackTrace[i++].getClassName();
-            while (logger.startsWith(Log.class.getName()) && (i <= stackTrace.length) && (i <= 7)) {
+            while (isLogClass(logger) && (i <= stackTrace.length) && (i <= 7)) {
                 logger = stackTrace[i++].getClassName();
             }
         }
         return logger;
     }
 
+    private static boolean isLogClass(String className) {
+        // this class and its inner classes only (not e.g. LogContextFilter)
+        return className.startsWith(Log.class.getName())
+                && (className.length() == Log.class.getName().length()
+                    || className.charAt(Log.class.getName().length()) == '$');
+    }
+
     // ----------------------------------------------------------------------
     // logging level status
     // ----------------------------------------------------------------------
@@ -101,9 +202,10 @@ public final class Log {
     }
 
     public static void debug(String message, Throwable t, Object... values) {
-        if (isDebugEnabled()) {
+        Logger logger = LoggerFactory.getLogger(getLogger());
+        if (logger.isDebugEnabled()) {
             FormattingTuple ft = MessageFormatter.arrayFormat(message, values);
-            LoggerFactory.getLogger(getLogger()).debug(ft.getMessage(), t);
+            logger.debug(ft.getMessage(), t);
         }
     }
 
@@ -143,9 +245,10 @@ public final class Log {
     }
 
     public static void info(String message, Throwable t, Object... values) {
-        if (isInfoEnabled()) {
+        Logger logger = LoggerFactory.getLogger(getLogger());
+        if (logger.isInfoEnabled()) {
             FormattingTuple ft = MessageFormatter.arrayFormat(message, values);
-            LoggerFactory.getLogger(getLogger()).info(ft.getMessage(), t);
+            logger.info(ft.getMessage(), t);
         }
     }
 
@@ -185,9 +288,10 @@ public final class Log {
     }
 
     public static void warn(String message, Throwable t, Object... values) {
-        if (isWarnEnabled()) {
+        Logger logger = LoggerFactory.getLogger(getLogger());
+        if (logger.isWarnEnabled()) {
             FormattingTuple ft = MessageFormatter.arrayFormat(message, values);
-            LoggerFactory.getLogger(getLogger()).warn(ft.getMessage(), t);
+            logger.warn(ft.getMessage(), t);
         }
     }
 
@@ -227,9 +331,10 @@ public final class Log {
     }
 
     public static void error(String message, Throwable t, Object... values) {
-        if (isErrorEnabled()) {
+        Logger logger = LoggerFactory.getLogger(getLogger());
+        if (logger.isErrorEnabled()) {
             FormattingTuple ft = MessageFormatter.arrayFormat(message, values);
-            LoggerFactory.getLogger(getLogger()).error(ft.getMessage(), t);
+            logger.error(ft.getMessage(), t);
         }
     }
 
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cleverbus.common.log;
+
+import org.junit.Test;
+
+
+/**
+ * Comparison of costs of debug calls by {@link Log} and {@link ClassLogger} with resolving of logger name
+ * from full stack trace, results are written to the log. Run by profile "benchmark" only.
+ */
+public class LogBenchmark {
+
+    private static final ClassLogger LOG = Log.forClass(LogBenchmark.class);
+
+    private static final int COUNT = 10000;
+
+    @Test
+    public void benchmarkDebugCalls() {
+        // real calls come from deep stacks of Camel routes
+        callAtDepth(100);
+    }
+
+    private void callAtDepth(int depth) {
+        if (depth > 0) {
+            callAtDepth(depth - 1);
+            return;
+        }
+
+        // warm up
+        logStackTrace();
+        logStatic();
+        logHandle();
+
+        long start = System.nanoTime();
+        logStackTrace();
+        long stackTraceTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        logStatic();
+        long staticTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        logHandle();
+        long handleTime = System.nanoTime() - start;
+
+        LOG.info("Debug calls (debug enabled = {}): full stack trace {} ns/call, Log.debug() {} ns/call,"
+                + " ClassLogger.debug() {} ns/call", LOG.isDebugEnabled(), stackTraceTime / COUNT,
+                staticTime / COUNT, handleTime / COUNT);
+    }
+
+    private void logStackTrace() {
+        for (int i = 0; i < COUNT; i++) {
+            // original resolving of logger name
+            Thread.currentThread().getStackTrace();
+        }
+    }
+
+    private void logStatic() {
+        for (int i = 0; i < COUNT; i++) {
+            Log.debug("debug message {}", i);
+        }
+    }
+
+    private void logHandle() {
+        for (int i = 0; i < COUNT; i++) {
+            LOG.debug("debug message {}", i);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cleverbus.common.log;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+
+/**
+ * Test suite for {@link Log}.
+ */
+public class LogTest {
+
+    private static final ClassLogger LOG = Log.forClass(LogTest.class);
+
+    @Test
+    public void testForClass() {
+        assertThat(Log.forClass(LogTest.class), sameInstance(LOG));
+    }
+
+    @Test
+    public void testCallerResolving() {
+        assertThat(Log.getLogger(), is(LogTest.class.getName()));
+        assertThat(new Caller().getLoggerName(), is(Caller.class.getName()));
+    }
+
+    private static class Caller {
+
+        private String getLoggerName() {
+            return Log.getLogger();
+        }
+    }
+}
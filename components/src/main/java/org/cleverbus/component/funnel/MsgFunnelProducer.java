@@ -81,16 +81,16 @@ public class MsgFunnelProducer extends DefaultProducer {
                 // By default classic funnel works with running messages (PROCESSING, WAITING, WAITING_FOR_RES) only
                 // and if it's necessary to guarantee processing order then also PARTLY_FAILED, POSTPONED [and FAILED]
                 // messages should be involved
-                List<Message> messages = endpoint.getMessageService().getMessagesForGuaranteedOrderForFunnel(
+                List<Long> msgIds = endpoint.getMessageService().getMsgIdsForGuaranteedOrderForFunnel(
                         funnelValues, endpoint.getIdleInterval(), endpoint.isExcludeFailedState(),
                         funnelCompId);
 
-                if (messages.size() == 1) {
+                if (msgIds.size() == 1) {
                     Log.debug("There is only one processing message with funnel values: " + funnelValues
                             + " => no filtering");
 
                 // is specified message first one for processing?
-                } else if (messages.get(0).equals(msg)) {
+                } else if (msgIds.get(0).equals(msg.getMsgId())) {
                     Log.debug("Processing message (msg_id = {}, funnel values = '{}') is the first one"
                             + " => no filtering", msg.getMsgId(), funnelValues);
 
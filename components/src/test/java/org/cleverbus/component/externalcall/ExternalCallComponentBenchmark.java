@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cleverbus.component.externalcall;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.cleverbus.api.asynch.AsynchConstants;
+import org.cleverbus.api.entity.Message;
+import org.cleverbus.api.extcall.ExtCallComponentParams;
+import org.cleverbus.common.log.Log;
+import org.cleverbus.component.AbstractComponentsDbTest;
+import org.cleverbus.core.common.asynch.AsynchMessageRoute;
+import org.cleverbus.test.ActiveRoutes;
+import org.cleverbus.test.ExternalSystemTestEnum;
+import org.cleverbus.test.ServiceTestEnum;
+
+import org.apache.camel.EndpointInject;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.Produce;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.component.mock.MockEndpoint;
+import org.junit.Test;
+
+
+/**
+ * Measures overhead of {@link ExternalCallComponent} per message for new external calls and for external call
+ * taken by newer messages, results are written to the log. Run by profile "benchmark" only.
+ */
+@ActiveRoutes(classes = {AsynchMessageRoute.class})
+public class ExternalCallComponentBenchmark extends AbstractComponentsDbTest {
+
+    private static final int COUNT = 100;
+
+    @Produce
+    private ProducerTemplate producer;
+
+    @EndpointInject(uri = "mock:test")
+    private MockEndpoint mockEndpoint;
+
+    @Test
+    public void benchmarkExternalCallOverhead() throws Exception {
+        mockEndpoint.whenAnyExchangeReceived(new Processor() {
+            @Override
+            public void process(Exchange exchange) throws Exception {
+                exchange.getIn().setBody("external call reply body");
+            }
+        });
+
+        // warm up
+        measure("warmUpKey");
+
+        Message[] msgs = createAndSaveMessages(COUNT, ExternalSystemTestEnum.CRM, ServiceTestEnum.CUSTOMER,
+                "setCustomer", "payload");
+
+        // new external call for each message
+        long start = System.nanoTime();
+        for (int i = 0; i < COUNT; i++) {
+            requestViaExternalCall(msgs[i], "overheadKey" + i);
+        }
+        long newCallsTime = System.nanoTime() - start;
+
+        // the same external call taken by next messages
+        start = System.nanoTime();
+        for (int i = 0; i < COUNT; i++) {
+            requestViaExternalCall(msgs[i], "overheadKey");
+        }
+        long existingCallTime = System.nanoTime() - start;
+
+        Log.info("External call overhead per message: new call {} us, existing call {} us",
+                newCallsTime / COUNT / 1000, existingCallTime / COUNT / 1000);
+    }
+
+    private void measure(String key) throws Exception {
+        Message[] msgs = createAndSaveMessages(COUNT, ExternalSystemTestEnum.CRM, ServiceTestEnum.CUSTOMER,
+                "setCustomer", "payload");
+
+        for (int i = 0; i < COUNT; i++) {
+            requestViaExternalCall(msgs[i], key + i);
+            requestViaExternalCall(msgs[i], key);
+        }
+    }
+
+    private void requestViaExternalCall(final Message msg, final String key) throws Exception {
+        Exchange reply = producer.request("extcall:" + ExternalCallKeyType.CUSTOM + ":mock:test", new Processor() {
+            @Override
+            public void process(Exchange exchange) throws Exception {
+                Map<String, Object> headers = new HashMap<String, Object>();
+                headers.put(AsynchConstants.MSG_HEADER, msg);
+                headers.put(AsynchConstants.ASYNCH_MSG_HEADER, true);
+
+                exchange.getIn().setHeaders(headers);
+                exchange.getIn().setBody("external call original body");
+                exchange.setProperty(ExtCallComponentParams.EXTERNAL_CALL_KEY, key);
+            }
+        });
+
+        if (reply.getException() != null) {
+            throw reply.getException();
+        }
+    }
+}
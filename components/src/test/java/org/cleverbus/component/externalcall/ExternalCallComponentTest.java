@@ -440,6 +440,39 @@ public class ExternalCallComponentTest extends AbstractComponentsDbTest {
         assumeTrue("This test is pointless if lock failure is never encountered", lockFailureEncountered);
     }
 
+    @Test
+    public void testExternalCallTakenByNewerMessages() throws Exception {
+        final int count = 10;
+        Message[] msgs = messages(count);
+
+        mockEndpoint.whenAnyExchangeReceived(new Processor() {
+            @Override
+            public void process(Exchange exchange) throws Exception {
+                exchange.getIn().setBody("external call reply body");
+            }
+        });
+        mockEndpoint.expectedMessageCount(2 * count);
+
+        // new external call for each message
+        for (int i = 0; i < count; i++) {
+            requestViaExternalCall(msgs[i], "mock:test", "newCallKey" + i, "external call original body");
+        }
+
+        // the same external call taken by next (newer) messages
+        for (int i = 0; i < count; i++) {
+            requestViaExternalCall(msgs[i], "mock:test", "sameCallKey", "external call original body");
+        }
+
+        mockEndpoint.assertIsSatisfied();
+
+        assertThat(getJdbcTemplate().queryForObject(
+                "SELECT COUNT(*) FROM external_call WHERE entity_id LIKE 'newCallKey%'", Integer.class), is(count));
+
+        Long callId = getJdbcTemplate().queryForObject(
+                "SELECT call_id FROM external_call WHERE entity_id = 'sameCallKey'", Long.class);
+        assertExtCallStateInDB(callId, ExternalCallStateEnum.OK, msgs[count - 1]);
+    }
+
     private boolean sendAndVerifyBatch(Message[] messages) throws Exception {
         boolean lockFailureEncountered = false;
         HashMap<Message, Future<String>> replies = new HashMap<Message, Future<String>>();
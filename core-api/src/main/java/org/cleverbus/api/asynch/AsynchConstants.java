@@ -129,6 +129,14 @@ public final class AsynchConstants {
      */
     public static final String ENTITY_TYPE_HEADER = "entityType";
 
+    /**
+     * Header value that holds flag (true/false) if payload of incoming message is large
+     * and it should be stored in the file repository instead of the database.
+     *
+     * @since 2.1
+     */
+    public static final String LARGE_PAYLOAD_HEADER = "asynchLargePayload";
+
     /**
      * Property that holds {@link CallbackResponse} with FAIL state.
      */
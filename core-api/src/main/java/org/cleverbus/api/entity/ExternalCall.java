@@ -24,8 +24,8 @@ import javax.persistence.EnumType;
 import javax.persistence.Enumerated;
 import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
-import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
 import javax.persistence.Table;
@@ -37,6 +37,8 @@ import org.cleverbus.api.common.HumanReadable;
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
 import org.springframework.util.Assert;
 
 
@@ -50,20 +52,30 @@ import org.springframework.util.Assert;
  * Special case are confirmations which have operation with the name "{@value #CONFIRM_OPERATION}"
  * and entity ID will be set to {@link Message#getMsgId() message ID}.
  * There are only confirmations which failed previously.
+ * <p/>
+ * Indexes for confirmation pool and repair process are defined as partial indexes in the PostgreSQL scripts,
+ * the same indexes without conditions are generated for other databases (e.g. H2 in tests).
  *
  * @author <a href="mailto:petr.juza@cleverlance.com">Petr Juza</a>
  */
 @Entity
 @Table(name = "external_call",
         uniqueConstraints = @UniqueConstraint(name = "uq_operation_entity_id",
-                columnNames = {"operation_name", "entity_id"}))
+                columnNames = {"operation_name", "entity_id"}),
+        indexes = {
+                @Index(name = "ext_pool_idx", columnList = "state, last_update_timestamp"),
+                @Index(name = "ext_confirm_idx", columnList = "operation_name, state, creation_timestamp")})
 public class ExternalCall implements HumanReadable {
 
     public static final String CONFIRM_OPERATION = "confirmation";
 
     @Id
     @Column(name = "call_id")
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(generator = "call_id_generator")
+    @GenericGenerator(name = "call_id_generator", strategy = PooledIdGenerator.STRATEGY, parameters = {
+            @Parameter(name = "sequence_name", value = PooledIdGenerator.SEQUENCE_NAME),
+            @Parameter(name = "increment_size", value = PooledIdGenerator.INCREMENT_SIZE),
+            @Parameter(name = "optimizer", value = PooledIdGenerator.OPTIMIZER)})
     private Long id;
 
     @ManyToOne(fetch = FetchType.EAGER)
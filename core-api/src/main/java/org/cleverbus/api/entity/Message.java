@@ -24,6 +24,7 @@ import org.cleverbus.api.common.HumanReadable;
 import org.cleverbus.api.exception.ErrorExtEnum;
 import org.hibernate.annotations.*;
 import org.hibernate.annotations.CascadeType;
+import org.hibernate.annotations.Parameter;
 import org.springframework.context.i18n.LocaleContextHolder;
 import org.springframework.util.Assert;
 
@@ -31,6 +32,7 @@ import javax.annotation.Nullable;
 import javax.persistence.*;
 import javax.persistence.AccessType;
 import javax.persistence.Entity;
+import javax.persistence.Index;
 import javax.persistence.Table;
 import java.text.Collator;
 import java.util.*;
@@ -38,13 +40,20 @@ import java.util.*;
 
 /**
  * Input asynchronous message.
+ * <p/>
+ * Indexes for polling of messages are defined as partial indexes in the PostgreSQL scripts,
+ * the same indexes without conditions are generated for other databases (e.g. H2 in tests).
  *
  * @author <a href="mailto:petr.juza@cleverlance.com">Petr Juza</a>
  */
 @Entity
 @Table(name = "message",
         uniqueConstraints = @UniqueConstraint(name = "uq_correlation_system",
-                columnNames = {"correlation_id", "source_system"}))
+                columnNames = {"correlation_id", "source_system"}),
+        indexes = {
+                @Index(name = "msg_poll_idx", columnList = "state, last_update_timestamp, msg_timestamp"),
+                @Index(name = "msg_processing_idx", columnList = "state, start_process_timestamp"),
+                @Index(name = "msg_parent_idx", columnList = "parent_msg_id")})
 public class Message implements HumanReadable {
 
     /**
@@ -54,7 +63,11 @@ public class Message implements HumanReadable {
 
     @Id
     @Column(name = "msg_id")
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(generator = "msg_id_generator")
+    @GenericGenerator(name = "msg_id_generator", strategy = PooledIdGenerator.STRATEGY, parameters = {
+            @Parameter(name = "sequence_name", value = PooledIdGenerator.SEQUENCE_NAME),
+            @Parameter(name = "increment_size", value = PooledIdGenerator.INCREMENT_SIZE),
+            @Parameter(name = "optimizer", value = PooledIdGenerator.OPTIMIZER)})
     private Long msgId;
 
     @Column(name = "msg_timestamp", nullable = false)
@@ -97,6 +110,9 @@ public class Message implements HumanReadable {
     @Column(name = "envelope", length = Integer.MAX_VALUE, nullable = true)
     private String envelope;
 
+    @Column(name = "payload_file", length = 255, nullable = true)
+    private String payloadFile;
+
     @Column(name = "source_system", length = 15, nullable = false)
     @Access(AccessType.PROPERTY)
     private String sourceSystemInternal;
@@ -137,6 +153,10 @@ public class Message implements HumanReadable {
     @Column(name = "parent_msg_id", nullable = true)
     private Long parentMsgId;
 
+    // counter is changed by atomic updates in DB only, never by saving whole message
+    @Column(name = "children_remaining", nullable = true, insertable = false, updatable = false)
+    private Integer remainingChildren;
+
     @Enumerated(EnumType.STRING)
     @Column(name = "parent_binding_type", length = 25, nullable = true)
     private BindingTypeEnum parentBindingType;
@@ -370,6 +390,22 @@ public class Message implements HumanReadable {
         this.payload = payload;
     }
 
+    /**
+     * Gets identifier of the file in {@link org.cleverbus.api.file.FileRepository file repository}
+     * where large payload is stored. Payload in the message is empty then.
+     *
+     * @return file identifier or {@code null} if payload is stored in the message
+     * @since 2.1
+     */
+    @Nullable
+    public String getPayloadFile() {
+        return payloadFile;
+    }
+
+    public void setPayloadFile(@Nullable String payloadFile) {
+        this.payloadFile = payloadFile;
+    }
+
     /**
      * Gets the whole SOAP envelope (= the full original request: SOAP headers, SOAP body).
      *
@@ -602,6 +638,19 @@ public class Message implements HumanReadable {
         }
     }
 
+    /**
+     * Gets count of child messages with {@link BindingTypeEnum#HARD hard} binding which haven't been processed
+     * successfully yet. Parent message is processed successfully when the count falls to zero.
+     *
+     * @return count of remaining child messages or {@code null} if this message isn't parent message
+     *      (or parent message was created by older version)
+     * @since 2.1
+     */
+    @Nullable
+    public Integer getRemainingChildren() {
+        return remainingChildren;
+    }
+
     /**
      * Gets type of binding between parent and child message.
      *
@@ -845,6 +894,7 @@ public class Message implements HumanReadable {
             .append("objectId", objectId)
             .append("entityType", entityType != null ? entityType.getEntityType() : null)
 //            .append("payload", StringUtils.substring(payload, 0, 500))
+            .append("payloadFile", payloadFile)
             .append("sourceSystem", sourceSystem != null ? sourceSystem.getSystemName() : null)
             .append("startProcessTimestamp", startProcessTimestamp)
             .append("failedCount", failedCount)
@@ -855,6 +905,7 @@ public class Message implements HumanReadable {
             .append("businessError", StringUtils.substring(businessError, 0, 200))
             .append("parentMsgId", parentMsgId)
             .append("parentBindingType", parentBindingType)
+            .append("remainingChildren", remainingChildren)
             .append("funnelComponentId", funnelComponentId)
             .append("guaranteedOrder", guaranteedOrder)
             .append("excludeFailedState", excludeFailedState)
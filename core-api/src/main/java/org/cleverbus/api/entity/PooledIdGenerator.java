@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cleverbus.api.entity;
+
+/**
+ * Configuration of ID generator for entities which are inserted often ({@link Message}, {@link ExternalCall},
+ * {@link Request} and {@link Response}).
+ * <p/>
+ * IDs are taken from the database sequence in blocks of {@value #INCREMENT_SIZE} (Hibernate pooled optimizer)
+ * so there is one sequence call per block instead of one call per row. The sequence must be created with
+ * the same increment.
+ *
+ * @since 2.1
+ */
+public final class PooledIdGenerator {
+
+    /**
+     * Hibernate generator strategy.
+     */
+    public static final String STRATEGY = "org.hibernate.id.enhanced.SequenceStyleGenerator";
+
+    /**
+     * Name of the database sequence.
+     */
+    public static final String SEQUENCE_NAME = "pooled_id_sequence";
+
+    /**
+     * Count of IDs allocated at once, it must be the same as increment of the database sequence.
+     */
+    public static final String INCREMENT_SIZE = "50";
+
+    /**
+     * Hibernate optimizer which allocates blocks of IDs.
+     */
+    public static final String OPTIMIZER = "pooled";
+
+    private PooledIdGenerator() {
+    }
+}
@@ -25,8 +25,8 @@ import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
-import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
 import javax.persistence.OneToOne;
@@ -38,6 +38,8 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
 import org.springframework.util.Assert;
 
 
@@ -52,7 +54,8 @@ import org.springframework.util.Assert;
  * @since 0.4
  */
 @Entity
-@Table(name = "request")
+@Table(name = "request",
+        indexes = @Index(name = "req_res_join_idx", columnList = "res_join_id, uri, req_timestamp"))
 public class Request implements HumanReadable {
 
     private static final int URI_MAX_LENGTH = 400;
@@ -65,7 +68,11 @@ public class Request implements HumanReadable {
 
     @Id
     @Column(name = "req_id")
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(generator = "req_id_generator")
+    @GenericGenerator(name = "req_id_generator", strategy = PooledIdGenerator.STRATEGY, parameters = {
+            @Parameter(name = "sequence_name", value = PooledIdGenerator.SEQUENCE_NAME),
+            @Parameter(name = "increment_size", value = PooledIdGenerator.INCREMENT_SIZE),
+            @Parameter(name = "optimizer", value = PooledIdGenerator.OPTIMIZER)})
     private Long id;
 
     @ManyToOne(fetch = FetchType.EAGER)
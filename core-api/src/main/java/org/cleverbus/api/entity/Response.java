@@ -23,7 +23,6 @@ import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
-import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
@@ -36,6 +35,8 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.Parameter;
 import org.springframework.util.Assert;
 
 
@@ -52,7 +53,11 @@ public class Response implements HumanReadable {
 
     @Id
     @Column(name = "res_id")
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(generator = "res_id_generator")
+    @GenericGenerator(name = "res_id_generator", strategy = PooledIdGenerator.STRATEGY, parameters = {
+            @Parameter(name = "sequence_name", value = PooledIdGenerator.SEQUENCE_NAME),
+            @Parameter(name = "increment_size", value = PooledIdGenerator.INCREMENT_SIZE),
+            @Parameter(name = "optimizer", value = PooledIdGenerator.OPTIMIZER)})
     private Long id;
 
     @ManyToOne(fetch = FetchType.LAZY)
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cleverbus.api.entity;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+import org.cleverbus.api.common.HumanReadable;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.springframework.util.Assert;
+
+
+/**
+ * Entity for sharing throttling counters between nodes in the cluster.
+ * <p/>
+ * One bucket holds count of requests received by one node for one throttling scope (source system and service name)
+ * in one short time slot.
+ *
+ * @since 2.1
+ */
+@Entity
+@Table(name = "throttle_counter",
+        uniqueConstraints = @UniqueConstraint(name = "uq_throttle_counter_bucket",
+                columnNames = {"node_id", "source_system", "service_name", "bucket_timestamp"}))
+public class ThrottleCounterBucket implements HumanReadable {
+
+    @Id
+    @Column(name = "counter_id")
+    @GeneratedValue(strategy = GenerationType.AUTO)
+    private Long id;
+
+    @Column(name = "node_id", length = 100, nullable = false)
+    private String nodeId;
+
+    @Column(name = "source_system", length = 100, nullable = false)
+    private String sourceSystem;
+
+    @Column(name = "service_name", length = 100, nullable = false)
+    private String serviceName;
+
+    @Column(name = "bucket_timestamp", nullable = false)
+    private Date bucketTimestamp;
+
+    @Column(name = "req_count", nullable = false)
+    private int count;
+
+    /**
+     * New instance only for hibernate.
+     */
+    protected ThrottleCounterBucket() {
+    }
+
+    /**
+     * New instance.
+     *
+     * @param nodeId the node ID
+     * @param sourceSystem the source system of throttling scope
+     * @param serviceName the service name of throttling scope
+     * @param bucketTimestamp the beginning of time slot
+     * @param count count of requests in the time slot
+     */
+    public ThrottleCounterBucket(String nodeId, String sourceSystem, String serviceName, Date bucketTimestamp,
+            int count) {
+        Assert.hasText(nodeId, "nodeId must not be empty");
+        Assert.hasText(sourceSystem, "sourceSystem must not be empty");
+        Assert.hasText(serviceName, "serviceName must not be empty");
+        Assert.notNull(bucketTimestamp, "bucketTimestamp must not be null");
+
+        this.nodeId = nodeId;
+        this.sourceSystem = sourceSystem;
+        this.serviceName = serviceName;
+        this.bucketTimestamp = bucketTimestamp;
+        this.count = count;
+    }
+
+    //---------------------------------------------------- SET / GET ---------------------------------------------------
+
+    /**
+     * Gets unique bucket ID.
+     *
+     * @return bucket ID
+     */
+    public Long getId() {
+        return id;
+    }
+
+    /**
+     * Gets ID of node which received requests.
+     *
+     * @return node ID
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Gets source system of throttling scope.
+     *
+     * @return source system
+     */
+    public String getSourceSystem() {
+        return sourceSystem;
+    }
+
+    /**
+     * Gets service name of throttling scope.
+     *
+     * @return service name
+     */
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    /**
+     * Gets the beginning of time slot.
+     *
+     * @return timestamp
+     */
+    public Date getBucketTimestamp() {
+        return bucketTimestamp;
+    }
+
+    /**
+     * Gets count of requests in the time slot.
+     *
+     * @return count of requests
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Sets count of requests in the time slot.
+     *
+     * @param count count of requests
+     */
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    //-------------------------------------------- TO STRING / HASH / EQUALS -------------------------------------------
+
+    @Override
+    public String toHumanString() {
+        return "(nodeId = " + nodeId + ", scope = " + sourceSystem + "." + serviceName
+                + ", bucket = " + bucketTimestamp + ", count = " + count + ")";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+
+        if (o == null || getClass() != o.getClass()) return false;
+
+        ThrottleCounterBucket bucket = (ThrottleCounterBucket) o;
+
+        return new EqualsBuilder()
+                .append(nodeId, bucket.nodeId)
+                .append(sourceSystem, bucket.sourceSystem)
+                .append(serviceName, bucket.serviceName)
+                .append(bucketTimestamp, bucket.bucketTimestamp)
+                .isEquals();
+    }
+
+    @Override
+    public int hashCode() {
+        return new HashCodeBuilder(17, 37)
+                .append(nodeId)
+                .append(sourceSystem)
+                .append(serviceName)
+                .append(bucketTimestamp)
+                .toHashCode();
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this)
+                .append("id", id)
+                .append("nodeId", nodeId)
+                .append("sourceSystem", sourceSystem)
+                .append("serviceName", serviceName)
+                .append("bucketTimestamp", bucketTimestamp)
+                .append("count", count)
+                .toString();
+    }
+}
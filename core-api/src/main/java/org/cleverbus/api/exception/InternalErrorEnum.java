@@ -138,7 +138,12 @@ public enum InternalErrorEnum implements ErrorExtEnum {
     /**
      * Message changed to POSTPONED state repeatedly and max. limit for starting processing was exceeded.
      */
-    E121("message changed to POSTPONED state repeatedly and max. limit for starting processing was exceeded");
+    E121("message changed to POSTPONED state repeatedly and max. limit for starting processing was exceeded"),
+
+    /**
+     * Asynchronous request was rejected because queue of messages for processing was full.
+     */
+    E122("Asynchronous request was rejected because queue of messages for processing was full.");
 
 
     private String errDesc;
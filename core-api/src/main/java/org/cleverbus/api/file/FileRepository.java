@@ -16,6 +16,7 @@
 
 package org.cleverbus.api.file;
 
+import java.io.InputStream;
 import java.util.List;
 
 
@@ -59,4 +60,33 @@ public interface FileRepository {
      * @param subFolders the collection of sub-folders which determine where is the target folder for moving the file
      */
     void commitFile(String fileId, String fileName, FileContentTypeExtEnum contentType, List<String> subFolders);
+
+    /**
+     * Saves file directly into the target place in the repository (without temporary store).
+     *
+     * @param writerCallback the callback for writing file to specified output stream
+     * @param subFolders the collection of sub-folders which determine where is the target folder
+     * @return new unique file identifier for {@link #readFile(String)}
+     * @since 2.1
+     */
+    String saveFile(OutputStreamWriterCallback writerCallback, List<String> subFolders);
+
+    /**
+     * Opens file saved by {@link #saveFile(OutputStreamWriterCallback, List)} for reading.
+     * The caller is responsible for closing the stream.
+     *
+     * @param fileId the file identifier
+     * @return input stream of the file
+     * @since 2.1
+     */
+    InputStream readFile(String fileId);
+
+    /**
+     * Deletes file saved by {@link #saveFile(OutputStreamWriterCallback, List)}.
+     *
+     * @param fileId the file identifier
+     * @return {@code true} if the file was deleted, {@code false} if there is no such file or it can't be deleted
+     * @since 2.1
+     */
+    boolean deleteFile(String fileId);
 }
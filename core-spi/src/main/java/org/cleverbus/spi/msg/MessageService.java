@@ -49,7 +49,7 @@ public interface MessageService {
     void insertMessage(Message message);
 
     /**
-     * Inserts new messages.
+     * Inserts new messages in one transaction, rows are sent to the database in JDBC batches.
      *
      * @param messages the collection of message
      */
@@ -167,6 +167,7 @@ public interface MessageService {
 
     /**
      * Finds message by substring in payload property.
+     * Large payloads stored in the file repository (see {@link Message#getPayloadFile()}) aren't searched.
      *
      * @param substring the substring of payload property
      * @return list of messages or {@code empty list} if not found messages with substring in payload property
@@ -229,6 +230,25 @@ public interface MessageService {
     List<Message> getMessagesForGuaranteedOrderForFunnel(Collection<String> funnelValues, int idleInterval,
             boolean excludeFailedState, String funnelCompId);
 
+    /**
+     * Gets IDs of messages that contains one funnel value from parameter for guaranteed processing order of messages
+     * for specified funnel.
+     * <p>
+     * It's the same as {@link #getMessagesForGuaranteedOrderForFunnel(Collection, int, boolean, String)} but
+     * the messages don't have to be loaded from database.
+     * </p>
+     *
+     * @param funnelValues the funnel values
+     * @param idleInterval interval (in seconds) that determines how long can message be processing
+     * @param excludeFailedState {@link MsgStateEnum#FAILED FAILED} state is used by default;
+     *                           use {@code true} if you want to exclude FAILED state
+     * @param funnelCompId the funnel component ID
+     * @return list of message IDs ordered by {@link Message#getMsgTimestamp() message timestamp}
+     * @since 2.1
+     */
+    List<Long> getMsgIdsForGuaranteedOrderForFunnel(Collection<String> funnelValues, int idleInterval,
+            boolean excludeFailedState, String funnelCompId);
+
     /**
      * Changes state of the message to {@link MsgStateEnum#POSTPONED}.
      *
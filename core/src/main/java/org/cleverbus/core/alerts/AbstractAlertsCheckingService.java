@@ -16,31 +16,90 @@
 
 package org.cleverbus.core.alerts;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PreDestroy;
 
 import org.cleverbus.common.log.Log;
 import org.cleverbus.spi.alerts.AlertInfo;
 import org.cleverbus.spi.alerts.AlertListener;
 import org.cleverbus.spi.alerts.AlertsConfiguration;
 
+import org.apache.camel.CamelContext;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
 
 
 /**
  * Default implementation of {@link AlertsCheckingService} interface.
+ * <p/>
+ * Alerts are evaluated concurrently (see {@link #mergeAlerts(List)} for evaluation of more alerts together),
+ * alert which isn't evaluated in {@code alerts.queryTimeout} is skipped in this check.
+ * Results are cached for {@code alerts.repeatTime} so additional checks (e.g. via JMX) don't run queries again.
  *
  * @author <a href="mailto:petr.juza@cleverlance.com">Petr Juza</a>
  * @since 0.4
  */
+@ManagedResource(description = "Checking of alerts")
 public abstract class AbstractAlertsCheckingService implements AlertsCheckingService {
 
+    /**
+     * Scheduler can start the check a little sooner than after whole repeat interval since previous check,
+     * cached results are not used by regular check then.
+     */
+    static final int CACHE_TOLERANCE_MILLIS = 1000;
+
     @Autowired
     private AlertsConfiguration alertsConfig;
 
     @Autowired
     private Collection<AlertListener> listeners;
 
+    @Autowired(required = false)
+    private CamelContext camelContext;
+
+    /**
+     * How often to run checking of alerts (in seconds), results of alerts are cached for this interval.
+     */
+    @Value("${alerts.repeatTime}")
+    private int repeatInterval;
+
+    /**
+     * Count of alerts evaluated concurrently.
+     */
+    @Value("${alerts.parallelism}")
+    private int parallelism;
+
+    /**
+     * Maximum time (in seconds) of evaluation of one alert.
+     */
+    @Value("${alerts.queryTimeout}")
+    private int queryTimeout;
+
+    private ExecutorService executor;
+
+    private final ConcurrentMap<String, CachedCount> cache = new ConcurrentHashMap<String, CachedCount>();
+
+    private final ConcurrentMap<String, AlertStatistics> statistics = new ConcurrentHashMap<String, AlertStatistics>();
+
+    @ManagedOperation(description = "Checks alerts and notifies listeners")
     @Override
     public final void checkAlerts() {
         Log.debug("Alerts checking starts ...");
@@ -53,8 +112,15 @@ public abstract class AbstractAlertsCheckingService implements AlertsCheckingSer
 
         List<AlertInfo> alerts = alertsConfig.getAlerts(true);
 
+        Map<String, Long> counts = evaluate(alerts);
+
         for (AlertInfo alert : alerts) {
-            long count = getCount(alert);
+            Long count = counts.get(alert.getId());
+
+            if (count == null) {
+                // evaluation failed, the reason is already logged
+                continue;
+            }
 
             if (count > alert.getLimit()) {
                 Log.debug("Actual count=" + count + " exceeded limit (" + alert.getLimit()
@@ -77,6 +143,142 @@ public abstract class AbstractAlertsCheckingService implements AlertsCheckingSer
         Log.debug("Alerts checking ends.");
     }
 
+    /**
+     * Gets actual counts of specified alerts - from cache if they're not too old, other alerts are evaluated
+     * concurrently.
+     *
+     * @param alerts the alerts
+     * @return counts of alerts (alert ID => count), alerts which failed or didn't finish in time are missing
+     */
+    private Map<String, Long> evaluate(List<AlertInfo> alerts) {
+        Map<String, Long> counts = new HashMap<String, Long>();
+
+        long now = System.currentTimeMillis();
+        long cacheMillis = repeatInterval * 1000L - CACHE_TOLERANCE_MILLIS;
+
+        List<AlertInfo> evaluated = new ArrayList<AlertInfo>(alerts.size());
+        for (AlertInfo alert : alerts) {
+            CachedCount cached = cache.get(alert.getSql());
+            if (cached != null && now - cached.timestamp < cacheMillis) {
+                counts.put(alert.getId(), cached.count);
+            } else {
+                evaluated.add(alert);
+            }
+        }
+
+        if (evaluated.isEmpty()) {
+            return counts;
+        }
+
+        List<List<AlertInfo>> groups = mergeAlerts(evaluated);
+
+        ExecutorService executor = getExecutor();
+        if (executor == null || groups.size() == 1) {
+            for (List<AlertInfo> group : groups) {
+                counts.putAll(evaluate(group, now));
+            }
+            return counts;
+        }
+
+        Map<List<AlertInfo>, Future<Map<String, Long>>> futures
+                = new LinkedHashMap<List<AlertInfo>, Future<Map<String, Long>>>();
+        for (final List<AlertInfo> group : groups) {
+            final long start = now;
+            futures.put(group, executor.submit(new Callable<Map<String, Long>>() {
+                @Override
+                public Map<String, Long> call() {
+                    return evaluate(group, start);
+                }
+            }));
+        }
+
+        // all alerts are evaluated concurrently => one timeout for all
+        long deadline = System.currentTimeMillis() + queryTimeout * 1000L;
+
+        for (Map.Entry<List<AlertInfo>, Future<Map<String, Long>>> entry : futures.entrySet()) {
+            try {
+                long remaining = Math.max(0, deadline - System.currentTimeMillis());
+                counts.putAll(queryTimeout > 0
+                        ? entry.getValue().get(remaining, TimeUnit.MILLISECONDS) : entry.getValue().get());
+
+            } catch (TimeoutException ex) {
+                entry.getValue().cancel(true);
+
+                for (AlertInfo alert : entry.getKey()) {
+                    getStatistics(alert).timeouts.incrementAndGet();
+                    Log.warn("Alert (" + alert.toHumanString() + ") wasn't evaluated in " + queryTimeout
+                            + " seconds, it's skipped in this check.");
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException ex) {
+                // not expected, errors are caught in evaluation
+                Log.error("Error occurred during evaluation of alerts.", ex.getCause());
+            }
+        }
+
+        return counts;
+    }
+
+    /**
+     * Evaluates one group of alerts and saves results to cache.
+     */
+    private Map<String, Long> evaluate(List<AlertInfo> group, long timestamp) {
+        long start = System.currentTimeMillis();
+
+        Map<String, Long> counts;
+        try {
+            counts = getCounts(group);
+        } catch (Exception ex) {
+            Log.error("Evaluation of alerts " + group + " ends with exception.", ex);
+            return Collections.emptyMap();
+        }
+
+        long latency = System.currentTimeMillis() - start;
+
+        for (AlertInfo alert : group) {
+            getStatistics(alert).add(latency);
+
+            Long count = counts.get(alert.getId());
+            if (count != null) {
+                cache.put(alert.getSql(), new CachedCount(count, timestamp));
+            }
+        }
+
+        return counts;
+    }
+
+    /**
+     * Splits alerts into groups which are evaluated together by {@link #getCounts(List)}.
+     * Each alert is evaluated separately by default.
+     *
+     * @param alerts the alerts for evaluation
+     * @return groups of alerts
+     */
+    protected List<List<AlertInfo>> mergeAlerts(List<AlertInfo> alerts) {
+        List<List<AlertInfo>> groups = new ArrayList<List<AlertInfo>>(alerts.size());
+        for (AlertInfo alert : alerts) {
+            groups.add(Collections.singletonList(alert));
+        }
+        return groups;
+    }
+
+    /**
+     * Gets actual counts of one group of alerts, see {@link #mergeAlerts(List)}.
+     * Each alert is evaluated by {@link #getCount(AlertInfo)} by default.
+     *
+     * @param alerts the alerts which are evaluated together
+     * @return counts of alerts (alert ID => count)
+     */
+    protected Map<String, Long> getCounts(List<AlertInfo> alerts) {
+        Map<String, Long> counts = new HashMap<String, Long>();
+        for (AlertInfo alert : alerts) {
+            counts.put(alert.getId(), getCount(alert));
+        }
+        return counts;
+    }
+
     /**
      * Gets actual count of specified alert.
      *
@@ -84,4 +286,102 @@ public abstract class AbstractAlertsCheckingService implements AlertsCheckingSer
      * @return count of items from the alert query
      */
     protected abstract long getCount(AlertInfo alert);
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null && camelContext != null && parallelism > 1) {
+            executor = camelContext.getExecutorServiceManager().newFixedThreadPool(this, "AlertsChecking",
+                    parallelism);
+        }
+        return executor;
+    }
+
+    /**
+     * Stops threads for evaluation of alerts.
+     */
+    @PreDestroy
+    public synchronized void stopExecutor() {
+        if (executor != null) {
+            camelContext.getExecutorServiceManager().shutdown(executor);
+            executor = null;
+        }
+    }
+
+    private AlertStatistics getStatistics(AlertInfo alert) {
+        AlertStatistics stats = statistics.get(alert.getId());
+        if (stats == null) {
+            AlertStatistics newStats = new AlertStatistics();
+            stats = statistics.putIfAbsent(alert.getId(), newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
+    }
+
+    @ManagedAttribute(description = "Evaluation latency of each alert")
+    public String[] getAlertLatency() {
+        List<String> result = new ArrayList<String>(statistics.size());
+
+        for (Map.Entry<String, AlertStatistics> entry : statistics.entrySet()) {
+            AlertStatistics stats = entry.getValue();
+
+            long evaluations = stats.evaluations.get();
+            long avgLatency = evaluations > 0 ? stats.totalLatency.get() / evaluations : 0;
+
+            result.add(String.format("%s: last %d ms, avg %d ms, max %d ms, %d evaluations, %d timeouts",
+                    entry.getKey(), stats.lastLatency.get(), avgLatency, stats.maxLatency.get(), evaluations,
+                    stats.timeouts.get()));
+        }
+
+        Collections.sort(result);
+
+        return result.toArray(new String[result.size()]);
+    }
+
+    @ManagedOperation(description = "Clears cached results of alerts")
+    public void clearCache() {
+        cache.clear();
+    }
+
+    /**
+     * Result of alert query with time of evaluation.
+     */
+    private static final class CachedCount {
+
+        private final long count;
+
+        private final long timestamp;
+
+        private CachedCount(long count, long timestamp) {
+            this.count = count;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * Evaluation statistics of one alert.
+     */
+    private static final class AlertStatistics {
+
+        private final AtomicLong evaluations = new AtomicLong();
+
+        private final AtomicLong timeouts = new AtomicLong();
+
+        private final AtomicLong lastLatency = new AtomicLong();
+
+        private final AtomicLong maxLatency = new AtomicLong();
+
+        private final AtomicLong totalLatency = new AtomicLong();
+
+        private void add(long latency) {
+            evaluations.incrementAndGet();
+            lastLatency.set(latency);
+            totalLatency.addAndGet(latency);
+
+            long max = maxLatency.get();
+            while (latency > max && !maxLatency.compareAndSet(max, latency)) {
+                max = maxLatency.get();
+            }
+        }
+    }
 }
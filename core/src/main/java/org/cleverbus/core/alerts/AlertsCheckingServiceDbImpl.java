@@ -16,24 +16,187 @@
 
 package org.cleverbus.core.alerts;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+
+import org.cleverbus.api.entity.MsgStateEnum;
+import org.cleverbus.common.log.Log;
+import org.cleverbus.core.monitoring.MessageStateCounters;
 import org.cleverbus.spi.alerts.AlertInfo;
 
+import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.util.Assert;
 
 
 /**
  * Database implementation of {@link AlertsCheckingService} interface.
+ * <p/>
+ * Simple counts of messages in one state (optionally with condition to last update timestamp, e.g.
+ * {@code SELECT COUNT(*) FROM message WHERE state = 'WAITING_FOR_RES'
+ * AND last_update_timestamp < (current_timestamp - interval '3600 seconds')}) are served
+ * from {@link MessageStateCounters in-memory counters} if they're enabled and the count is available.
+ * <p/>
+ * Alerts with simple count query {@code SELECT COUNT(*) FROM table WHERE column = 'value' [AND condition]}
+ * which differ in the value only are evaluated together by one grouped query
+ * {@code SELECT column, COUNT(*) FROM table WHERE column IN ('value1', 'value2') [AND condition] GROUP BY column}.
  *
  * @author <a href="mailto:petr.juza@cleverlance.com">Petr Juza</a>
  * @since 0.4
  */
 public class AlertsCheckingServiceDbImpl extends AbstractAlertsCheckingService {
 
+    /**
+     * Pattern of SQL query which can be served by in-memory counters.
+     */
+    static final Pattern MSG_COUNT_PATTERN = Pattern.compile("^\\s*SELECT\\s+COUNT\\(\\s*\\*\\s*\\)\\s+FROM\\s+message"
+            + "\\s+WHERE\\s+state\\s*=\\s*'(\\w+)'"
+            + "(?:\\s+AND\\s+last_update_timestamp\\s*(<|>=)\\s*\\(?\\s*current_timestamp\\s*-\\s*"
+            + "interval\\s*'(\\d+)\\s*seconds?'\\s*\\)?)?\\s*;?\\s*$", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Pattern of SQL query which can be merged with other queries to one grouped query:
+     * table (1), column (2), value (3) and optional condition (4).
+     */
+    static final Pattern MERGEABLE_PATTERN = Pattern.compile("^\\s*SELECT\\s+COUNT\\(\\s*\\*\\s*\\)\\s+FROM\\s+(\\w+)"
+            + "\\s+WHERE\\s+(\\w+)\\s*=\\s*'([^']*)'(?:\\s+AND\\s+(.+?))?\\s*;?\\s*$",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    /**
+     * Condition with OR operator can't be merged, it would change priority of operators.
+     */
+    private static final Pattern OR_PATTERN = Pattern.compile("\\bOR\\b", Pattern.CASE_INSENSITIVE);
+
     @Autowired
     private AlertsDao alertsDao;
 
+    @Autowired(required = false)
+    private MessageStateCounters stateCounters;
+
     @Override
     protected long getCount(AlertInfo alert) {
+        if (isStateCountersEnabled()) {
+            Integer count = getCountFromCounters(alert.getSql());
+            if (count != null) {
+                Log.debug("Count for alert " + alert.getId() + " is taken from in-memory counters: " + count);
+                return count;
+            }
+        }
+
         return alertsDao.runQuery(alert.getSql());
     }
+
+    @Override
+    protected List<List<AlertInfo>> mergeAlerts(List<AlertInfo> alerts) {
+        // merge key (table, column, condition) => alerts
+        Map<String, List<AlertInfo>> groups = new LinkedHashMap<String, List<AlertInfo>>();
+
+        for (AlertInfo alert : alerts) {
+            String key = alert.getId();
+
+            Matcher matcher = MERGEABLE_PATTERN.matcher(alert.getSql());
+            if (matcher.matches() && (matcher.group(4) == null || !OR_PATTERN.matcher(matcher.group(4)).find())
+                    && !(isStateCountersEnabled() && getCountFromCounters(alert.getSql()) != null)) {
+                key = "\n" + matcher.group(1).toLowerCase() + "\n" + matcher.group(2).toLowerCase()
+                        + "\n" + StringUtils.normalizeSpace(StringUtils.defaultString(matcher.group(4)));
+            }
+
+            List<AlertInfo> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<AlertInfo>();
+                groups.put(key, group);
+            }
+            group.add(alert);
+        }
+
+        return new ArrayList<List<AlertInfo>>(groups.values());
+    }
+
+    @Override
+    protected Map<String, Long> getCounts(List<AlertInfo> alerts) {
+        if (alerts.size() == 1) {
+            return super.getCounts(alerts);
+        }
+
+        // all alerts match the same table, column and condition, see mergeAlerts()
+        Matcher matcher = MERGEABLE_PATTERN.matcher(alerts.get(0).getSql());
+        Assert.isTrue(matcher.matches(), "merged alerts must have simple count query");
+
+        String table = matcher.group(1);
+        String column = matcher.group(2);
+        String condition = matcher.group(4);
+
+        Map<AlertInfo, String> values = new HashMap<AlertInfo, String>();
+        Set<String> quotedValues = new LinkedHashSet<String>();
+        for (AlertInfo alert : alerts) {
+            Matcher alertMatcher = MERGEABLE_PATTERN.matcher(alert.getSql());
+            Assert.isTrue(alertMatcher.matches(), "merged alerts must have simple count query");
+
+            values.put(alert, alertMatcher.group(3));
+            quotedValues.add("'" + alertMatcher.group(3) + "'");
+        }
+
+        String sql = "SELECT " + column + ", COUNT(*) FROM " + table
+                + " WHERE " + column + " IN (" + StringUtils.join(quotedValues, ", ") + ")"
+                + (condition != null ? " AND " + condition : "")
+                + " GROUP BY " + column;
+
+        Log.debug("Alerts " + values.keySet() + " are evaluated by one query: " + sql);
+
+        Map<String, Long> groupCounts = alertsDao.runGroupQuery(sql);
+
+        Map<String, Long> counts = new HashMap<String, Long>();
+        for (AlertInfo alert : alerts) {
+            Long count = groupCounts.get(values.get(alert));
+            counts.put(alert.getId(), count != null ? count : 0L);
+        }
+
+        return counts;
+    }
+
+    private boolean isStateCountersEnabled() {
+        return stateCounters != null && stateCounters.isEnabled();
+    }
+
+    /**
+     * Gets count of messages from in-memory counters.
+     *
+     * @param sql the SQL query of the alert
+     * @return count of messages or {@code null} if the query isn't supported or the count isn't available
+     */
+    @Nullable
+    private Integer getCountFromCounters(String sql) {
+        Matcher matcher = MSG_COUNT_PATTERN.matcher(sql);
+        if (!matcher.matches()) {
+            return null;
+        }
+
+        MsgStateEnum state;
+        try {
+            state = MsgStateEnum.valueOf(matcher.group(1));
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+
+        Integer total = stateCounters.getCount(state, null);
+        if (matcher.group(2) == null || total == null) {
+            return total;
+        }
+
+        Integer updated = stateCounters.getCount(state, Integer.valueOf(matcher.group(3)));
+        if (updated == null) {
+            return null;
+        }
+
+        // messages updated before the interval
+        return ">=".equals(matcher.group(2)) ? updated : Math.max(0, total - updated);
+    }
 }
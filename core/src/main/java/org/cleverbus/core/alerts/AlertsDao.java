@@ -16,6 +16,9 @@
 
 package org.cleverbus.core.alerts;
 
+import java.util.Map;
+
+
 /**
  * DAO for calling SQL queries.
  *
@@ -32,4 +35,13 @@ public interface AlertsDao {
      */
     long runQuery(String sql);
 
+    /**
+     * Runs specified SQL query which returns pairs of group value and count of items.
+     *
+     * @param sql the query with two columns (group value, count of items)
+     * @return count of items for each returned group value
+     * @since 2.1
+     */
+    Map<String, Long> runGroupQuery(String sql);
+
 }
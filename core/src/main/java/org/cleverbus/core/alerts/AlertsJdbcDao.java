@@ -16,11 +16,17 @@
 
 package org.cleverbus.core.alerts;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
 import javax.sql.DataSource;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.stereotype.Repository;
 import org.springframework.util.Assert;
 
@@ -36,12 +42,29 @@ public class AlertsJdbcDao implements AlertsDao {
 
     private JdbcTemplate template;
 
+    private int queryTimeout;
+
     @Autowired
     @Qualifier(value = "dataSource")
     public void setDataSource(DataSource dataSource) {
         Assert.notNull(dataSource, "dataSource must not be empty!");
 
         this.template = new JdbcTemplate(dataSource);
+        this.template.setQueryTimeout(queryTimeout);
+    }
+
+    /**
+     * Sets maximum time (in seconds) of one query.
+     *
+     * @param queryTimeout the timeout (in seconds), 0 means no timeout
+     */
+    @Value("${alerts.queryTimeout}")
+    public void setQueryTimeout(int queryTimeout) {
+        this.queryTimeout = queryTimeout;
+
+        if (template != null) {
+            template.setQueryTimeout(queryTimeout);
+        }
     }
 
     @Override
@@ -50,4 +73,20 @@ public class AlertsJdbcDao implements AlertsDao {
 
         return template.queryForObject(sql, Long.class);
     }
+
+    @Override
+    public Map<String, Long> runGroupQuery(String sql) {
+        Assert.hasText(sql, "the sql must not be empty");
+
+        final Map<String, Long> counts = new HashMap<String, Long>();
+
+        template.query(sql, new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+                counts.put(rs.getString(1), rs.getLong(2));
+            }
+        });
+
+        return counts;
+    }
 }
@@ -0,0 +1,691 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cleverbus.core.archiving.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.Nullable;
+import javax.sql.DataSource;
+
+import org.cleverbus.api.archiving.ProcessArchivingDataJob;
+import org.cleverbus.api.entity.MsgStateEnum;
+import org.cleverbus.api.exception.IntegrationException;
+import org.cleverbus.api.file.FileRepository;
+import org.cleverbus.api.file.OutputStreamWriterCallback;
+import org.cleverbus.common.log.Log;
+import org.cleverbus.core.archiving.ProcessArchivingDataRoute;
+import org.cleverbus.core.common.asynch.AsynchInMessageRoute;
+import org.cleverbus.core.common.asynch.stop.StopService;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.joda.time.DateTime;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.Assert;
+
+
+/**
+ * Job that archives data in small batches by plain SQL, without stored procedures of the database.
+ * <p/>
+ * Messages in final states ({@code OK, FAILED, CANCEL}) older than specified count of days are walked by keyset
+ * (next batch always starts after the last archived {@code msg_id}) together with their external calls,
+ * requests and responses. Requests and responses which don't belong to any message are archived afterwards
+ * in the same way. Each batch is copied (see {@link ArchiveTarget}) and deleted in its own short transaction,
+ * so live processing is never blocked for long and already archived batches are kept when the job fails
+ * or is stopped. Tables are not reindexed.
+ * <p/>
+ * The job slows down when the database is busy: each batch is preceded by a cheap query
+ * and if its latency exceeds {@code maxLatency} then the job makes pause (doubled each time up to
+ * {@code maxPause}) and halves the batch size; both recover when latency goes back to normal.
+ * <p/>
+ * Large payloads of messages stored in the file repository ({@code message.payload_file}) are put back
+ * into archived payload and files are deleted when the batch is committed.
+ *
+ * @see ProcessArchivingDataJob
+ * @see ProcessArchivingDataRoute
+ * @see ArchivingMaxItemsDatabaseScriptJob
+ * @since 2.1
+ */
+public class ArchivingBatchJob implements ProcessArchivingDataJob {
+
+    /**
+     * Target where archived records are copied to.
+     */
+    public enum ArchiveTarget {
+
+        /**
+         * Records are copied into archive tables with the same columns
+         * (see <i>db_schema_postgreSql_archive_0_6.sql</i> and <i>db_schema_postgreSql_archive_2_1_0.sql</i>),
+         * archiving doesn't start if any column is missing in archive tables.
+         */
+        TABLES,
+
+        /**
+         * Records are written into gzip compressed file in the {@link FileRepository},
+         * one JSON object per line ({@code {"table":"message","row":{...}}}).
+         */
+        FILE
+    }
+
+    /**
+     * Sub-folder of the file repository for archive files.
+     */
+    public static final String ARCHIVE_FOLDER = "archive";
+
+    private static final String FINAL_STATES = "'" + MsgStateEnum.OK + "','" + MsgStateEnum.FAILED
+            + "','" + MsgStateEnum.CANCEL + "'";
+
+    private static final List<String> ARCHIVED_TABLES = Arrays.asList("message", "external_call", "request",
+            "response");
+
+    private static final int MIN_BATCH_SIZE = 10;
+
+    private static final long MIN_PAUSE_MILLIS = 100;
+
+    private NamedParameterJdbcTemplate template;
+
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired(required = false)
+    private FileRepository fileRepository;
+
+    @Autowired(required = false)
+    private StopService stopService;
+
+    /**
+     * Number of days after which the message is to be archived (default value is 7).
+     */
+    @Value("${archiving.task.archivingBatchJob.archiveOlderInDays:7}")
+    private int archiveOlderInDays;
+
+    /**
+     * Maximum count of messages (or orphan requests/responses) archived in one transaction (default value is 1000).
+     */
+    @Value("${archiving.task.archivingBatchJob.batchSize:1000}")
+    private int batchSize;
+
+    /**
+     * Where archived records are copied to (default value is TABLES).
+     */
+    @Value("${archiving.task.archivingBatchJob.target:TABLES}")
+    private ArchiveTarget target;
+
+    /**
+     * Prefix (including schema) of archive table names (default value is cleverbus_archive.archive_).
+     */
+    @Value("${archiving.task.archivingBatchJob.archiveTablePrefix:cleverbus_archive.archive_}")
+    private String archiveTablePrefix;
+
+    /**
+     * Maximum latency (in millis) of test query when the job doesn't slow down (default value is 200).
+     */
+    @Value("${archiving.task.archivingBatchJob.maxLatency:200}")
+    private long maxLatency;
+
+    /**
+     * Maximum pause (in seconds) between two batches when the database is busy (default value is 30).
+     */
+    @Value("${archiving.task.archivingBatchJob.maxPause:30}")
+    private int maxPause;
+
+    /**
+     * Columns copied into archive tables, resolved once per run.
+     */
+    private final Map<String, String> archiveColumns = new HashMap<String, String>();
+
+    private int currentBatchSize;
+
+    private long pause;
+
+    @Autowired
+    @Qualifier(value = "dataSource")
+    public void setDataSource(DataSource dataSource) {
+        Assert.notNull(dataSource, "dataSource must not be empty!");
+
+        this.template = new NamedParameterJdbcTemplate(dataSource);
+    }
+
+    @Required
+    public void setTransactionManager(JpaTransactionManager transactionManager) {
+        Assert.notNull(transactionManager, "the transactionManager must not be null");
+
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    @Override
+    public void startArchivingData() {
+        Assert.isTrue(batchSize > 0, "the batchSize must be positive value");
+        Assert.isTrue(target != ArchiveTarget.FILE || fileRepository != null,
+                "fileRepository must be defined for archiving into files");
+
+        Log.info("Starting archiving data in batches of max " + batchSize + " records older than "
+                + archiveOlderInDays + " days into " + target + ".");
+
+        Timestamp archiveOlderThen = new Timestamp(DateTime.now().minusDays(archiveOlderInDays).getMillis());
+
+        archiveColumns.clear();
+        currentBatchSize = batchSize;
+        pause = 0;
+
+        if (target == ArchiveTarget.TABLES) {
+            try {
+                for (String table : ARCHIVED_TABLES) {
+                    getArchiveColumns(table);
+                }
+            } catch (IllegalStateException ex) {
+                Log.error("Archiving data can't start: " + ex.getMessage());
+                return;
+            }
+        }
+
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        long startTime = System.currentTimeMillis();
+        try {
+            // messages with all related records
+            LinkedHashMap<String, String> msgTables = new LinkedHashMap<String, String>();
+            msgTables.put("message", "msg_id IN (:ids)");
+            msgTables.put("external_call", "msg_id IN (:ids)");
+            msgTables.put("request", "msg_id IN (:ids)");
+            msgTables.put("response", "msg_id IN (:ids)"
+                    + " OR req_id IN (SELECT req_id FROM request WHERE msg_id IN (:ids))");
+
+            // funnel values make sense for running messages only, they are not archived
+            boolean finished = archiveByKeyset("message", "msg_id",
+                    "state IN (" + FINAL_STATES + ") AND last_update_timestamp < :archiveOlderThen",
+                    msgTables, Collections.singletonList("funnel"), archiveOlderThen, counts);
+
+            // requests without message
+            if (finished) {
+                LinkedHashMap<String, String> reqTables = new LinkedHashMap<String, String>();
+                reqTables.put("request", "req_id IN (:ids)");
+                reqTables.put("response", "req_id IN (:ids)");
+
+                finished = archiveByKeyset("request", "req_id",
+                        "msg_id IS NULL AND req_timestamp < :archiveOlderThen",
+                        reqTables, Collections.<String>emptyList(), archiveOlderThen, counts);
+            }
+
+            // responses without request and message
+            if (finished) {
+                LinkedHashMap<String, String> resTables = new LinkedHashMap<String, String>();
+                resTables.put("response", "res_id IN (:ids)");
+
+                finished = archiveByKeyset("response", "res_id",
+                        "req_id IS NULL AND msg_id IS NULL AND res_timestamp < :archiveOlderThen",
+                        resTables, Collections.<String>emptyList(), archiveOlderThen, counts);
+            }
+
+            long duration = System.currentTimeMillis() - startTime;
+            String durFormat = String.format("%d min, %d sec", TimeUnit.MILLISECONDS.toMinutes(duration),
+                    TimeUnit.MILLISECONDS.toSeconds(duration) -
+                            TimeUnit.MINUTES.toSeconds(TimeUnit.MILLISECONDS.toMinutes(duration)));
+
+            if (finished) {
+                Log.info("Archiving data successfully finished in " + durFormat + ", archived records: " + counts);
+            } else {
+                Log.info("Archiving data was interrupted after " + durFormat + ", archived records: " + counts
+                        + ". Remaining data will be archived next time.");
+            }
+        } catch (DataAccessException ex) {
+            Log.error("Archiving data end with error, already archived records: " + counts, ex);
+        }
+    }
+
+    /**
+     * Archives records of the main table (and related records in other tables) by keyset batches.
+     *
+     * @param mainTable the main table
+     * @param idColumn the ID column of the main table
+     * @param filter the condition which records of the main table should be archived
+     * @param tables the tables to archive (in the order of copying, deleted in reverse order)
+     *      with condition for records which belong to main records with IDs {@code :ids}
+     * @param deleteOnlyTables the tables with records (by {@code msg_id}) which are deleted only
+     * @param archiveOlderThen the date until records are archived
+     * @param counts the counts of archived records by tables
+     * @return {@code true} if all records were archived, {@code false} if archiving was interrupted
+     */
+    private boolean archiveByKeyset(final String mainTable, final String idColumn, final String filter,
+            final LinkedHashMap<String, String> tables, final List<String> deleteOnlyTables,
+            Timestamp archiveOlderThen, Map<String, Long> counts) {
+
+        long lastId = 0;
+
+        while (true) {
+            if (!throttle(mainTable, idColumn, lastId)) {
+                return false;
+            }
+
+            MapSqlParameterSource params = new MapSqlParameterSource()
+                    .addValue("lastId", lastId)
+                    .addValue("archiveOlderThen", archiveOlderThen)
+                    .addValue("limit", currentBatchSize);
+
+            List<Long> ids = template.queryForList("SELECT " + idColumn + " FROM " + mainTable
+                    + " WHERE " + idColumn + " > :lastId AND " + filter
+                    + " ORDER BY " + idColumn + " LIMIT :limit", params, Long.class);
+
+            if (ids.isEmpty()) {
+                return true;
+            }
+
+            final MapSqlParameterSource batchParams = new MapSqlParameterSource()
+                    .addValue("fromId", ids.get(0))
+                    .addValue("toId", ids.get(ids.size() - 1))
+                    .addValue("archiveOlderThen", archiveOlderThen);
+
+            final Map<Long, String> payloadFiles = new HashMap<Long, String>();
+
+            Map<String, Integer> batchCounts = transactionTemplate.execute(
+                    new TransactionCallback<Map<String, Integer>>() {
+                @Override
+                public Map<String, Integer> doInTransaction(TransactionStatus status) {
+                    // records can change since the batch was found => lock and check them again
+                    List<Long> lockedIds = template.queryForList("SELECT " + idColumn + " FROM " + mainTable
+                            + " WHERE " + idColumn + " BETWEEN :fromId AND :toId AND " + filter
+                            + " FOR UPDATE", batchParams, Long.class);
+
+                    if (lockedIds.isEmpty()) {
+                        return Collections.emptyMap();
+                    }
+
+                    return archiveBatch(tables, deleteOnlyTables, new MapSqlParameterSource("ids", lockedIds),
+                            payloadFiles);
+                }
+            });
+
+            // files can be deleted only when archived records are committed
+            for (String fileId : payloadFiles.values()) {
+                fileRepository.deleteFile(fileId);
+            }
+
+            for (Map.Entry<String, Integer> en : batchCounts.entrySet()) {
+                Long count = counts.get(en.getKey());
+                counts.put(en.getKey(), (count == null ? 0 : count) + en.getValue());
+            }
+
+            Log.debug("Batch of " + mainTable + " with IDs " + ids.get(0) + " - " + ids.get(ids.size() - 1)
+                    + " archived: " + batchCounts);
+
+            lastId = ids.get(ids.size() - 1);
+        }
+    }
+
+    /**
+     * Copies and deletes one batch of records, must be called in transaction.
+     *
+     * @param tables the tables to archive with conditions
+     * @param deleteOnlyTables the tables with records which are deleted only
+     * @param params the parameters of conditions
+     * @param payloadFiles the map for payload files of archived messages (by {@code msg_id}),
+     *      the files should be deleted after commit
+     * @return the counts of archived records by tables
+     */
+    private Map<String, Integer> archiveBatch(final LinkedHashMap<String, String> tables, List<String> deleteOnlyTables,
+            final MapSqlParameterSource params, final Map<Long, String> payloadFiles) {
+
+        if (tables.containsKey("message")) {
+            payloadFiles.putAll(findPayloadFiles(tables.get("message"), params));
+        }
+
+        if (target == ArchiveTarget.FILE) {
+            String fileId = fileRepository.saveFile(new OutputStreamWriterCallback() {
+                @Override
+                public void writeTo(OutputStream os) throws IOException {
+                    writeBatch(os, tables, params, payloadFiles);
+                }
+            }, Arrays.asList(ARCHIVE_FOLDER, DateTime.now().toString("yyyy-MM-dd")));
+
+            Log.debug("Archived records were saved into file " + fileId);
+        } else {
+            for (Map.Entry<String, String> en : tables.entrySet()) {
+                String columns = getArchiveColumns(en.getKey());
+
+                template.update("INSERT INTO " + archiveTablePrefix + en.getKey() + " (" + columns + ")"
+                        + " SELECT " + columns + " FROM " + en.getKey() + " WHERE " + en.getValue(), params);
+            }
+
+            for (Iterator<Map.Entry<Long, String>> it = payloadFiles.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Long, String> en = it.next();
+                String payload = readPayloadFile(en.getValue());
+
+                if (payload != null) {
+                    template.update("UPDATE " + archiveTablePrefix + "message SET payload = :payload"
+                            + " WHERE msg_id = :msgId", new MapSqlParameterSource("payload", payload)
+                            .addValue("msgId", en.getKey()));
+                } else {
+                    // file is kept, archived message refers to it
+                    it.remove();
+                }
+            }
+        }
+
+        for (String table : deleteOnlyTables) {
+            template.update("DELETE FROM " + table + " WHERE msg_id IN (:ids)", params);
+        }
+
+        Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+
+        List<String> deleteOrder = new ArrayList<String>(tables.keySet());
+        Collections.reverse(deleteOrder);
+        for (String table : deleteOrder) {
+            counts.put(table, template.update("DELETE FROM " + table + " WHERE " + tables.get(table), params));
+        }
+
+        return counts;
+    }
+
+    /**
+     * Finds large payloads of messages stored in the file repository.
+     *
+     * @param condition the condition for archived messages
+     * @param params the parameters of the condition
+     * @return file identifiers by {@code msg_id}
+     */
+    private Map<Long, String> findPayloadFiles(String condition, MapSqlParameterSource params) {
+        final Map<Long, String> payloadFiles = new HashMap<Long, String>();
+
+        template.query("SELECT msg_id, payload_file FROM message"
+                + " WHERE payload_file IS NOT NULL AND (" + condition + ")", params, new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+                payloadFiles.put(rs.getLong("msg_id"), rs.getString("payload_file"));
+            }
+        });
+
+        if (!payloadFiles.isEmpty() && fileRepository == null) {
+            Log.warn("Payloads of messages " + payloadFiles.keySet() + " are stored in the file repository which isn't"
+                    + " available, payload files are kept and archived messages refer to them.");
+            payloadFiles.clear();
+        }
+
+        return payloadFiles;
+    }
+
+    /**
+     * Reads large payload from the file repository.
+     *
+     * @param fileId the file identifier
+     * @return payload or {@code null} if the file can't be read
+     */
+    @Nullable
+    private String readPayloadFile(String fileId) {
+        InputStream is = null;
+        try {
+            is = fileRepository.readFile(fileId);
+            return IOUtils.toString(is, AsynchInMessageRoute.PAYLOAD_ENCODING);
+        } catch (IOException ex) {
+            Log.warn("Payload file '" + fileId + "' can't be read, it won't be archived", ex);
+            return null;
+        } catch (IntegrationException ex) {
+            Log.warn("Payload file '" + fileId + "' can't be read, it won't be archived", ex);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    /**
+     * Writes records of one batch as gzip compressed JSON lines.
+     */
+    private void writeBatch(OutputStream os, LinkedHashMap<String, String> tables, MapSqlParameterSource params,
+            final Map<Long, String> payloadFiles) throws IOException {
+
+        GZIPOutputStream gzip = new GZIPOutputStream(os);
+        final Writer writer = new OutputStreamWriter(gzip, StandardCharsets.UTF_8);
+
+        try {
+            for (Map.Entry<String, String> en : tables.entrySet()) {
+                final String table = en.getKey();
+
+                template.query("SELECT * FROM " + table + " WHERE " + en.getValue(), params, new RowCallbackHandler() {
+                    @Override
+                    public void processRow(ResultSet rs) throws SQLException {
+                        try {
+                            writeRow(writer, table, rs, payloadFiles);
+                        } catch (IOException ex) {
+                            throw new UncheckedIOException(ex);
+                        }
+                    }
+                });
+            }
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+
+        writer.flush();
+        // don't close the output stream, only finish compression
+        gzip.finish();
+    }
+
+    private void writeRow(Writer writer, String table, ResultSet rs, Map<Long, String> payloadFiles)
+            throws SQLException, IOException {
+
+        ResultSetMetaData metaData = rs.getMetaData();
+
+        // large payload is written instead of empty payload of the message
+        long msgId = table.equals("message") ? rs.getLong("msg_id") : 0;
+        String payloadFile = payloadFiles.get(msgId);
+
+        writer.write("{\"table\":\"");
+        writer.write(table);
+        writer.write("\",\"row\":{");
+
+        for (int i = 1; i <= metaData.getColumnCount(); i++) {
+            if (i > 1) {
+                writer.write(',');
+            }
+            String column = metaData.getColumnLabel(i).toLowerCase();
+            writer.write('"');
+            writer.write(column);
+            writer.write("\":");
+
+            if (payloadFile != null && column.equals("payload")) {
+                String payload = readPayloadFile(payloadFile);
+                if (payload == null) {
+                    // file is kept, archived message refers to it
+                    payloadFiles.remove(msgId);
+                    payload = rs.getString(i);
+                }
+                writeString(writer, payload);
+                continue;
+            }
+
+            switch (metaData.getColumnType(i)) {
+                case Types.BIGINT:
+                case Types.INTEGER:
+                case Types.SMALLINT:
+                case Types.TINYINT:
+                case Types.NUMERIC:
+                case Types.DECIMAL:
+                case Types.BIT:
+                case Types.BOOLEAN:
+                    Object value = rs.getObject(i);
+                    writer.write(value == null ? "null" : value.toString());
+                    break;
+
+                case Types.DATE:
+                case Types.TIME:
+                case Types.TIMESTAMP:
+                    Timestamp timestamp = rs.getTimestamp(i);
+                    writeString(writer, timestamp == null ? null : new DateTime(timestamp).toString());
+                    break;
+
+                default:
+                    writeString(writer, rs.getString(i));
+            }
+        }
+
+        writer.write("}}\n");
+    }
+
+    private static void writeString(Writer writer, @Nullable String value) throws IOException {
+        if (value == null) {
+            writer.write("null");
+            return;
+        }
+
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            switch (ch) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    if (ch < 0x20) {
+                        writer.write(String.format("\\u%04x", (int) ch));
+                    } else {
+                        writer.write(ch);
+                    }
+            }
+        }
+        writer.write('"');
+    }
+
+    /**
+     * Gets columns of live table which are copied into archive table.
+     *
+     * @param table the name of live table
+     * @return comma separated columns
+     * @throws IllegalStateException if any column of live table is missing in archive table
+     */
+    private String getArchiveColumns(String table) {
+        String columns = archiveColumns.get(table);
+
+        if (columns == null) {
+            List<String> tableColumns = getColumns(table);
+
+            // archive tables can be older than live tables - data mustn't be lost
+            List<String> missingColumns = new ArrayList<String>(tableColumns);
+            missingColumns.removeAll(getColumns(archiveTablePrefix + table));
+            if (!missingColumns.isEmpty()) {
+                throw new IllegalStateException("columns " + missingColumns + " of table " + table
+                        + " are missing in archive table " + archiveTablePrefix + table
+                        + ", upgrade archive tables (see db_schema_postgreSql_archive_2_1_0.sql)");
+            }
+
+            columns = StringUtils.join(tableColumns, ", ");
+            archiveColumns.put(table, columns);
+        }
+
+        return columns;
+    }
+
+    private List<String> getColumns(String table) {
+        return template.getJdbcOperations().query("SELECT * FROM " + table + " WHERE 1 = 0",
+                new ResultSetExtractor<List<String>>() {
+            @Override
+            public List<String> extractData(ResultSet rs) throws SQLException {
+                ResultSetMetaData metaData = rs.getMetaData();
+
+                List<String> columns = new ArrayList<String>(metaData.getColumnCount());
+                for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                    columns.add(metaData.getColumnLabel(i).toLowerCase());
+                }
+                return columns;
+            }
+        });
+    }
+
+    /**
+     * Waits before next batch if the database is busy.
+     *
+     * @param table the table for test query
+     * @param idColumn the ID column of the table
+     * @param lastId the last archived ID
+     * @return {@code true} if archiving can continue, {@code false} if it should stop
+     */
+    private boolean throttle(String table, String idColumn, long lastId) {
+        if (stopService != null && stopService.isStopping()) {
+            Log.info("ESB is stopping, archiving data is interrupted.");
+            return false;
+        }
+
+        // latency of the simplest query (including getting connection) reflects load of the database
+        long start = System.currentTimeMillis();
+        template.queryForObject("SELECT COUNT(*) FROM " + table + " WHERE " + idColumn + " = :lastId",
+                new MapSqlParameterSource("lastId", lastId), Long.class);
+        long latency = System.currentTimeMillis() - start;
+
+        if (latency > maxLatency) {
+            pause = Math.min(Math.max(MIN_PAUSE_MILLIS, pause * 2), TimeUnit.SECONDS.toMillis(maxPause));
+            currentBatchSize = Math.max(Math.min(MIN_BATCH_SIZE, batchSize), currentBatchSize / 2);
+
+            Log.debug("Database latency " + latency + " ms exceeds limit, archiving will wait " + pause
+                    + " ms and continue with batch size " + currentBatchSize);
+        } else {
+            pause = pause / 2 < MIN_PAUSE_MILLIS ? 0 : pause / 2;
+            currentBatchSize = Math.min(batchSize, currentBatchSize * 2);
+        }
+
+        if (pause > 0) {
+            try {
+                Thread.sleep(pause);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                Log.info("Archiving data was interrupted.");
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -18,6 +18,7 @@ package org.cleverbus.core.common.asynch;
 
 import org.apache.camel.*;
 import org.apache.camel.component.spring.ws.SpringWebserviceConstants;
+import org.apache.commons.lang3.BooleanUtils;
 import org.cleverbus.api.asynch.AsynchConstants;
 import org.cleverbus.api.asynch.AsynchResponseProcessor;
 import org.cleverbus.api.asynch.model.CallbackResponse;
@@ -25,13 +26,18 @@ import org.cleverbus.api.asynch.model.ConfirmationTypes;
 import org.cleverbus.api.entity.Message;
 import org.cleverbus.api.exception.IntegrationException;
 import org.cleverbus.api.exception.InternalErrorEnum;
+import org.cleverbus.api.exception.QueueFullException;
 import org.cleverbus.api.exception.StoppingException;
 import org.cleverbus.api.exception.ThrottlingExceededException;
+import org.cleverbus.api.file.FileRepository;
+import org.cleverbus.api.file.OutputStreamWriterCallback;
 import org.cleverbus.api.route.AbstractBasicRoute;
 import org.cleverbus.api.route.CamelConfiguration;
 import org.cleverbus.common.log.Log;
 import org.cleverbus.common.log.LogContextFilter;
+import org.cleverbus.core.common.asynch.msg.MessageInsertBatcher;
 import org.cleverbus.core.common.asynch.msg.MessageTransformer;
+import org.cleverbus.core.common.asynch.msg.MsgPriorityQueueFactory;
 import org.cleverbus.core.common.asynch.stop.StopService;
 import org.cleverbus.core.common.event.AsynchEventHelper;
 import org.cleverbus.core.common.exception.ExceptionTranslator;
@@ -41,9 +47,18 @@ import org.cleverbus.spi.throttling.ThrottleScope;
 import org.cleverbus.spi.throttling.ThrottlingProcessor;
 import org.slf4j.MDC;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.util.Assert;
 
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
@@ -82,12 +97,39 @@ public class AsynchInMessageRoute extends AbstractBasicRoute {
 
     static final String ROUTE_ID_GUARANTEED_ORDER = "guaranteedOrder" + AbstractBasicRoute.ROUTE_SUFFIX;
 
+    /**
+     * Encoding of large payloads stored in the file repository.
+     */
+    public static final String PAYLOAD_ENCODING = "UTF-8";
+
+    static final String PAYLOAD_FOLDER = "payload";
+
+    static final String PAYLOAD_SUB_FOLDER_FORMAT = "yyyy-MM-dd";
+
     @Autowired
     private ThrottlingProcessor throttlingProcessor;
 
     @Autowired
     private MessageService messageService;
 
+    // bounded queue is not mandatory, new messages aren't rejected without it
+    @Autowired(required = false)
+    private MsgPriorityQueueFactory queueFactory;
+
+    // group commit is not mandatory, each message is inserted in own transaction without it
+    @Autowired(required = false)
+    private MessageInsertBatcher insertBatcher;
+
+    // large payloads are stored in the database without file repository
+    @Autowired(required = false)
+    private FileRepository fileRepository;
+
+    /**
+     * Max. length of payload (in chars) stored in the database, larger payloads are stored in the file repository.
+     */
+    @Value("${asynch.largePayload.threshold}")
+    private int largePayloadThreshold;
+
     // list of validator for trace identifier is not mandatory
     @Autowired(required = false)
     private List<TraceIdentifierValidator> validatorList;
@@ -117,11 +159,17 @@ public class AsynchInMessageRoute extends AbstractBasicRoute {
                 // check if ESB is not stopping?
                 .beanRef(ROUTE_BEAN, "checkStopping").id("stopChecking")
 
+                // is there free place in the queue for next processing?
+                .beanRef(ROUTE_BEAN, "checkQueueCapacity").id("queueCapacityChecking")
+
                 // extract trace header, trace header is mandatory
                 .process(new TraceHeaderProcessor(true, validatorList))
                 // remove inbound Spring WS SOAP header, so it isn't added to outbound SOAP messages
                 .removeHeader(SpringWebserviceConstants.SPRING_WS_SOAP_HEADER)
 
+                // is payload so large that it should be stored in the file repository?
+                .beanRef(ROUTE_BEAN, "checkLargePayload")
+
                 // create Message (state = PROCESSING)
                 .bean(MessageTransformer.getInstance(), "createMessage")
 
@@ -140,6 +188,10 @@ public class AsynchInMessageRoute extends AbstractBasicRoute {
                     }
                 }).id("throttleProcess")
 
+                // save large payload to the file repository
+                .beanRef(ROUTE_BEAN, "saveLargePayload")
+                .removeHeader(LARGE_PAYLOAD_HEADER)
+
                 // save it to DB
                 .beanRef(ROUTE_BEAN, "insertMessage")
                 //todo (cermak) in load causes a blockage, find out why and after resolving use it again
@@ -178,6 +230,18 @@ public class AsynchInMessageRoute extends AbstractBasicRoute {
                     }
                 })
 
+            .doCatch(QueueFullException.class)
+                // we want to throw exception, not return fail response
+                .log(LoggingLevel.WARN, "Incoming route - asynchronous message was rejected because queue "
+                        + "of messages for processing was full.")
+
+                .process(new Processor() {
+                    @Override
+                    public void process(Exchange exchange) throws Exception {
+                        throw (Exception) exchange.getProperty(Exchange.EXCEPTION_CAUGHT);
+                    }
+                })
+
             .doCatch(SQLException.class, Exception.class)
                 .process(new Processor() {
                     @Override
@@ -241,6 +305,7 @@ public class AsynchInMessageRoute extends AbstractBasicRoute {
 
     /**
      * Insert new message into database.
+     * If the message can't be inserted then its large payload is deleted from the file repository.
      *
      * @param msg message that will be saved
      * @return saved message
@@ -251,7 +316,21 @@ public class AsynchInMessageRoute extends AbstractBasicRoute {
 
         Log.debug("Insert new asynch message '" + msg.toHumanString() + "'.");
 
-        messageService.insertMessage(msg);
+        try {
+            if (insertBatcher != null) {
+                insertBatcher.insertMessage(msg);
+            } else {
+                messageService.insertMessage(msg);
+            }
+        } catch (RuntimeException ex) {
+            if (msg.getPayloadFile() != null) {
+                Log.debug("Message " + msg.toHumanString() + " wasn't inserted, its payload file '"
+                        + msg.getPayloadFile() + "' will be deleted");
+
+                fileRepository.deleteFile(msg.getPayloadFile());
+            }
+            throw ex;
+        }
         return msg;
     }
 
@@ -319,6 +398,73 @@ public class AsynchInMessageRoute extends AbstractBasicRoute {
         }
     }
 
+    /**
+     * Checks if there is free place in the queue of messages for next processing.
+     * If not then {@link QueueFullException} is thrown - the message is rejected before saving into DB
+     * and the caller can try it again later.
+     */
+    @Handler
+    public void checkQueueCapacity() {
+        if (queueFactory != null && queueFactory.isFull()) {
+            queueFactory.addRejectedMessage();
+
+            throw new QueueFullException("Queue of messages for processing is full ...");
+        }
+    }
+
+    /**
+     * Checks if payload of incoming message exceeds threshold for large payloads
+     * and sets header {@link AsynchConstants#LARGE_PAYLOAD_HEADER} if yes.
+     *
+     * @param exchange the exchange
+     */
+    @Handler
+    public void checkLargePayload(Exchange exchange) {
+        if (largePayloadThreshold < 0 || fileRepository == null) {
+            return;
+        }
+
+        // body is converted only once, next processing uses string body
+        String payload = exchange.getIn().getBody(String.class);
+        exchange.getIn().setBody(payload);
+
+        if (payload != null && payload.length() > largePayloadThreshold) {
+            exchange.getIn().setHeader(LARGE_PAYLOAD_HEADER, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Saves large payload of the message to the file repository, only file identifier is saved in the message.
+     *
+     * @param msg the message
+     * @param largePayload the flag if payload is large
+     */
+    @Handler
+    public void saveLargePayload(@Body final Message msg,
+            @Header(value = LARGE_PAYLOAD_HEADER) @Nullable Boolean largePayload) {
+
+        if (!BooleanUtils.isTrue(largePayload)) {
+            return;
+        }
+
+        final String payload = msg.getPayload();
+
+        String fileId = fileRepository.saveFile(new OutputStreamWriterCallback() {
+            @Override
+            public void writeTo(OutputStream os) throws IOException {
+                Writer writer = new OutputStreamWriter(os, PAYLOAD_ENCODING);
+                writer.write(payload);
+                writer.flush();
+            }
+        }, Arrays.asList(PAYLOAD_FOLDER, new SimpleDateFormat(PAYLOAD_SUB_FOLDER_FORMAT).format(new Date())));
+
+        msg.setPayloadFile(fileId);
+        msg.setPayload("");
+
+        Log.debug("Large payload (" + payload.length() + " chars) of the message " + msg.toHumanString()
+                + " was saved to the file '" + fileId + "'");
+    }
+
     /**
      * Saves log request ID into header {@link LogContextFilter#CTX_REQUEST_ID}.
      * It's because child threads don't inherits this information from parent thread automatically.
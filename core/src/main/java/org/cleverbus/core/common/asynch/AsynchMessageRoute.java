@@ -24,6 +24,7 @@ import static org.cleverbus.api.asynch.AsynchConstants.OBJECT_ID_HEADER;
 import static org.cleverbus.api.asynch.AsynchConstants.URI_ERROR_FATAL;
 import static org.cleverbus.api.asynch.AsynchConstants.URI_ERROR_HANDLING;
 
+import java.io.InputStream;
 import java.util.Map;
 
 import javax.annotation.Nullable;
@@ -34,7 +35,10 @@ import org.cleverbus.api.common.EmailService;
 import org.cleverbus.api.entity.ExternalCall;
 import org.cleverbus.api.entity.Message;
 import org.cleverbus.api.entity.MsgStateEnum;
+import org.cleverbus.api.exception.IntegrationException;
+import org.cleverbus.api.exception.InternalErrorEnum;
 import org.cleverbus.api.extcall.ExtCallComponentParams;
+import org.cleverbus.api.file.FileRepository;
 import org.cleverbus.api.route.AbstractBasicRoute;
 import org.cleverbus.api.route.CamelConfiguration;
 import org.cleverbus.common.log.Log;
@@ -49,9 +53,12 @@ import org.apache.camel.Handler;
 import org.apache.camel.Header;
 import org.apache.camel.Headers;
 import org.apache.camel.LoggingLevel;
+import org.apache.camel.NoTypeConversionAvailableException;
 import org.apache.camel.Predicate;
 import org.apache.camel.Processor;
+import org.apache.camel.StreamCache;
 import org.apache.camel.component.spring.ws.SpringWebserviceConstants;
+import org.apache.commons.io.IOUtils;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.util.Assert;
 
@@ -179,7 +186,7 @@ public class AsynchMessageRoute extends AbstractBasicRoute {
 
                 // save Message into header and change body into payload
                 .setHeader(MSG_HEADER, body())
-                .transform(simple("${body.payload}"))
+                .bean(this, "setPayloadBody")
 
                 // reset TRACE_HEADER for all cases because it's available for first try only
                 .removeHeader(TraceHeaderProcessor.TRACE_HEADER)
@@ -408,6 +415,35 @@ public class AsynchMessageRoute extends AbstractBasicRoute {
         }
     }
 
+    /**
+     * Changes body of the exchange into payload of the message.
+     * Large payload stored in the file repository is read as {@link StreamCache} which can be read repeatedly
+     * and which is spooled to disk if it's too large.
+     *
+     * @param exchange the exchange with the message in the body
+     */
+    @Handler
+    public void setPayloadBody(Exchange exchange) {
+        Message msg = exchange.getIn().getBody(Message.class);
+        Assert.notNull(msg, "the msg must not be null");
+
+        if (msg.getPayloadFile() == null) {
+            exchange.getIn().setBody(msg.getPayload());
+            return;
+        }
+
+        InputStream is = getBean(FileRepository.class).readFile(msg.getPayloadFile());
+        try {
+            exchange.getIn().setBody(exchange.getContext().getTypeConverter()
+                    .mandatoryConvertTo(StreamCache.class, exchange, is));
+        } catch (NoTypeConversionAvailableException ex) {
+            throw new IntegrationException(InternalErrorEnum.E115, "payload file '" + msg.getPayloadFile()
+                    + "' can't be converted to stream cache", ex);
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
     /**
      * Returns {@code true} if failed count exceeds limit for failing.
      *
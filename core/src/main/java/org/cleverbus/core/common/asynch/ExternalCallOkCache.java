@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cleverbus.core.common.asynch;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.annotation.PostConstruct;
+
+import org.cleverbus.api.entity.ExternalCall;
+import org.cleverbus.api.entity.ExternalCallStateEnum;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.util.Assert;
+
+
+/**
+ * Near-cache of successfully finished external calls (operation URI and key) with message timestamps.
+ * <p/>
+ * Retried messages (e.g. PARTLY_FAILED messages with more external calls) skip already finished calls
+ * without reading them from the database. The cache answers only "the call was already made by the same
+ * or newer message" - timestamp of OK call in the database can only grow, except for restart of the message
+ * that deletes its external calls (see {@link #removeMessageCalls(Long)}). Outdated entry of restarted message
+ * therefore wrongly skips the call that should be made again.
+ * <p/>
+ * The cache is bounded (the least recently used entries are evicted) and each entry expires after specified time.
+ * Entries aren't shared between nodes of the cluster - restart of the message is visible on the node where
+ * the message was restarted only, other nodes skip the deleted calls until expiration of entries.
+ * Enable the cache in cluster only if messages aren't restarted or if skipped calls after restart
+ * (up to time to live of entries) are acceptable.
+ * <p/>
+ * The cache is switched off by default ({@code asynch.externalCall.okCache.maxSize = 0}).
+ *
+ * @since 2.1
+ */
+@ManagedResource(description = "Near-cache of successfully finished external calls")
+public class ExternalCallOkCache {
+
+    /**
+     * Max. count of cached external calls, 0 means that the cache is switched off.
+     */
+    @Value("${asynch.externalCall.okCache.maxSize}")
+    private int maxSize;
+
+    /**
+     * Time to live (in seconds) of one cached external call.
+     */
+    @Value("${asynch.externalCall.okCache.ttl}")
+    private int ttl;
+
+    private Map<String, CachedCall> calls;
+
+    private final AtomicLong countOfHits = new AtomicLong();
+
+    private final AtomicLong countOfMisses = new AtomicLong();
+
+    @PostConstruct
+    void initCache() {
+        Assert.isTrue(maxSize >= 0, "maxSize must not be negative");
+        Assert.isTrue(ttl > 0, "ttl must be positive");
+
+        calls = new LinkedHashMap<String, CachedCall>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedCall> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Is the cache switched on?
+     *
+     * @return {@code true} if cache is switched on
+     */
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * Adds successfully finished external call.
+     *
+     * @param extCall the external call in state {@link ExternalCallStateEnum#OK OK}
+     */
+    public void putOkCall(ExternalCall extCall) {
+        Assert.notNull(extCall, "the extCall must not be null");
+        Assert.isTrue(extCall.getState() == ExternalCallStateEnum.OK, "the extCall must be in OK state");
+
+        if (!isEnabled()) {
+            return;
+        }
+
+        CachedCall call = new CachedCall(extCall.getMsgId(), extCall.getMsgTimestamp().getTime(),
+                System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ttl));
+
+        synchronized (calls) {
+            calls.put(getKey(extCall.getOperationName(), extCall.getEntityId()), call);
+        }
+    }
+
+    /**
+     * Gets message timestamp of successfully finished external call.
+     *
+     * @param operationName the operation name (uri)
+     * @param entityId the entity ID (operation key)
+     * @return message timestamp or {@code null} if the call isn't cached
+     */
+    @Nullable
+    public Date getOkMsgTimestamp(String operationName, String entityId) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        String key = getKey(operationName, entityId);
+        CachedCall call;
+        synchronized (calls) {
+            call = calls.get(key);
+            if (call != null && call.expiresAt < System.currentTimeMillis()) {
+                calls.remove(key);
+                call = null;
+            }
+        }
+
+        if (call == null) {
+            countOfMisses.incrementAndGet();
+            return null;
+        }
+
+        countOfHits.incrementAndGet();
+        return new Date(call.msgTimestamp);
+    }
+
+    /**
+     * Removes all cached external calls of specified message (e.g. when external calls of the message are deleted).
+     *
+     * @param msgId the message ID
+     */
+    public void removeMessageCalls(Long msgId) {
+        Assert.notNull(msgId, "the msgId must not be null");
+
+        if (!isEnabled()) {
+            return;
+        }
+
+        synchronized (calls) {
+            for (Iterator<CachedCall> it = calls.values().iterator(); it.hasNext(); ) {
+                if (msgId.equals(it.next().msgId)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private static String getKey(String operationName, String entityId) {
+        return operationName + " " + entityId;
+    }
+
+    @ManagedAttribute(description = "Count of cached external calls")
+    public int getSize() {
+        if (!isEnabled()) {
+            return 0;
+        }
+
+        synchronized (calls) {
+            return calls.size();
+        }
+    }
+
+    @ManagedAttribute(description = "Count of external calls found in the cache")
+    public long getCountOfHits() {
+        return countOfHits.get();
+    }
+
+    @ManagedAttribute(description = "Count of external calls not found in the cache")
+    public long getCountOfMisses() {
+        return countOfMisses.get();
+    }
+
+    @ManagedOperation(description = "Removes all cached external calls")
+    public void clear() {
+        synchronized (calls) {
+            calls.clear();
+        }
+    }
+
+    @ManagedOperation(description = "Resets counters of hits and misses")
+    public void resetCounters() {
+        countOfHits.set(0);
+        countOfMisses.set(0);
+    }
+
+    /**
+     * Sets max. count of cached external calls, it must be set before initialization of the cache.
+     *
+     * @param maxSize the max. count of calls, 0 means that the cache is switched off
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Sets time to live of one cached external call.
+     *
+     * @param ttl the time to live (in seconds)
+     */
+    public void setTtl(int ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Cached external call.
+     */
+    private static final class CachedCall {
+
+        private final Long msgId;
+
+        private final long msgTimestamp;
+
+        private final long expiresAt;
+
+        private CachedCall(Long msgId, long msgTimestamp, long expiresAt) {
+            this.msgId = msgId;
+            this.msgTimestamp = msgTimestamp;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package org.cleverbus.core.common.asynch;
 
+import java.util.Date;
 import java.util.regex.Pattern;
 
 import org.cleverbus.api.entity.ExternalCall;
@@ -23,18 +24,25 @@ import org.cleverbus.api.entity.ExternalCallStateEnum;
 import org.cleverbus.api.entity.Message;
 import org.cleverbus.api.exception.LockFailureException;
 import org.cleverbus.common.log.Log;
+import org.cleverbus.core.common.asynch.msg.AdaptiveConsumersController;
 import org.cleverbus.core.common.dao.ExternalCallDao;
 import org.cleverbus.spi.extcall.ExternalCallService;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.util.Assert;
 
 
 /**
  * Implementation of {@link ExternalCallService} interface.
  * Supports specifying a RegEx pattern to skip matched operation URIs.
+ * <p/>
+ * Existing external call is taken for processing by one conditional update, it's read from the database only
+ * if it can't be taken (new call, call in progress or older message). The result of the call is saved
+ * by one conditional update too.
  *
  * @author <a href="mailto:petr.juza@cleverlance.com">Petr Juza</a>
  */
@@ -46,6 +54,14 @@ public class ExternalCallServiceImpl implements ExternalCallService {
     @Autowired
     private ExternalCallDao extCallDao;
 
+    // adaptive count of consumers is not mandatory
+    @Autowired(required = false)
+    private AdaptiveConsumersController consumersController;
+
+    // cache of OK calls is not mandatory, all checks are made in the database without it
+    @Autowired(required = false)
+    private ExternalCallOkCache okCache;
+
     @Override
     @Transactional
     public ExternalCall prepare(String operationUri, String operationKey, Message message) {
@@ -55,15 +71,31 @@ public class ExternalCallServiceImpl implements ExternalCallService {
             return null;
         }
 
+        if (okCache != null) {
+            Date okMsgTimestamp = okCache.getOkMsgTimestamp(operationUri, operationKey);
+            if (okMsgTimestamp != null && !message.getMsgTimestamp().after(okMsgTimestamp)) {
+                // the same or newer message has already made this call successfully
+                Log.info("Not allowing an external call, since it's a duplicate of or older than a successful call"
+                        + " (cached): uri=[{}] key=[{}] msgTimestamp=[{}]", operationUri, operationKey, okMsgTimestamp);
+                return null;
+            }
+        }
+
+        // fast path - try to take existing call without reading it
+        ExternalCall processingCall = ExternalCall.createProcessingCall(operationUri, operationKey, message);
+        if (extCallDao.claimExternalCall(processingCall)) {
+            Log.debug("Locked msgId={}, extCall={}", message.getMsgId(), processingCall);
+            return processingCall;
+        }
+
         ExternalCall extCall = extCallDao.getExternalCall(operationUri, operationKey);
         Log.debug("Locking msgId={}, extCall={}", message.getMsgId(), extCall);
 
         if (extCall == null) {
             // create a new call in the Processing state, if none registered so far
-            extCall = ExternalCall.createProcessingCall(operationUri, operationKey, message);
-            extCallDao.insert(extCall);
-            Log.debug("Locked msgId={}, extCall={}", message.getMsgId(), extCall);
-            return extCall;
+            extCallDao.insert(processingCall);
+            Log.debug("Locked msgId={}, extCall={}", message.getMsgId(), processingCall);
+            return processingCall;
         }
 
         long extCallAge = message.getMsgTimestamp().getTime() - extCall.getMsgTimestamp().getTime();
@@ -97,35 +129,74 @@ public class ExternalCallServiceImpl implements ExternalCallService {
                 }
                 break;
         }
-        // mark the found external call as taken for processing by this message:
-        extCallDao.lockExternalCall(extCall);
-        extCall.setMessage(message);
-        extCall.setMsgId(message.getMsgId());
-        extCall.setMsgTimestamp(message.getMsgTimestamp());
-        Log.debug("Locked msgId={}, extCall={}", message.getMsgId(), extCall);
-        return extCall;
+        // the call could be taken but conditional update didn't take it => it was changed in the meantime
+        throw new LockFailureException(String.format(
+                "External call was changed concurrently for uri=[%s] key=[%s] msgId=[%s]",
+                operationUri, operationKey, extCall.getMsgId()));
     }
 
     @Override
     @Transactional
     public void complete(ExternalCall extCall) {
-        Assert.notNull(extCall, "the extCall must not be null");
-        Assert.isTrue(extCall.getState() == ExternalCallStateEnum.PROCESSING,
-                "the external call must be in PROCESSING state, but state is " + extCall.getState());
-        extCall.setState(ExternalCallStateEnum.OK);
-        extCallDao.update(extCall);
-        Log.debug("External call " + extCall.toHumanString() + " changed state to " + ExternalCallStateEnum.OK);
+        finishExternalCall(extCall, ExternalCallStateEnum.OK);
     }
 
     @Override
     @Transactional
     public void failed(ExternalCall extCall) {
+        finishExternalCall(extCall, ExternalCallStateEnum.FAILED);
+    }
+
+    private void finishExternalCall(ExternalCall extCall, ExternalCallStateEnum newState) {
         Assert.notNull(extCall, "the extCall must not be null");
         Assert.isTrue(extCall.getState() == ExternalCallStateEnum.PROCESSING,
                 "the external call must be in PROCESSING state, but state is " + extCall.getState());
-        extCall.setState(ExternalCallStateEnum.FAILED);
-        extCallDao.update(extCall);
-        Log.debug("External call " + extCall.toHumanString() + " changed state to " + ExternalCallStateEnum.FAILED);
+        addExternalCallDuration(extCall);
+
+        // last update timestamp is the version of the call => it must change even within the same millisecond
+        Date lastUpdate = new Date();
+        if (extCall.getLastUpdateTimestamp() != null && !lastUpdate.after(extCall.getLastUpdateTimestamp())) {
+            lastUpdate = new Date(extCall.getLastUpdateTimestamp().getTime() + 1);
+        }
+        if (!extCallDao.finishExternalCall(extCall, newState, lastUpdate)) {
+            throw new LockFailureException(String.format(
+                    "External call isn't processed by msgId=[%s] anymore for uri=[%s] key=[%s]",
+                    extCall.getMsgId(), extCall.getOperationName(), extCall.getEntityId()));
+        }
+
+        extCall.setState(newState);
+        extCall.setLastUpdateTimestamp(lastUpdate);
+        Log.debug("External call " + extCall.toHumanString() + " changed state to " + newState);
+
+        if (okCache != null && newState == ExternalCallStateEnum.OK) {
+            putOkCallAfterCommit(extCall);
+        }
+    }
+
+    private void putOkCallAfterCommit(final ExternalCall extCall) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    okCache.putOkCall(extCall);
+                }
+            });
+        } else {
+            okCache.putOkCall(extCall);
+        }
+    }
+
+    /**
+     * Adds duration of finished external call to statistics for {@link AdaptiveConsumersController}.
+     * External call was locked (=last updated) at the beginning of the call.
+     *
+     * @param extCall the finished external call
+     */
+    private void addExternalCallDuration(ExternalCall extCall) {
+        if (consumersController != null && extCall.getLastUpdateTimestamp() != null) {
+            consumersController.addExternalCall(
+                    Math.max(0, System.currentTimeMillis() - extCall.getLastUpdateTimestamp().getTime()));
+        }
     }
 
     public Pattern getSkipOperationUriList() {
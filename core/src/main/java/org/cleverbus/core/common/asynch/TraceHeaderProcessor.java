@@ -20,7 +20,6 @@ import java.util.Collections;
 import java.util.List;
 
 import javax.annotation.Nullable;
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Unmarshaller;
 import javax.xml.bind.ValidationEvent;
@@ -34,6 +33,7 @@ import org.cleverbus.api.exception.InternalErrorEnum;
 import org.cleverbus.api.exception.ValidationIntegrationException;
 import org.cleverbus.common.log.Log;
 import org.cleverbus.core.common.validator.TraceIdentifierValidator;
+import org.cleverbus.core.common.xml.XmlHelper;
 
 import org.apache.camel.Exchange;
 import org.apache.camel.Processor;
@@ -62,7 +62,6 @@ public class TraceHeaderProcessor implements Processor {
 
     public static final String TRACE_HEADER_ELM = "traceHeader";
 
-    private final JAXBContext jaxb2;
     private final ValidationEventHandler validationEventHandler = getValidationEventHandler();
 
     /**
@@ -84,7 +83,8 @@ public class TraceHeaderProcessor implements Processor {
      */
     public TraceHeaderProcessor(boolean mandatoryHeader, @Nullable List<TraceIdentifierValidator> validatorList) throws
             JAXBException {
-        jaxb2 = JAXBContext.newInstance(TraceHeader.class);
+        // JAXB context is shared by all processors, it is created in advance
+        XmlHelper.getJaxbContext(TraceHeader.class);
         this.mandatoryHeader = mandatoryHeader;
         this.validatorList = validatorList;
     }
@@ -120,7 +120,7 @@ public class TraceHeaderProcessor implements Processor {
 
     private void setFromTraceHeader(Exchange exchange, Source traceHeaderElmSource, boolean headerInBody) throws JAXBException {
         // unmarshal
-        Unmarshaller unmarshaller = jaxb2.createUnmarshaller();
+        Unmarshaller unmarshaller = XmlHelper.getUnmarshaller(TraceHeader.class);
         if (!headerInBody) {
             // if there is trace header in the body then error events are thrown because there are other elements
             //  in the body
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cleverbus.core.common.asynch.msg;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cleverbus.common.log.Log;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.util.Assert;
+
+
+/**
+ * Adaptive limit of concurrent consumers which process asynchronous messages from the queue
+ * created by {@link MsgPriorityQueueFactory}.
+ * <p/>
+ * SEDA endpoint starts {@code asynch.concurrentConsumers} threads (the maximum), this controller determines
+ * how many of them can take messages from the queue at once. The limit is evaluated periodically:
+ * <ul>
+ *     <li>it grows if messages wait in the queue longer than {@code asynch.adaptiveConsumers.targetWaitTime}
+ *     <li>it shrinks if external calls are much slower than usually (target systems are overloaded)
+ *     <li>it shrinks slowly if the queue is empty
+ * </ul>
+ * Consumer thread holds its place from taking the message until it asks for next message.
+ * <p/>
+ * Adaptive limit is switched off by default, all consumers take messages then.
+ * Parameters can be changed at runtime via JMX.
+ *
+ * @since 2.1
+ */
+@ManagedResource(description = "Adaptive count of concurrent consumers of asynchronous messages")
+public class AdaptiveConsumersController {
+
+    /**
+     * External calls are considered as slow when current latency exceeds usual latency by this factor.
+     */
+    static final double SLOW_EXT_CALL_FACTOR = 2.0;
+
+    /**
+     * Weight of current latency in usual latency of external calls.
+     */
+    private static final double USUAL_LATENCY_WEIGHT = 0.1;
+
+    /**
+     * Is adaptive count of consumers enabled?
+     */
+    @Value("${asynch.adaptiveConsumers.enabled}")
+    private boolean enabled;
+
+    /**
+     * Minimum count of concurrent consumers.
+     */
+    @Value("${asynch.adaptiveConsumers.min}")
+    private int minConsumers;
+
+    /**
+     * Maximum count of concurrent consumers = count of SEDA consumer threads.
+     */
+    @Value("${asynch.concurrentConsumers}")
+    private int maxConsumers;
+
+    /**
+     * How often (in seconds) is the limit evaluated.
+     */
+    @Value("${asynch.adaptiveConsumers.interval}")
+    private int interval;
+
+    /**
+     * Acceptable waiting time of messages in the queue (in millis).
+     */
+    @Value("${asynch.adaptiveConsumers.targetWaitTime}")
+    private long targetWaitTime;
+
+    /**
+     * Threads which took message and haven't asked for next one yet.
+     */
+    private final Set<Thread> activeConsumers = new HashSet<Thread>();
+
+    private int limit = Integer.MAX_VALUE;
+
+    private final AtomicLong lastEvaluation = new AtomicLong(System.currentTimeMillis());
+
+    // queue statistics from the last evaluation
+    private long lastTakenMessages;
+
+    private long lastWaitingTime;
+
+    // external call statistics since the last evaluation
+    private final AtomicLong extCallCount = new AtomicLong();
+
+    private final AtomicLong extCallTime = new AtomicLong();
+
+    private volatile long extCallLatency;
+
+    private volatile double usualExtCallLatency;
+
+    /**
+     * Waits for free place of consumer which wants to take message from the queue.
+     *
+     * @param timeout the maximum time to wait (in millis)
+     * @return {@code true} if consumer can take message, {@code false} if timeout elapsed
+     * @throws InterruptedException if waiting thread is interrupted
+     */
+    public synchronized boolean enter(long timeout) throws InterruptedException {
+        if (!enabled) {
+            return true;
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+        while (activeConsumers.size() >= getCurrentConsumers()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+
+            wait(remaining);
+            removeDeadConsumers();
+        }
+
+        activeConsumers.add(Thread.currentThread());
+        return true;
+    }
+
+    /**
+     * Frees place of current consumer thread (if it has any).
+     */
+    public synchronized void leave() {
+        if (activeConsumers.remove(Thread.currentThread())) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Adds duration of one external call.
+     *
+     * @param duration the duration (in millis)
+     */
+    public void addExternalCall(long duration) {
+        extCallCount.incrementAndGet();
+        extCallTime.addAndGet(duration);
+    }
+
+    /**
+     * Evaluates the limit of consumers if evaluation interval has elapsed since the last evaluation.
+     *
+     * @param queueDepth count of messages in the queue
+     * @param takenMessages total count of messages taken from the queue
+     * @param waitingTime total waiting time of taken messages (in millis)
+     */
+    public void evaluate(int queueDepth, long takenMessages, long waitingTime) {
+        long now = System.currentTimeMillis();
+        long last = lastEvaluation.get();
+        if (!enabled || now - last < interval * 1000L || !lastEvaluation.compareAndSet(last, now)) {
+            return;
+        }
+
+        synchronized (this) {
+            // averages for the last interval only
+            long taken = takenMessages - lastTakenMessages;
+            long avgWaitingTime = taken > 0 ? (waitingTime - lastWaitingTime) / taken : 0;
+
+            lastTakenMessages = takenMessages;
+            lastWaitingTime = waitingTime;
+
+            int current = getCurrentConsumers();
+            int newLimit = current;
+
+            if (updateExtCallLatency()) {
+                // target systems are overloaded, more consumers would make it worse
+                newLimit = current - 1;
+            } else if (queueDepth > 0 && avgWaitingTime > targetWaitTime) {
+                newLimit = current + Math.max(1, current / 4);
+            } else if (queueDepth == 0) {
+                newLimit = current - 1;
+            }
+
+            limit = Math.max(minConsumers, Math.min(newLimit, maxConsumers));
+
+            if (limit != current) {
+                Log.debug("Count of concurrent consumers changed from {} to {} (queue depth = {}, waiting time = {} ms,"
+                        + " external call latency = {} ms)", current, limit, queueDepth, avgWaitingTime,
+                        extCallLatency);
+
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Computes latency of external calls in the last interval.
+     *
+     * @return {@code true} if external calls are much slower than usually
+     */
+    private boolean updateExtCallLatency() {
+        long count = extCallCount.getAndSet(0);
+        long time = extCallTime.getAndSet(0);
+        if (count == 0) {
+            return false;
+        }
+
+        extCallLatency = time / count;
+
+        if (usualExtCallLatency == 0) {
+            usualExtCallLatency = extCallLatency;
+            return false;
+        }
+
+        boolean slow = extCallLatency > usualExtCallLatency * SLOW_EXT_CALL_FACTOR;
+
+        usualExtCallLatency = usualExtCallLatency * (1 - USUAL_LATENCY_WEIGHT) + extCallLatency * USUAL_LATENCY_WEIGHT;
+
+        return slow;
+    }
+
+    private void removeDeadConsumers() {
+        for (Iterator<Thread> it = activeConsumers.iterator(); it.hasNext(); ) {
+            if (!it.next().isAlive()) {
+                it.remove();
+            }
+        }
+    }
+
+    @ManagedAttribute(description = "Is adaptive count of consumers enabled?")
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @ManagedAttribute(description = "Enables/disables adaptive count of consumers")
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+
+        if (!enabled) {
+            activeConsumers.clear();
+            notifyAll();
+        }
+    }
+
+    @ManagedAttribute(description = "Minimum count of concurrent consumers")
+    public int getMinConsumers() {
+        return minConsumers;
+    }
+
+    @ManagedAttribute(description = "Sets minimum count of concurrent consumers")
+    public synchronized void setMinConsumers(int minConsumers) {
+        Assert.isTrue(minConsumers > 0 && minConsumers <= maxConsumers,
+                "the minConsumers must be between 1 and " + maxConsumers);
+
+        this.minConsumers = minConsumers;
+    }
+
+    @ManagedAttribute(description = "Maximum count of concurrent consumers (count of consumer threads)")
+    public int getMaxConsumers() {
+        return maxConsumers;
+    }
+
+    @ManagedAttribute(description = "Current limit of concurrent consumers")
+    public synchronized int getCurrentConsumers() {
+        return Math.max(minConsumers, Math.min(limit, maxConsumers));
+    }
+
+    @ManagedAttribute(description = "Sets current limit of concurrent consumers (it's evaluated again later)")
+    public synchronized void setCurrentConsumers(int currentConsumers) {
+        Assert.isTrue(currentConsumers > 0, "the currentConsumers must be positive value");
+
+        this.limit = currentConsumers;
+        notifyAll();
+    }
+
+    @ManagedAttribute(description = "Count of consumers which are processing messages")
+    public synchronized int getActiveConsumers() {
+        return activeConsumers.size();
+    }
+
+    @ManagedAttribute(description = "Acceptable waiting time of messages in the queue (in millis)")
+    public long getTargetWaitTime() {
+        return targetWaitTime;
+    }
+
+    @ManagedAttribute(description = "Sets acceptable waiting time of messages in the queue (in millis)")
+    public void setTargetWaitTime(long targetWaitTime) {
+        this.targetWaitTime = targetWaitTime;
+    }
+
+    @ManagedAttribute(description = "Average latency of external calls in the last interval (in millis)")
+    public long getExternalCallLatency() {
+        return extCallLatency;
+    }
+
+    /**
+     * Sets how often (in seconds) is the limit evaluated.
+     *
+     * @param interval the interval (in seconds)
+     */
+    public void setInterval(int interval) {
+        this.interval = interval;
+    }
+
+    /**
+     * Sets maximum count of concurrent consumers.
+     *
+     * @param maxConsumers the maximum count of consumers
+     */
+    public void setMaxConsumers(int maxConsumers) {
+        this.maxConsumers = maxConsumers;
+    }
+}
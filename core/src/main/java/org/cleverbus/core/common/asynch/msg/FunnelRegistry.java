@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cleverbus.core.common.asynch.msg;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.cleverbus.api.entity.Message;
+import org.cleverbus.api.entity.MsgStateEnum;
+import org.cleverbus.common.log.Log;
+import org.cleverbus.core.common.dao.MessageDao;
+
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.Assert;
+
+
+/**
+ * In-memory index of messages which are filtered by funnels: funnel component ID and funnel value
+ * => active messages of this funnel.
+ * <p/>
+ * The registry is used by {@link MessageServiceImpl} for deciding whether message can go through funnel
+ * without query to database. The registry is kept up to date by state transitions made by {@link MessageServiceImpl}
+ * and by locking messages for re-processing. Changes are applied after commit of the transaction only,
+ * so the registry never sees uncommitted state.
+ * <p/>
+ * Messages of funnel value are loaded from database when the funnel value is used for the first time
+ * (e.g. after node restart) and then again after {@link #setRefreshInterval(int) refresh interval}
+ * because some state transitions (e.g. cancelling message from admin console) don't go through the registry.
+ * <p/>
+ * The registry sees state transitions made on this node only, use it in cluster only if messages with the same
+ * funnel value are processed by one node.
+ *
+ * @since 2.1
+ */
+public class FunnelRegistry {
+
+    /**
+     * States of running messages (classic funnel).
+     */
+    static final Set<MsgStateEnum> RUNNING_STATES = Collections.unmodifiableSet(
+            EnumSet.of(MsgStateEnum.PROCESSING, MsgStateEnum.WAITING, MsgStateEnum.WAITING_FOR_RES));
+
+    /**
+     * States of messages which are involved in guaranteed processing order.
+     */
+    static final Set<MsgStateEnum> GUARANTEED_ORDER_STATES = Collections.unmodifiableSet(
+            EnumSet.of(MsgStateEnum.PROCESSING, MsgStateEnum.WAITING, MsgStateEnum.WAITING_FOR_RES,
+                    MsgStateEnum.PARTLY_FAILED, MsgStateEnum.POSTPONED, MsgStateEnum.FAILED));
+
+    /**
+     * Maximum count of funnel values in the registry, funnel values without active messages
+     * are removed when it's exceeded.
+     */
+    static final int MAX_FUNNELS = 10000;
+
+    private static final String KEY_SEPARATOR = "\n";
+
+    private static final Comparator<FunnelMessage> MSG_ORDER = new Comparator<FunnelMessage>() {
+        @Override
+        public int compare(FunnelMessage m1, FunnelMessage m2) {
+            int result = Long.compare(m1.msgTimestamp, m2.msgTimestamp);
+            // the same as database query - child message goes before its parent with the same timestamp
+            return result != 0 ? result : Long.compare(m2.msgId, m1.msgId);
+        }
+    };
+
+    private final ConcurrentMap<String, Funnel> funnels = new ConcurrentHashMap<String, Funnel>();
+
+    @Autowired
+    private MessageDao messageDao;
+
+    private TransactionTemplate transactionTemplate;
+
+    /**
+     * Is the registry enabled?
+     */
+    @Value("${asynch.funnelRegistry.enabled}")
+    private boolean enabled;
+
+    /**
+     * Interval (in seconds) after that messages of funnel value are loaded from database again.
+     */
+    @Value("${asynch.funnelRegistry.refreshInterval}")
+    private int refreshInterval;
+
+    @Required
+    public void setTransactionManager(JpaTransactionManager transactionManager) {
+        Assert.notNull(transactionManager, "the transactionManager must not be null");
+
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setReadOnly(true);
+    }
+
+    /**
+     * Gets count of running messages with one of specified funnel values and for specified funnel,
+     * see {@link MessageDao#getCountProcessingMessagesForFunnel(Collection, int, String)}.
+     *
+     * @param funnelValues the funnel values
+     * @param idleInterval interval (in seconds) that determines how long can be message processing
+     * @param funnelCompId the funnel component ID
+     * @return count of running messages
+     */
+    public int getCountProcessingMessages(Collection<String> funnelValues, int idleInterval, String funnelCompId) {
+        return getMessages(funnelValues, idleInterval, RUNNING_STATES, funnelCompId).size();
+    }
+
+    /**
+     * Gets IDs of messages with one of specified funnel values for guaranteed processing order of messages
+     * for specified funnel, see
+     * {@link MessageDao#getMessagesForGuaranteedOrderForFunnel(Collection, int, boolean, String)}.
+     *
+     * @param funnelValues the funnel values
+     * @param idleInterval interval (in seconds) that determines how long can message be processing
+     * @param excludeFailedState use {@code true} if you want to exclude FAILED state
+     * @param funnelCompId the funnel component ID
+     * @return list of message IDs ordered by message timestamp
+     */
+    public List<Long> getMsgIdsForGuaranteedOrder(Collection<String> funnelValues, int idleInterval,
+            boolean excludeFailedState, String funnelCompId) {
+
+        Set<MsgStateEnum> states = GUARANTEED_ORDER_STATES;
+        if (excludeFailedState) {
+            states = EnumSet.copyOf(GUARANTEED_ORDER_STATES);
+            states.remove(MsgStateEnum.FAILED);
+        }
+
+        List<FunnelMessage> messages = getMessages(funnelValues, idleInterval, states, funnelCompId);
+        Collections.sort(messages, MSG_ORDER);
+
+        List<Long> msgIds = new ArrayList<Long>(messages.size());
+        for (FunnelMessage msg : messages) {
+            msgIds.add(msg.msgId);
+        }
+
+        return msgIds;
+    }
+
+    /**
+     * Gets messages in specified states - one message can be returned more times if it has more funnel values
+     * (the same as join in database query).
+     */
+    private List<FunnelMessage> getMessages(Collection<String> funnelValues, int idleInterval,
+            Set<MsgStateEnum> states, String funnelCompId) {
+
+        Assert.notEmpty(funnelValues, "funnelValues must not be empty");
+        Assert.hasText(funnelCompId, "funnelCompId must not be empty");
+
+        long startTime = System.currentTimeMillis() - idleInterval * 1000L;
+
+        List<FunnelMessage> result = new ArrayList<FunnelMessage>();
+        for (String funnelValue : funnelValues) {
+            Funnel funnel = getLoadedFunnel(funnelCompId, funnelValue);
+
+            synchronized (funnel) {
+                for (FunnelMessage msg : funnel.messages.values()) {
+                    if (states.contains(msg.state) && msg.startProcessTimestamp >= startTime) {
+                        result.add(msg);
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Gets funnel with messages loaded from database.
+     */
+    private Funnel getLoadedFunnel(String funnelCompId, String funnelValue) {
+        String key = funnelCompId + KEY_SEPARATOR + funnelValue;
+
+        Funnel funnel = funnels.get(key);
+        if (funnel == null) {
+            removeEmptyFunnels();
+
+            Funnel newFunnel = new Funnel();
+            funnel = funnels.putIfAbsent(key, newFunnel);
+            if (funnel == null) {
+                funnel = newFunnel;
+            }
+        }
+
+        synchronized (funnel) {
+            long now = System.currentTimeMillis();
+            if (funnel.loadTimestamp == 0 || now - funnel.loadTimestamp > refreshInterval * 1000L) {
+                // changes committed during loading wait for the funnel lock and are applied after loading
+                funnel.messages.clear();
+                for (Message msg : loadMessages(funnelCompId, funnelValue)) {
+                    funnel.messages.put(msg.getMsgId(), new FunnelMessage(msg));
+                }
+                funnel.loadTimestamp = now;
+
+                Log.debug("Messages of funnel value '{}' (funnel ID = {}) loaded to registry: {}", funnelValue,
+                        funnelCompId, funnel.messages.size());
+            }
+        }
+
+        return funnel;
+    }
+
+    private List<Message> loadMessages(final String funnelCompId, final String funnelValue) {
+        return transactionTemplate.execute(new TransactionCallback<List<Message>>() {
+            @Override
+            public List<Message> doInTransaction(TransactionStatus status) {
+                return messageDao.findActiveMessagesForFunnel(funnelValue, funnelCompId, GUARANTEED_ORDER_STATES);
+            }
+        });
+    }
+
+    /**
+     * Removes funnel values without active messages if there are too many funnel values in the registry.
+     */
+    private void removeEmptyFunnels() {
+        if (funnels.size() < MAX_FUNNELS) {
+            return;
+        }
+
+        for (Iterator<Funnel> it = funnels.values().iterator(); it.hasNext(); ) {
+            Funnel funnel = it.next();
+            synchronized (funnel) {
+                if (funnel.messages.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+
+        Log.debug("Funnel values without active messages removed from registry, remaining funnel values: {}",
+                funnels.size());
+    }
+
+    /**
+     * Registers change of the message - new state or new funnel.
+     * The change is applied after commit of current transaction (if any).
+     *
+     * @param msg the message
+     */
+    public void messageChanged(Message msg) {
+        Assert.notNull(msg, "the msg must not be null");
+
+        if (enabled && StringUtils.isNotEmpty(msg.getFunnelComponentId())) {
+            applyAfterCommit(msg.getFunnelComponentId(), msg.getFunnelValues(), new FunnelMessage(msg));
+        }
+    }
+
+    /**
+     * Removes the message from its current funnel, it's used before funnel of the message is changed.
+     * The change is applied after commit of current transaction (if any).
+     *
+     * @param msg the message
+     */
+    public void messageRemoved(Message msg) {
+        Assert.notNull(msg, "the msg must not be null");
+
+        if (enabled && StringUtils.isNotEmpty(msg.getFunnelComponentId())) {
+            FunnelMessage removed = new FunnelMessage(msg);
+            removed.state = null;
+
+            applyAfterCommit(msg.getFunnelComponentId(), msg.getFunnelValues(), removed);
+        }
+    }
+
+    private void applyAfterCommit(final String funnelCompId, final Collection<String> funnelValues,
+            final FunnelMessage msg) {
+
+        if (funnelValues.isEmpty()) {
+            return;
+        }
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    apply(funnelCompId, funnelValues, msg);
+                }
+            });
+        } else {
+            apply(funnelCompId, funnelValues, msg);
+        }
+    }
+
+    private void apply(String funnelCompId, Collection<String> funnelValues, FunnelMessage msg) {
+        for (String funnelValue : funnelValues) {
+            // funnel values which are not in registry will be loaded from database when necessary
+            Funnel funnel = funnels.get(funnelCompId + KEY_SEPARATOR + funnelValue);
+            if (funnel == null) {
+                continue;
+            }
+
+            synchronized (funnel) {
+                if (msg.state != null && GUARANTEED_ORDER_STATES.contains(msg.state)) {
+                    funnel.messages.put(msg.msgId, msg);
+                } else {
+                    funnel.messages.remove(msg.msgId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Is the registry enabled?
+     *
+     * @return {@code true} if enabled, otherwise {@code false}
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables the registry.
+     *
+     * @param enabled {@code true} for enabling the registry
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+
+        funnels.clear();
+    }
+
+    /**
+     * Sets interval (in seconds) after that messages of funnel value are loaded from database again.
+     *
+     * @param refreshInterval the refresh interval (in seconds)
+     */
+    public void setRefreshInterval(int refreshInterval) {
+        Assert.isTrue(refreshInterval > 0, "the refreshInterval must be positive value");
+
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Active messages of one funnel value, guarded by the funnel instance.
+     */
+    private static final class Funnel {
+
+        private final Map<Long, FunnelMessage> messages = new HashMap<Long, FunnelMessage>();
+
+        /**
+         * When messages were loaded from database, 0 if they haven't been loaded yet.
+         */
+        private long loadTimestamp;
+    }
+
+    /**
+     * Snapshot of message attributes which are necessary for funnel decisions.
+     */
+    private static final class FunnelMessage {
+
+        private final long msgId;
+
+        private final long msgTimestamp;
+
+        private final long startProcessTimestamp;
+
+        private MsgStateEnum state;
+
+        private FunnelMessage(Message msg) {
+            Assert.notNull(msg.getMsgId(), "the msgId must not be null");
+
+            this.msgId = msg.getMsgId();
+            this.msgTimestamp = toMillis(msg.getMsgTimestamp());
+            this.startProcessTimestamp = toMillis(msg.getStartProcessTimestamp());
+            this.state = msg.getState();
+        }
+
+        private static long toMillis(Date date) {
+            // the same as SQL comparison with NULL - message without timestamp isn't selected
+            return date != null ? date.getTime() : Long.MIN_VALUE;
+        }
+    }
+}
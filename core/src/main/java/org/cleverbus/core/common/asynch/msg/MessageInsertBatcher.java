@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cleverbus.core.common.asynch.msg;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.cleverbus.api.entity.Message;
+import org.cleverbus.common.log.Log;
+import org.cleverbus.spi.msg.MessageService;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.util.Assert;
+
+
+/**
+ * Inserts new asynchronous messages in groups (group commit).
+ * <p/>
+ * Calling threads hand their messages over and wait. One of them (the leader) waits at most
+ * {@code asynch.groupCommit.maxDelay} millis or until {@code asynch.groupCommit.maxBatchSize} messages are collected
+ * and then inserts all of them in one transaction. Other threads are released after commit of their messages,
+ * each caller therefore returns only when its message is stored in the database, same as without grouping.
+ * <p/>
+ * If the group insert fails then messages are inserted one by one so one wrong message doesn't affect others.
+ * <p/>
+ * Grouping is switched off by default, each message is inserted in own transaction then.
+ *
+ * @since 2.1
+ */
+@ManagedResource(description = "Group commit of new asynchronous messages")
+public class MessageInsertBatcher {
+
+    @Autowired
+    private MessageService messageService;
+
+    /**
+     * Is group commit enabled?
+     */
+    @Value("${asynch.groupCommit.enabled}")
+    private boolean enabled;
+
+    /**
+     * Maximum time (in millis) how long to wait for next messages of one group.
+     */
+    @Value("${asynch.groupCommit.maxDelay}")
+    private long maxDelay;
+
+    /**
+     * Maximum count of messages inserted in one transaction.
+     */
+    @Value("${asynch.groupCommit.maxBatchSize}")
+    private int maxBatchSize;
+
+    /**
+     * Messages waiting for insert, guarded by itself.
+     */
+    private final Deque<PendingInsert> pending = new ArrayDeque<PendingInsert>();
+
+    /**
+     * Lock of the leader which inserts messages.
+     */
+    private final Lock insertLock = new ReentrantLock();
+
+    private final AtomicLong batches = new AtomicLong();
+
+    private final AtomicLong batchedMessages = new AtomicLong();
+
+    private final AtomicLong failedBatches = new AtomicLong();
+
+    /**
+     * Inserts new message into database, the method returns when the message is committed.
+     *
+     * @param msg the message
+     * @see MessageService#insertMessage(Message)
+     */
+    public void insertMessage(Message msg) {
+        Assert.notNull(msg, "the msg must not be null");
+
+        if (!enabled) {
+            messageService.insertMessage(msg);
+            return;
+        }
+
+        PendingInsert insert = new PendingInsert(msg);
+        synchronized (pending) {
+            pending.add(insert);
+            if (pending.size() >= maxBatchSize) {
+                pending.notifyAll();
+            }
+        }
+
+        boolean interrupted = false;
+        while (!insert.isDone()) {
+            if (insertLock.tryLock()) {
+                try {
+                    // message could be inserted by previous leader in the meantime
+                    if (!insert.isDone()) {
+                        insertBatch(collectBatch());
+                    }
+                } finally {
+                    insertLock.unlock();
+                }
+            } else {
+                interrupted |= insert.await(maxDelay);
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (insert.error != null) {
+            throw insert.error;
+        }
+    }
+
+    /**
+     * Waits for next messages and takes the group of messages for insert.
+     *
+     * @return messages for insert
+     */
+    private List<PendingInsert> collectBatch() {
+        synchronized (pending) {
+            long deadline = System.currentTimeMillis() + maxDelay;
+
+            try {
+                long remaining = maxDelay;
+                while (pending.size() < maxBatchSize && remaining > 0) {
+                    pending.wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+            } catch (InterruptedException ex) {
+                // messages collected so far are inserted
+                Thread.currentThread().interrupt();
+            }
+
+            List<PendingInsert> batch = new ArrayList<PendingInsert>(Math.min(pending.size(), maxBatchSize));
+            while (!pending.isEmpty() && batch.size() < maxBatchSize) {
+                batch.add(pending.poll());
+            }
+            return batch;
+        }
+    }
+
+    /**
+     * Inserts messages in one transaction and releases their callers.
+     *
+     * @param batch messages for insert
+     */
+    private void insertBatch(List<PendingInsert> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        List<Message> msgs = new ArrayList<Message>(batch.size());
+        for (PendingInsert insert : batch) {
+            msgs.add(insert.msg);
+        }
+
+        try {
+            messageService.insertMessages(msgs);
+
+            batches.incrementAndGet();
+            batchedMessages.addAndGet(msgs.size());
+
+            for (PendingInsert insert : batch) {
+                insert.done(null);
+            }
+
+            Log.debug("Inserted group of " + msgs.size() + " new messages");
+
+        } catch (RuntimeException ex) {
+            failedBatches.incrementAndGet();
+
+            if (batch.size() == 1) {
+                batch.get(0).done(ex);
+                return;
+            }
+
+            Log.warn("Insert of group of " + msgs.size() + " new messages failed, messages will be inserted"
+                    + " one by one: " + ex.getMessage());
+
+            for (PendingInsert insert : batch) {
+                resetIds(insert.msg);
+
+                try {
+                    messageService.insertMessage(insert.msg);
+                    insert.done(null);
+                } catch (RuntimeException msgEx) {
+                    insert.done(msgEx);
+                }
+            }
+        } finally {
+            // callers mustn't wait forever in any case (e.g. Error)
+            for (PendingInsert insert : batch) {
+                if (!insert.isDone()) {
+                    insert.done(new IllegalStateException("Insert of message " + insert.msg.toHumanString()
+                            + " failed"));
+                }
+            }
+        }
+    }
+
+    /**
+     * Resets IDs assigned by rolled back transaction to the message and its cascaded funnels,
+     * message can't be persisted again otherwise.
+     *
+     * @param msg the message
+     */
+    private static void resetIds(Message msg) {
+        msg.setMsgId(null);
+
+        // funnels are recreated without IDs
+        List<String> funnelValues = msg.getFunnelValues();
+        if (!funnelValues.isEmpty()) {
+            msg.setFunnelValues(Collections.<String>emptyList());
+            msg.setFunnelValues(funnelValues);
+        }
+    }
+
+    @ManagedAttribute(description = "Is group commit of new messages enabled?")
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @ManagedAttribute(description = "Enables/disables group commit of new messages")
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @ManagedAttribute(description = "Maximum time (in millis) how long to wait for next messages of one group")
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    @ManagedAttribute(description = "Sets maximum time (in millis) how long to wait for next messages of one group")
+    public void setMaxDelay(long maxDelay) {
+        Assert.isTrue(maxDelay >= 0, "the maxDelay must not be negative");
+
+        this.maxDelay = maxDelay;
+    }
+
+    @ManagedAttribute(description = "Maximum count of messages inserted in one transaction")
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    @ManagedAttribute(description = "Sets maximum count of messages inserted in one transaction")
+    public void setMaxBatchSize(int maxBatchSize) {
+        Assert.isTrue(maxBatchSize > 0, "the maxBatchSize must be positive value");
+
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    @ManagedAttribute(description = "Count of successfully inserted groups of messages")
+    public long getCountOfBatches() {
+        return batches.get();
+    }
+
+    @ManagedAttribute(description = "Average count of messages in one successfully inserted group")
+    public double getAverageBatchSize() {
+        long count = batches.get();
+        return count > 0 ? (double) batchedMessages.get() / count : 0;
+    }
+
+    @ManagedAttribute(description = "Count of failed groups of messages (inserted one by one then)")
+    public long getCountOfFailedBatches() {
+        return failedBatches.get();
+    }
+
+    @ManagedOperation(description = "Resets statistics of group commit")
+    public void resetStatistics() {
+        batches.set(0);
+        batchedMessages.set(0);
+        failedBatches.set(0);
+    }
+
+    /**
+     * Message waiting for insert.
+     */
+    private static final class PendingInsert {
+
+        private final Message msg;
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        private volatile RuntimeException error;
+
+        private PendingInsert(Message msg) {
+            this.msg = msg;
+        }
+
+        private boolean isDone() {
+            return latch.getCount() == 0;
+        }
+
+        private void done(RuntimeException error) {
+            this.error = error;
+            latch.countDown();
+        }
+
+        /**
+         * Waits for insert of the message, leader can finish without this message (full group)
+         * so the caller must check the result after timeout.
+         *
+         * @param timeout the maximum time to wait (in millis)
+         * @return {@code true} if waiting was interrupted
+         */
+        private boolean await(long timeout) {
+            try {
+                latch.await(Math.max(timeout, 1), TimeUnit.MILLISECONDS);
+                return false;
+            } catch (InterruptedException ex) {
+                // message is already handed over, caller must wait for result anyway
+                return true;
+            }
+        }
+    }
+}
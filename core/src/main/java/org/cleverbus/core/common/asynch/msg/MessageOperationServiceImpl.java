@@ -19,12 +19,15 @@ package org.cleverbus.core.common.asynch.msg;
 import org.cleverbus.api.entity.Message;
 import org.cleverbus.api.entity.MsgStateEnum;
 import org.cleverbus.common.log.Log;
+import org.cleverbus.core.common.asynch.ExternalCallOkCache;
 import org.cleverbus.core.common.dao.MessageDao;
 import org.cleverbus.core.common.dao.MessageOperationDao;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.DataAccessException;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 
 /**
@@ -41,6 +44,10 @@ public class MessageOperationServiceImpl implements MessageOperationService {
     @Autowired
     private MessageDao msgDao;
 
+    // cache of OK external calls is not mandatory
+    @Autowired(required = false)
+    private ExternalCallOkCache extCallOkCache;
+
     /**
      * Method restarts message enables the option for the user to re-set/restart a message in a FAILED/CANCEL state.
      * Steps:
@@ -72,12 +79,36 @@ public class MessageOperationServiceImpl implements MessageOperationService {
 
             msgOpDao.removeExtCalls(msg, totalRestart);
 
+            if (extCallOkCache != null) {
+                // removed calls can be made again by the same message
+                removeCachedCallsAfterCommit(msg.getMsgId());
+            }
+
             Log.debug("Message (id = " + messageId + ", totalRestart = " + totalRestart + ") was successfully restarted ...");
         } catch (DataAccessException dx) {
             throw new RuntimeException("An error occurred during message restarting", dx);
         }
     }
 
+    /**
+     * Removes cached OK external calls of the message after commit of the restart - calls finished (and cached)
+     * by concurrent processing before the commit would stay cached otherwise.
+     *
+     * @param msgId the message ID
+     */
+    private void removeCachedCallsAfterCommit(final Long msgId) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    extCallOkCache.removeMessageCalls(msgId);
+                }
+            });
+        } else {
+            extCallOkCache.removeMessageCalls(msgId);
+        }
+    }
+
     @Transactional
     @Override
     public synchronized void cancelMessage(long messageId) {
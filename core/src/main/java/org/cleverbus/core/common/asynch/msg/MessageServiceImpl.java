@@ -18,6 +18,7 @@ package org.cleverbus.core.common.asynch.msg;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.exception.ExceptionUtils;
+import org.cleverbus.api.entity.BindingTypeEnum;
 import org.cleverbus.api.entity.ExternalSystemExtEnum;
 import org.cleverbus.api.entity.Message;
 import org.cleverbus.api.entity.MsgStateEnum;
@@ -25,6 +26,7 @@ import org.cleverbus.api.exception.ErrorExtEnum;
 import org.cleverbus.common.log.Log;
 import org.cleverbus.core.common.dao.MessageDao;
 import org.cleverbus.core.common.exception.ExceptionTranslator;
+import org.cleverbus.core.monitoring.MessageStateCounters;
 import org.cleverbus.spi.msg.MessageService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.transaction.annotation.Transactional;
@@ -41,9 +43,22 @@ import java.util.*;
  */
 public class MessageServiceImpl implements MessageService {
 
+    /**
+     * Possible states of the parent message before it's finished by its last child message.
+     */
+    private static final Set<MsgStateEnum> PARENT_STATES_BEFORE_OK = Collections.unmodifiableSet(
+            EnumSet.of(MsgStateEnum.PROCESSING, MsgStateEnum.WAITING, MsgStateEnum.PARTLY_FAILED,
+                    MsgStateEnum.FAILED));
+
     @Autowired
     private MessageDao messageDao;
 
+    @Autowired(required = false)
+    private FunnelRegistry funnelRegistry;
+
+    @Autowired(required = false)
+    private MessageStateCounters stateCounters;
+
     @Transactional
     @Override
     public void insertMessage(final Message message) {
@@ -55,6 +70,11 @@ public class MessageServiceImpl implements MessageService {
 
         messageDao.insert(message);
 
+        addChildrenToParents(Collections.singletonList(message));
+
+        funnelMessageChanged(message);
+        stateCountersChanged(null, null, message);
+
         Log.debug("Inserted new message " + message.toHumanString());
     }
 
@@ -63,9 +83,24 @@ public class MessageServiceImpl implements MessageService {
     public void insertMessages(Collection<Message> messages) {
         Assert.notNull(messages, "the messages must not be null");
 
+        Date now = new Date();
         for (Message msg : messages) {
-            insertMessage(msg);
+            Assert.state(msg.getState() == MsgStateEnum.NEW || msg.getState() == MsgStateEnum.PROCESSING,
+                    "new message can be in NEW or PROCESSING state only");
+
+            msg.setLastUpdateTimestamp(now);
         }
+
+        messageDao.insertAll(messages);
+
+        addChildrenToParents(messages);
+
+        for (Message msg : messages) {
+            funnelMessageChanged(msg);
+            stateCountersChanged(null, null, msg);
+        }
+
+        Log.debug("Inserted " + messages.size() + " new messages");
     }
 
     @Transactional
@@ -74,44 +109,76 @@ public class MessageServiceImpl implements MessageService {
         Assert.notNull(msg, "the msg must not be null");
         Assert.isTrue(!msg.isParentMessage(), "the message must not be parent");
 
+        MsgStateEnum oldState = msg.getState();
+        Date oldLastUpdate = msg.getLastUpdateTimestamp();
+
         msg.setState(MsgStateEnum.OK);
         msg.setLastUpdateTimestamp(new Date());
 
         // move new business errors to message:
         MessageHelper.updateBusinessErrors(msg, props);
 
-        messageDao.update(msg);
-
-        Log.debug("State of the message " + msg.toHumanString() + " was changed to " + MsgStateEnum.OK);
+        if (!updateState(msg, oldState, oldLastUpdate)) {
+            return;
+        }
 
-        // check parent message with HARD binding - if any
-        if (msg.existHardParent()) {
-            List<Message> childMessages = messageDao.findChildMessages(msg);
-
-            // are all child messages processed?
-            boolean finishedOK = true;
-            for (Message childMsg : childMessages) {
-                //note: input message doesn't have to be in valid state in DB if Hibernate is used ...
-                if (childMsg.getState() != MsgStateEnum.OK && !childMsg.equals(msg)) {
-                    finishedOK = false;
-                    break;
+        // check parent message with HARD binding - if any (finished child message is counted once only)
+        if (msg.existHardParent() && oldState != MsgStateEnum.OK) {
+            if (messageDao.finishChildMessage(msg)) {
+                // the last child message finishes the parent message
+                Message parentMsg = messageDao.setParentStateOk(msg.getParentMsgId(), new Date());
+                if (parentMsg != null) {
+                    funnelMessageChanged(parentMsg);
+                    stateCountersChanged(PARENT_STATES_BEFORE_OK, parentMsg);
+
+                    Log.debug("State of the parent message " + parentMsg.toHumanString() + " was changed to "
+                            + MsgStateEnum.OK);
                 }
+            } else {
+                // parent message without counter of remaining child messages (created by older version)
+                checkChildMessagesOk(msg);
             }
+        }
+    }
 
-            if (finishedOK) {
-                // mark parent message as successfully processed
-                Message parentMsg = messageDao.getMessage(msg.getParentMsgId());
+    /**
+     * Checks all child messages of the parent message of specified child message, the parent message
+     * is marked as successfully processed when all its child messages are processed.
+     *
+     * @param msg the successfully processed child message
+     */
+    private void checkChildMessagesOk(Message msg) {
+        List<Message> childMessages = messageDao.findChildMessages(msg);
+
+        // are all child messages processed?
+        boolean finishedOK = true;
+        for (Message childMsg : childMessages) {
+            //note: input message doesn't have to be in valid state in DB if Hibernate is used ...
+            if (childMsg.getState() != MsgStateEnum.OK && !childMsg.equals(msg)) {
+                finishedOK = false;
+                break;
+            }
+        }
 
-                parentMsg.setState(MsgStateEnum.OK);
-                parentMsg.setLastUpdateTimestamp(new Date());
+        if (finishedOK) {
+            // mark parent message as successfully processed
+            Message parentMsg = messageDao.getMessage(msg.getParentMsgId());
+            MsgStateEnum oldState = parentMsg.getState();
+            Date oldLastUpdate = parentMsg.getLastUpdateTimestamp();
 
-                // extract business errors from all child messages
-                parentMsg.setBusinessError(getBusinessErrorsFromChildMessages(childMessages));
+            parentMsg.setState(MsgStateEnum.OK);
+            parentMsg.setLastUpdateTimestamp(new Date());
 
-                messageDao.update(parentMsg);
+            // extract business errors from all child messages
+            parentMsg.setBusinessError(getBusinessErrorsFromChildMessages(childMessages));
 
-                Log.debug("State of the parent message " + parentMsg.toHumanString() + " was changed to " + MsgStateEnum.OK);
-            }
+            messageDao.update(parentMsg);
+
+            funnelMessageChanged(parentMsg);
+            stateCountersChanged(oldState, oldLastUpdate, parentMsg);
+
+            Log.debug("State of the parent message " + parentMsg.toHumanString() + " was changed to "
+                    + MsgStateEnum.OK);
         }
     }
 
@@ -122,6 +189,8 @@ public class MessageServiceImpl implements MessageService {
         Assert.isTrue(msg.getState() == MsgStateEnum.WAITING_FOR_RES,
                 "the message must be in WAITING_FOR_RES state, but state is " + msg.getState());
 
+        Date oldLastUpdate = msg.getLastUpdateTimestamp();
+
         msg.setState(MsgStateEnum.PROCESSING);
         Date currDate = new Date();
         msg.setStartProcessTimestamp(currDate);
@@ -129,9 +198,33 @@ public class MessageServiceImpl implements MessageService {
 
         messageDao.update(msg);
 
+        funnelMessageChanged(msg);
+        stateCountersChanged(MsgStateEnum.WAITING_FOR_RES, oldLastUpdate, msg);
+
         Log.debug("State of the message " + msg.toHumanString() + " was changed to " + MsgStateEnum.PROCESSING);
     }
 
+    /**
+     * Adds new child messages with {@link BindingTypeEnum#HARD HARD} binding to counters of remaining child messages
+     * of their parent messages.
+     *
+     * @param messages the new messages
+     */
+    private void addChildrenToParents(Collection<Message> messages) {
+        Map<Long, Integer> childCounts = new HashMap<Long, Integer>();
+
+        for (Message msg : messages) {
+            if (msg.existHardParent()) {
+                Integer count = childCounts.get(msg.getParentMsgId());
+                childCounts.put(msg.getParentMsgId(), count == null ? 1 : count + 1);
+            }
+        }
+
+        for (Map.Entry<Long, Integer> entry : childCounts.entrySet()) {
+            messageDao.addRemainingChildren(entry.getKey(), entry.getValue());
+        }
+    }
+
     private String getBusinessErrorsFromChildMessages(List<Message> messages) {
         List<String> errorList = new ArrayList<String>();
 
@@ -148,16 +241,19 @@ public class MessageServiceImpl implements MessageService {
         Assert.notNull(msg, "the msg must not be null");
         Assert.isTrue(msg.isParentMessage(), "the message must be parent");
 
-        // check current state (it's possible that parent message has been already finished)
-        Message currMsg = messageDao.getMessage(msg.getMsgId());
+        // it's possible that parent message has been already finished => change PROCESSING state only
+        if (msg.getState() != MsgStateEnum.PROCESSING) {
+            Log.debug("Message " + msg.toHumanString() + " isn't in " + MsgStateEnum.PROCESSING + " state anymore.");
+            return;
+        }
 
-        if (currMsg.getState() == MsgStateEnum.PROCESSING) {
-            msg.setState(MsgStateEnum.WAITING);
-            msg.setLastUpdateTimestamp(new Date());
+        Date oldLastUpdate = msg.getLastUpdateTimestamp();
 
-            messageDao.update(msg);
+        msg.setState(MsgStateEnum.WAITING);
+        msg.setLastUpdateTimestamp(new Date());
 
-            Log.debug("State of the message " + msg.toHumanString() + " was changed to " + MsgStateEnum.WAITING);
+        if (!updateState(msg, MsgStateEnum.PROCESSING, oldLastUpdate)) {
+            msg.setState(MsgStateEnum.PROCESSING);
         }
     }
 
@@ -171,11 +267,17 @@ public class MessageServiceImpl implements MessageService {
                 "the message must be in PROCESSING state, but state is " + msg.getState());
 
         if (msg.getState() != MsgStateEnum.WAITING_FOR_RES) {
+            MsgStateEnum oldState = msg.getState();
+            Date oldLastUpdate = msg.getLastUpdateTimestamp();
+
             msg.setState(MsgStateEnum.WAITING_FOR_RES);
             msg.setLastUpdateTimestamp(new Date());
 
             messageDao.update(msg);
 
+            funnelMessageChanged(msg);
+            stateCountersChanged(oldState, oldLastUpdate, msg);
+
             Log.debug("State of the message " + msg.toHumanString() + " was changed to " + MsgStateEnum.WAITING_FOR_RES);
         } else {
             Log.debug("Message " + msg.toHumanString() + " was already in " + MsgStateEnum.WAITING_FOR_RES + " state.");
@@ -188,13 +290,15 @@ public class MessageServiceImpl implements MessageService {
         Assert.notNull(msg, "the msg must not be null");
         Assert.isTrue(!msg.isParentMessage(), "the message must not be parent");
 
+        MsgStateEnum oldState = msg.getState();
+        Date oldLastUpdate = msg.getLastUpdateTimestamp();
+
         msg.setState(MsgStateEnum.PARTLY_FAILED);
         msg.setLastUpdateTimestamp(new Date());
 
-        messageDao.update(msg);
-
-        Log.debug("State of the message " + msg.toHumanString() + " was changed to " + MsgStateEnum.PARTLY_FAILED
-                + ", but WITHOUT increasing error counter");
+        if (updateState(msg, oldState, oldLastUpdate)) {
+            Log.debug("Error counter of the message " + msg.toHumanString() + " was NOT increased");
+        }
     }
 
     @Transactional
@@ -204,11 +308,15 @@ public class MessageServiceImpl implements MessageService {
 
         Assert.notNull(msg, "the msg must not be null");
 
+        MsgStateEnum oldState = msg.getState();
+        Date oldLastUpdate = msg.getLastUpdateTimestamp();
+
         msg.setState(MsgStateEnum.PARTLY_FAILED);
         updateErrorMessage(msg, ex, errCode, customData, props);
 
-        Log.debug("State of the message " + msg.toHumanString() + " was changed to "
-                + MsgStateEnum.PARTLY_FAILED + " (failed count = " + msg.getFailedCount() + ")");
+        if (updateState(msg, oldState, oldLastUpdate)) {
+            Log.debug("Failed count of the message " + msg.toHumanString() + " is " + msg.getFailedCount());
+        }
     }
 
     @Transactional
@@ -218,9 +326,17 @@ public class MessageServiceImpl implements MessageService {
 
         Assert.notNull(msg, "the msg must not be null");
 
+        MsgStateEnum oldState = msg.getState();
+        Date oldLastUpdate = msg.getLastUpdateTimestamp();
+
         msg.setState(MsgStateEnum.FAILED);
         updateErrorMessage(msg, ex, errCode, customData, props);
 
+        messageDao.update(msg);
+
+        funnelMessageChanged(msg);
+        stateCountersChanged(oldState, oldLastUpdate, msg);
+
         Log.debug("State of the message " + msg.toHumanString() + " was changed to "
                 + MsgStateEnum.FAILED + " (failed count = " + msg.getFailedCount() + ")");
 
@@ -236,6 +352,8 @@ public class MessageServiceImpl implements MessageService {
 
         // mark parent message as failed too
         Message parentMsg = messageDao.getMessage(msg.getParentMsgId());
+        MsgStateEnum oldState = parentMsg.getState();
+        Date oldLastUpdate = parentMsg.getLastUpdateTimestamp();
 
         parentMsg.setState(MsgStateEnum.FAILED);
         parentMsg.setLastUpdateTimestamp(new Date());
@@ -247,6 +365,9 @@ public class MessageServiceImpl implements MessageService {
 
         messageDao.update(parentMsg);
 
+        funnelMessageChanged(parentMsg);
+        stateCountersChanged(oldState, oldLastUpdate, parentMsg);
+
         Log.debug("State of the parent message " + parentMsg.toHumanString() + " was changed to " + MsgStateEnum.FAILED);
     }
 
@@ -257,6 +378,9 @@ public class MessageServiceImpl implements MessageService {
         Assert.notNull(errCode, "the errCode must not be null");
         Assert.hasText(errDesc, "the errDesc must not be empty");
 
+        MsgStateEnum oldState = msg.getState();
+        Date oldLastUpdate = msg.getLastUpdateTimestamp();
+
         msg.setState(MsgStateEnum.FAILED);
         msg.setLastUpdateTimestamp(new Date());
         msg.setFailedErrorCode(errCode);
@@ -265,6 +389,9 @@ public class MessageServiceImpl implements MessageService {
 
         messageDao.update(msg);
 
+        funnelMessageChanged(msg);
+        stateCountersChanged(oldState, oldLastUpdate, msg);
+
         Log.debug("State of the message " + msg.toHumanString() + " was changed to "
                 + MsgStateEnum.FAILED + " (failed count = " + msg.getFailedCount() + ")");
 
@@ -321,8 +448,6 @@ public class MessageServiceImpl implements MessageService {
 
         // move new business errors to message:
         MessageHelper.updateBusinessErrors(msg, props);
-
-        messageDao.update(msg);
     }
 
     @Override
@@ -345,6 +470,10 @@ public class MessageServiceImpl implements MessageService {
         Assert.notNull(funnelValues, "the funnelValues must not be empty");
         Assert.hasText(funnelCompId, "funnelCompId must not be empty");
 
+        if (isFunnelRegistryEnabled() && !funnelValues.isEmpty()) {
+            return funnelRegistry.getCountProcessingMessages(funnelValues, idleInterval, funnelCompId);
+        }
+
         return messageDao.getCountProcessingMessagesForFunnel(funnelValues, idleInterval, funnelCompId);
     }
 
@@ -366,6 +495,32 @@ public class MessageServiceImpl implements MessageService {
                 funnelCompId);
     }
 
+    @Override
+    public List<Long> getMsgIdsForGuaranteedOrderForFunnel(Collection<String> funnelValues, int idleInterval,
+            boolean excludeFailedState, String funnelCompId) {
+        Assert.notNull(funnelValues, "funnelValues must not be null");
+        Assert.hasText(funnelCompId, "funnelCompId must not be empty");
+
+        if (funnelValues.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        if (isFunnelRegistryEnabled()) {
+            return funnelRegistry.getMsgIdsForGuaranteedOrder(funnelValues, idleInterval, excludeFailedState,
+                    funnelCompId);
+        }
+
+        List<Message> messages = messageDao.getMessagesForGuaranteedOrderForFunnel(funnelValues, idleInterval,
+                excludeFailedState, funnelCompId);
+
+        List<Long> msgIds = new ArrayList<Long>(messages.size());
+        for (Message msg : messages) {
+            msgIds.add(msg.getMsgId());
+        }
+
+        return msgIds;
+    }
+
     @Transactional
     @Override
     public void setStatePostponed(Message msg) {
@@ -374,12 +529,12 @@ public class MessageServiceImpl implements MessageService {
         Assert.isTrue(msg.getState() == MsgStateEnum.PROCESSING,
                 "the message must be in PROCESSING state, but state is " + msg.getState());
 
+        Date oldLastUpdate = msg.getLastUpdateTimestamp();
+
         msg.setState(MsgStateEnum.POSTPONED);
         msg.setLastUpdateTimestamp(new Date());
 
-        messageDao.update(msg);
-
-        Log.debug("State of the message " + msg.toHumanString() + " was changed to " + MsgStateEnum.POSTPONED);
+        updateState(msg, MsgStateEnum.PROCESSING, oldLastUpdate);
     }
 
     @Transactional
@@ -391,11 +546,18 @@ public class MessageServiceImpl implements MessageService {
         Assert.isTrue(msg.getState() == MsgStateEnum.PROCESSING,
                 "the message must be in PROCESSING state, but state is " + msg.getState());
 
+        funnelMessageRemoved(msg);
+
+        Date oldLastUpdate = msg.getLastUpdateTimestamp();
+
         msg.setFunnelComponentId(funnelCompId);
         msg.setLastUpdateTimestamp(new Date());
 
         messageDao.update(msg);
 
+        funnelMessageChanged(msg);
+        stateCountersChanged(msg.getState(), oldLastUpdate, msg);
+
         Log.debug("Sets funnel ID of the message " + msg.toHumanString() + " to value: " + funnelCompId);
     }
 
@@ -408,11 +570,18 @@ public class MessageServiceImpl implements MessageService {
         Assert.isTrue(msg.getState().equals(MsgStateEnum.PROCESSING),
                 "the message must be in PROCESSING state, but state is " + msg.getState());
 
+        funnelMessageRemoved(msg);
+
+        Date oldLastUpdate = msg.getLastUpdateTimestamp();
+
         msg.setFunnelValues(funnelValues);
         msg.setLastUpdateTimestamp(new Date());
 
         messageDao.update(msg);
 
+        funnelMessageChanged(msg);
+        stateCountersChanged(msg.getState(), oldLastUpdate, msg);
+
         Log.debug("Sets funnel value of the message " + msg.toHumanString() + " to values: " + funnelValues);
     }
 
@@ -426,13 +595,70 @@ public class MessageServiceImpl implements MessageService {
         Assert.isTrue(msg.getState().equals(MsgStateEnum.PROCESSING),
                 "the message must be in PROCESSING state, but state is " + msg.getState());
 
+        funnelMessageRemoved(msg);
+
+        Date oldLastUpdate = msg.getLastUpdateTimestamp();
+
         msg.setFunnelComponentId(funnelCompId);
         msg.setFunnelValues(funnelValues);
         msg.setLastUpdateTimestamp(new Date());
 
         messageDao.update(msg);
 
+        funnelMessageChanged(msg);
+        stateCountersChanged(msg.getState(), oldLastUpdate, msg);
+
         Log.debug("Sets funnel ID of the message " + msg.toHumanString() + " to value: " + funnelCompId
                 + " and funnel values to: " + funnelValues);
     }
+
+    /**
+     * Saves new state of the message (and related values) if the message is still in expected state in DB.
+     *
+     * @param msg the message with new state
+     * @param expectedState the state of the message in DB before this change
+     * @param oldLastUpdate the last update timestamp of the message before this change
+     * @return {@code true} if the state was changed, otherwise {@code false}
+     */
+    private boolean updateState(Message msg, MsgStateEnum expectedState, @Nullable Date oldLastUpdate) {
+        if (messageDao.updateState(msg, expectedState)) {
+            funnelMessageChanged(msg);
+            stateCountersChanged(expectedState, oldLastUpdate, msg);
+
+            Log.debug("State of the message " + msg.toHumanString() + " was changed to " + msg.getState());
+            return true;
+        }
+
+        Log.warn("State of the message " + msg.toHumanString() + " was NOT changed to " + msg.getState()
+                + " because the message isn't in " + expectedState + " state anymore.");
+        return false;
+    }
+
+    private boolean isFunnelRegistryEnabled() {
+        return funnelRegistry != null && funnelRegistry.isEnabled();
+    }
+
+    private void funnelMessageChanged(Message msg) {
+        if (funnelRegistry != null) {
+            funnelRegistry.messageChanged(msg);
+        }
+    }
+
+    private void funnelMessageRemoved(Message msg) {
+        if (funnelRegistry != null) {
+            funnelRegistry.messageRemoved(msg);
+        }
+    }
+
+    private void stateCountersChanged(@Nullable MsgStateEnum oldState, @Nullable Date oldLastUpdate, Message msg) {
+        if (stateCounters != null) {
+            stateCounters.messageChanged(oldState, oldLastUpdate, msg);
+        }
+    }
+
+    private void stateCountersChanged(Collection<MsgStateEnum> possibleOldStates, Message msg) {
+        if (stateCounters != null) {
+            stateCounters.messageChanged(possibleOldStates, msg);
+        }
+    }
 }
@@ -17,8 +17,11 @@
 package org.cleverbus.core.common.asynch.msg;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.cleverbus.api.asynch.AsynchConstants;
 import org.cleverbus.api.asynch.msg.ChildMessage;
@@ -40,6 +43,16 @@ import org.springframework.util.Assert;
 
 /**
  * Implementation of {@link MsgSplitter} interface.
+ * <p/>
+ * Child messages are processed sequentially one by one by default. Parallel mode (see
+ * {@link #MessageSplitterImpl(MessageService, ModelCamelContext, MessageSplitterCallback, int, boolean)})
+ * divides child messages of one split into lanes which are processed concurrently, each lane processes its child
+ * messages sequentially. Child messages with the same funnel value can be kept in the same lane
+ * to preserve their order.
+ * <p/>
+ * All splits share one thread pool of the splitter, the count of threads is the concurrency limit of the splitter.
+ * When the pool and its queue are full then lanes are processed by the calling thread
+ * (= new splits are slowed down).
  *
  * @author <a href="mailto:petr.juza@cleverlance.com">Petr Juza</a>
  */
@@ -53,8 +66,12 @@ public final class MessageSplitterImpl implements MsgSplitter {
 
     private final MessageSplitterCallback splitterCallback;
 
+    private final int parallelism;
+
+    private final boolean funnelOrder;
+
     /**
-     * Creates new message splitter.
+     * Creates new message splitter which processes child messages sequentially.
      *
      * @param messageService the message service
      * @param camelCtx the Camel context
@@ -63,14 +80,37 @@ public final class MessageSplitterImpl implements MsgSplitter {
     public MessageSplitterImpl(MessageService messageService, ModelCamelContext camelCtx,
             MessageSplitterCallback splitterCallback) {
 
+        this(messageService, camelCtx, splitterCallback, 1, false);
+    }
+
+    /**
+     * Creates new message splitter.
+     *
+     * @param messageService the message service
+     * @param camelCtx the Camel context
+     * @param splitterCallback the callback for getting split messages
+     * @param parallelism the maximum count of child messages processed concurrently by this splitter
+     * @param funnelOrder {@code true} if child messages with the same funnel value should be processed
+     *      sequentially in the order from the callback
+     * @since 2.1
+     */
+    public MessageSplitterImpl(MessageService messageService, ModelCamelContext camelCtx,
+            MessageSplitterCallback splitterCallback, int parallelism, boolean funnelOrder) {
+
         Assert.notNull(messageService, "the messageService must not be null");
         Assert.notNull(camelCtx, "the camelCtx must not be null");
         Assert.notNull(splitterCallback, "the splitterCallback must not be null");
+        Assert.isTrue(parallelism > 0, "the parallelism must be positive");
 
         this.camelCtx = camelCtx;
         this.messageService = messageService;
         this.splitterCallback = splitterCallback;
-        this.executor = camelCtx.getExecutorServiceManager().newThreadPool(this, "MessageSplitter", 1, 3);
+        this.parallelism = parallelism;
+        this.funnelOrder = funnelOrder;
+
+        // default thread pool profile has bounded queue and CallerRuns policy
+        this.executor = camelCtx.getExecutorServiceManager().newThreadPool(this, "MessageSplitter",
+                parallelism, Math.max(parallelism, 3));
     }
 
     @Override
@@ -103,32 +143,141 @@ public final class MessageSplitterImpl implements MsgSplitter {
         // save all messages at once
         messageService.insertMessages(messages);
 
+        List<List<Message>> lanes = getLanes(messages, parallelism, funnelOrder);
+        if (lanes.isEmpty()) {
+            return;
+        }
+
+        // producer template is shared by all lanes of this split, the last finished lane stops it
         final ProducerTemplate msgProducer = camelCtx.createProducerTemplate();
+        final AtomicInteger runningLanes = new AtomicInteger(lanes.size());
 
-        try {
-            // process messages separately one by one
-            executor.submit(new Runnable() {
+        for (final List<Message> lane : lanes) {
+            Runnable laneTask = new Runnable() {
                 @Override
                 public void run() {
-                    for (Message msg : messages) {
-                        Log.debug("Message " + msg.toHumanString() + " will be processed ...");
+                    try {
+                        processLane(lane, msgProducer);
+                    } catch (RuntimeException ex) {
+                        // remaining child messages of the lane will be processed by repair process
+                        Log.error("Processing of child messages was interrupted", ex);
+                        throw ex;
+                    } finally {
+                        if (runningLanes.decrementAndGet() == 0) {
+                            stopProducer(msgProducer);
+                        }
+                    }
+                }
+            };
+
+            try {
+                executor.submit(laneTask);
+            } catch (RuntimeException ex) {
+                // lane won't be processed, remaining child messages will be processed by repair process
+                Log.error("Child messages of the message " + parentMsg.toHumanString()
+                        + " can't be processed", ex);
+
+                if (runningLanes.decrementAndGet() == 0) {
+                    stopProducer(msgProducer);
+                }
+            }
+        }
+    }
 
-                        // send to process (wait for reply and then process next child message); it's new exchange
-                        msgProducer.requestBody(AsynchMessageRoute.URI_SYNC_MSG, msg);
+    /**
+     * Processes child messages of one lane one by one.
+     *
+     * @param lane the child messages
+     * @param msgProducer the producer template
+     */
+    private void processLane(List<Message> lane, ProducerTemplate msgProducer) {
+        for (Message msg : lane) {
+            Log.debug("Message " + msg.toHumanString() + " will be processed ...");
+
+            // send to process (wait for reply and then process next child message); it's new exchange
+            msgProducer.requestBody(AsynchMessageRoute.URI_SYNC_MSG, msg);
+
+            Log.debug("Message " + msg.toHumanString() + " was successfully processed.");
+        }
+    }
+
+    private void stopProducer(ProducerTemplate msgProducer) {
+        try {
+            msgProducer.stop();
+        } catch (Exception ex) {
+            Log.error("error occurred during stopping producerTemplate", ex);
+        }
+    }
+
+    /**
+     * Divides child messages into lanes for concurrent processing, order of child messages is kept in each lane.
+     * <p/>
+     * If funnel order is required then child messages with at least one common funnel value
+     * (also through other child messages) are always in the same lane.
+     *
+     * @param messages the child messages
+     * @param parallelism the maximum count of lanes
+     * @param funnelOrder {@code true} if child messages with the same funnel value should be in the same lane
+     * @return lanes with child messages, empty lanes are omitted
+     */
+    static List<List<Message>> getLanes(List<Message> messages, int parallelism, boolean funnelOrder) {
+        // groups of messages which must be processed sequentially, each message is its own group by default
+        int[] groups = new int[messages.size()];
+        for (int i = 0; i < groups.length; i++) {
+            groups[i] = i;
+        }
+
+        if (funnelOrder) {
+            Map<String, Integer> funnelGroups = new HashMap<String, Integer>();
 
-                        Log.debug("Message " + msg.toHumanString() + " was successfully processed.");
+            for (int i = 0; i < messages.size(); i++) {
+                for (String funnelValue : messages.get(i).getFunnelValues()) {
+                    Integer other = funnelGroups.get(funnelValue);
+                    if (other == null) {
+                        funnelGroups.put(funnelValue, i);
+                    } else {
+                        // join both groups, the group of the older message wins
+                        int root = findGroup(groups, other);
+                        int current = findGroup(groups, i);
+                        groups[Math.max(root, current)] = Math.min(root, current);
                     }
                 }
-            });
-        } finally {
-            if (msgProducer != null) {
-                try {
-                    msgProducer.stop();
-                } catch (Exception ex) {
-                    Log.error("error occurred during stopping producerTemplate", ex);
+            }
+        }
+
+        // assign groups to lanes in round robin manner
+        List<List<Message>> lanes = new ArrayList<List<Message>>();
+        Map<Integer, List<Message>> groupLanes = new HashMap<Integer, List<Message>>();
+        int groupCount = 0;
+
+        for (int i = 0; i < messages.size(); i++) {
+            int group = findGroup(groups, i);
+
+            List<Message> lane = groupLanes.get(group);
+            if (lane == null) {
+                if (lanes.size() < parallelism) {
+                    lane = new ArrayList<Message>();
+                    lanes.add(lane);
+                } else {
+                    lane = lanes.get(groupCount % parallelism);
                 }
+                groupLanes.put(group, lane);
+                groupCount++;
             }
+
+            lane.add(messages.get(i));
         }
+
+        return lanes;
     }
 
+    private static int findGroup(int[] groups, int index) {
+        int group = index;
+        while (groups[group] != group) {
+            group = groups[group];
+        }
+        // shorten path for next searches
+        groups[index] = group;
+        return group;
+    }
 }
@@ -30,14 +30,12 @@ import org.cleverbus.api.asynch.model.TraceIdentifier;
 import org.cleverbus.api.entity.*;
 import org.cleverbus.core.common.asynch.AsynchInMessageRoute;
 import org.cleverbus.core.common.asynch.TraceHeaderProcessor;
+import org.cleverbus.core.common.xml.XmlHelper;
 import org.springframework.util.Assert;
 import org.springframework.ws.soap.saaj.SaajSoapMessage;
-import org.springframework.xml.transform.StringResult;
 
 import javax.annotation.Nullable;
 import javax.xml.transform.Source;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -80,6 +78,7 @@ public final class MessageTransformer {
      * @param objectId the object ID
      * @param entityType the entity type
      * @param funnelValue the funnel value
+     * @param largePayload the flag if payload is large - SOAP envelope isn't saved then
      * @return new message
      */
     @Handler
@@ -93,7 +92,8 @@ public final class MessageTransformer {
             @Header(value = AsynchConstants.FUNNEL_VALUE_HEADER) @Nullable String funnelValue,
             @Header(value = AsynchConstants.FUNNEL_VALUES_HEADER) @Nullable List<String> funnelValues,
             @Header(value = AsynchConstants.GUARANTEED_ORDER_HEADER) @Nullable Boolean guaranteedOrder,
-            @Header(value = AsynchConstants.EXCLUDE_FAILED_HEADER) @Nullable Boolean excludeFailedState) {
+            @Header(value = AsynchConstants.EXCLUDE_FAILED_HEADER) @Nullable Boolean excludeFailedState,
+            @Header(value = AsynchConstants.LARGE_PAYLOAD_HEADER) @Nullable Boolean largePayload) {
 
         // validate input params (trace header is validated in TraceHeaderProcessor)
         Assert.notNull(exchange, "the exchange must not be null");
@@ -146,7 +146,10 @@ public final class MessageTransformer {
         msg.setExcludeFailedState(BooleanUtils.isTrue(excludeFailedState));
 
         msg.setPayload(payload);
-        msg.setEnvelope(getSOAPEnvelope(exchange));
+        if (!BooleanUtils.isTrue(largePayload)) {
+            // envelope of large payload isn't saved, it's at least as large as payload
+            msg.setEnvelope(getSOAPEnvelope(exchange));
+        }
 
         msg.setLastUpdateTimestamp(currDate);
 
@@ -166,16 +169,10 @@ public final class MessageTransformer {
         }
 
         try {
-            TransformerFactory tranFactory = TransformerFactory.newInstance();
-            Transformer aTransformer = tranFactory.newTransformer();
-
             SpringWebserviceMessage inMsg = (SpringWebserviceMessage) exchange.getIn();
             Source source = ((SaajSoapMessage) inMsg.getWebServiceMessage()).getEnvelope().getSource();
 
-            StringResult strRes = new StringResult();
-            aTransformer.transform(source, strRes);
-
-            return strRes.toString();
+            return XmlHelper.transformToString(source);
         } catch (Exception ex) {
             throw new IllegalStateException("Error occurred during conversion SOAP envelope to string", ex);
         }
@@ -18,6 +18,7 @@ package org.cleverbus.core.common.asynch.msg;
 
 import java.util.Comparator;
 
+import org.cleverbus.api.asynch.AsynchConstants;
 import org.cleverbus.api.entity.Message;
 
 import org.apache.camel.Exchange;
@@ -26,6 +27,8 @@ import org.springframework.util.Assert;
 
 /**
  * Comparator sorts exchanges in the queue by {@link Message#getProcessingPriority() message priority of processing}.
+ * Exchanges with the same priority are sorted by time of inserting into the queue
+ * (see {@link AsynchConstants#MSG_QUEUE_INSERT_HEADER}).
  *
  * @author <a href="mailto:petr.juza@cleverlance.com">Petr Juza</a>
  * @since 0.4
@@ -40,6 +43,15 @@ public class MsgPriorityComparator implements Comparator<Exchange> {
         Assert.notNull(msg1, "msg1 must not be null");
         Assert.notNull(msg2, "msg2 must not be null");
 
-        return ((Integer)msg1.getProcessingPriority()).compareTo(msg2.getProcessingPriority());
+        int result = ((Integer)msg1.getProcessingPriority()).compareTo(msg2.getProcessingPriority());
+        if (result != 0) {
+            return result;
+        }
+
+        // the same priority => first in, first out
+        Long insert1 = ex1.getIn().getHeader(AsynchConstants.MSG_QUEUE_INSERT_HEADER, Long.class);
+        Long insert2 = ex2.getIn().getHeader(AsynchConstants.MSG_QUEUE_INSERT_HEADER, Long.class);
+
+        return Long.compare(insert1 != null ? insert1 : Long.MAX_VALUE, insert2 != null ? insert2 : Long.MAX_VALUE);
     }
 }
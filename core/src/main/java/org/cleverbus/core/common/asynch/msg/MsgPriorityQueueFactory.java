@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cleverbus.core.common.asynch.msg;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import org.cleverbus.api.asynch.AsynchConstants;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.component.seda.PriorityBlockingQueueFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.util.Assert;
+
+
+/**
+ * Factory of bounded priority queues for SEDA endpoint {@link AsynchConstants#URI_ASYNC_MSG}.
+ * <p/>
+ * Exchanges are sorted by {@link MsgPriorityComparator} (processing priority and then insert time).
+ * Count of exchanges in the queue is limited by {@code asynch.queueCapacity} - {@link java.util.Queue#offer offer}
+ * returns {@code false} and {@link java.util.concurrent.BlockingQueue#put put} waits if the queue is full.
+ * New asynchronous requests should be rejected in advance if {@link #isFull() the queue is full}.
+ * <p/>
+ * Count of consumers which take messages from the queue at once can be limited by
+ * {@link AdaptiveConsumersController}.
+ * <p/>
+ * Queue depth and waiting time of messages in the queue are exported via JMX.
+ *
+ * @since 2.1
+ */
+@ManagedResource(description = "Priority queue of asynchronous messages for processing")
+public class MsgPriorityQueueFactory extends PriorityBlockingQueueFactory<Exchange> {
+
+    /**
+     * Maximum count of messages in one queue.
+     */
+    @Value("${asynch.queueCapacity}")
+    private int capacity;
+
+    // adaptive count of consumers is not mandatory
+    @Autowired(required = false)
+    private AdaptiveConsumersController consumersController;
+
+    private final List<BoundedPriorityQueue> queues = new CopyOnWriteArrayList<BoundedPriorityQueue>();
+
+    private final AtomicLong takenMessages = new AtomicLong();
+
+    private final AtomicLong waitingTime = new AtomicLong();
+
+    private final AtomicLong maxWaitingTime = new AtomicLong();
+
+    private final AtomicLong rejectedMessages = new AtomicLong();
+
+    /**
+     * Creates new factory with {@link MsgPriorityComparator}.
+     */
+    public MsgPriorityQueueFactory() {
+        setComparator(new MsgPriorityComparator());
+    }
+
+    @Override
+    public PriorityBlockingQueue<Exchange> create() {
+        return create(capacity);
+    }
+
+    @Override
+    public PriorityBlockingQueue<Exchange> create(int size) {
+        Assert.isTrue(size > 0, "the capacity of the queue must be positive value");
+
+        BoundedPriorityQueue queue = new BoundedPriorityQueue(size);
+        queues.add(queue);
+        return queue;
+    }
+
+    /**
+     * Is any queue created by this factory full?
+     *
+     * @return {@code true} if no more messages can be inserted into any queue without waiting
+     */
+    public boolean isFull() {
+        for (BoundedPriorityQueue queue : queues) {
+            if (queue.remainingCapacity() == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds one rejected message.
+     */
+    public void addRejectedMessage() {
+        rejectedMessages.incrementAndGet();
+    }
+
+    /**
+     * Sets controller of adaptive count of consumers.
+     *
+     * @param consumersController the controller
+     */
+    public void setConsumersController(AdaptiveConsumersController consumersController) {
+        this.consumersController = consumersController;
+    }
+
+    /**
+     * Sets maximum count of messages in one queue.
+     *
+     * @param capacity the capacity of the queue
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    @ManagedAttribute(description = "Maximum count of messages in one queue")
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @ManagedAttribute(description = "Count of messages waiting in the queues")
+    public int getQueueDepth() {
+        int depth = 0;
+        for (BoundedPriorityQueue queue : queues) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    @ManagedAttribute(description = "Count of messages taken from the queues for processing")
+    public long getCountOfTakenMessages() {
+        return takenMessages.get();
+    }
+
+    @ManagedAttribute(description = "Count of messages rejected because of full queue")
+    public long getCountOfRejectedMessages() {
+        return rejectedMessages.get();
+    }
+
+    @ManagedAttribute(description = "Average waiting time of messages in the queue (in millis)")
+    public long getAverageWaitingTime() {
+        long count = takenMessages.get();
+        return count > 0 ? waitingTime.get() / count : 0;
+    }
+
+    @ManagedAttribute(description = "Maximum waiting time of messages in the queue (in millis)")
+    public long getMaxWaitingTime() {
+        return maxWaitingTime.get();
+    }
+
+    @ManagedOperation(description = "Resets statistics of waiting time and rejected messages")
+    public void reset() {
+        takenMessages.set(0);
+        waitingTime.set(0);
+        maxWaitingTime.set(0);
+        rejectedMessages.set(0);
+    }
+
+    private void addTakenMessage(Exchange exchange) {
+        takenMessages.incrementAndGet();
+
+        Long insertTime = exchange.getIn().getHeader(AsynchConstants.MSG_QUEUE_INSERT_HEADER, Long.class);
+        if (insertTime != null) {
+            long time = Math.max(0, System.currentTimeMillis() - insertTime);
+            waitingTime.addAndGet(time);
+
+            long max = maxWaitingTime.get();
+            while (time > max && !maxWaitingTime.compareAndSet(max, time)) {
+                max = maxWaitingTime.get();
+            }
+        }
+    }
+
+    /**
+     * Priority queue with limited count of items.
+     * Free places are tracked by semaphore, each successful insert takes one permit and each removal returns it.
+     * All removals (including removals by iterator and bulk removals) go through {@link #remove(Object)},
+     * {@link #poll()} or {@link #drainTo(Collection, int)}.
+     */
+    private final class BoundedPriorityQueue extends PriorityBlockingQueue<Exchange> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient Semaphore places;
+
+        private BoundedPriorityQueue(int capacity) {
+            super(Math.min(capacity, 100), MsgPriorityQueueFactory.this.getComparator());
+
+            this.places = new Semaphore(capacity);
+        }
+
+        @Override
+        public boolean offer(Exchange exchange) {
+            if (!places.tryAcquire()) {
+                return false;
+            }
+            return insert(exchange);
+        }
+
+        @Override
+        public boolean offer(Exchange exchange, long timeout, TimeUnit unit) {
+            try {
+                if (!places.tryAcquire(timeout, unit)) {
+                    return false;
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return insert(exchange);
+        }
+
+        @Override
+        public void put(Exchange exchange) {
+            // PriorityBlockingQueue.put() doesn't declare InterruptedException
+            try {
+                places.acquire();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for free place in the queue", ex);
+            }
+            insert(exchange);
+        }
+
+        @Override
+        public boolean add(Exchange exchange) {
+            if (!offer(exchange)) {
+                throw new IllegalStateException("Queue full");
+            }
+            return true;
+        }
+
+        @Override
+        public int remainingCapacity() {
+            return places.availablePermits();
+        }
+
+        @Override
+        public Exchange poll() {
+            return taken(super.poll());
+        }
+
+        @Override
+        public Exchange poll(long timeout, TimeUnit unit) throws InterruptedException {
+            // note: SEDA consumers take messages by this method only
+            if (consumersController == null) {
+                return taken(super.poll(timeout, unit));
+            }
+
+            // consumer has finished processing of previous message
+            consumersController.leave();
+            consumersController.evaluate(getQueueDepth(), takenMessages.get(), waitingTime.get());
+
+            if (!consumersController.enter(unit.toMillis(timeout))) {
+                return null;
+            }
+
+            Exchange exchange = taken(super.poll(timeout, unit));
+            if (exchange == null) {
+                consumersController.leave();
+            }
+            return exchange;
+        }
+
+        @Override
+        public Exchange take() throws InterruptedException {
+            return taken(super.take());
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (super.remove(o)) {
+                places.release();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public int drainTo(Collection<? super Exchange> c) {
+            return drainTo(c, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public int drainTo(Collection<? super Exchange> c, int maxElements) {
+            int count = super.drainTo(c, maxElements);
+            places.release(count);
+            return count;
+        }
+
+        @Override
+        public void clear() {
+            while (super.poll() != null) {
+                places.release();
+            }
+        }
+
+        @Override
+        public Iterator<Exchange> iterator() {
+            final Iterator<Exchange> it = super.iterator();
+
+            // iterator of PriorityBlockingQueue works on a snapshot, removal must be done by the queue
+            return new Iterator<Exchange>() {
+                private Exchange last;
+
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public Exchange next() {
+                    last = it.next();
+                    return last;
+                }
+
+                @Override
+                public void remove() {
+                    if (last == null) {
+                        throw new IllegalStateException();
+                    }
+                    BoundedPriorityQueue.this.remove(last);
+                    last = null;
+                }
+            };
+        }
+
+        @Override
+        public boolean removeAll(Collection<?> c) {
+            Assert.notNull(c, "the collection must not be null");
+
+            boolean modified = false;
+            for (Exchange exchange : toArray(new Exchange[0])) {
+                if (c.contains(exchange)) {
+                    modified |= remove(exchange);
+                }
+            }
+            return modified;
+        }
+
+        @Override
+        public boolean retainAll(Collection<?> c) {
+            Assert.notNull(c, "the collection must not be null");
+
+            boolean modified = false;
+            for (Exchange exchange : toArray(new Exchange[0])) {
+                if (!c.contains(exchange)) {
+                    modified |= remove(exchange);
+                }
+            }
+            return modified;
+        }
+
+        @Override
+        public boolean removeIf(Predicate<? super Exchange> filter) {
+            Assert.notNull(filter, "the filter must not be null");
+
+            boolean modified = false;
+            for (Exchange exchange : toArray(new Exchange[0])) {
+                if (filter.test(exchange)) {
+                    modified |= remove(exchange);
+                }
+            }
+            return modified;
+        }
+
+        private boolean insert(Exchange exchange) {
+            // PriorityBlockingQueue is unbounded, insert always succeeds
+            return super.offer(exchange);
+        }
+
+        private Exchange taken(Exchange exchange) {
+            if (exchange != null) {
+                places.release();
+                addTakenMessage(exchange);
+            }
+            return exchange;
+        }
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cleverbus.core.common.asynch.queue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EventObject;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+
+import org.cleverbus.api.entity.Message;
+import org.cleverbus.api.event.AbstractAsynchEvent;
+import org.cleverbus.api.event.CompletedMsgAsynchEvent;
+import org.cleverbus.api.event.EventNotifierBase;
+import org.cleverbus.api.event.FailedMsgAsynchEvent;
+import org.cleverbus.api.event.PostponedMsgAsynchEvent;
+import org.cleverbus.common.log.Log;
+import org.cleverbus.core.common.asynch.LogContextHelper;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationContext;
+import org.springframework.util.Assert;
+
+
+/**
+ * Dispatches postponed messages with guaranteed processing order immediately when their predecessor
+ * with the same funnel value is finished.
+ * <p/>
+ * The sequencer keeps one queue of postponed messages per funnel value (ordered in the same way as
+ * guaranteed order check). When message is successfully processed (or failed and following message excludes
+ * FAILED messages) then the first postponed message with the same funnel value is locked and sent for next
+ * processing without waiting for {@link MessagePollExecutor polling}. The order is checked again
+ * before processing, the sequencer only shortens the time when postponed message waits.
+ * <p/>
+ * Queues are kept in memory only, polling of postponed messages remains as recovery path
+ * (e.g. after node restart or when message is finished on another node of the cluster). Messages which wait
+ * longer than {@link #MAX_WAITING_MILLIS} are forgotten, message is also forgotten when it's dispatched,
+ * even if it has been already taken by polling in the meantime.
+ *
+ * @since 2.1
+ */
+public class GuaranteedOrderSequencer extends EventNotifierBase<AbstractAsynchEvent> {
+
+    /**
+     * Maximum count of waiting messages, next postponed messages are left for polling only.
+     */
+    static final int MAX_WAITING_MESSAGES = 10000;
+
+    /**
+     * How long (in millis) are remembered finished funnel values - postponed message is dispatched immediately
+     * if its predecessor finished during the order check of this message.
+     */
+    static final long RELEASE_MEMORY_MILLIS = 60 * 1000;
+
+    /**
+     * How long (in millis) can postponed message wait in the sequencer, e.g. predecessor finished on another node
+     * of the cluster isn't seen by this node.
+     */
+    static final long MAX_WAITING_MILLIS = 10 * 60 * 1000;
+
+    private static final Comparator<WaitingMessage> MSG_ORDER = new Comparator<WaitingMessage>() {
+        @Override
+        public int compare(WaitingMessage m1, WaitingMessage m2) {
+            int result = Long.compare(m1.msgTimestamp, m2.msgTimestamp);
+            // the same order as guaranteed order query - child message goes before its parent
+            return result != 0 ? result : Long.compare(m2.msgId, m1.msgId);
+        }
+    };
+
+    private final Map<String, TreeSet<WaitingMessage>> queues = new HashMap<String, TreeSet<WaitingMessage>>();
+
+    /**
+     * Message ID => waiting message, ordered from the oldest one.
+     */
+    private final Map<Long, WaitingMessage> waitingMessages = new LinkedHashMap<Long, WaitingMessage>();
+
+    /**
+     * Funnel value => timestamp when the last message with this funnel value was finished.
+     */
+    private final Map<String, Long> releases = new HashMap<String, Long>();
+
+    @Autowired
+    private MessagesPool messagesPool;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    /**
+     * Is immediate dispatching of postponed messages enabled?
+     */
+    @Value("${asynch.guaranteedOrderSequencer.enabled}")
+    private boolean enabled;
+
+    private ExecutorService executor;
+
+    @Override
+    public boolean isEnabled(EventObject event) {
+        return enabled && (event instanceof PostponedMsgAsynchEvent || event instanceof CompletedMsgAsynchEvent
+                || event instanceof FailedMsgAsynchEvent);
+    }
+
+    @Override
+    protected void doNotify(AbstractAsynchEvent event) throws Exception {
+        Message msg = event.getMessage();
+
+        if (!msg.isGuaranteedOrder() || msg.getFunnelValues().isEmpty()) {
+            return;
+        }
+
+        if (event instanceof PostponedMsgAsynchEvent) {
+            messagePostponed(msg);
+        } else {
+            messageFinished(msg, event instanceof FailedMsgAsynchEvent);
+        }
+    }
+
+    /**
+     * Adds postponed message to queues of its funnel values.
+     *
+     * @param msg the postponed message
+     */
+    void messagePostponed(Message msg) {
+        List<String> funnelValues = msg.getFunnelValues();
+
+        WaitingMessage waitingMsg = null;
+        synchronized (this) {
+            removeExpiredMessages(System.currentTimeMillis());
+
+            if (waitingMessages.containsKey(msg.getMsgId())) {
+                return;
+            }
+
+            if (waitingMessages.size() >= MAX_WAITING_MESSAGES) {
+                Log.debug("Too many waiting messages, message {} is left for polling.", msg.toHumanString());
+                return;
+            }
+
+            WaitingMessage newMsg = new WaitingMessage(msg);
+            waitingMessages.put(newMsg.msgId, newMsg);
+            for (String funnelValue : funnelValues) {
+                TreeSet<WaitingMessage> queue = queues.get(funnelValue);
+                if (queue == null) {
+                    queue = new TreeSet<WaitingMessage>(MSG_ORDER);
+                    queues.put(funnelValue, queue);
+                }
+                queue.add(newMsg);
+            }
+
+            // has any predecessor finished in the meantime (between order check and postponing)?
+            long startProcess = msg.getStartProcessTimestamp() != null
+                    ? msg.getStartProcessTimestamp().getTime() : Long.MAX_VALUE;
+            for (String funnelValue : funnelValues) {
+                Long released = releases.get(funnelValue);
+                if (released != null && released >= startProcess) {
+                    waitingMsg = newMsg;
+                    break;
+                }
+            }
+        }
+
+        if (waitingMsg != null) {
+            dispatch(waitingMsg);
+        } else {
+            Log.debug("Message {} waits for its predecessor with funnel values {}.", msg.toHumanString(),
+                    funnelValues);
+        }
+    }
+
+    /**
+     * Dispatches the first waiting message of each funnel value of the finished message.
+     *
+     * @param msg the finished message
+     * @param failed {@code true} if message failed
+     */
+    void messageFinished(Message msg, boolean failed) {
+        List<WaitingMessage> nextMessages = new ArrayList<WaitingMessage>();
+
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            removeOldReleases(now);
+            removeExpiredMessages(now);
+
+            // message could be taken by polling while waiting
+            if (waitingMessages.containsKey(msg.getMsgId())) {
+                removeWaitingMessage(msg.getMsgId());
+            }
+
+            for (String funnelValue : msg.getFunnelValues()) {
+                releases.put(funnelValue, now);
+
+                TreeSet<WaitingMessage> queue = queues.get(funnelValue);
+                if (queue != null) {
+                    WaitingMessage first = queue.first();
+
+                    // failed message blocks following messages which don't exclude FAILED state
+                    // (message stays in queues until it's dispatched, it can be first for more funnel values)
+                    if ((!failed || first.excludeFailedState) && !nextMessages.contains(first)) {
+                        nextMessages.add(first);
+                    }
+                }
+            }
+        }
+
+        for (WaitingMessage waitingMsg : nextMessages) {
+            dispatch(waitingMsg);
+        }
+    }
+
+    private WaitingMessage removeWaitingMessage(Long msgId) {
+        WaitingMessage waitingMsg = waitingMessages.remove(msgId);
+        removeFromQueues(waitingMsg);
+        return waitingMsg;
+    }
+
+    private void removeFromQueues(WaitingMessage waitingMsg) {
+        for (String funnelValue : waitingMsg.funnelValues) {
+            TreeSet<WaitingMessage> queue = queues.get(funnelValue);
+            queue.remove(waitingMsg);
+            if (queue.isEmpty()) {
+                queues.remove(funnelValue);
+            }
+        }
+    }
+
+    /**
+     * Removes the message from queues if it still waits.
+     *
+     * @param waitingMsg the waiting message
+     */
+    private synchronized void forgetWaitingMessage(WaitingMessage waitingMsg) {
+        if (waitingMessages.get(waitingMsg.msgId) == waitingMsg) {
+            removeWaitingMessage(waitingMsg.msgId);
+        }
+    }
+
+    /**
+     * Removes messages which wait longer than {@link #MAX_WAITING_MILLIS}, they are left for polling.
+     *
+     * @param now the current time
+     */
+    synchronized void removeExpiredMessages(long now) {
+        Iterator<WaitingMessage> it = waitingMessages.values().iterator();
+        while (it.hasNext()) {
+            WaitingMessage waitingMsg = it.next();
+            if (now - waitingMsg.waitingSince <= MAX_WAITING_MILLIS) {
+                break; // next messages wait shorter
+            }
+
+            Log.debug("Message (msg_id = {}) waits too long, it's left for polling.", waitingMsg.msgId);
+
+            it.remove();
+            removeFromQueues(waitingMsg);
+        }
+    }
+
+    private void removeOldReleases(long now) {
+        if (releases.size() < MAX_WAITING_MESSAGES) {
+            return;
+        }
+
+        for (Iterator<Long> it = releases.values().iterator(); it.hasNext(); ) {
+            if (now - it.next() > RELEASE_MEMORY_MILLIS) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Locks the message and sends it for next processing (asynchronously).
+     */
+    private void dispatch(final WaitingMessage waitingMsg) {
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Message msg;
+                    try {
+                        msg = messagesPool.getPostponedMessage(waitingMsg.msgId);
+                    } finally {
+                        // the message doesn't wait anymore - it's processed now or it has been already taken
+                        forgetWaitingMessage(waitingMsg);
+                    }
+
+                    if (msg == null) {
+                        // message has been already taken by polling (or dispatched before)
+                        return;
+                    }
+
+                    LogContextHelper.setLogContextParams(msg, null);
+
+                    Log.debug("Postponed message {} is dispatched immediately after its predecessor.",
+                            msg.toHumanString());
+
+                    // executor is looked up lazily, it depends on Camel context where this notifier is registered
+                    applicationContext.getBean(MessagePollExecutor.class).startMessageProcessing(msg);
+                } catch (Exception ex) {
+                    Log.error("Error occurred during dispatching postponed message (msg_id = "
+                            + waitingMsg.msgId + "), message is left for polling.", ex);
+                }
+            }
+        });
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = getCamelContext().getExecutorServiceManager()
+                    .newSingleThreadExecutor(this, "GuaranteedOrderSequencer");
+        }
+        return executor;
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        synchronized (this) {
+            if (executor != null) {
+                getCamelContext().getExecutorServiceManager().shutdown(executor);
+                executor = null;
+            }
+
+            queues.clear();
+            waitingMessages.clear();
+            releases.clear();
+        }
+
+        super.doStop();
+    }
+
+    /**
+     * Gets count of postponed messages which wait for their predecessor.
+     *
+     * @return count of messages
+     */
+    public synchronized int getCountOfWaitingMessages() {
+        return waitingMessages.size();
+    }
+
+    /**
+     * Sets whether immediate dispatching of postponed messages is enabled.
+     *
+     * @param enabled {@code true} for enabling
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Postponed message which waits for its predecessor.
+     */
+    private static final class WaitingMessage {
+
+        private final long msgId;
+
+        private final long msgTimestamp;
+
+        private final boolean excludeFailedState;
+
+        private final List<String> funnelValues;
+
+        private final long waitingSince = System.currentTimeMillis();
+
+        private WaitingMessage(Message msg) {
+            Assert.notNull(msg.getMsgId(), "the msgId must not be null");
+
+            this.msgId = msg.getMsgId();
+            this.msgTimestamp = msg.getMsgTimestamp().getTime();
+            this.excludeFailedState = msg.isExcludeFailedState();
+            this.funnelValues = msg.getFunnelValues();
+        }
+    }
+}
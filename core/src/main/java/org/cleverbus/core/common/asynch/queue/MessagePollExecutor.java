@@ -35,22 +35,29 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.util.Assert;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
  * Reads messages from DB and sends them for next processing.
  * Execution will stop when there is no further message for processing.
  * <p/>
+ * Messages can be read by more poll workers (threads) concurrently, see {@code asynch.partlyFailedWorkers}.
+ * More workers always lock messages in batches because one by one locking would make all workers compete
+ * for the same (the oldest) message.
+ * <p/>
  * This executor is invoked by {@link JobStarterForMessagePooling}.
  *
  * @author <a href="mailto:petr.juza@cleverlance.com">Petr Juza</a>
  */
 public class MessagePollExecutor implements Runnable {
 
-    private static final int LOCK_FAILURE_LIMIT = 5;
-
     @Autowired
     private MessagesPool messagesPool;
 
@@ -66,17 +73,106 @@ public class MessagePollExecutor implements Runnable {
     @Value("${asynch.postponedIntervalWhenFailed}")
     private int postponedIntervalWhenFailed;
 
+    /**
+     * Maximum count of messages locked at once (in one DB statement).
+     * Value 1 (or less) means that messages are locked one by one.
+     */
+    @Value("${asynch.partlyFailedBatchSize}")
+    private int batchSize;
+
+    /**
+     * Count of poll workers (threads) which take messages concurrently.
+     */
+    @Value("${asynch.partlyFailedWorkers}")
+    private int workers;
+
+    /**
+     * Maximum count of lock failures of all poll workers in one polling run.
+     */
+    @Value("${asynch.partlyFailedLockFailureLimit}")
+    private int lockFailureLimit;
+
+    @Autowired
+    private MessagePollStatistics statistics;
+
     // note: this is because of setting different target URI for tests
     private String targetURI = AsynchConstants.URI_ASYNC_MSG;
 
+    private ExecutorService workerExecutor;
+
     @Override
     public void run() {
+        // budget of lock failures is shared by all workers
+        final AtomicInteger lockFailureBudget = new AtomicInteger(lockFailureLimit);
+
+        if (workers <= 1) {
+            runWorker(0, lockFailureBudget);
+            return;
+        }
+
+        Log.debug("Message pooling starts with {} workers ...", workers);
+
+        // current thread is the first worker
+        List<Future<?>> futures = new ArrayList<Future<?>>(workers - 1);
+        for (int i = 1; i < workers; i++) {
+            final int workerId = i;
+            futures.add(getWorkerExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    runWorker(workerId, lockFailureBudget);
+                }
+            }));
+        }
+
+        runWorker(0, lockFailureBudget);
+
+        // wait for other workers
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException ex) {
+                Log.error("Error occurred during polling messages.", ex.getCause());
+            }
+        }
+    }
+
+    private synchronized ExecutorService getWorkerExecutor() {
+        if (workerExecutor == null) {
+            workerExecutor = producerTemplate.getCamelContext().getExecutorServiceManager()
+                    .newFixedThreadPool(this, "MessagePollWorker", workers - 1);
+        }
+        return workerExecutor;
+    }
+
+    /**
+     * Takes messages and sends them for next processing until there is no further message for processing.
+     *
+     * @param workerId the poll worker ID
+     * @param lockFailureBudget remaining count of lock failures, shared by all workers
+     */
+    private void runWorker(int workerId, AtomicInteger lockFailureBudget) {
+        long start = System.currentTimeMillis();
+
+        int count;
+        if (batchSize > 1 || workers > 1) {
+            count = runInBatches(workerId, Math.max(batchSize, 1), lockFailureBudget);
+        } else {
+            count = runOneByOne(workerId, lockFailureBudget);
+        }
+
+        statistics.addProcessedMessages(workerId, count, System.currentTimeMillis() - start);
+    }
+
+    private int runOneByOne(int workerId, AtomicInteger lockFailureBudget) {
         Log.debug("Message pooling starts ...");
 
         // is there message for processing?
         Message msg = null;
-        int lockFailureCount = 0;
-        while (true) {
+        int count = 0;
+        while (lockFailureBudget.get() >= 0) {
             try {
                 msg = messagesPool.getNextMessage();
 
@@ -84,6 +180,7 @@ public class MessagePollExecutor implements Runnable {
                     LogContextHelper.setLogContextParams(msg, null);
 
                     startMessageProcessing(msg);
+                    count++;
                 } else {
                     //there is no new message for processing
                     //  => finish this executor and try it again after some time
@@ -91,11 +188,11 @@ public class MessagePollExecutor implements Runnable {
                 }
             } catch (LockFailureException ex) {
                 // try again to acquire next message with lock
-                lockFailureCount++;
+                statistics.addLockFailure(workerId);
 
-                if (lockFailureCount > LOCK_FAILURE_LIMIT) {
+                if (lockFailureBudget.decrementAndGet() < 0) {
                     Log.warn("Probably problem with locking messages - count of lock failures exceeds limit ("
-                            + LOCK_FAILURE_LIMIT + ").");
+                            + lockFailureLimit + ").");
                     break;
                 }
             } catch (Exception ex) {
@@ -105,6 +202,59 @@ public class MessagePollExecutor implements Runnable {
         }
 
         Log.debug("Message pooling finished.");
+
+        return count;
+    }
+
+    /**
+     * Locks messages in batches and sends all of them for next processing.
+     * Skipping of locked messages ensures that concurrent workers take disjoint messages,
+     * if the database doesn't support it then competing for the same messages is counted as lock failure.
+     */
+    private int runInBatches(int workerId, int size, AtomicInteger lockFailureBudget) {
+        Log.debug("Message pooling in batches (max. {} messages) starts ...", size);
+
+        int count = 0;
+        while (lockFailureBudget.get() >= 0) {
+            List<Message> messages;
+            try {
+                messages = messagesPool.getNextMessages(size);
+            } catch (LockFailureException ex) {
+                // try again to acquire next messages with lock
+                statistics.addLockFailure(workerId);
+
+                if (lockFailureBudget.decrementAndGet() < 0) {
+                    Log.warn("Probably problem with locking messages - count of lock failures exceeds limit ("
+                            + lockFailureLimit + ").");
+                    break;
+                }
+                continue;
+            } catch (Exception ex) {
+                Log.error("Error occurred during getting messages", ex);
+                break;
+            }
+
+            for (Message msg : messages) {
+                try {
+                    LogContextHelper.setLogContextParams(msg, null);
+
+                    startMessageProcessing(msg);
+                    count++;
+                } catch (Exception ex) {
+                    Log.error("Error occurred during starting processing of message " + msg.toHumanString(), ex);
+                }
+            }
+
+            if (messages.size() < size) {
+                //there is no further message for processing
+                //  => finish this executor and try it again after some time
+                break;
+            }
+        }
+
+        Log.debug("Message pooling finished.");
+
+        return count;
     }
 
     void startMessageProcessing(Message msg) {
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cleverbus.core.common.asynch.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+
+/**
+ * Statistics of poll workers which take {@link org.cleverbus.api.entity.MsgStateEnum#PARTLY_FAILED PARTLY_FAILED}
+ * and {@link org.cleverbus.api.entity.MsgStateEnum#POSTPONED POSTPONED} messages for next processing.
+ * <p/>
+ * Statistics are exported via JMX.
+ *
+ * @see MessagePollExecutor
+ * @since 2.1
+ */
+@ManagedResource(description = "Statistics of polling PARTLY_FAILED and POSTPONED messages")
+public class MessagePollStatistics {
+
+    private final ConcurrentNavigableMap<Integer, WorkerStatistics> workers
+            = new ConcurrentSkipListMap<Integer, WorkerStatistics>();
+
+    /**
+     * Adds count of messages which were sent for next processing by specified poll worker.
+     *
+     * @param workerId the poll worker ID
+     * @param count count of messages
+     * @param duration duration of polling (in millis)
+     */
+    public void addProcessedMessages(int workerId, int count, long duration) {
+        WorkerStatistics stats = getWorkerStatistics(workerId);
+
+        stats.processedMessages.addAndGet(count);
+        stats.pollingTime.addAndGet(duration);
+    }
+
+    /**
+     * Adds one lock failure of specified poll worker.
+     *
+     * @param workerId the poll worker ID
+     */
+    public void addLockFailure(int workerId) {
+        getWorkerStatistics(workerId).lockFailures.incrementAndGet();
+    }
+
+    @ManagedAttribute(description = "Count of messages sent for next processing by all poll workers")
+    public long getCountOfProcessedMessages() {
+        long count = 0;
+        for (WorkerStatistics stats : workers.values()) {
+            count += stats.processedMessages.get();
+        }
+        return count;
+    }
+
+    @ManagedAttribute(description = "Count of lock failures of all poll workers")
+    public long getCountOfLockFailures() {
+        long count = 0;
+        for (WorkerStatistics stats : workers.values()) {
+            count += stats.lockFailures.get();
+        }
+        return count;
+    }
+
+    @ManagedAttribute(description = "Throughput of each poll worker (messages per second)")
+    public String[] getWorkerThroughput() {
+        List<String> result = new ArrayList<String>(workers.size());
+
+        for (Map.Entry<Integer, WorkerStatistics> entry : workers.entrySet()) {
+            WorkerStatistics stats = entry.getValue();
+
+            long messages = stats.processedMessages.get();
+            long pollingTime = stats.pollingTime.get();
+            double throughput = pollingTime > 0 ? messages * 1000.0 / pollingTime : 0;
+
+            result.add(String.format("worker %d: %d messages, %d lock failures, %.2f msg/s",
+                    entry.getKey(), messages, stats.lockFailures.get(), throughput));
+        }
+
+        return result.toArray(new String[result.size()]);
+    }
+
+    @ManagedOperation(description = "Resets statistics of all poll workers")
+    public void reset() {
+        workers.clear();
+    }
+
+    private WorkerStatistics getWorkerStatistics(int workerId) {
+        WorkerStatistics stats = workers.get(workerId);
+        if (stats == null) {
+            WorkerStatistics newStats = new WorkerStatistics();
+            stats = workers.putIfAbsent(workerId, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Counters of one poll worker.
+     */
+    private static final class WorkerStatistics {
+
+        private final AtomicLong processedMessages = new AtomicLong();
+
+        private final AtomicLong lockFailures = new AtomicLong();
+
+        private final AtomicLong pollingTime = new AtomicLong();
+    }
+}
@@ -16,10 +16,12 @@
 
 package org.cleverbus.core.common.asynch.queue;
 
+import java.util.List;
 import javax.annotation.Nullable;
 
 import org.cleverbus.api.entity.Message;
 import org.cleverbus.api.entity.MsgStateEnum;
+import org.cleverbus.api.exception.LockFailureException;
 
 
 /**
@@ -38,4 +40,23 @@ public interface MessagesPool {
     @Nullable
     Message getNextMessage();
 
+    /**
+     * Gets messages for next processing - all messages are locked at once.
+     *
+     * @param limit maximum count of messages
+     * @return list of messages or empty list if not available any message
+     * @throws LockFailureException if messages were found, but all of them were locked by somebody else
+     */
+    List<Message> getNextMessages(int limit);
+
+    /**
+     * Gets specified {@link MsgStateEnum#POSTPONED POSTPONED} message for next processing - the message is locked.
+     *
+     * @param msgId the message ID
+     * @return message or {@code null} if the message is not postponed anymore or it's locked by somebody else
+     * @since 2.1
+     */
+    @Nullable
+    Message getPostponedMessage(Long msgId);
+
 }
@@ -16,12 +16,20 @@
 
 package org.cleverbus.core.common.asynch.queue;
 
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
 import javax.annotation.Nullable;
 
 import org.cleverbus.api.entity.Message;
+import org.cleverbus.api.entity.MsgStateEnum;
 import org.cleverbus.api.exception.LockFailureException;
 import org.cleverbus.common.log.Log;
+import org.cleverbus.core.common.asynch.msg.FunnelRegistry;
 import org.cleverbus.core.common.dao.MessageDao;
+import org.cleverbus.core.monitoring.MessageStateCounters;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Required;
@@ -41,9 +49,21 @@ import org.springframework.util.Assert;
  */
 public class MessagesPoolDbImpl implements MessagesPool {
 
+    /**
+     * States of messages which are locked for re-processing.
+     */
+    private static final Set<MsgStateEnum> LOCKED_STATES = Collections.unmodifiableSet(
+            EnumSet.of(MsgStateEnum.PARTLY_FAILED, MsgStateEnum.POSTPONED));
+
     @Autowired
     private MessageDao messageDao;
 
+    @Autowired(required = false)
+    private FunnelRegistry funnelRegistry;
+
+    @Autowired(required = false)
+    private MessageStateCounters stateCounters;
+
     private TransactionTemplate transactionTemplate;
 
     /**
@@ -65,6 +85,7 @@ public class MessagesPoolDbImpl implements MessagesPool {
         this.transactionTemplate = new TransactionTemplate(transactionManager);
     }
 
+    @Override
     @Nullable
     public Message getNextMessage() {
         // is there next message for processing?
@@ -91,6 +112,62 @@ public class MessagesPoolDbImpl implements MessagesPool {
         return msg;
     }
 
+    @Override
+    public List<Message> getNextMessages(final int limit) {
+        Assert.isTrue(limit > 0, "the limit must be positive");
+
+        List<Message> messages = transactionTemplate.execute(new TransactionCallback<List<Message>>() {
+            @Override
+            public List<Message> doInTransaction(final TransactionStatus transactionStatus) {
+                List<Message> lockedMessages = messageDao.findAndLockMessagesForReprocessing(postponedInterval,
+                        partlyFailedInterval, limit);
+
+                if (funnelRegistry != null) {
+                    for (Message msg : lockedMessages) {
+                        funnelRegistry.messageChanged(msg);
+                    }
+                }
+
+                if (stateCounters != null) {
+                    // previous state of each message isn't known here
+                    for (Message msg : lockedMessages) {
+                        stateCounters.messageChanged(LOCKED_STATES, msg);
+                    }
+                }
+
+                return lockedMessages;
+            }
+        });
+
+        if (messages.isEmpty()) {
+            Log.debug("No POSTPONED and PARTLY_FAILED message found for re-processing.");
+        } else {
+            Log.debug("Successfully locked {} message(s) for re-processing.", messages.size());
+        }
+
+        return messages;
+    }
+
+    @Override
+    @Nullable
+    public Message getPostponedMessage(final Long msgId) {
+        Assert.notNull(msgId, "the msgId must not be null");
+
+        Message msg = transactionTemplate.execute(new TransactionCallback<Message>() {
+            @Override
+            public Message doInTransaction(final TransactionStatus transactionStatus) {
+                return messageDao.findMessage(msgId);
+            }
+        });
+
+        if (msg == null || msg.getState() != MsgStateEnum.POSTPONED) {
+            Log.debug("Message (msg_id = {}) is not postponed anymore.", msgId);
+            return null;
+        }
+
+        return lockMessage(msg) ? msg : null;
+    }
+
     @Nullable
     private Message findPostponedMessage() {
         return transactionTemplate.execute(new TransactionCallback<Message>() {
@@ -119,7 +196,20 @@ public class MessagesPoolDbImpl implements MessagesPool {
             isLock = transactionTemplate.execute(new TransactionCallback<Boolean>() {
                 @Override
                 public Boolean doInTransaction(final TransactionStatus transactionStatus) {
-                    return messageDao.updateMessageForLock(msg);
+                    MsgStateEnum oldState = msg.getState();
+                    Date oldLastUpdate = msg.getLastUpdateTimestamp();
+
+                    Boolean locked = messageDao.updateMessageForLock(msg);
+
+                    if (funnelRegistry != null && locked) {
+                        funnelRegistry.messageChanged(msg);
+                    }
+
+                    if (stateCounters != null && locked) {
+                        stateCounters.messageChanged(oldState, oldLastUpdate, msg);
+                    }
+
+                    return locked;
                 }
             });
         } catch (DataAccessException ex) {
@@ -18,6 +18,7 @@ package org.cleverbus.core.common.asynch.repair;
 
 import static java.lang.Math.min;
 
+import java.util.Date;
 import java.util.List;
 
 import org.cleverbus.api.entity.ExternalCall;
@@ -90,8 +91,11 @@ public class RepairExternalCallDbImpl implements RepairExternalCallService {
                     Log.warn("The extCall {} is in {} state and is being changed to {}.",
                             extCall.toHumanString(), extCall.getState(), ExternalCallStateEnum.FAILED);
 
-                    extCall.setState(ExternalCallStateEnum.FAILED);
-                    externalCallDao.update(extCall);
+                    // the call can be finished or taken by another message since it was found
+                    if (!externalCallDao.failProcessingExternalCall(extCall, new Date())) {
+                        Log.info("The extCall {} was changed in the meantime, it's not repaired.",
+                                extCall.toHumanString());
+                    }
                 }
             }
         });
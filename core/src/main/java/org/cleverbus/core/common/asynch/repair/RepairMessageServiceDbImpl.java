@@ -28,6 +28,7 @@ import org.cleverbus.api.exception.IntegrationException;
 import org.cleverbus.api.exception.InternalErrorEnum;
 import org.cleverbus.common.log.Log;
 import org.cleverbus.core.common.dao.MessageDao;
+import org.cleverbus.core.monitoring.MessageStateCounters;
 
 import org.apache.camel.Exchange;
 import org.apache.camel.ExchangePattern;
@@ -60,6 +61,9 @@ public class RepairMessageServiceDbImpl implements RepairMessageService {
     @Autowired
     private ProducerTemplate producerTemplate;
 
+    @Autowired(required = false)
+    private MessageStateCounters stateCounters;
+
     /**
      * How often to run repair process (in seconds).
      */
@@ -129,6 +133,8 @@ public class RepairMessageServiceDbImpl implements RepairMessageService {
                         });
 
                     } else {
+                        Date oldLastUpdate = msg.getLastUpdateTimestamp();
+
                         msg.setLastUpdateTimestamp(currDate);
                         msg.setState(MsgStateEnum.PARTLY_FAILED);
                         // note: increase count of failures because if message stays in PROCESSING state it's almost sure
@@ -137,6 +143,10 @@ public class RepairMessageServiceDbImpl implements RepairMessageService {
 
                         messageDao.update(msg);
 
+                        if (stateCounters != null) {
+                            stateCounters.messageChanged(MsgStateEnum.PROCESSING, oldLastUpdate, msg);
+                        }
+
                         Log.warn("The message " + msg.toHumanString() + " was in PROCESSING state "
                                 + "and changed to PARTLY_FAILED.", msg.getMsgId(), msg.getCorrelationId());
                     }
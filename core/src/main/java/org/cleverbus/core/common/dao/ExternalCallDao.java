@@ -16,6 +16,7 @@
 
 package org.cleverbus.core.common.dao;
 
+import java.util.Date;
 import java.util.List;
 
 import javax.annotation.Nullable;
@@ -66,6 +67,47 @@ public interface ExternalCallDao {
      */
     void lockExternalCall(ExternalCall extCall) throws PersistenceException;
 
+    /**
+     * Takes existing external call for processing by one conditional update (without reading the call firstly).
+     * The call is taken if it isn't in state {@link ExternalCallStateEnum#PROCESSING} and if the message
+     * of specified call is newer than the message of existing call (or the same message when existing call
+     * isn't {@link ExternalCallStateEnum#OK OK}).
+     *
+     * @param extCall the new processing call (not saved) with operation name, entity ID, message
+     *                and last update timestamp
+     * @return {@code true} if the existing call was taken,
+     *      {@code false} if there is no such call or it can't be taken by the message
+     * @since 2.1
+     */
+    boolean claimExternalCall(ExternalCall extCall);
+
+    /**
+     * Changes state of processing external call by one conditional update (without reading the call firstly).
+     *
+     * @param extCall the processing external call with operation name, entity ID and message ID
+     * @param newState the new state
+     * @param lastUpdate the timestamp of the change
+     * @return {@code true} if the state was changed,
+     *      {@code false} if the call isn't processing by the message of specified call anymore
+     * @since 2.1
+     */
+    boolean finishExternalCall(ExternalCall extCall, ExternalCallStateEnum newState, Date lastUpdate);
+
+    /**
+     * Changes state of processing external call to {@link ExternalCallStateEnum#FAILED FAILED}
+     * by one conditional update. The call is changed only if it wasn't changed since it was read
+     * (optimistic locking by last update timestamp) - bulk updates of {@link #claimExternalCall(ExternalCall)}
+     * and {@link #finishExternalCall(ExternalCall, ExternalCallStateEnum, Date)} don't check the version
+     * of detached entities so {@link #update(ExternalCall)} isn't safe for processing calls.
+     *
+     * @param extCall the processing external call as it was read
+     * @param lastUpdate the timestamp of the change
+     * @return {@code true} if the state was changed,
+     *      {@code false} if the call was changed in the meantime (finished or taken by another message)
+     * @since 2.1
+     */
+    boolean failProcessingExternalCall(ExternalCall extCall, Date lastUpdate);
+
     /**
      * Finds ONE confirmation in state {@link ExternalCallStateEnum#FAILED}.
      *
@@ -49,6 +49,31 @@ public class ExternalCallDaoJpaImpl implements ExternalCallDao {
 
     public static final int MAX_MESSAGES_IN_ONE_QUERY = 50;
 
+    // note: bulk updates don't increment version automatically, last update timestamp is the version of the call
+    private static final String CLAIM_QUERY = "UPDATE " + ExternalCall.class.getName() + " c "
+            + "SET c.state = :processing, c.message = :message, c.msgTimestamp = :msgTimestamp,"
+            + "      c.lastUpdateTimestamp = :lastUpdate "
+            + "WHERE c.operationName = :operationName"
+            + "      AND c.entityId = :entityId"
+            + "      AND c.state <> :processing"
+            + "      AND (c.msgTimestamp < :msgTimestamp"
+            + "          OR (c.msgTimestamp = :msgTimestamp AND c.state <> :ok))";
+
+    private static final String FINISH_QUERY = "UPDATE " + ExternalCall.class.getName() + " c "
+            + "SET c.state = :newState, c.lastUpdateTimestamp = :lastUpdate "
+            + "WHERE c.operationName = :operationName"
+            + "      AND c.entityId = :entityId"
+            + "      AND c.msgId = :msgId"
+            + "      AND c.state = :processing";
+
+    // last update timestamp is the version of the call => the call mustn't be changed since it was read
+    private static final String FAIL_PROCESSING_QUERY = "UPDATE " + ExternalCall.class.getName() + " c "
+            + "SET c.state = :failed, c.lastUpdateTimestamp = :lastUpdate "
+            + "WHERE c.id = :id"
+            + "      AND c.msgId = :msgId"
+            + "      AND c.state = :processing"
+            + "      AND c.lastUpdateTimestamp = :version";
+
     @PersistenceContext(unitName = DbConst.UNIT_NAME)
     private EntityManager em;
 
@@ -102,6 +127,61 @@ public class ExternalCallDaoJpaImpl implements ExternalCallDao {
         extCall.setState(ExternalCallStateEnum.PROCESSING);
     }
 
+    @Override
+    public boolean claimExternalCall(ExternalCall extCall) {
+        Assert.notNull(extCall, "the extCall must not be null");
+        Assert.notNull(extCall.getMessage(), "the extCall must have message");
+
+        return em.createQuery(CLAIM_QUERY)
+                .setParameter("processing", ExternalCallStateEnum.PROCESSING)
+                .setParameter("ok", ExternalCallStateEnum.OK)
+                .setParameter("message", extCall.getMessage())
+                .setParameter("msgTimestamp", extCall.getMsgTimestamp())
+                .setParameter("lastUpdate", extCall.getLastUpdateTimestamp())
+                .setParameter("operationName", extCall.getOperationName())
+                .setParameter("entityId", extCall.getEntityId())
+                .executeUpdate() == 1;
+    }
+
+    @Override
+    public boolean finishExternalCall(ExternalCall extCall, ExternalCallStateEnum newState, Date lastUpdate) {
+        Assert.notNull(extCall, "the extCall must not be null");
+        Assert.notNull(newState, "the newState must not be null");
+        Assert.notNull(lastUpdate, "the lastUpdate must not be null");
+
+        return em.createQuery(FINISH_QUERY)
+                .setParameter("newState", newState)
+                .setParameter("lastUpdate", lastUpdate)
+                .setParameter("operationName", extCall.getOperationName())
+                .setParameter("entityId", extCall.getEntityId())
+                .setParameter("msgId", extCall.getMsgId())
+                .setParameter("processing", ExternalCallStateEnum.PROCESSING)
+                .executeUpdate() == 1;
+    }
+
+    @Override
+    public boolean failProcessingExternalCall(ExternalCall extCall, Date lastUpdate) {
+        Assert.notNull(extCall, "the extCall must not be null");
+        Assert.notNull(extCall.getLastUpdateTimestamp(), "the extCall must have last update timestamp");
+        Assert.notNull(lastUpdate, "the lastUpdate must not be null");
+
+        boolean updated = em.createQuery(FAIL_PROCESSING_QUERY)
+                .setParameter("failed", ExternalCallStateEnum.FAILED)
+                .setParameter("lastUpdate", lastUpdate)
+                .setParameter("id", extCall.getId())
+                .setParameter("msgId", extCall.getMsgId())
+                .setParameter("processing", ExternalCallStateEnum.PROCESSING)
+                .setParameter("version", extCall.getLastUpdateTimestamp())
+                .executeUpdate() == 1;
+
+        // bulk update bypasses persistence context
+        if (updated && em.contains(extCall)) {
+            em.refresh(extCall);
+        }
+
+        return updated;
+    }
+
     @Override
     @Nullable
     @SuppressWarnings("unchecked")
@@ -109,16 +189,16 @@ public class ExternalCallDaoJpaImpl implements ExternalCallDao {
         // find confirmation that was lastly processed before specified interval
         Date lastUpdateLimit = DateUtils.addSeconds(new Date(), -interval);
 
+        // operation name and state are literals (not parameters) to match partial index ext_confirm_idx
+        // also for generic plans of prepared statements
         String jSql = "SELECT c "
                 + "FROM " + ExternalCall.class.getName() + " c "
-                + "WHERE c.operationName = :operationName"
-                + "     AND c.state = :state"
+                + "WHERE c.operationName = '" + ExternalCall.CONFIRM_OPERATION + "'"
+                + "     AND c.state = '" + ExternalCallStateEnum.FAILED + "'"
                 + "     AND c.lastUpdateTimestamp < :lastUpdateTimestamp"
                 + " ORDER BY c.creationTimestamp";
 
         TypedQuery<ExternalCall> q = em.createQuery(jSql, ExternalCall.class);
-        q.setParameter("operationName", ExternalCall.CONFIRM_OPERATION);
-        q.setParameter("state", ExternalCallStateEnum.FAILED);
         q.setParameter("lastUpdateTimestamp", new Timestamp(lastUpdateLimit.getTime()));
         q.setMaxResults(1);
         List<ExternalCall> extCalls = q.getResultList();
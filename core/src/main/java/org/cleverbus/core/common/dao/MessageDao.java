@@ -19,10 +19,13 @@ package org.cleverbus.core.common.dao;
 import org.cleverbus.api.entity.ExternalSystemExtEnum;
 import org.cleverbus.api.entity.Message;
 import org.cleverbus.api.entity.MsgStateEnum;
+import org.cleverbus.api.exception.LockFailureException;
 
 import javax.annotation.Nullable;
 import java.util.Collection;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 
 /**
@@ -39,6 +42,14 @@ public interface MessageDao {
      */
     void insert(Message msg);
 
+    /**
+     * Inserts new messages at once - rows are sent to the database in JDBC batches.
+     *
+     * @param msgs the messages
+     * @since 2.1
+     */
+    void insertAll(Collection<Message> msgs);
+
     /**
      * Updates message.
      *
@@ -46,6 +57,22 @@ public interface MessageDao {
      */
     void update(Message msg);
 
+    /**
+     * Changes state of the message by one UPDATE statement only if the message is in expected state in DB.
+     * <p/>
+     * Only state, last update timestamp, business errors and (for {@link MsgStateEnum#PARTLY_FAILED PARTLY_FAILED}
+     * and {@link MsgStateEnum#FAILED FAILED} states) error information are written, other columns
+     * (e.g. payload) are left untouched.
+     * Business errors of {@link Message#isParentMessage() parent message} aren't written because business errors
+     * of its child messages are added to them in DB (see {@link #finishChildMessage(Message)}).
+     * Message which is attached to the current persistence context is updated in standard way.
+     *
+     * @param msg the message with new state and related values
+     * @param expectedState the state of the message in DB before this change
+     * @return {@code true} if the state was changed, {@code false} if the message was not in expected state
+     */
+    boolean updateState(Message msg, MsgStateEnum expectedState);
+
     /**
      * Finds message by its ID.
      *
@@ -80,6 +107,41 @@ public interface MessageDao {
      */
     List<Message> findChildMessages(Message msg);
 
+    /**
+     * Adds count of new child messages with {@link org.cleverbus.api.entity.BindingTypeEnum#HARD HARD} binding
+     * to the {@link Message#getRemainingChildren() counter of remaining child messages} of the parent message.
+     *
+     * @param parentMsgId the parent message ID
+     * @param count count of new child messages
+     * @since 2.1
+     */
+    void addRemainingChildren(Long parentMsgId, int count);
+
+    /**
+     * Decrements the {@link Message#getRemainingChildren() counter of remaining child messages} of the parent
+     * message by one UPDATE statement and appends business errors of the successfully processed child message
+     * to business errors of the parent message.
+     *
+     * @param childMsg the child message with {@link org.cleverbus.api.entity.BindingTypeEnum#HARD HARD} binding
+     * @return {@code true} if the counter was decremented, {@code false} if the parent message doesn't have
+     *      the counter (parent message was created by older version)
+     * @since 2.1
+     */
+    boolean finishChildMessage(Message childMsg);
+
+    /**
+     * Changes state of the parent message to {@link MsgStateEnum#OK OK} by one UPDATE statement
+     * if there is no remaining child message.
+     *
+     * @param parentMsgId the parent message ID
+     * @param lastUpdate the last update timestamp
+     * @return parent message in {@link MsgStateEnum#OK OK} state (refreshed from DB)
+     *      or {@code null} if some child message is still unfinished
+     * @since 2.1
+     */
+    @Nullable
+    Message setParentStateOk(Long parentMsgId, Date lastUpdate);
+
     /**
      * Finds message by source system and correlation ID.
      *
@@ -116,6 +178,24 @@ public interface MessageDao {
      */
     Boolean updateMessageForLock(Message msg);
 
+    /**
+     * Finds messages in state {@link MsgStateEnum#POSTPONED} and {@link MsgStateEnum#PARTLY_FAILED}
+     * and locks them for further processing - found messages are switched to {@link MsgStateEnum#PROCESSING}
+     * state in the current transaction.
+     * <p/>
+     * Postponed messages are preferred to partly failed messages, messages with the same state are ordered
+     * by {@link Message#getMsgTimestamp() message timestamp}.
+     * Messages locked by another transaction are skipped (if supported by the database).
+     *
+     * @param postponedInterval Interval (in seconds) after that can be postponed message processed again
+     * @param partlyFailedInterval Interval (in seconds) between two tries of partly failed messages
+     * @param limit maximum count of messages
+     * @return list of locked messages (in PROCESSING state) or empty list if there is no any message
+     * @throws LockFailureException if messages were found, but all of them were locked by another transaction
+     *      (only if skipping of locked messages isn't supported by the database)
+     */
+    List<Message> findAndLockMessagesForReprocessing(int postponedInterval, int partlyFailedInterval, int limit);
+
     /**
      * Finds processing messages.
      *
@@ -134,6 +214,14 @@ public interface MessageDao {
      */
     int getCountMessages(MsgStateEnum state, @Nullable Integer interval);
 
+    /**
+     * Gets count of messages in each state by one grouped query.
+     *
+     * @return counts of messages by state, states without messages are missing
+     * @since 2.1
+     */
+    Map<MsgStateEnum, Integer> getCountMessagesByState();
+
     /**
      * Gets count of processing messages (PROCESSING, WAITING, WAITING_FOR_RES) that contains one funnel values from
      * parameter and for specified funnel ID.
@@ -160,7 +248,8 @@ public interface MessageDao {
      * @param funnelValues       the funnel values
      * @param excludeFailedState {@link MsgStateEnum#FAILED FAILED} state is used by default;
      *                           use {@code true} if you want to exclude FAILED state
-     * @return list of messages ordered by {@link Message#getMsgTimestamp() message timestamp}
+     * @return list of messages ordered by {@link Message#getMsgTimestamp() message timestamp} (and by message ID
+     *      descending for the same timestamp), at most {@link MessageDaoJpaImpl#MAX_MESSAGES_IN_ONE_QUERY} messages
      */
     List<Message> getMessagesForGuaranteedOrderForRoute(Collection<String> funnelValues, boolean excludeFailedState);
 
@@ -177,13 +266,28 @@ public interface MessageDao {
      * @param excludeFailedState {@link MsgStateEnum#FAILED FAILED} state is used by default;
      *                           use {@code true} if you want to exclude FAILED state
      * @param funnelCompId       the funnel component ID
-     * @return list of messages ordered by {@link Message#getMsgTimestamp() message timestamp}
+     * @return list of messages ordered by {@link Message#getMsgTimestamp() message timestamp} (and by message ID
+     *      descending for the same timestamp), at most {@link MessageDaoJpaImpl#MAX_MESSAGES_IN_ONE_QUERY} messages
      */
     List<Message> getMessagesForGuaranteedOrderForFunnel(Collection<String> funnelValues, int idleInterval,
                 boolean excludeFailedState, String funnelCompId);
 
+    /**
+     * Finds messages in specified states which contain funnel value from parameter and belong to specified funnel.
+     * Messages are not ordered.
+     *
+     * @param funnelValue  the funnel value
+     * @param funnelCompId the funnel component ID
+     * @param states       the message states
+     * @return list of messages
+     * @since 2.1
+     */
+    List<Message> findActiveMessagesForFunnel(String funnelValue, String funnelCompId,
+            Collection<MsgStateEnum> states);
+
     /**
      * Finds message by substring in message payload.
+     * Large payloads stored in the file repository (see {@link Message#getPayloadFile()}) aren't searched.
      *
      * @param substring the substring of payload
      * @return list of message or {@code empty list} if not available
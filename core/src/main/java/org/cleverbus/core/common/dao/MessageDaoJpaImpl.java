@@ -16,12 +16,16 @@
 
 package org.cleverbus.core.common.dao;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.time.DateUtils;
-import org.apache.commons.lang3.StringUtils;
 import org.cleverbus.api.entity.ExternalSystemExtEnum;
 import org.cleverbus.api.entity.Message;
 import org.cleverbus.api.entity.MsgStateEnum;
+import org.cleverbus.api.exception.LockFailureException;
 import org.cleverbus.api.exception.NoDataFoundException;
+import org.cleverbus.common.log.Log;
+import org.hibernate.Session;
+import org.hibernate.jdbc.ReturningWork;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
@@ -31,12 +35,21 @@ import javax.annotation.Nullable;
 import javax.persistence.EntityManager;
 import javax.persistence.LockModeType;
 import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
 import javax.persistence.TypedQuery;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 
 /**
@@ -49,21 +62,216 @@ public class MessageDaoJpaImpl implements MessageDao {
 
     public static final int MAX_MESSAGES_IN_ONE_QUERY = 50;
 
+    private static final List<MsgStateEnum> RUNNING_STATES = Collections.unmodifiableList(Arrays.asList(
+            MsgStateEnum.PROCESSING, MsgStateEnum.WAITING, MsgStateEnum.WAITING_FOR_RES));
+
+    private static final List<MsgStateEnum> GUARANTEED_ORDER_STATES = Collections.unmodifiableList(Arrays.asList(
+            MsgStateEnum.PROCESSING, MsgStateEnum.WAITING, MsgStateEnum.WAITING_FOR_RES,
+            MsgStateEnum.PARTLY_FAILED, MsgStateEnum.POSTPONED, MsgStateEnum.FAILED));
+
+    private static final List<MsgStateEnum> GUARANTEED_ORDER_STATES_WITHOUT_FAILED = Collections.unmodifiableList(
+            Arrays.asList(MsgStateEnum.PROCESSING, MsgStateEnum.WAITING, MsgStateEnum.WAITING_FOR_RES,
+                    MsgStateEnum.PARTLY_FAILED, MsgStateEnum.POSTPONED));
+
+    // funnel queries are constant so that Hibernate can reuse parsed query plans
+
+    private static final String COUNT_PROCESSING_FOR_FUNNEL_QUERY = "SELECT COUNT(m) "
+            + "FROM " + Message.class.getName() + " m "
+            + "INNER JOIN m.funnels f "
+            + "WHERE m.state IN (:states)"
+            + "      AND m.startProcessTimestamp >= :startTime"
+            + "      AND m.funnelComponentId = :funnelCompId"
+            + "      AND f.funnelValue IN (:funnelValues)";
+
+    // msgId DESC - child message goes before its parent with the same timestamp
+    private static final String GUARANTEED_ORDER_FOR_ROUTE_QUERY = "SELECT m "
+            + "FROM " + Message.class.getName() + " m "
+            + "INNER JOIN m.funnels f "
+            + "WHERE m.state IN (:states)"
+            + "      AND m.guaranteedOrder is true"
+            + "      AND f.funnelValue IN (:funnelValues) "
+            + "ORDER BY m.msgTimestamp, m.msgId DESC";
+
+    private static final String GUARANTEED_ORDER_FOR_FUNNEL_QUERY = "SELECT m "
+            + "FROM " + Message.class.getName() + " m "
+            + "INNER JOIN m.funnels f "
+            + "WHERE m.state IN (:states)"
+            + "      AND m.funnelComponentId = :funnelCompId"
+            + "      AND m.startProcessTimestamp >= :startTime"
+            + "      AND f.funnelValue IN (:funnelValues) "
+            + "ORDER BY m.msgTimestamp, m.msgId DESC";
+
+    // state transitions update only necessary columns, not whole message with payload
+
+    private static final String UPDATE_STATE_QUERY = "UPDATE " + Message.class.getName() + " m "
+            + "SET m.state = :newState, m.lastUpdateTimestamp = :lastUpdate, m.businessError = :businessError "
+            + "WHERE m.msgId = :msgId"
+            + "      AND m.state = :expectedState";
+
+    private static final String UPDATE_STATE_WITH_ERROR_QUERY = "UPDATE " + Message.class.getName() + " m "
+            + "SET m.state = :newState, m.lastUpdateTimestamp = :lastUpdate, m.businessError = :businessError,"
+            + "      m.failedCount = :failedCount, m.failedErrorCodeInternal = :failedErrorCode,"
+            + "      m.failedDesc = :failedDesc, m.customData = :customData "
+            + "WHERE m.msgId = :msgId"
+            + "      AND m.state = :expectedState";
+
+    private static final String UPDATE_PARENT_STATE_QUERY = "UPDATE " + Message.class.getName() + " m "
+            + "SET m.state = :newState, m.lastUpdateTimestamp = :lastUpdate "
+            + "WHERE m.msgId = :msgId"
+            + "      AND m.state = :expectedState";
+
+    private static final String UPDATE_PARENT_STATE_WITH_ERROR_QUERY = "UPDATE " + Message.class.getName() + " m "
+            + "SET m.state = :newState, m.lastUpdateTimestamp = :lastUpdate,"
+            + "      m.failedCount = :failedCount, m.failedErrorCodeInternal = :failedErrorCode,"
+            + "      m.failedDesc = :failedDesc, m.customData = :customData "
+            + "WHERE m.msgId = :msgId"
+            + "      AND m.state = :expectedState";
+
+    // counter of remaining children is changed in DB only, concurrent child messages can't overwrite each other
+
+    private static final String ADD_REMAINING_CHILDREN_QUERY = "UPDATE " + Message.class.getName() + " m "
+            + "SET m.remainingChildren = COALESCE(m.remainingChildren, 0) + :count "
+            + "WHERE m.msgId = :msgId";
+
+    private static final String FINISH_CHILD_QUERY = "UPDATE " + Message.class.getName() + " m "
+            + "SET m.remainingChildren = m.remainingChildren - 1 "
+            + "WHERE m.msgId = :msgId"
+            + "      AND m.remainingChildren > 0";
+
+    private static final String FINISH_CHILD_WITH_ERROR_QUERY = "UPDATE " + Message.class.getName() + " m "
+            + "SET m.remainingChildren = m.remainingChildren - 1,"
+            + "      m.businessError = CASE WHEN m.businessError IS NULL THEN :businessError"
+            + "          ELSE CONCAT(m.businessError, :separator, :businessError) END "
+            + "WHERE m.msgId = :msgId"
+            + "      AND m.remainingChildren > 0";
+
+    private static final String UPDATE_PARENT_OK_QUERY = "UPDATE " + Message.class.getName() + " m "
+            + "SET m.state = :newState, m.lastUpdateTimestamp = :lastUpdate "
+            + "WHERE m.msgId = :msgId"
+            + "      AND m.remainingChildren = 0"
+            + "      AND m.state <> :newState";
+
     @PersistenceContext(unitName = DbConst.UNIT_NAME)
     private EntityManager em;
 
+    private volatile Boolean skipLockedSupported;
+
     @Override
     @Transactional(propagation = Propagation.MANDATORY)
     public void insert(Message msg) {
         em.persist(msg);
     }
 
+    @Override
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void insertAll(Collection<Message> msgs) {
+        // IDs are pre-allocated so all inserts wait for flush and they are ordered into JDBC batches
+        for (Message msg : msgs) {
+            em.persist(msg);
+        }
+        em.flush();
+    }
+
     @Override
     @Transactional(propagation = Propagation.MANDATORY)
     public void update(Message msg) {
         em.merge(msg);
     }
 
+    @Override
+    @Transactional(propagation = Propagation.MANDATORY)
+    public boolean updateState(Message msg, MsgStateEnum expectedState) {
+        Assert.notNull(msg, "the msg must not be null");
+        Assert.notNull(msg.getMsgId(), "the msg must be saved");
+        Assert.notNull(expectedState, "the expectedState must not be null");
+
+        if (em.contains(msg)) {
+            // changes of attached entity are flushed anyway
+            em.merge(msg);
+            return true;
+        }
+
+        boolean withError = msg.getState() == MsgStateEnum.PARTLY_FAILED || msg.getState() == MsgStateEnum.FAILED;
+
+        Query q;
+        if (msg.isParentMessage()) {
+            // business errors of child messages are added directly in DB
+            q = em.createQuery(withError ? UPDATE_PARENT_STATE_WITH_ERROR_QUERY : UPDATE_PARENT_STATE_QUERY);
+        } else {
+            q = em.createQuery(withError ? UPDATE_STATE_WITH_ERROR_QUERY : UPDATE_STATE_QUERY);
+            q.setParameter("businessError", msg.getBusinessError());
+        }
+        q.setParameter("newState", msg.getState());
+        q.setParameter("lastUpdate", msg.getLastUpdateTimestamp());
+        q.setParameter("msgId", msg.getMsgId());
+        q.setParameter("expectedState", expectedState);
+
+        if (withError) {
+            q.setParameter("failedCount", msg.getFailedCount());
+            q.setParameter("failedErrorCode",
+                    msg.getFailedErrorCode() != null ? msg.getFailedErrorCode().getErrorCode() : null);
+            q.setParameter("failedDesc", msg.getFailedDesc());
+            q.setParameter("customData", msg.getCustomData());
+        }
+
+        return q.executeUpdate() == 1;
+    }
+
+    @Override
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void addRemainingChildren(Long parentMsgId, int count) {
+        Assert.notNull(parentMsgId, "the parentMsgId must not be null");
+        Assert.isTrue(count > 0, "the count must be positive");
+
+        em.createQuery(ADD_REMAINING_CHILDREN_QUERY)
+                .setParameter("count", count)
+                .setParameter("msgId", parentMsgId)
+                .executeUpdate();
+    }
+
+    @Override
+    @Transactional(propagation = Propagation.MANDATORY)
+    public boolean finishChildMessage(Message childMsg) {
+        Assert.notNull(childMsg, "the childMsg must not be null");
+        Assert.isTrue(childMsg.existHardParent(), "the childMsg must have parent message with HARD binding");
+
+        boolean withError = StringUtils.isNotEmpty(childMsg.getBusinessError());
+
+        Query q = em.createQuery(withError ? FINISH_CHILD_WITH_ERROR_QUERY : FINISH_CHILD_QUERY);
+        q.setParameter("msgId", childMsg.getParentMsgId());
+
+        if (withError) {
+            q.setParameter("businessError", childMsg.getBusinessError());
+            q.setParameter("separator", Message.ERR_DESC_SEPARATOR);
+        }
+
+        return q.executeUpdate() == 1;
+    }
+
+    @Override
+    @Nullable
+    @Transactional(propagation = Propagation.MANDATORY)
+    public Message setParentStateOk(Long parentMsgId, Date lastUpdate) {
+        Assert.notNull(parentMsgId, "the parentMsgId must not be null");
+        Assert.notNull(lastUpdate, "the lastUpdate must not be null");
+
+        int updated = em.createQuery(UPDATE_PARENT_OK_QUERY)
+                .setParameter("newState", MsgStateEnum.OK)
+                .setParameter("lastUpdate", lastUpdate)
+                .setParameter("msgId", parentMsgId)
+                .executeUpdate();
+
+        if (updated == 0) {
+            return null;
+        }
+
+        // parent message can be attached to the persistence context (e.g. it's processed in the same transaction)
+        // and UPDATE statement bypasses it
+        Message parentMsg = getMessage(parentMsgId);
+        em.refresh(parentMsg);
+        return parentMsg;
+    }
+
     @Override
     @Nullable
     public Message findMessage(Long msgId) {
@@ -215,6 +423,172 @@ public class MessageDaoJpaImpl implements MessageDao {
         return true;
     }
 
+    @Override
+    @Transactional(propagation = Propagation.MANDATORY)
+    public List<Message> findAndLockMessagesForReprocessing(int postponedInterval, int partlyFailedInterval,
+            int limit) {
+        Assert.isTrue(limit > 0, "the limit must be positive");
+
+        Date currDate = new Date();
+        Timestamp postponedTime = new Timestamp(DateUtils.addSeconds(currDate, -postponedInterval).getTime());
+        Timestamp partlyFailedTime = new Timestamp(DateUtils.addSeconds(currDate, -partlyFailedInterval).getTime());
+
+        List<Long> msgIds;
+        if (isSkipLockedSupported()) {
+            msgIds = lockMessagesWithSkipLocked(postponedTime, partlyFailedTime, limit, currDate);
+        } else {
+            msgIds = lockMessagesOneByOne(postponedTime, partlyFailedTime, limit, currDate);
+        }
+
+        if (msgIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        // load locked messages in the right order - postponed messages firstly
+        TypedQuery<Message> q = em.createQuery("SELECT m "
+                + "FROM " + Message.class.getName() + " m "
+                + "WHERE m.msgId IN (:msgIds)", Message.class);
+        q.setParameter("msgIds", msgIds);
+
+        Map<Long, Message> msgMap = new HashMap<Long, Message>();
+        for (Message msg : q.getResultList()) {
+            msgMap.put(msg.getMsgId(), msg);
+        }
+
+        List<Message> messages = new ArrayList<Message>(msgIds.size());
+        for (Long msgId : msgIds) {
+            messages.add(msgMap.get(msgId));
+        }
+
+        return messages;
+    }
+
+    /**
+     * Locks messages by one SQL statement - messages locked by another transaction are skipped.
+     * This is supported by PostgreSQL 9.5 and higher.
+     */
+    @SuppressWarnings("unchecked")
+    private List<Long> lockMessagesWithSkipLocked(Timestamp postponedTime, Timestamp partlyFailedTime, int limit,
+            Date currDate) {
+
+        String sql = "WITH locked AS ("
+                + "     SELECT msg_id, state, msg_timestamp FROM message "
+                + "     WHERE (state = '" + MsgStateEnum.POSTPONED + "' AND last_update_timestamp < :postponedTime)"
+                + "         OR (state = '" + MsgStateEnum.PARTLY_FAILED + "'"
+                + "             AND last_update_timestamp < :partlyFailedTime)"
+                + "     ORDER BY (CASE WHEN state = '" + MsgStateEnum.POSTPONED + "' THEN 0 ELSE 1 END), msg_timestamp"
+                + "     LIMIT " + limit
+                + "     FOR UPDATE SKIP LOCKED) "
+                + "UPDATE message m "
+                + "SET state = '" + MsgStateEnum.PROCESSING + "', "
+                + "     start_process_timestamp = :currTime, last_update_timestamp = :currTime "
+                + "FROM locked l "
+                + "WHERE m.msg_id = l.msg_id "
+                + "RETURNING m.msg_id, l.state, l.msg_timestamp";
+
+        Query q = em.createNativeQuery(sql);
+        q.setParameter("currTime", new Timestamp(currDate.getTime()));
+        q.setParameter("postponedTime", postponedTime);
+        q.setParameter("partlyFailedTime", partlyFailedTime);
+
+        // RETURNING doesn't keep order of the locked rows
+        List<Object[]> rows = new ArrayList<Object[]>((List<Object[]>) q.getResultList());
+        Collections.sort(rows, new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] o1, Object[] o2) {
+                int result = Boolean.compare(!MsgStateEnum.POSTPONED.name().equals(o1[1]),
+                        !MsgStateEnum.POSTPONED.name().equals(o2[1]));
+
+                return result != 0 ? result : ((Date) o1[2]).compareTo((Date) o2[2]);
+            }
+        });
+
+        List<Long> msgIds = new ArrayList<Long>(rows.size());
+        for (Object[] row : rows) {
+            msgIds.add(((Number) row[0]).longValue());
+        }
+
+        return msgIds;
+    }
+
+    /**
+     * Locks messages by conditional update of each found message - portable variant for databases
+     * without support of skipping locked rows.
+     */
+    private List<Long> lockMessagesOneByOne(Timestamp postponedTime, Timestamp partlyFailedTime, int limit,
+            Date currDate) {
+
+        List<Long> candidateIds = new ArrayList<Long>(findMsgIdsForReprocessing(MsgStateEnum.POSTPONED,
+                postponedTime, limit));
+
+        if (candidateIds.size() < limit) {
+            candidateIds.addAll(findMsgIdsForReprocessing(MsgStateEnum.PARTLY_FAILED, partlyFailedTime,
+                    limit - candidateIds.size()));
+        }
+
+        String jSql = "UPDATE " + Message.class.getName() + " m "
+                + "SET m.state = :newState, m.startProcessTimestamp = :currTime, m.lastUpdateTimestamp = :currTime "
+                + "WHERE m.msgId = :msgId"
+                + "     AND (m.state = '" + MsgStateEnum.PARTLY_FAILED + "' "
+                + "     OR m.state = '" + MsgStateEnum.POSTPONED + "')";
+
+        List<Long> msgIds = new ArrayList<Long>(candidateIds.size());
+        for (Long msgId : candidateIds) {
+            Query q = em.createQuery(jSql);
+            q.setParameter("newState", MsgStateEnum.PROCESSING);
+            q.setParameter("currTime", currDate);
+            q.setParameter("msgId", msgId);
+
+            // message can be locked by another node in the meantime
+            if (q.executeUpdate() == 1) {
+                msgIds.add(msgId);
+            }
+        }
+
+        if (msgIds.isEmpty() && !candidateIds.isEmpty()) {
+            throw new LockFailureException("Failed to lock messages for re-processing, all "
+                    + candidateIds.size() + " found messages were locked by another transaction.");
+        }
+
+        return msgIds;
+    }
+
+    private List<Long> findMsgIdsForReprocessing(MsgStateEnum state, Timestamp lastUpdateLimit, int limit) {
+        String jSql = "SELECT m.msgId "
+                + "FROM " + Message.class.getName() + " m "
+                + "WHERE m.state = '" + state + "'"
+                + "     AND m.lastUpdateTimestamp < :lastTime"
+                + " ORDER BY m.msgTimestamp";
+
+        TypedQuery<Long> q = em.createQuery(jSql, Long.class);
+        q.setParameter("lastTime", lastUpdateLimit);
+        q.setMaxResults(limit);
+        return q.getResultList();
+    }
+
+    /**
+     * Checks if the database supports {@code SELECT ... FOR UPDATE SKIP LOCKED} (PostgreSQL 9.5+).
+     */
+    private boolean isSkipLockedSupported() {
+        if (skipLockedSupported == null) {
+            skipLockedSupported = em.unwrap(Session.class).doReturningWork(new ReturningWork<Boolean>() {
+                @Override
+                public Boolean execute(Connection connection) throws SQLException {
+                    DatabaseMetaData metaData = connection.getMetaData();
+
+                    return "PostgreSQL".equalsIgnoreCase(metaData.getDatabaseProductName())
+                            && (metaData.getDatabaseMajorVersion() > 9
+                                || (metaData.getDatabaseMajorVersion() == 9
+                                    && metaData.getDatabaseMinorVersion() >= 5));
+                }
+            });
+
+            Log.debug("Database supports skipping locked rows: {}", skipLockedSupported);
+        }
+
+        return skipLockedSupported;
+    }
+
     @Override
     public List<Message> findProcessingMessages(int interval) {
         final Date startProcessLimit = DateUtils.addSeconds(new Date(), -interval);
@@ -251,31 +625,32 @@ public class MessageDaoJpaImpl implements MessageDao {
         return q.getSingleResult().intValue();
     }
 
+    @Override
+    public Map<MsgStateEnum, Integer> getCountMessagesByState() {
+        String jSql = "SELECT m.state, COUNT(m) "
+                + "FROM " + Message.class.getName() + " m "
+                + "GROUP BY m.state";
+
+        TypedQuery<Object[]> q = em.createQuery(jSql, Object[].class);
+
+        Map<MsgStateEnum, Integer> counts = new HashMap<MsgStateEnum, Integer>();
+        for (Object[] row : q.getResultList()) {
+            counts.put((MsgStateEnum) row[0], ((Number) row[1]).intValue());
+        }
+
+        return counts;
+    }
+
     @Override
     public int getCountProcessingMessagesForFunnel(Collection<String> funnelValues, int idleInterval,
                                                    String funnelCompId) {
         Assert.notEmpty(funnelValues, "funnelValues must not be empty");
         Assert.hasText(funnelCompId, "funnelCompId must not be empty");
 
-        String jSql = "SELECT COUNT(m) "
-                + "FROM " + Message.class.getName() + " m "
-                + "INNER JOIN m.funnels f "
-                + "WHERE (m.state = '" + MsgStateEnum.PROCESSING + "' "
-                + "         OR m.state = '" + MsgStateEnum.WAITING + "'"
-                + "         OR m.state = '" + MsgStateEnum.WAITING_FOR_RES + "')"
-                + "      AND m.startProcessTimestamp >= :startTime"
-                + "      AND m.funnelComponentId = '" + funnelCompId + "'"
-                + "      AND (";
-
-        for (String funnelValue : funnelValues){
-            jSql += "f.funnelValue = '" + funnelValue + "' OR ";
-        }
-        //remove last or
-        jSql = StringUtils.substringBeforeLast(jSql, " OR ");
-
-        jSql += ")";
-
-        TypedQuery<Number> q = em.createQuery(jSql, Number.class);
+        TypedQuery<Number> q = em.createQuery(COUNT_PROCESSING_FOR_FUNNEL_QUERY, Number.class);
+        q.setParameter("states", RUNNING_STATES);
+        q.setParameter("funnelCompId", funnelCompId);
+        q.setParameter("funnelValues", padFunnelValues(funnelValues));
         q.setParameter("startTime", new Timestamp(DateUtils.addSeconds(new Date(), -idleInterval).getTime()));
 
         return q.getSingleResult().intValue();
@@ -289,32 +664,10 @@ public class MessageDaoJpaImpl implements MessageDao {
         if (funnelValues.isEmpty()) {
             return Collections.emptyList();
         } else {
-            //TODO (juza) limit select to specific number of items + add msgId DESC to sorting (parent vs. child)
-            String jSql = "SELECT m "
-                    + "FROM " + Message.class.getName() + " m "
-                    + "INNER JOIN m.funnels f "
-                    + "WHERE (m.state = '" + MsgStateEnum.PROCESSING + "' "
-                    + "         OR m.state = '" + MsgStateEnum.WAITING + "'"
-                    + "         OR m.state = '" + MsgStateEnum.PARTLY_FAILED + "'"
-                    + "         OR m.state = '" + MsgStateEnum.POSTPONED + "'";
-
-            if (!excludeFailedState) {
-                jSql += "         OR m.state = '" + MsgStateEnum.FAILED + "'";
-            }
-
-            jSql += "         OR m.state = '" + MsgStateEnum.WAITING_FOR_RES + "')"
-                    + "      AND m.guaranteedOrder is true"
-                    + "      AND (";
-
-            for (String funnelValue : funnelValues) {
-                jSql += "f.funnelValue = '" + funnelValue + "' OR ";
-            }
-            //remove last or
-            jSql = StringUtils.substringBeforeLast(jSql, " OR ");
-
-            jSql += ") ORDER BY m.msgTimestamp";
-
-            TypedQuery<Message> q = em.createQuery(jSql, Message.class);
+            TypedQuery<Message> q = em.createQuery(GUARANTEED_ORDER_FOR_ROUTE_QUERY, Message.class);
+            q.setParameter("states", getGuaranteedOrderStates(excludeFailedState));
+            q.setParameter("funnelValues", padFunnelValues(funnelValues));
+            q.setMaxResults(MAX_MESSAGES_IN_ONE_QUERY);
 
             return q.getResultList();
         }
@@ -329,38 +682,65 @@ public class MessageDaoJpaImpl implements MessageDao {
         if (funnelValues.isEmpty()) {
             return Collections.emptyList();
         } else {
-            String jSql = "SELECT m "
-                    + "FROM " + Message.class.getName() + " m "
-                    + "INNER JOIN m.funnels f "
-                    + "WHERE (m.state = '" + MsgStateEnum.PROCESSING + "' "
-                    + "         OR m.state = '" + MsgStateEnum.WAITING + "'"
-                    + "         OR m.state = '" + MsgStateEnum.PARTLY_FAILED + "'"
-                    + "         OR m.state = '" + MsgStateEnum.POSTPONED + "'";
-
-            if (!excludeFailedState) {
-                jSql += "         OR m.state = '" + MsgStateEnum.FAILED + "'";
-            }
+            TypedQuery<Message> q = em.createQuery(GUARANTEED_ORDER_FOR_FUNNEL_QUERY, Message.class);
+            q.setParameter("states", getGuaranteedOrderStates(excludeFailedState));
+            q.setParameter("funnelCompId", funnelCompId);
+            q.setParameter("funnelValues", padFunnelValues(funnelValues));
+            q.setParameter("startTime", new Timestamp(DateUtils.addSeconds(new Date(), -idleInterval).getTime()));
+            q.setMaxResults(MAX_MESSAGES_IN_ONE_QUERY);
 
-            jSql += "         OR m.state = '" + MsgStateEnum.WAITING_FOR_RES + "')"
-                    + "      AND m.funnelComponentId = '" + funnelCompId + "'"
-                    + "      AND m.startProcessTimestamp >= :startTime"
-                    + "      AND (";
+            return q.getResultList();
+        }
+    }
 
-            for (String funnelValue : funnelValues) {
-                jSql += "f.funnelValue = '" + funnelValue + "' OR ";
-            }
-            //remove last or
-            jSql = StringUtils.substringBeforeLast(jSql, " OR ");
+    private static List<MsgStateEnum> getGuaranteedOrderStates(boolean excludeFailedState) {
+        return excludeFailedState ? GUARANTEED_ORDER_STATES_WITHOUT_FAILED : GUARANTEED_ORDER_STATES;
+    }
 
-            jSql += ") ORDER BY m.msgTimestamp";
+    /**
+     * Pads funnel values to the nearest power of two by repeating the last value.
+     * Hibernate expands list parameter to one bind parameter per value, padding therefore limits count of distinct
+     * queries which are cached by Hibernate (query plans) and by database (prepared statements).
+     *
+     * @param funnelValues the funnel values
+     * @return padded funnel values
+     */
+    static List<String> padFunnelValues(Collection<String> funnelValues) {
+        List<String> result = new ArrayList<String>(funnelValues);
+
+        int size = Integer.highestOneBit(result.size());
+        if (size < result.size()) {
+            size <<= 1;
+        }
 
-            //TODO (juza) limit select to specific number of items + add msgId DESC to sorting (parent vs. child)
+        String lastValue = result.get(result.size() - 1);
+        while (result.size() < size) {
+            result.add(lastValue);
+        }
 
-            TypedQuery<Message> q = em.createQuery(jSql, Message.class);
-            q.setParameter("startTime", new Timestamp(DateUtils.addSeconds(new Date(), -idleInterval).getTime()));
+        return result;
+    }
 
-            return q.getResultList();
-        }
+    @Override
+    public List<Message> findActiveMessagesForFunnel(String funnelValue, String funnelCompId,
+            Collection<MsgStateEnum> states) {
+        Assert.hasText(funnelValue, "funnelValue must not be empty");
+        Assert.hasText(funnelCompId, "funnelCompId must not be empty");
+        Assert.notEmpty(states, "states must not be empty");
+
+        String jSql = "SELECT m "
+                + "FROM " + Message.class.getName() + " m "
+                + "INNER JOIN m.funnels f "
+                + "WHERE m.state IN (:states)"
+                + "      AND m.funnelComponentId = :funnelCompId"
+                + "      AND f.funnelValue = :funnelValue";
+
+        TypedQuery<Message> q = em.createQuery(jSql, Message.class);
+        q.setParameter("states", states);
+        q.setParameter("funnelCompId", funnelCompId);
+        q.setParameter("funnelValue", funnelValue);
+
+        return q.getResultList();
     }
 
     @Override
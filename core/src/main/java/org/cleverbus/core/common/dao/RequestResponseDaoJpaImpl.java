@@ -75,13 +75,14 @@ public class RequestResponseDaoJpaImpl implements RequestResponseDao {
         TypedQuery<Request> q = em.createQuery(jSql, Request.class);
         q.setParameter("responseJoinId", responseJoinId);
         q.setParameter("uri", uri);
+        // only the first request is needed - it's read directly from index req_res_join_idx
+        q.setMaxResults(1);
 
-        // we search by unique key - it's not possible to have more records
         List<Request> requests = q.getResultList();
         if (requests.isEmpty()) {
             return null;
         } else {
-            return requests.get(0); // if find more items then return first one only
+            return requests.get(0);
         }
     }
 
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cleverbus.core.common.dao;
+
+import java.util.Date;
+import java.util.List;
+
+import org.cleverbus.api.entity.ThrottleCounterBucket;
+
+
+/**
+ * DAO for {@link ThrottleCounterBucket} entity.
+ *
+ * @since 2.1
+ */
+public interface ThrottleCounterDao {
+
+    /**
+     * Adds count of requests to the bucket, the bucket is created if it doesn't exist yet.
+     * The caller must ensure that the same bucket isn't created by concurrent transactions.
+     *
+     * @param nodeId the node ID
+     * @param sourceSystem the source system of throttling scope
+     * @param serviceName the service name of throttling scope
+     * @param bucketTimestamp the beginning of time slot
+     * @param count count of requests
+     */
+    void addCount(String nodeId, String sourceSystem, String serviceName, Date bucketTimestamp, int count);
+
+    /**
+     * Finds buckets of all nodes and all throttling scopes from specified time.
+     *
+     * @param from the beginning of the interval
+     * @return list of buckets
+     */
+    List<ThrottleCounterBucket> findBuckets(Date from);
+
+    /**
+     * Gets count of requests of all nodes for specified throttling scope from specified time.
+     *
+     * @param sourceSystem the source system of throttling scope
+     * @param serviceName the service name of throttling scope
+     * @param from the beginning of the interval
+     * @return count of requests
+     */
+    long sumCount(String sourceSystem, String serviceName, Date from);
+
+    /**
+     * Deletes buckets of specified node which are older than specified time.
+     *
+     * @param nodeId the node ID
+     * @param before the time limit
+     * @return count of deleted buckets
+     */
+    int deleteBuckets(String nodeId, Date before);
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cleverbus.core.common.dao;
+
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TypedQuery;
+
+import org.cleverbus.api.entity.ThrottleCounterBucket;
+
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.util.Assert;
+
+
+/**
+ * DAO for {@link ThrottleCounterBucket} entity.
+ *
+ * @since 2.1
+ */
+@Repository
+@Transactional(propagation = Propagation.MANDATORY)
+public class ThrottleCounterDaoJpaImpl implements ThrottleCounterDao {
+
+    @PersistenceContext(unitName = DbConst.UNIT_NAME)
+    private EntityManager em;
+
+    @Override
+    public void addCount(String nodeId, String sourceSystem, String serviceName, Date bucketTimestamp, int count) {
+        Assert.hasText(nodeId, "the nodeId must not be empty");
+        Assert.hasText(sourceSystem, "the sourceSystem must not be empty");
+        Assert.hasText(serviceName, "the serviceName must not be empty");
+        Assert.notNull(bucketTimestamp, "the bucketTimestamp must not be null");
+
+        // buckets of one node are written by this node only and the node mustn't insert the same bucket
+        //  concurrently (see ThrottleCounterDbImpl) => update or insert is sufficient
+        String jSql = "UPDATE " + ThrottleCounterBucket.class.getName() + " b "
+                + "     SET b.count = b.count + :count "
+                + "     WHERE b.nodeId = :nodeId"
+                + "         AND b.sourceSystem = :sourceSystem"
+                + "         AND b.serviceName = :serviceName"
+                + "         AND b.bucketTimestamp = :bucketTimestamp";
+
+        int updated = em.createQuery(jSql)
+                .setParameter("count", count)
+                .setParameter("nodeId", nodeId)
+                .setParameter("sourceSystem", sourceSystem)
+                .setParameter("serviceName", serviceName)
+                .setParameter("bucketTimestamp", new Timestamp(bucketTimestamp.getTime()))
+                .executeUpdate();
+
+        if (updated == 0) {
+            em.persist(new ThrottleCounterBucket(nodeId, sourceSystem, serviceName,
+                    new Timestamp(bucketTimestamp.getTime()), count));
+        }
+    }
+
+    @Override
+    @Transactional(propagation = Propagation.SUPPORTS, readOnly = true)
+    public List<ThrottleCounterBucket> findBuckets(Date from) {
+        Assert.notNull(from, "the from must not be null");
+
+        String jSql = "SELECT b "
+                + "FROM " + ThrottleCounterBucket.class.getName() + " b "
+                + "WHERE b.bucketTimestamp >= :from";
+
+        TypedQuery<ThrottleCounterBucket> q = em.createQuery(jSql, ThrottleCounterBucket.class);
+        q.setParameter("from", new Timestamp(from.getTime()));
+        return q.getResultList();
+    }
+
+    @Override
+    public long sumCount(String sourceSystem, String serviceName, Date from) {
+        Assert.hasText(sourceSystem, "the sourceSystem must not be empty");
+        Assert.hasText(serviceName, "the serviceName must not be empty");
+        Assert.notNull(from, "the from must not be null");
+
+        String jSql = "SELECT SUM(b.count) "
+                + "FROM " + ThrottleCounterBucket.class.getName() + " b "
+                + "WHERE b.sourceSystem = :sourceSystem"
+                + "     AND b.serviceName = :serviceName"
+                + "     AND b.bucketTimestamp >= :from";
+
+        TypedQuery<Long> q = em.createQuery(jSql, Long.class);
+        q.setParameter("sourceSystem", sourceSystem);
+        q.setParameter("serviceName", serviceName);
+        q.setParameter("from", new Timestamp(from.getTime()));
+
+        Long sum = q.getSingleResult();
+        return sum != null ? sum : 0;
+    }
+
+    @Override
+    public int deleteBuckets(String nodeId, Date before) {
+        Assert.hasText(nodeId, "the nodeId must not be empty");
+        Assert.notNull(before, "the before must not be null");
+
+        String jSql = "DELETE FROM " + ThrottleCounterBucket.class.getName() + " b "
+                + "WHERE b.nodeId = :nodeId"
+                + "     AND b.bucketTimestamp < :before";
+
+        return em.createQuery(jSql)
+                .setParameter("nodeId", nodeId)
+                .setParameter("before", new Timestamp(before.getTime()))
+                .executeUpdate();
+    }
+}
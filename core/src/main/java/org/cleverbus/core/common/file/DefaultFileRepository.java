@@ -16,11 +16,17 @@
 
 package org.cleverbus.core.common.file;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 
@@ -167,6 +173,106 @@ public class DefaultFileRepository implements FileRepository {
         }
     }
 
+    @Override
+    public String saveFile(OutputStreamWriterCallback writerCallback, List<String> subFolders) {
+        Assert.notNull(writerCallback, "writerCallback must not be null");
+        Assert.notNull(subFolders, "subFolders must not be null");
+
+        assertDirs();
+
+        List<String> pathItems = new ArrayList<String>(subFolders);
+        pathItems.add(getNewFileId());
+        String fileId = StringUtils.join(pathItems, "/");
+
+        File targetFile = getRepositoryFile(fileId);
+
+        // content is written to the file channel directly, without next copy in the memory
+        FileChannel channel = null;
+        try {
+            FileUtils.forceMkdir(targetFile.getParentFile());
+
+            channel = new FileOutputStream(targetFile).getChannel();
+            OutputStream os = new BufferedOutputStream(Channels.newOutputStream(channel));
+
+            writerCallback.writeTo(os);
+            os.flush();
+
+            Log.debug("new file was successfully saved: " + targetFile);
+        } catch (IOException ex) {
+            Log.error("error occurred during saving file " + targetFile, ex);
+            IOUtils.closeQuietly(channel);
+            FileUtils.deleteQuietly(targetFile);
+            throw new IntegrationException(InternalErrorEnum.E115);
+        } finally {
+            IOUtils.closeQuietly(channel);
+        }
+
+        return fileId;
+    }
+
+    @Override
+    public InputStream readFile(String fileId) {
+        Assert.hasText(fileId, "fileId must not be empty");
+
+        assertDirs();
+
+        File file = getRepositoryFile(fileId);
+
+        if (!file.isFile() || !file.canRead()) {
+            String msg = "file " + file + " doesn't exist or can't be read";
+            Log.error(msg);
+            throw new IntegrationException(InternalErrorEnum.E115, msg);
+        }
+
+        try {
+            return new BufferedInputStream(Channels.newInputStream(new FileInputStream(file).getChannel()));
+        } catch (IOException ex) {
+            String msg = "error occurred during opening file " + file;
+            Log.error(msg, ex);
+            throw new IntegrationException(InternalErrorEnum.E115, msg);
+        }
+    }
+
+    @Override
+    public boolean deleteFile(String fileId) {
+        Assert.hasText(fileId, "fileId must not be empty");
+
+        assertDirs();
+
+        File file = getRepositoryFile(fileId);
+
+        if (!file.isFile()) {
+            Log.warn("file " + file + " doesn't exist, nothing to delete");
+            return false;
+        }
+
+        if (!file.delete()) {
+            Log.error("file " + file + " can't be deleted");
+            return false;
+        }
+
+        Log.debug("file was successfully deleted: " + file);
+        return true;
+    }
+
+    /**
+     * Gets file in the repository directory.
+     *
+     * @param fileId the file identifier (relative path in the repository)
+     * @return file
+     */
+    private File getRepositoryFile(String fileId) {
+        String repoDirName = FilenameUtils.normalizeNoEndSeparator(fileRepoDir.getAbsolutePath());
+        String fileName = FilenameUtils.normalize(FilenameUtils.concat(repoDirName, fileId));
+
+        // file ID mustn't point out of the repository
+        if (fileName == null || !fileName.startsWith(repoDirName + File.separator)) {
+            throw new IllegalArgumentException("file ID '" + fileId + "' is not in the file repository");
+        }
+
+        return new File(fileName);
+    }
+
     /**
      * Gets file name that the file will be saved with.
      *
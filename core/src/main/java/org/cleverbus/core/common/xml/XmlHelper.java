@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cleverbus.core.common.xml;
+
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.bind.ValidationEventHandler;
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+
+import org.springframework.util.Assert;
+
+
+/**
+ * Shared XML infrastructure for processing of messages - factory lookup and creation of JAXB contexts are expensive
+ * so they are made only once and created transformers and unmarshallers are reused by each thread.
+ * <p/>
+ * Instances returned by this helper are bound to the current thread, they must not be passed to other threads
+ * and they must not be used after next call of the same method from the same thread.
+ *
+ * @since 2.1
+ */
+public final class XmlHelper {
+
+    private static final TransformerFactory TRANSFORMER_FACTORY = TransformerFactory.newInstance();
+
+    private static final ConcurrentMap<Class<?>, JAXBContext> JAXB_CONTEXTS
+            = new ConcurrentHashMap<Class<?>, JAXBContext>();
+
+    private static final ThreadLocal<Transformer> IDENTITY_TRANSFORMER = new ThreadLocal<Transformer>() {
+        @Override
+        protected Transformer initialValue() {
+            try {
+                // transformer factory isn't thread-safe
+                synchronized (TRANSFORMER_FACTORY) {
+                    return TRANSFORMER_FACTORY.newTransformer();
+                }
+            } catch (TransformerConfigurationException ex) {
+                throw new IllegalStateException("Error occurred during creation of identity transformer", ex);
+            }
+        }
+    };
+
+    private static final ThreadLocal<Map<Class<?>, CachedUnmarshaller>> UNMARSHALLERS
+            = new ThreadLocal<Map<Class<?>, CachedUnmarshaller>>() {
+        @Override
+        protected Map<Class<?>, CachedUnmarshaller> initialValue() {
+            return new HashMap<Class<?>, CachedUnmarshaller>();
+        }
+    };
+
+    private XmlHelper() {
+    }
+
+    /**
+     * Gets identity transformer (copies source to result) for the current thread.
+     *
+     * @return transformer with default settings
+     */
+    public static Transformer getIdentityTransformer() {
+        Transformer transformer = IDENTITY_TRANSFORMER.get();
+        transformer.reset();
+        return transformer;
+    }
+
+    /**
+     * Transforms XML source to string.
+     *
+     * @param source the XML source
+     * @return XML as string
+     * @throws TransformerException when an error occurs during the transformation
+     */
+    public static String transformToString(Source source) throws TransformerException {
+        Assert.notNull(source, "the source must not be null");
+
+        StringWriter writer = new StringWriter();
+        getIdentityTransformer().transform(source, new StreamResult(writer));
+        return writer.toString();
+    }
+
+    /**
+     * Gets JAXB context for specified class, the context is created only once.
+     *
+     * @param type the class bound by JAXB
+     * @return JAXB context
+     * @throws JAXBException when the context can't be created
+     */
+    public static JAXBContext getJaxbContext(Class<?> type) throws JAXBException {
+        Assert.notNull(type, "the type must not be null");
+
+        JAXBContext context = JAXB_CONTEXTS.get(type);
+        if (context == null) {
+            // JAXB context is thread-safe, creating of two instances by concurrent threads doesn't matter
+            context = JAXBContext.newInstance(type);
+            JAXBContext prevContext = JAXB_CONTEXTS.putIfAbsent(type, context);
+            if (prevContext != null) {
+                context = prevContext;
+            }
+        }
+        return context;
+    }
+
+    /**
+     * Gets unmarshaller for specified class for the current thread.
+     * Unmarshaller has original event handler, the caller can change it for one unmarshalling only.
+     *
+     * @param type the class bound by JAXB
+     * @return unmarshaller
+     * @throws JAXBException when the unmarshaller can't be created
+     */
+    public static Unmarshaller getUnmarshaller(Class<?> type) throws JAXBException {
+        Map<Class<?>, CachedUnmarshaller> unmarshallers = UNMARSHALLERS.get();
+
+        CachedUnmarshaller cached = unmarshallers.get(type);
+        if (cached == null) {
+            cached = new CachedUnmarshaller(getJaxbContext(type).createUnmarshaller());
+            unmarshallers.put(type, cached);
+        } else {
+            // reset to original event handler (setEventHandler(null) would set strict handler, not the original one)
+            cached.unmarshaller.setEventHandler(cached.defaultEventHandler);
+        }
+        return cached.unmarshaller;
+    }
+
+    /**
+     * Unmarshaller together with its original event handler.
+     */
+    private static final class CachedUnmarshaller {
+
+        private final Unmarshaller unmarshaller;
+
+        private final ValidationEventHandler defaultEventHandler;
+
+        private CachedUnmarshaller(Unmarshaller unmarshaller) throws JAXBException {
+            this.unmarshaller = unmarshaller;
+            this.defaultEventHandler = unmarshaller.getEventHandler();
+        }
+    }
+}
@@ -0,0 +1,478 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cleverbus.core.monitoring;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.annotation.Nullable;
+
+import org.cleverbus.api.entity.Message;
+import org.cleverbus.api.entity.MsgStateEnum;
+import org.cleverbus.common.log.Log;
+import org.cleverbus.core.common.dao.MessageDao;
+
+import org.joda.time.DateTimeUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.Assert;
+
+
+/**
+ * In-memory counters of messages by state, the counters serve monitoring ({@link MessagesStatus}) and alerts
+ * without counting of messages in database.
+ * <p/>
+ * Total counts are loaded by one grouped query when they are read for the first time and then they're kept
+ * up to date by state transitions made by
+ * {@link org.cleverbus.core.common.asynch.msg.MessageServiceImpl MessageServiceImpl} and by locking messages
+ * for re-processing. Changes are applied after commit of the transaction only. Total counts are loaded from database
+ * again after {@link #setReconcileInterval(int) reconcile interval} because some state transitions
+ * (e.g. cancelling message from admin console) don't go through the counters, or sooner when transition
+ * from unknown state was registered.
+ * <p/>
+ * Counts of messages updated in the specified interval are served from time-bucketed histogram of last update
+ * timestamps (see {@link #setBucketMillis(int)}), the oldest bucket of the interval is counted whole.
+ * The histogram covers transitions since enabling of the counters only, {@code null} is returned
+ * (and the caller should ask database) when the interval goes beyond this.
+ * <p/>
+ * The counters see state transitions made on this node only, use them in cluster with respect
+ * to the reconcile interval.
+ *
+ * @since 2.1
+ */
+@ManagedResource(description = "In-memory counters of messages by state")
+public class MessageStateCounters {
+
+    /**
+     * Default size of one time bucket of the histogram (in millis).
+     */
+    public static final int DEFAULT_BUCKET_MILLIS = 60 * 1000;
+
+    /**
+     * Count of buckets of the histogram for one state (24 hours for default bucket size).
+     */
+    static final int BUCKETS = 24 * 60;
+
+    /**
+     * Minimum interval (in millis) between two loads from database after transition from unknown state.
+     */
+    static final int STALE_RECONCILE_MILLIS = 10 * 1000;
+
+    /**
+     * Count of bits for message counter in one bucket, remaining bits hold bucket number.
+     */
+    private static final int COUNT_BITS = 32;
+
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+    private static final MsgStateEnum[] STATES = MsgStateEnum.values();
+
+    private final AtomicLongArray totals = new AtomicLongArray(STATES.length);
+
+    private final AtomicLongArray[] histograms = new AtomicLongArray[STATES.length];
+
+    /**
+     * The first bucket (per state) from which the histogram holds all transitions.
+     */
+    private final AtomicLongArray trackedSince = new AtomicLongArray(STATES.length);
+
+    /**
+     * Timestamp of the last load of total counts from database, 0 means that counts haven't been loaded yet.
+     */
+    private final AtomicLong lastReconcile = new AtomicLong();
+
+    /**
+     * Start of counting, bucket numbers are relative to this timestamp.
+     */
+    private volatile long startMillis;
+
+    private volatile boolean seeded;
+
+    private volatile boolean stale;
+
+    @Autowired
+    private MessageDao messageDao;
+
+    private TransactionTemplate transactionTemplate;
+
+    /**
+     * Are the counters enabled?
+     */
+    @Value("${monitoring.stateCounters.enabled}")
+    private boolean enabled;
+
+    /**
+     * Interval (in seconds) after that total counts are loaded from database again.
+     */
+    @Value("${monitoring.stateCounters.reconcileInterval}")
+    private int reconcileInterval;
+
+    private int bucketMillis = DEFAULT_BUCKET_MILLIS;
+
+    /**
+     * Creates new empty counters.
+     */
+    public MessageStateCounters() {
+        for (int i = 0; i < STATES.length; i++) {
+            histograms[i] = new AtomicLongArray(BUCKETS);
+        }
+        reset();
+    }
+
+    @Required
+    public void setTransactionManager(JpaTransactionManager transactionManager) {
+        Assert.notNull(transactionManager, "the transactionManager must not be null");
+
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setReadOnly(true);
+    }
+
+    /**
+     * Gets count of messages in specified state.
+     *
+     * @param state the state
+     * @param interval interval (in seconds) in that messages must be updated, {@code null} for all messages
+     * @return count of messages or {@code null} if the count isn't available in memory
+     * @see org.cleverbus.spi.msg.MessageService#getCountMessages(MsgStateEnum, Integer)
+     */
+    @Nullable
+    public Integer getCount(MsgStateEnum state, @Nullable Integer interval) {
+        Assert.notNull(state, "the state must not be null");
+
+        if (!enabled) {
+            return null;
+        }
+
+        if (interval == null) {
+            reconcileIfNecessary();
+
+            return seeded ? (int) Math.max(0, Math.min(totals.get(state.ordinal()), Integer.MAX_VALUE)) : null;
+        }
+
+        Assert.isTrue(interval >= 0, "the interval must not be negative");
+
+        long now = DateTimeUtils.currentTimeMillis();
+        long nowBucket = getBucket(now);
+        long fromBucket = getBucket(now - interval * 1000L);
+
+        if (nowBucket - fromBucket >= BUCKETS || fromBucket < trackedSince.get(state.ordinal())) {
+            return null;
+        }
+
+        AtomicLongArray histogram = histograms[state.ordinal()];
+
+        long counter = 0;
+        for (int i = 0; i < histogram.length(); i++) {
+            long value = histogram.get(i);
+            long bucket = value >>> COUNT_BITS;
+
+            if (value != 0 && bucket >= fromBucket && bucket <= nowBucket) {
+                counter += value & COUNT_MASK;
+            }
+        }
+
+        return (int) Math.min(counter, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Registers new state of the message (the message is already changed).
+     *
+     * @param oldState the state of the message before this change, {@code null} for new message
+     * @param oldLastUpdate the last update timestamp of the message before this change
+     * @param msg the changed message
+     */
+    public void messageChanged(@Nullable MsgStateEnum oldState, @Nullable Date oldLastUpdate, Message msg) {
+        Assert.notNull(msg, "the msg must not be null");
+
+        if (!enabled) {
+            return;
+        }
+
+        final MsgStateEnum newState = msg.getState();
+        final long oldTime = oldLastUpdate != null ? oldLastUpdate.getTime() : 0;
+        final long newTime = msg.getLastUpdateTimestamp() != null
+                ? msg.getLastUpdateTimestamp().getTime() : DateTimeUtils.currentTimeMillis();
+
+        final List<MsgStateEnum> oldStates = new ArrayList<MsgStateEnum>(1);
+        if (oldState != null) {
+            oldStates.add(oldState);
+        }
+
+        afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                apply(oldStates, oldTime, newState, newTime, oldStates.size() == 1);
+            }
+        });
+    }
+
+    /**
+     * Registers new state of the message which was changed from one of specified states,
+     * e.g. locking of messages for re-processing or finishing parent message by its last child message.
+     * Total counts are loaded from database sooner and the histogram of possible previous states
+     * isn't used until the transition gets out of the histogram.
+     *
+     * @param possibleOldStates possible states of the message before this change
+     * @param msg the changed message
+     */
+    public void messageChanged(final Collection<MsgStateEnum> possibleOldStates, Message msg) {
+        Assert.notEmpty(possibleOldStates, "the possibleOldStates must not be empty");
+        Assert.notNull(msg, "the msg must not be null");
+
+        if (!enabled) {
+            return;
+        }
+
+        final MsgStateEnum newState = msg.getState();
+        final long newTime = msg.getLastUpdateTimestamp() != null
+                ? msg.getLastUpdateTimestamp().getTime() : DateTimeUtils.currentTimeMillis();
+
+        final List<MsgStateEnum> oldStates = new ArrayList<MsgStateEnum>(possibleOldStates);
+
+        afterCommit(new Runnable() {
+            @Override
+            public void run() {
+                apply(oldStates, 0, newState, newTime, false);
+            }
+        });
+    }
+
+    private void afterCommit(final Runnable change) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    change.run();
+                }
+            });
+        } else {
+            change.run();
+        }
+    }
+
+    private void apply(List<MsgStateEnum> oldStates, long oldTime, MsgStateEnum newState, long newTime,
+            boolean knownOldState) {
+
+        if (knownOldState) {
+            MsgStateEnum oldState = oldStates.get(0);
+
+            totals.decrementAndGet(oldState.ordinal());
+            // the message wasn't counted in histogram if it was updated before start of counting
+            if (oldTime >= startMillis) {
+                remove(histograms[oldState.ordinal()], getBucket(oldTime));
+            }
+        } else if (!oldStates.isEmpty()) {
+            // it's not known which counter should be decreased => remaining value in histogram is ignored
+            long nextBucket = getBucket(DateTimeUtils.currentTimeMillis()) + 1;
+            for (MsgStateEnum oldState : oldStates) {
+                long since = trackedSince.get(oldState.ordinal());
+                while (since < nextBucket && !trackedSince.compareAndSet(oldState.ordinal(), since, nextBucket)) {
+                    since = trackedSince.get(oldState.ordinal());
+                }
+            }
+            stale = true;
+        }
+
+        totals.incrementAndGet(newState.ordinal());
+        if (newTime >= startMillis) {
+            add(histograms[newState.ordinal()], getBucket(newTime));
+        }
+    }
+
+    /**
+     * Gets number of time bucket for specified timestamp, the number is negative for timestamp
+     * before start of counting.
+     */
+    private long getBucket(long millis) {
+        return millis < startMillis ? -1 : (millis - startMillis) / bucketMillis;
+    }
+
+    private void add(AtomicLongArray histogram, long bucket) {
+        int index = (int) (bucket % histogram.length());
+
+        while (true) {
+            long value = histogram.get(index);
+
+            long newValue;
+            if ((value >>> COUNT_BITS) == bucket) {
+                if ((value & COUNT_MASK) == COUNT_MASK) {
+                    return;
+                }
+                newValue = value + 1;
+            } else if ((value >>> COUNT_BITS) < bucket) {
+                // old bucket - start counting from beginning
+                newValue = (bucket << COUNT_BITS) | 1;
+            } else {
+                return; // too old update, the bucket was already reused
+            }
+
+            if (histogram.compareAndSet(index, value, newValue)) {
+                return;
+            }
+        }
+    }
+
+    private void remove(AtomicLongArray histogram, long bucket) {
+        int index = (int) (bucket % histogram.length());
+
+        while (true) {
+            long value = histogram.get(index);
+
+            // the bucket has been reused already
+            if ((value >>> COUNT_BITS) != bucket || (value & COUNT_MASK) == 0) {
+                return;
+            }
+
+            if (histogram.compareAndSet(index, value, value - 1)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Loads total counts from database when they haven't been loaded yet or when they're too old.
+     * Only one thread loads counts, other threads use current values in the meantime.
+     */
+    private void reconcileIfNecessary() {
+        long now = DateTimeUtils.currentTimeMillis();
+        long last = lastReconcile.get();
+
+        boolean necessary = last == 0
+                || now - last > reconcileInterval * 1000L
+                || (stale && now - last > STALE_RECONCILE_MILLIS);
+
+        if (necessary && lastReconcile.compareAndSet(last, now)) {
+            reconcile();
+        }
+    }
+
+    /**
+     * Loads total counts of messages from database.
+     */
+    @ManagedOperation(description = "Loads total counts of messages from database")
+    public void reconcile() {
+        stale = false;
+
+        Map<MsgStateEnum, Integer> counts = transactionTemplate.execute(
+                new TransactionCallback<Map<MsgStateEnum, Integer>>() {
+                    @Override
+                    public Map<MsgStateEnum, Integer> doInTransaction(TransactionStatus status) {
+                        return messageDao.getCountMessagesByState();
+                    }
+                });
+
+        for (MsgStateEnum state : STATES) {
+            Integer count = counts.get(state);
+            long newValue = count != null ? count : 0;
+            long oldValue = totals.getAndSet(state.ordinal(), newValue);
+
+            if (seeded && oldValue != newValue) {
+                Log.debug("Count of messages in state {} was corrected from {} to {}", state, oldValue, newValue);
+            }
+        }
+
+        seeded = true;
+    }
+
+    /**
+     * Clears all counters, histogram starts from beginning.
+     */
+    private void reset() {
+        startMillis = DateTimeUtils.currentTimeMillis();
+
+        for (int i = 0; i < STATES.length; i++) {
+            totals.set(i, 0);
+            trackedSince.set(i, 0);
+
+            for (int j = 0; j < BUCKETS; j++) {
+                histograms[i].set(j, 0);
+            }
+        }
+
+        seeded = false;
+        stale = false;
+        lastReconcile.set(0);
+    }
+
+    @ManagedAttribute(description = "Total counts of messages by state")
+    public String[] getCounts() {
+        List<String> result = new ArrayList<String>(STATES.length);
+
+        for (MsgStateEnum state : STATES) {
+            result.add(state + ": " + (seeded ? totals.get(state.ordinal()) : "not loaded"));
+        }
+
+        return result.toArray(new String[result.size()]);
+    }
+
+    @ManagedAttribute(description = "Are the counters enabled?")
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables the counters, the counters start from beginning.
+     *
+     * @param enabled {@code true} for enabling the counters
+     */
+    @ManagedAttribute(description = "Enables or disables the counters")
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+
+        reset();
+    }
+
+    /**
+     * Sets interval (in seconds) after that total counts are loaded from database again.
+     *
+     * @param reconcileInterval the interval (in seconds)
+     */
+    public void setReconcileInterval(int reconcileInterval) {
+        Assert.isTrue(reconcileInterval > 0, "the reconcileInterval must be positive value");
+
+        this.reconcileInterval = reconcileInterval;
+    }
+
+    /**
+     * Sets size of one time bucket of the histogram (in millis), the histogram has {@value #BUCKETS} buckets
+     * for each state. The counters start from beginning.
+     *
+     * @param bucketMillis the size of bucket (in millis)
+     */
+    public void setBucketMillis(int bucketMillis) {
+        Assert.isTrue(bucketMillis > 0, "the bucketMillis must be positive value");
+
+        this.bucketMillis = bucketMillis;
+
+        reset();
+    }
+}
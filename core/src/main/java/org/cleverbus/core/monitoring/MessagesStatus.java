@@ -17,6 +17,8 @@
 package org.cleverbus.core.monitoring;
 
 
+import javax.annotation.Nullable;
+
 import org.cleverbus.api.entity.MsgStateEnum;
 import org.cleverbus.spi.msg.MessageService;
 
@@ -37,103 +39,120 @@ public class MessagesStatus {
     @Autowired
     private MessageService messageService;
 
+    @Autowired(required = false)
+    private MessageStateCounters stateCounters;
 
     @ManagedAttribute(description = "Count of messages in state FAILED")
     public int getCountOfFailed() {
-        return messageService.getCountMessages(MsgStateEnum.FAILED, null);
+        return getCountMessages(MsgStateEnum.FAILED, null);
     }
 
     @ManagedAttribute(description = "Count of messages in state PROCESSING")
     public int getCountOfProcessing() {
-        return messageService.getCountMessages(MsgStateEnum.PROCESSING, null);
+        return getCountMessages(MsgStateEnum.PROCESSING, null);
     }
 
     @ManagedAttribute(description = "Count of messages in state CANCEL")
     public int getCountOfCanceled() {
-        return messageService.getCountMessages(MsgStateEnum.CANCEL, null);
+        return getCountMessages(MsgStateEnum.CANCEL, null);
     }
 
     @ManagedAttribute(description = "Count of messages in state NEW")
     public int getCountOfNew() {
-        return messageService.getCountMessages(MsgStateEnum.NEW, null);
+        return getCountMessages(MsgStateEnum.NEW, null);
     }
 
     @ManagedAttribute(description = "Count of messages in state OK")
     public int getCountOfOk() {
-        return messageService.getCountMessages(MsgStateEnum.OK, null);
+        return getCountMessages(MsgStateEnum.OK, null);
     }
 
     @ManagedAttribute(description = "Count of messages in state PARTLY_FAILED")
     public int getCountOfPartlyFailed() {
-        return messageService.getCountMessages(MsgStateEnum.PARTLY_FAILED, null);
+        return getCountMessages(MsgStateEnum.PARTLY_FAILED, null);
     }
 
     @ManagedAttribute(description = "Count of messages in state WAITING")
     public int getCountOfWaiting() {
-        return messageService.getCountMessages(MsgStateEnum.WAITING, null);
+        return getCountMessages(MsgStateEnum.WAITING, null);
     }
 
     @ManagedAttribute(description = "Count of messages in state WAITING_FOR_RES")
     public int getCountOfWaitingForResponse() {
-        return messageService.getCountMessages(MsgStateEnum.WAITING_FOR_RES, null);
+        return getCountMessages(MsgStateEnum.WAITING_FOR_RES, null);
     }
 
     @ManagedAttribute(description = "Count of messages in state POSTPONED")
     public int getCountOfPostponed() {
-        return messageService.getCountMessages(MsgStateEnum.POSTPONED, null);
+        return getCountMessages(MsgStateEnum.POSTPONED, null);
     }
 
     @ManagedAttribute(description = "Count of messages in state CANCEL")
     public int getCountOfCancel() {
-        return messageService.getCountMessages(MsgStateEnum.CANCEL, null);
+        return getCountMessages(MsgStateEnum.CANCEL, null);
     }
 
     @ManagedOperation(description = "Count of messages in state FAILED and after interval")
     public int getCountOfFailedAfterInterval(int interval) {
-        return messageService.getCountMessages(MsgStateEnum.FAILED, interval);
+        return getCountMessages(MsgStateEnum.FAILED, interval);
     }
 
     @ManagedOperation(description = "Count of messages in state PROCESSING and after interval")
     public int getCountOfProcessingAfterInterval(int interval) {
-        return messageService.getCountMessages(MsgStateEnum.PROCESSING, interval);
+        return getCountMessages(MsgStateEnum.PROCESSING, interval);
     }
 
     @ManagedOperation(description = "Count of messages in state WAITING and after interval")
     public int getCountOfWaitingAfterInterval(int interval) {
-        return messageService.getCountMessages(MsgStateEnum.WAITING, interval);
+        return getCountMessages(MsgStateEnum.WAITING, interval);
     }
 
     @ManagedOperation(description = "Count of messages in state OK and after interval")
     public int getCountOfOkAfterInterval(int interval) {
-        return messageService.getCountMessages(MsgStateEnum.OK, interval);
+        return getCountMessages(MsgStateEnum.OK, interval);
     }
 
     @ManagedOperation(description = "Count of messages in state NEW and after interval")
     public int getCountOfNewAfterInterval(int interval) {
-        return messageService.getCountMessages(MsgStateEnum.NEW, interval);
+        return getCountMessages(MsgStateEnum.NEW, interval);
     }
 
     @ManagedOperation(description = "Count of messages in state PARTLY_FAILED and after interval")
     public int getCountOfPartlyFailedAfterInterval(int interval) {
-        return messageService.getCountMessages(MsgStateEnum.PARTLY_FAILED, interval);
+        return getCountMessages(MsgStateEnum.PARTLY_FAILED, interval);
     }
 
     @ManagedOperation(description = "Count of messages in state CANCEL and after interval")
     public int getCountOfCancelAfterInterval(int interval) {
-        return messageService.getCountMessages(MsgStateEnum.CANCEL, interval);
+        return getCountMessages(MsgStateEnum.CANCEL, interval);
     }
 
     @ManagedOperation(description = "Count of messages in state WAITING_FOR_RES and after interval")
     public int getCountOfWaitingForResponseAfterInterval(int interval) {
-        return messageService.getCountMessages(MsgStateEnum.WAITING_FOR_RES, interval);
+        return getCountMessages(MsgStateEnum.WAITING_FOR_RES, interval);
     }
 
     @ManagedOperation(description = "Count of messages in state POSTPONED and after interval")
     public int getCountOfPostponedAfterInterval(int interval) {
-        return messageService.getCountMessages(MsgStateEnum.POSTPONED, interval);
+        return getCountMessages(MsgStateEnum.POSTPONED, interval);
     }
 
     public void setMessageService(MessageService messageService) {
         this.messageService = messageService;
     }
+
+    /**
+     * Gets count of messages from {@link MessageStateCounters in-memory counters} if they're available,
+     * otherwise from database.
+     */
+    private int getCountMessages(MsgStateEnum state, @Nullable Integer interval) {
+        if (stateCounters != null) {
+            Integer count = stateCounters.getCount(state, interval);
+            if (count != null) {
+                return count;
+            }
+        }
+
+        return messageService.getCountMessages(state, interval);
+    }
 }
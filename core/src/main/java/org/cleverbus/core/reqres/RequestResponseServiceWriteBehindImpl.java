@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cleverbus.core.reqres;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.cleverbus.api.entity.Request;
+import org.cleverbus.api.entity.Response;
+import org.cleverbus.common.log.Log;
+import org.cleverbus.core.common.dao.RequestResponseDao;
+
+import org.apache.camel.CamelContext;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationContext;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.Assert;
+
+
+/**
+ * Implementation of {@link RequestResponseService} interface with optional write-behind mode.
+ * <p/>
+ * If write-behind mode is disabled then requests/responses are saved directly into database in synchronous manner
+ * (same as {@link RequestResponseServiceDefaultImpl}).
+ * <p/>
+ * If write-behind mode is enabled then requests/responses are put into bounded in-memory queue only
+ * and background writer saves them in batches (one transaction per batch). Requests waiting for their responses
+ * are remembered in memory so response is joined with its request without database query in most cases.
+ * Requests/responses are dropped (and counted) when the queue is full, saving mustn't slow down
+ * communication with external systems.
+ *
+ * @since 2.1
+ */
+@ManagedResource(description = "Write-behind saving of requests/responses")
+public class RequestResponseServiceWriteBehindImpl implements RequestResponseService {
+
+    /**
+     * How long (in millis) writer waits for next request/response before it checks stopping.
+     */
+    private static final long POLL_TIMEOUT = 1000;
+
+    @Autowired
+    private RequestResponseDao requestResponseDao;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    private TransactionTemplate transactionTemplate;
+
+    /**
+     * Is write-behind mode enabled?
+     */
+    @Value("${requestSaving.writeBehind.enable}")
+    private boolean writeBehind;
+
+    /**
+     * Maximum count of requests/responses waiting for saving.
+     */
+    @Value("${requestSaving.writeBehind.queueCapacity}")
+    private int queueCapacity;
+
+    /**
+     * Maximum count of requests/responses saved in one transaction.
+     */
+    @Value("${requestSaving.writeBehind.batchSize}")
+    private int batchSize;
+
+    private BlockingQueue<Object> queue;
+
+    /**
+     * Requests which have been saved recently (key = URI + response join ID), it's limited to queue capacity.
+     */
+    private Map<String, Request> recentRequests;
+
+    private ExecutorService executor;
+
+    private volatile boolean stopping;
+
+    private final AtomicLong writtenCount = new AtomicLong();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private final AtomicLong failedCount = new AtomicLong();
+
+    @Required
+    public void setTransactionManager(JpaTransactionManager transactionManager) {
+        Assert.notNull(transactionManager, "the transactionManager must not be null");
+
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    @PostConstruct
+    public void initQueue() {
+        queue = new ArrayBlockingQueue<Object>(queueCapacity);
+        recentRequests = new LinkedHashMap<String, Request>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Request> eldest) {
+                return size() > queueCapacity;
+            }
+        };
+    }
+
+    @Override
+    public void insertRequest(final Request request) {
+        Assert.notNull(request, "the request must not be null");
+
+        if (!writeBehind) {
+            transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+                @Override
+                protected void doInTransactionWithoutResult(TransactionStatus status) {
+                    requestResponseDao.insertRequest(request);
+                }
+            });
+            return;
+        }
+
+        if (enqueue(request)) {
+            // response to dropped request won't be joined with it
+            synchronized (recentRequests) {
+                recentRequests.put(getRequestKey(request.getUri(), request.getResponseJoinId()), request);
+            }
+        }
+    }
+
+    @Override
+    public void insertResponse(final Response response) {
+        Assert.notNull(response, "the response must not be null");
+
+        if (!writeBehind) {
+            transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+                @Override
+                protected void doInTransactionWithoutResult(TransactionStatus status) {
+                    requestResponseDao.insertResponse(response);
+                }
+            });
+            return;
+        }
+
+        Request request = response.getRequest();
+        if (request != null) {
+            synchronized (recentRequests) {
+                String key = getRequestKey(request.getUri(), request.getResponseJoinId());
+                if (recentRequests.get(key) == request) {
+                    recentRequests.remove(key);
+                }
+            }
+        }
+
+        enqueue(response);
+    }
+
+    @Nullable
+    @Override
+    public Request findLastRequest(final String uri, final String responseJoinId) {
+        if (writeBehind) {
+            synchronized (recentRequests) {
+                Request request = recentRequests.get(getRequestKey(uri, responseJoinId));
+                if (request != null) {
+                    return request;
+                }
+            }
+        }
+
+        return transactionTemplate.execute(new TransactionCallback<Request>() {
+            @Override
+            public Request doInTransaction(TransactionStatus status) {
+                return requestResponseDao.findLastRequest(uri, responseJoinId);
+            }
+        });
+    }
+
+    @Override
+    public List<Request> findByCriteria(final Date from, final Date to, final String subUri,
+            final String subRequest) {
+        return transactionTemplate.execute(new TransactionCallback<List<Request>>() {
+            @Override
+            public List<Request> doInTransaction(TransactionStatus status) {
+                return requestResponseDao.findByCriteria(from, to, subUri, subRequest);
+            }
+        });
+    }
+
+    /**
+     * Puts request/response into the queue for saving.
+     *
+     * @param entity the request or response
+     * @return {@code true} if entity was added, {@code false} if the queue is full
+     */
+    private boolean enqueue(Object entity) {
+        startWriting();
+
+        if (queue.offer(entity)) {
+            return true;
+        }
+
+        long dropped = droppedCount.incrementAndGet();
+        if (dropped == 1 || dropped % queueCapacity == 0) {
+            Log.warn("Queue of requests/responses for saving is full, " + dropped + " requests/responses have been "
+                    + "dropped so far");
+        }
+        return false;
+    }
+
+    /**
+     * Starts background writer if it's not running yet.
+     * Writer is started lazily because Camel context (which provides threads) depends on event notifiers
+     * which use this service.
+     */
+    private synchronized void startWriting() {
+        if (executor != null || stopping) {
+            return;
+        }
+
+        executor = applicationContext.getBean(CamelContext.class).getExecutorServiceManager()
+                .newSingleThreadExecutor(this, "RequestResponseWriter");
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<Object> batch = new ArrayList<Object>(batchSize);
+                while (!stopping) {
+                    try {
+                        Object first = queue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+                        if (first != null) {
+                            batch.add(first);
+                            queue.drainTo(batch, batchSize - 1);
+
+                            writeBatch(batch);
+                            batch.clear();
+                        }
+                    } catch (InterruptedException ex) {
+                        // stopping - remaining requests/responses are saved by stopWriting()
+                        return;
+                    }
+                }
+            }
+        });
+
+        Log.info("Write-behind saving of requests/responses started, queue capacity: " + queueCapacity);
+    }
+
+    /**
+     * Stops background writer, requests/responses in the queue are saved for the last time.
+     */
+    @PreDestroy
+    public void stopWriting() {
+        synchronized (this) {
+            stopping = true;
+
+            if (executor == null) {
+                return;
+            }
+
+            applicationContext.getBean(CamelContext.class).getExecutorServiceManager().shutdownNow(executor);
+            executor = null;
+        }
+
+        List<Object> batch = new ArrayList<Object>(batchSize);
+        while (queue.drainTo(batch, batchSize) > 0) {
+            writeBatch(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Saves requests/responses in one transaction.
+     * Requests are always before their responses in the batch or in some previous batch.
+     *
+     * @param batch the requests/responses
+     */
+    private void writeBatch(final List<Object> batch) {
+        try {
+            transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+                @Override
+                protected void doInTransactionWithoutResult(TransactionStatus status) {
+                    for (Object entity : batch) {
+                        if (entity instanceof Request) {
+                            requestResponseDao.insertRequest((Request) entity);
+                        } else {
+                            Response response = (Response) entity;
+
+                            // request was dropped or it wasn't saved
+                            if (response.getRequest() != null && response.getRequest().getId() == null) {
+                                response.setRequest(null);
+                            }
+
+                            requestResponseDao.insertResponse(response);
+                        }
+                    }
+                }
+            });
+
+            writtenCount.addAndGet(batch.size());
+
+        } catch (Exception ex) {
+            failedCount.addAndGet(batch.size());
+
+            // IDs were assigned by rolled back transaction
+            for (Object entity : batch) {
+                if (entity instanceof Request) {
+                    ((Request) entity).setId(null);
+                } else {
+                    ((Response) entity).setId(null);
+                }
+            }
+
+            Log.error("Error occurred during saving of " + batch.size() + " requests/responses", ex);
+        }
+    }
+
+    private static String getRequestKey(String uri, String responseJoinId) {
+        return uri + " " + responseJoinId;
+    }
+
+    @ManagedAttribute(description = "Is write-behind saving of requests/responses enabled?")
+    public boolean isWriteBehind() {
+        return writeBehind;
+    }
+
+    @ManagedAttribute(description = "Enables/disables write-behind saving of requests/responses")
+    public void setWriteBehind(boolean writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    @ManagedAttribute(description = "Count of requests/responses waiting for saving")
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    @ManagedAttribute(description = "Count of saved requests/responses")
+    public long getCountOfWritten() {
+        return writtenCount.get();
+    }
+
+    @ManagedAttribute(description = "Count of requests/responses dropped because the queue was full")
+    public long getCountOfDropped() {
+        return droppedCount.get();
+    }
+
+    @ManagedAttribute(description = "Count of requests/responses which weren't saved because of error")
+    public long getCountOfFailed() {
+        return failedCount.get();
+    }
+
+    @ManagedOperation(description = "Resets counters of requests/responses")
+    public void resetCounters() {
+        writtenCount.set(0);
+        droppedCount.set(0);
+        failedCount.set(0);
+    }
+}
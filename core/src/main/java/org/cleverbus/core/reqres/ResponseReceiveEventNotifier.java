@@ -18,16 +18,12 @@ package org.cleverbus.core.reqres;
 
 import static org.cleverbus.core.reqres.RequestResponseUtils.transformBody;
 
-import java.io.StringWriter;
 import java.util.EventObject;
 import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
 import javax.annotation.PostConstruct;
-import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.stream.StreamResult;
 
 import org.cleverbus.api.asynch.AsynchConstants;
 import org.cleverbus.api.entity.Message;
@@ -36,6 +32,7 @@ import org.cleverbus.api.entity.Response;
 import org.cleverbus.api.event.EventNotifier;
 import org.cleverbus.api.event.EventNotifierBase;
 import org.cleverbus.common.log.Log;
+import org.cleverbus.core.common.xml.XmlHelper;
 
 import org.apache.camel.Endpoint;
 import org.apache.camel.Exchange;
@@ -190,16 +187,10 @@ public class ResponseReceiveEventNotifier extends EventNotifierBase<ExchangeSent
             // exception from Spring WS = Soap Fault
             SoapFaultClientException ex = (SoapFaultClientException) exception;
 
-            StringWriter writer = new StringWriter();
-
             try {
                 // An identity transformer
                 if (ex.getSoapFault() != null && ex.getSoapFault().getSource() != null) {
-                    Transformer transformer = TransformerFactory.newInstance().newTransformer();
-                    StreamResult result = new StreamResult(writer);
-                    transformer.transform(ex.getSoapFault().getSource(), result);
-                    StringBuffer sb = writer.getBuffer();
-                    exceptionString = sb.toString();
+                    exceptionString = XmlHelper.transformToString(ex.getSoapFault().getSource());
                 }
             } catch (TransformerException e) {
                 Log.warn("Error occurs during transformation SOAP Fault to XML representation", e);
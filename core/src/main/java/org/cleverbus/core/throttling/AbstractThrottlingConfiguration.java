@@ -18,7 +18,10 @@ package org.cleverbus.core.throttling;
 
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.annotation.Nullable;
 
@@ -30,6 +33,10 @@ import org.cleverbus.spi.throttling.ThrottlingConfiguration;
 
 /**
  * Parent class for throttling configuration.
+ * <p/>
+ * Throttling properties are indexed for fast lookup of the best matching scope, resolved scopes are cached.
+ * Each change of properties (e.g. via {@link JmxThrottlingConfiguration}) publishes new index (with empty cache)
+ * built from the copy of changed properties.
  *
  * @author <a href="mailto:petr.juza@cleverlance.com">Petr Juza</a>
  */
@@ -45,7 +52,20 @@ public abstract class AbstractThrottlingConfiguration implements ThrottlingConfi
      */
     public static final int DEFAULT_LIMIT = 60;
 
-    private Map<ThrottleScope, ThrottleProps> props = new HashMap<ThrottleScope, ThrottleProps>();
+    /**
+     * Max. count of resolved throttle scopes in the cache.
+     */
+    static final int MAX_CACHED_SCOPES = 10000;
+
+    /**
+     * Throttling properties, changed under lock only.
+     */
+    private final Map<ThrottleScope, ThrottleProps> props = new HashMap<ThrottleScope, ThrottleProps>();
+
+    /**
+     * Lookup index built from the copy of current properties.
+     */
+    private volatile ScopeIndex index = new ScopeIndex(Collections.<ThrottleScope, ThrottleProps>emptyMap());
 
     /**
      * True for disabling throttling at all.
@@ -56,6 +76,18 @@ public abstract class AbstractThrottlingConfiguration implements ThrottlingConfi
     @Nullable
     @Override
     public final ThrottleProps getThrottleProps(ThrottleScope inScope) {
+        return index.getThrottleProps(inScope);
+    }
+
+    /**
+     * Finds throttling properties by comparing input scope with all throttle scopes.
+     *
+     * @param props the throttling properties
+     * @param inScope the input throttle scope
+     * @return throttle properties of best matching scope or {@code null} if there is no match
+     */
+    @Nullable
+    private static ThrottleProps findThrottleProps(Map<ThrottleScope, ThrottleProps> props, ThrottleScope inScope) {
         int maxMatch = -1;
         ThrottleScope matchedScope = null;
         for (ThrottleScope scope : props.keySet()) {
@@ -87,10 +119,17 @@ public abstract class AbstractThrottlingConfiguration implements ThrottlingConfi
 
         ThrottleProps throttleProps = new ThrottleProps(interval, limit);
 
-        if (props.put(scope, throttleProps) == null) {
-            Log.debug("new throttle properties added: " + scope + ", props: " + throttleProps);
-        } else {
-            Log.debug("throttle properties updated: " + scope + ", props: " + throttleProps);
+        // concurrent changes mustn't publish index of older properties
+        synchronized (props) {
+            if (props.put(scope, throttleProps) == null) {
+                Log.debug("new throttle properties added: " + scope + ", props: " + throttleProps);
+            } else {
+                Log.debug("throttle properties updated: " + scope + ", props: " + throttleProps);
+            }
+
+            // the copy keeps order of properties (the first matching scope wins when comparing with all scopes)
+            index = new ScopeIndex(Collections.unmodifiableMap(
+                    new LinkedHashMap<ThrottleScope, ThrottleProps>(props)));
         }
     }
 
@@ -101,7 +140,7 @@ public abstract class AbstractThrottlingConfiguration implements ThrottlingConfi
      */
     @Override
     public final Map<ThrottleScope, ThrottleProps> getProperties() {
-        return Collections.unmodifiableMap(props);
+        return index.props;
     }
 
     /**
@@ -122,4 +161,101 @@ public abstract class AbstractThrottlingConfiguration implements ThrottlingConfi
     public void setThrottlingDisabled(boolean throttlingDisabled) {
         this.throttlingDisabled = throttlingDisabled;
     }
+
+    /**
+     * Lookup index of throttling properties for one version of configuration.
+     * <p/>
+     * Concrete scope (without wildcards) is resolved in this order: exact match, any source system,
+     * any service and finally any source system and any service.
+     * Scopes with wildcards are rare (e.g. for synchronous requests) and they are resolved by comparing
+     * with all throttle scopes.
+     */
+    private static final class ScopeIndex {
+
+        private final Map<ThrottleScope, ThrottleProps> props;
+
+        private final Map<String, ThrottleProps> exact = new HashMap<String, ThrottleProps>();
+
+        private final Map<String, ThrottleProps> anySourceSystem = new HashMap<String, ThrottleProps>();
+
+        private final Map<String, ThrottleProps> anyService = new HashMap<String, ThrottleProps>();
+
+        private ThrottleProps anySourceSystemAndService;
+
+        private final Map<ThrottleScope, ThrottleProps> resolvedScopes
+                = new ConcurrentHashMap<ThrottleScope, ThrottleProps>();
+
+        private ScopeIndex(Map<ThrottleScope, ThrottleProps> props) {
+            this.props = props;
+
+            for (Map.Entry<ThrottleScope, ThrottleProps> en : props.entrySet()) {
+                boolean anySystem = isAnySourceSystem(en.getKey());
+                boolean anyServ = isAnyService(en.getKey());
+
+                if (anySystem && anyServ) {
+                    anySourceSystemAndService = en.getValue();
+                } else if (anySystem) {
+                    anySourceSystem.put(key(en.getKey().getServiceName()), en.getValue());
+                } else if (anyServ) {
+                    anyService.put(key(en.getKey().getSourceSystem()), en.getValue());
+                } else {
+                    String sourceSystem = key(en.getKey().getSourceSystem());
+                    exact.put(key(sourceSystem, key(en.getKey().getServiceName())), en.getValue());
+                }
+            }
+        }
+
+        @Nullable
+        private ThrottleProps getThrottleProps(ThrottleScope inScope) {
+            ThrottleProps throttleProps = resolvedScopes.get(inScope);
+            if (throttleProps != null) {
+                return throttleProps;
+            }
+
+            if (isAnySourceSystem(inScope) || isAnyService(inScope)) {
+                throttleProps = findThrottleProps(props, inScope);
+            } else {
+                String sourceSystem = key(inScope.getSourceSystem());
+                String serviceName = key(inScope.getServiceName());
+
+                throttleProps = exact.get(key(sourceSystem, serviceName));
+                if (throttleProps == null) {
+                    throttleProps = anySourceSystem.get(serviceName);
+                }
+                if (throttleProps == null) {
+                    throttleProps = anyService.get(sourceSystem);
+                }
+                if (throttleProps == null) {
+                    throttleProps = anySourceSystemAndService;
+                }
+            }
+
+            if (throttleProps != null) {
+                // simple bound - there are only a few different scopes in practice
+                if (resolvedScopes.size() >= MAX_CACHED_SCOPES) {
+                    resolvedScopes.clear();
+                }
+                resolvedScopes.put(inScope, throttleProps);
+            }
+
+            return throttleProps;
+        }
+
+        private static boolean isAnySourceSystem(ThrottleScope scope) {
+            return ThrottleScope.ANY_SOURCE_SYSTEM.equals(scope.getSourceSystem());
+        }
+
+        private static boolean isAnyService(ThrottleScope scope) {
+            return ThrottleScope.ANY_SERVICE.equals(scope.getServiceName());
+        }
+
+        private static String key(String name) {
+            // scopes are compared case-insensitive
+            return name.toLowerCase(Locale.ENGLISH);
+        }
+
+        private static String key(String sourceSystem, String serviceName) {
+            return sourceSystem + ThrottleScope.THROTTLE_SEPARATOR + serviceName;
+        }
+    }
 }
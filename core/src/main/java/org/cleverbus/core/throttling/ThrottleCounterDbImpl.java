@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cleverbus.core.throttling;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.cleverbus.api.entity.ThrottleCounterBucket;
+import org.cleverbus.common.log.Log;
+import org.cleverbus.core.common.dao.ThrottleCounterDao;
+import org.cleverbus.spi.throttling.ThrottleCounter;
+import org.cleverbus.spi.throttling.ThrottleScope;
+
+import org.apache.camel.CamelContext;
+import org.joda.time.DateTimeUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Required;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.Assert;
+
+
+/**
+ * Database implementation of {@link ThrottleCounter} interface for cluster environment,
+ * counts of requests are shared between nodes via table {@link ThrottleCounterBucket throttle_counter}.
+ * <p/>
+ * There are two modes:
+ * <ul>
+ *     <li>eventual (default) - requests are counted in memory (in buckets of {@link #setBucketSeconds(int)} seconds)
+ *     and flushed to the database periodically (see {@link #setFlushInterval(long)}) in one batch.
+ *     Counts of other nodes are read back with each flush, requests of other nodes received after last flush
+ *     are therefore not counted yet. There is no database call per request.
+ *     <li>strict - each request is written to the database and count of requests of all nodes is read back
+ *     immediately. Counting is accurate but there are two database calls per request. New bucket of the node
+ *     is created by the first request of the bucket only, other requests just update it.
+ * </ul>
+ * All nodes should use the same throttling configuration because each node deletes its old buckets
+ * according to the longest interval it has counted.
+ *
+ * @since 2.1
+ */
+public class ThrottleCounterDbImpl implements ThrottleCounter {
+
+    /**
+     * Default size of one time bucket (in seconds).
+     */
+    public static final int DEFAULT_BUCKET_SECONDS = 1;
+
+    /**
+     * Default interval of flushing local counts to the database (in millis).
+     */
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+    private TransactionTemplate transactionTemplate;
+
+    private TransactionTemplate newTransactionTemplate;
+
+    @Autowired
+    private ThrottleCounterDao throttleCounterDao;
+
+    @Autowired
+    private CamelContext camelContext;
+
+    private String nodeId = ManagementFactory.getRuntimeMXBean().getName();
+
+    private boolean strict = false;
+
+    private int bucketSeconds = DEFAULT_BUCKET_SECONDS;
+
+    private long flushInterval = DEFAULT_FLUSH_INTERVAL;
+
+    /**
+     * Counts of requests received by this node (see {@link ThrottleCounterSlidingWindowImpl} for precision).
+     */
+    private final ThrottleCounterSlidingWindowImpl localCounter = new ThrottleCounterSlidingWindowImpl();
+
+    /**
+     * Counts of requests received by this node which haven't been flushed yet (scope -> bucket -> count).
+     */
+    private final ConcurrentMap<ThrottleScope, ConcurrentMap<Long, AtomicInteger>> unflushedCounts
+            = new ConcurrentHashMap<ThrottleScope, ConcurrentMap<Long, AtomicInteger>>();
+
+    /**
+     * Counts of requests received by other nodes at last flush (scope -> bucket -> count).
+     */
+    private volatile Map<ThrottleScope, NavigableMap<Long, Long>> otherNodesCounts
+            = Collections.emptyMap();
+
+    /**
+     * The last bucket of each scope which has been created in the database in strict mode.
+     */
+    private final ConcurrentMap<ThrottleScope, Long> createdBuckets = new ConcurrentHashMap<ThrottleScope, Long>();
+
+    /**
+     * The longest interval (in seconds) which has been counted.
+     */
+    private volatile int maxInterval;
+
+    private ScheduledExecutorService flushExecutor;
+
+    /**
+     * Starts periodic flushing of local counts.
+     */
+    @PostConstruct
+    public void startFlushing() {
+        if (strict) {
+            Log.info("Throttling counter of node '" + nodeId + "' runs in strict mode");
+            return;
+        }
+
+        Log.info("Throttling counter of node '" + nodeId + "' runs in eventual mode, flush interval: "
+                + flushInterval + " ms");
+
+        flushExecutor = camelContext.getExecutorServiceManager().newSingleThreadScheduledExecutor(this,
+                "ThrottleCounterFlush");
+        flushExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (Exception ex) {
+                    Log.error("Error occurred during flushing throttling counts", ex);
+                }
+            }
+        }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops periodic flushing, local counts are flushed for the last time.
+     */
+    @PreDestroy
+    public void stopFlushing() {
+        if (flushExecutor != null) {
+            camelContext.getExecutorServiceManager().shutdown(flushExecutor);
+            flushExecutor = null;
+
+            flush();
+        }
+    }
+
+    @Override
+    public int count(ThrottleScope throttleScope, int interval) {
+        Assert.notNull(throttleScope, "the throttleScope must not be null");
+        Assert.isTrue(interval > 0, "the interval must be positive value");
+
+        if (interval > maxInterval) {
+            maxInterval = interval;
+        }
+
+        long now = DateTimeUtils.currentTimeMillis();
+        long fromBucket = getBucket(now - (interval * 1000L));
+
+        if (strict) {
+            return countStrict(throttleScope, getBucket(now), fromBucket);
+        }
+
+        int counter = localCounter.count(throttleScope, interval);
+        getUnflushedCount(throttleScope, getBucket(now)).incrementAndGet();
+
+        NavigableMap<Long, Long> otherNodes = otherNodesCounts.get(throttleScope);
+        if (otherNodes != null) {
+            for (Long count : otherNodes.tailMap(fromBucket, true).values()) {
+                counter += count;
+            }
+        }
+
+        return counter;
+    }
+
+    private int countStrict(final ThrottleScope throttleScope, final long bucket, final long fromBucket) {
+        createBucketIfNecessary(throttleScope, bucket);
+
+        long counter = transactionTemplate.execute(new TransactionCallback<Long>() {
+            @Override
+            public Long doInTransaction(TransactionStatus status) {
+                throttleCounterDao.addCount(nodeId, throttleScope.getSourceSystem(), throttleScope.getServiceName(),
+                        new Date(bucket), 1);
+
+                return throttleCounterDao.sumCount(throttleScope.getSourceSystem(), throttleScope.getServiceName(),
+                        new Date(fromBucket));
+            }
+        });
+
+        return (int) Math.min(counter, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates empty bucket of this node in separate transaction (if it doesn't exist yet).
+     * Concurrent requests of the bucket then only update existing record, they never insert the same bucket
+     * twice (it would violate unique constraint of the bucket).
+     *
+     * @param throttleScope the throttling scope
+     * @param bucket the bucket
+     */
+    private void createBucketIfNecessary(final ThrottleScope throttleScope, final long bucket) {
+        Long created = createdBuckets.get(throttleScope);
+        if (created != null && created == bucket) {
+            return;
+        }
+
+        // new bucket is created once per scope and bucket size => one lock for all scopes is sufficient
+        synchronized (createdBuckets) {
+            created = createdBuckets.get(throttleScope);
+            if (created != null && created == bucket) {
+                return;
+            }
+
+            newTransactionTemplate.execute(new TransactionCallbackWithoutResult() {
+                @Override
+                protected void doInTransactionWithoutResult(TransactionStatus status) {
+                    throttleCounterDao.addCount(nodeId, throttleScope.getSourceSystem(),
+                            throttleScope.getServiceName(), new Date(bucket), 0);
+                }
+            });
+
+            // requests at the end of previous bucket can come after requests of new bucket
+            if (created == null || created < bucket) {
+                createdBuckets.put(throttleScope, bucket);
+            }
+        }
+    }
+
+    /**
+     * Writes local counts to the database, deletes old buckets of this node and reads counts of other nodes.
+     */
+    public void flush() {
+        final long currentBucket = getBucket(DateTimeUtils.currentTimeMillis());
+        final Date from = new Date(getBucket(currentBucket - (maxInterval * 1000L)));
+
+        // collect local counts
+        final List<ThrottleCounterBucket> buckets = new ArrayList<ThrottleCounterBucket>();
+        for (Map.Entry<ThrottleScope, ConcurrentMap<Long, AtomicInteger>> scopeEn : unflushedCounts.entrySet()) {
+            ThrottleScope scope = scopeEn.getKey();
+
+            for (Map.Entry<Long, AtomicInteger> bucketEn : scopeEn.getValue().entrySet()) {
+                int count = bucketEn.getValue().getAndSet(0);
+                if (count > 0) {
+                    buckets.add(new ThrottleCounterBucket(nodeId, scope.getSourceSystem(), scope.getServiceName(),
+                            new Date(bucketEn.getKey()), count));
+                }
+
+                // previous bucket can still get a request which started before end of the bucket
+                if (bucketEn.getKey() < currentBucket - (bucketSeconds * 1000L)) {
+                    scopeEn.getValue().remove(bucketEn.getKey(), bucketEn.getValue());
+                }
+            }
+        }
+
+        List<ThrottleCounterBucket> allBuckets;
+        try {
+            allBuckets = transactionTemplate.execute(new TransactionCallback<List<ThrottleCounterBucket>>() {
+                @Override
+                public List<ThrottleCounterBucket> doInTransaction(TransactionStatus status) {
+                    for (ThrottleCounterBucket bucket : buckets) {
+                        throttleCounterDao.addCount(bucket.getNodeId(), bucket.getSourceSystem(),
+                                bucket.getServiceName(), bucket.getBucketTimestamp(), bucket.getCount());
+                    }
+
+                    throttleCounterDao.deleteBuckets(nodeId, from);
+
+                    return throttleCounterDao.findBuckets(from);
+                }
+            });
+        } catch (RuntimeException ex) {
+            // return counts back, they will be flushed next time
+            for (ThrottleCounterBucket bucket : buckets) {
+                ThrottleScope scope = new ThrottleScope(bucket.getSourceSystem(), bucket.getServiceName());
+                getUnflushedCount(scope, bucket.getBucketTimestamp().getTime()).addAndGet(bucket.getCount());
+            }
+
+            throw ex;
+        }
+
+        // sum counts of other nodes
+        Map<ThrottleScope, NavigableMap<Long, Long>> otherNodes
+                = new HashMap<ThrottleScope, NavigableMap<Long, Long>>();
+        for (ThrottleCounterBucket bucket : allBuckets) {
+            if (nodeId.equals(bucket.getNodeId())) {
+                continue;
+            }
+
+            ThrottleScope scope = new ThrottleScope(bucket.getSourceSystem(), bucket.getServiceName());
+            NavigableMap<Long, Long> scopeCounts = otherNodes.get(scope);
+            if (scopeCounts == null) {
+                scopeCounts = new TreeMap<Long, Long>();
+                otherNodes.put(scope, scopeCounts);
+            }
+
+            long bucketTime = bucket.getBucketTimestamp().getTime();
+            Long count = scopeCounts.get(bucketTime);
+            scopeCounts.put(bucketTime, (count != null ? count : 0) + bucket.getCount());
+        }
+
+        otherNodesCounts = otherNodes;
+
+        Log.debug("Throttling counts flushed: " + buckets.size() + " local bucket(s), "
+                + (allBuckets.size() - buckets.size()) + " bucket(s) of other nodes");
+    }
+
+    private AtomicInteger getUnflushedCount(ThrottleScope throttleScope, long bucket) {
+        ConcurrentMap<Long, AtomicInteger> scopeCounts = unflushedCounts.get(throttleScope);
+        if (scopeCounts == null) {
+            ConcurrentMap<Long, AtomicInteger> newCounts = new ConcurrentHashMap<Long, AtomicInteger>();
+            scopeCounts = unflushedCounts.putIfAbsent(throttleScope, newCounts);
+            if (scopeCounts == null) {
+                scopeCounts = newCounts;
+            }
+        }
+
+        AtomicInteger count = scopeCounts.get(bucket);
+        if (count == null) {
+            AtomicInteger newCount = new AtomicInteger();
+            count = scopeCounts.putIfAbsent(bucket, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Gets the beginning of bucket for specified time.
+     *
+     * @param millis the time in millis
+     * @return the beginning of bucket in millis
+     */
+    private long getBucket(long millis) {
+        long bucketMillis = bucketSeconds * 1000L;
+        return millis - (millis % bucketMillis);
+    }
+
+    @Required
+    public void setTransactionManager(JpaTransactionManager transactionManager) {
+        Assert.notNull(transactionManager, "the transactionManager must not be null");
+
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+
+        this.newTransactionTemplate = new TransactionTemplate(transactionManager);
+        this.newTransactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    /**
+     * Sets unique ID of this node in the cluster, default value is name of running JVM (pid@hostname).
+     *
+     * @param nodeId the node ID
+     */
+    public void setNodeId(String nodeId) {
+        Assert.hasText(nodeId, "the nodeId must not be empty");
+
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * Sets {@code true} for strict mode - each request is counted directly in the database.
+     *
+     * @param strict {@code true} for strict mode, {@code false} for eventual mode (default)
+     */
+    public void setStrict(boolean strict) {
+        this.strict = strict;
+    }
+
+    /**
+     * Sets size of one time bucket (in seconds).
+     *
+     * @param bucketSeconds the size of bucket
+     */
+    public void setBucketSeconds(int bucketSeconds) {
+        Assert.isTrue(bucketSeconds > 0, "the bucketSeconds must be positive value");
+
+        this.bucketSeconds = bucketSeconds;
+    }
+
+    /**
+     * Sets interval of flushing local counts to the database in eventual mode (in millis).
+     *
+     * @param flushInterval the flush interval
+     */
+    public void setFlushInterval(long flushInterval) {
+        Assert.isTrue(flushInterval > 0, "the flushInterval must be positive value");
+
+        this.flushInterval = flushInterval;
+    }
+}
@@ -122,8 +122,11 @@ public class ThrottleCounterMemoryImpl implements ThrottleCounter {
 
 
         // make dump only once in the specified interval
-        if (Log.isDebugEnabled() && (DateUtils.addSeconds(new Date(), -DUMP_PERIOD).after(lastDumpTimestamp))) {
-            dumpMemory();
+        // (level is checked after the time, resolving of logger isn't for free)
+        if (DateUtils.addSeconds(new Date(), -DUMP_PERIOD).after(lastDumpTimestamp)) {
+            if (Log.isDebugEnabled()) {
+                dumpMemory();
+            }
 
             lastDumpTimestamp = new Date();
         }
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cleverbus.core.throttling;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.cleverbus.common.log.Log;
+import org.cleverbus.spi.throttling.ThrottleCounter;
+import org.cleverbus.spi.throttling.ThrottleScope;
+
+import org.joda.time.DateTimeUtils;
+import org.springframework.util.Assert;
+
+
+/**
+ * In-memory implementation of {@link ThrottleCounter} interface based on sliding windows.
+ * <p/>
+ * Each throttling scope has own ring buffer of time buckets which covers just the counted interval,
+ * each bucket holds count of requests received in one time slot (see {@link #setBucketMillis(int)}).
+ * One window has at most {@link #MAX_BUCKETS} buckets, bigger buckets are used for longer intervals.
+ * Running total of the window is adjusted when new request is counted or when old bucket expires, each request
+ * therefore costs O(1) regardless of the count of requests in the interval (expiring of buckets is amortized
+ * over elapsed time and limited by count of buckets). Buckets and total are updated by CAS operations only,
+ * there is no lock.
+ * <p/>
+ * The oldest bucket of the interval is counted whole, the counter can therefore count a few more requests
+ * at the beginning of the interval than {@link ThrottleCounterMemoryImpl} (never less). With bucket size
+ * 1 millisecond the results are exactly the same for intervals up to 9 seconds.
+ * When the interval of scope is enlarged (e.g. via JMX), requests older than the previous interval aren't counted.
+ * <p/>
+ * Fast and enough-solution for one server solution but it's not sufficient for cluster environment.
+ *
+ * @since 2.1
+ */
+public class ThrottleCounterSlidingWindowImpl implements ThrottleCounter {
+
+    /**
+     * Default size of one time bucket (in millis).
+     */
+    public static final int DEFAULT_BUCKET_MILLIS = 100;
+
+    /**
+     * Maximum count of buckets of one throttling scope.
+     */
+    public static final int MAX_BUCKETS = 10000;
+
+    private static final int DUMP_PERIOD = 60 * 1000;
+
+    /**
+     * Count of bits for request counter in one bucket, remaining bits hold bucket number.
+     */
+    private static final int COUNT_BITS = 24;
+
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+    private final ConcurrentMap<ThrottleScope, SlidingWindow> windows
+            = new ConcurrentHashMap<ThrottleScope, SlidingWindow>();
+
+    private final long startMillis = DateTimeUtils.currentTimeMillis();
+
+    private final AtomicLong lastDumpTimestamp = new AtomicLong(startMillis);
+
+    private int bucketMillis = DEFAULT_BUCKET_MILLIS;
+
+    @Override
+    public int count(ThrottleScope throttleScope, int interval) {
+        Assert.notNull(throttleScope, "the throttleScope must not be null");
+        Assert.isTrue(interval > 0, "the interval must be positive value");
+
+        long now = DateTimeUtils.currentTimeMillis();
+        long intervalMillis = interval * 1000L;
+
+        // the window covers the whole interval (from now - interval to now, both inclusive) by limited count of buckets
+        int windowBucketMillis = (int) Math.max(bucketMillis, (intervalMillis + MAX_BUCKETS - 2) / (MAX_BUCKETS - 1));
+        int size = (int) ((intervalMillis + windowBucketMillis - 1) / windowBucketMillis) + 1;
+
+        // bucket numbers are relative to start of this counter
+        long elapsedMillis = now - startMillis;
+
+        SlidingWindow window = getWindow(throttleScope, windowBucketMillis, size, elapsedMillis);
+        int counter = window.add(elapsedMillis / windowBucketMillis);
+
+        // make dump only once in the specified interval
+        long lastDump = lastDumpTimestamp.get();
+        // (level is checked after the time, resolving of logger isn't for free)
+        if (now - lastDump > DUMP_PERIOD && lastDumpTimestamp.compareAndSet(lastDump, now) && Log.isDebugEnabled()) {
+            dumpMemory();
+        }
+
+        return counter;
+    }
+
+    /**
+     * Gets sliding window for specified throttling scope, the window is created or resized if necessary.
+     *
+     * @param throttleScope the throttling scope
+     * @param windowBucketMillis the size of bucket (in millis)
+     * @param buckets the count of buckets
+     * @param elapsedMillis the millis elapsed from start of this counter
+     * @return sliding window
+     */
+    private SlidingWindow getWindow(ThrottleScope throttleScope, int windowBucketMillis, int buckets,
+            long elapsedMillis) {
+        SlidingWindow window = windows.get(throttleScope);
+
+        if (window == null) {
+            SlidingWindow newWindow = new SlidingWindow(windowBucketMillis, buckets,
+                    elapsedMillis / windowBucketMillis);
+            window = windows.putIfAbsent(throttleScope, newWindow);
+            if (window == null) {
+                window = newWindow;
+            }
+        }
+
+        // interval of scope has changed (e.g. via JMX) - it's rare so the window is simply replaced by new one
+        while (window.size() != buckets || window.bucketMillis != windowBucketMillis) {
+            SlidingWindow newWindow = new SlidingWindow(windowBucketMillis, buckets, window, elapsedMillis);
+            if (windows.replace(throttleScope, window, newWindow)) {
+                window = newWindow;
+            } else {
+                window = windows.get(throttleScope);
+            }
+        }
+
+        return window;
+    }
+
+    /**
+     * Dumps throttling memory to log on "debug" level.
+     */
+    void dumpMemory() {
+        StringBuilder dump = new StringBuilder();
+        dump.append("Throttling in-memory dump:\n");
+
+        for (Map.Entry<ThrottleScope, SlidingWindow> en : windows.entrySet()) {
+            SlidingWindow window = en.getValue();
+
+            dump.append("sourceSystem=");
+            dump.append(en.getKey().getSourceSystem());
+            dump.append(", serviceName=");
+            dump.append(en.getKey().getServiceName());
+            dump.append(": ");
+            dump.append(window.total.get());
+            dump.append("\n");
+        }
+
+        Log.debug(dump.toString());
+    }
+
+    /**
+     * Sets size of one time bucket (in millis).
+     * Smaller buckets mean more precise counting but more memory per throttling scope,
+     * the size is enlarged for intervals which would need more than {@link #MAX_BUCKETS} buckets.
+     *
+     * @param bucketMillis the size of bucket (in millis)
+     */
+    public void setBucketMillis(int bucketMillis) {
+        Assert.isTrue(bucketMillis > 0, "the bucketMillis must be positive value");
+        Assert.isTrue(windows.isEmpty(), "the bucketMillis can't be changed after counting has started");
+
+        this.bucketMillis = bucketMillis;
+    }
+
+    /**
+     * Ring buffer of time buckets for one throttling scope with running total of all buckets.
+     * Each item holds bucket number (upper bits) and count of requests in this bucket (lower bits)
+     * so bucket can be reused by one CAS operation. Count of bucket is subtracted from the total by the thread
+     * which has reused or expired the bucket.
+     */
+    private static final class SlidingWindow {
+
+        private final int bucketMillis;
+
+        private final AtomicLongArray buckets;
+
+        private final AtomicLong total = new AtomicLong();
+
+        /**
+         * The newest bucket, all older buckets out of the window have been expired.
+         */
+        private final AtomicLong lastBucket;
+
+        private SlidingWindow(int bucketMillis, int size, long nowBucket) {
+            this.bucketMillis = bucketMillis;
+            buckets = new AtomicLongArray(size);
+            lastBucket = new AtomicLong(nowBucket);
+        }
+
+        private SlidingWindow(int bucketMillis, int size, SlidingWindow original, long elapsedMillis) {
+            this(bucketMillis, size, elapsedMillis / bucketMillis);
+
+            long nowBucket = lastBucket.get();
+
+            // increments of original window during copying can be lost, it's acceptable for rare change of interval
+            for (int i = 0; i < original.size(); i++) {
+                long value = original.buckets.get(i);
+                long count = value & COUNT_MASK;
+                if (count == 0) {
+                    continue;
+                }
+
+                // requests are moved to the end of original bucket so they are never expired sooner
+                long endMillis = ((value >>> COUNT_BITS) + 1) * original.bucketMillis - 1;
+                long bucket = Math.min(endMillis / bucketMillis, nowBucket);
+
+                if (bucket > nowBucket - size) {
+                    int index = index(bucket);
+                    long current = buckets.get(index);
+                    long currentCount = (current >>> COUNT_BITS) == bucket ? current & COUNT_MASK : 0;
+
+                    buckets.set(index, (bucket << COUNT_BITS) | Math.min(currentCount + count, COUNT_MASK));
+                    total.addAndGet(Math.min(currentCount + count, COUNT_MASK) - currentCount);
+                }
+            }
+        }
+
+        private int size() {
+            return buckets.length();
+        }
+
+        private int index(long bucket) {
+            return (int) (bucket % buckets.length());
+        }
+
+        /**
+         * Adds one request to specified bucket.
+         *
+         * @param bucket the current bucket
+         * @return count of requests in the window
+         */
+        private int add(long bucket) {
+            expire(bucket);
+
+            int index = index(bucket);
+
+            while (true) {
+                long value = buckets.get(index);
+                long valueBucket = value >>> COUNT_BITS;
+
+                long newValue;
+                long oldCount;
+                if (valueBucket == bucket) {
+                    if ((value & COUNT_MASK) == COUNT_MASK) {
+                        break; // counter is full, more requests in one bucket make no difference for throttling
+                    }
+                    newValue = value + 1;
+                    oldCount = 0;
+                } else if (valueBucket < bucket) {
+                    // old bucket - start counting from beginning
+                    newValue = (bucket << COUNT_BITS) | 1;
+                    oldCount = value & COUNT_MASK;
+                } else {
+                    break; // the bucket has already been reused by newer requests, this one is out of the window
+                }
+
+                if (buckets.compareAndSet(index, value, newValue)) {
+                    total.addAndGet(1 - oldCount);
+                    break;
+                }
+            }
+
+            return (int) Math.min(total.get(), Integer.MAX_VALUE);
+        }
+
+        /**
+         * Expires buckets which are out of the window, each bucket is visited once (amortized O(1) per request)
+         * and at most whole window is visited after long time without requests.
+         *
+         * @param nowBucket the current bucket
+         */
+        private void expire(long nowBucket) {
+            long last = lastBucket.get();
+            if (last >= nowBucket) {
+                return;
+            }
+
+            for (long bucket = Math.max(last + 1, nowBucket - size() + 1); bucket <= nowBucket; bucket++) {
+                int index = index(bucket);
+
+                while (true) {
+                    long value = buckets.get(index);
+                    if ((value >>> COUNT_BITS) >= bucket) {
+                        break; // already expired or reused
+                    }
+
+                    if (buckets.compareAndSet(index, value, bucket << COUNT_BITS)) {
+                        total.addAndGet(-(value & COUNT_MASK));
+                        break;
+                    }
+                }
+            }
+
+            while (last < nowBucket && !lastBucket.compareAndSet(last, nowBucket)) {
+                last = lastBucket.get();
+            }
+        }
+    }
+}
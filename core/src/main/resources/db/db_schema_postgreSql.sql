@@ -6,6 +6,11 @@ drop sequence if exists hibernate_sequence;
 
 create sequence hibernate_sequence;
 
+-- IDs of message, external_call, request and response are allocated in blocks of 50 (Hibernate pooled optimizer)
+drop sequence if exists pooled_id_sequence;
+
+create sequence pooled_id_sequence increment by 50;
+
 --
 -- table: message
 --
@@ -47,6 +52,18 @@ alter table message add column funnel_value varchar(50) null;
 drop index if exists funnel_value_idx;
 create index funnel_value_idx ON message (funnel_value);
 
+-- messages for next processing (PARTLY_FAILED and POSTPONED) and hanging PROCESSING messages (repair process)
+drop index if exists msg_poll_idx;
+create index msg_poll_idx ON message (state, last_update_timestamp, msg_timestamp)
+    WHERE state IN ('PARTLY_FAILED', 'POSTPONED');
+
+drop index if exists msg_processing_idx;
+create index msg_processing_idx ON message (start_process_timestamp) WHERE state = 'PROCESSING';
+
+-- child messages of parent message
+drop index if exists msg_parent_idx;
+create index msg_parent_idx ON message (parent_msg_id) WHERE parent_msg_id IS NOT NULL;
+
 
 --
 -- table: external_call
@@ -75,3 +92,33 @@ create index operation_name_idx ON external_call (operation_name);
 
 drop index if exists ext_state_idx;
 create index ext_state_idx ON external_call (state);
+
+-- failed confirmations (confirmation pool) and hanging PROCESSING calls (repair process)
+drop index if exists ext_pool_idx;
+create index ext_pool_idx ON external_call (state, last_update_timestamp) WHERE state IN ('FAILED', 'PROCESSING');
+
+drop index if exists ext_confirm_idx;
+create index ext_confirm_idx ON external_call (creation_timestamp, last_update_timestamp)
+    WHERE operation_name = 'confirmation' AND state = 'FAILED';
+
+
+--
+-- table: throttle_counter
+--
+drop table if exists throttle_counter cascade;
+
+create table throttle_counter (
+    counter_id int8 not null,
+    node_id varchar(100) not null,
+    source_system varchar(100) not null,
+    service_name varchar(100) not null,
+    bucket_timestamp timestamp not null,
+    req_count int4 not null,
+    primary key (counter_id)
+);
+
+alter table throttle_counter add constraint uq_throttle_counter_bucket
+    unique (node_id, source_system, service_name, bucket_timestamp);
+
+drop index if exists throttle_bucket_idx;
+create index throttle_bucket_idx ON throttle_counter (bucket_timestamp);
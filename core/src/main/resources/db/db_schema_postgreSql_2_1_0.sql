@@ -0,0 +1,94 @@
+--
+-- DB increment script for version 2.1.0
+--
+
+--
+-- sequence: pooled_id_sequence
+--   IDs of message, external_call, request and response are allocated in blocks of 50 (Hibernate pooled optimizer),
+--   new IDs continue after the last value of hibernate_sequence
+--
+drop sequence if exists pooled_id_sequence;
+
+create sequence pooled_id_sequence increment by 50;
+
+select setval('pooled_id_sequence', (select last_value from hibernate_sequence));
+
+--
+-- table: request
+--   response is joined with its request by response join ID and URI if the request isn't available in memory,
+--   the oldest request is taken
+--
+drop index if exists req_res_join_idx;
+create index req_res_join_idx ON request (res_join_id, uri, req_timestamp);
+
+--
+-- table: throttle_counter
+--
+drop table if exists throttle_counter cascade;
+
+create table throttle_counter (
+    counter_id int8 not null,
+    node_id varchar(100) not null,
+    source_system varchar(100) not null,
+    service_name varchar(100) not null,
+    bucket_timestamp timestamp not null,
+    req_count int4 not null,
+    primary key (counter_id)
+);
+
+alter table throttle_counter add constraint uq_throttle_counter_bucket
+    unique (node_id, source_system, service_name, bucket_timestamp);
+
+drop index if exists throttle_bucket_idx;
+create index throttle_bucket_idx ON throttle_counter (bucket_timestamp);
+
+--
+-- table: funnel
+--   funnel queries look up messages by funnel value, message state and timestamp are checked via message PK
+--
+drop index if exists funnel_value_msg_idx;
+create index funnel_value_msg_idx ON funnel (funnel_value, msg_id);
+
+--
+-- table: message
+--   large payloads are stored in the file repository, only file identifier is in the table
+--
+alter table message add column payload_file varchar(255) null;
+
+--
+-- table: message
+--   partial indexes for messages for next processing (PARTLY_FAILED and POSTPONED)
+--   and for hanging PROCESSING messages (repair process)
+--
+drop index if exists msg_poll_idx;
+create index msg_poll_idx ON message (state, last_update_timestamp, msg_timestamp)
+    WHERE state IN ('PARTLY_FAILED', 'POSTPONED');
+
+drop index if exists msg_processing_idx;
+create index msg_processing_idx ON message (start_process_timestamp) WHERE state = 'PROCESSING';
+
+--
+-- table: message
+--   parent message counts its child messages with HARD binding which haven't been processed successfully yet,
+--   counters of unfinished parent messages are initialized from their child messages
+--
+alter table message add column children_remaining int4 null;
+
+drop index if exists msg_parent_idx;
+create index msg_parent_idx ON message (parent_msg_id) WHERE parent_msg_id IS NOT NULL;
+
+update message p set children_remaining = (select count(*) from message c
+        where c.parent_msg_id = p.msg_id and c.parent_binding_type = 'HARD' and c.state <> 'OK')
+    where p.state <> 'OK'
+        and exists (select 1 from message c where c.parent_msg_id = p.msg_id and c.parent_binding_type = 'HARD');
+
+--
+-- table: external_call
+--   partial indexes for failed confirmations (confirmation pool) and for hanging PROCESSING calls (repair process)
+--
+drop index if exists ext_pool_idx;
+create index ext_pool_idx ON external_call (state, last_update_timestamp) WHERE state IN ('FAILED', 'PROCESSING');
+
+drop index if exists ext_confirm_idx;
+create index ext_confirm_idx ON external_call (creation_timestamp, last_update_timestamp)
+    WHERE operation_name = 'confirmation' AND state = 'FAILED';
@@ -0,0 +1,11 @@
+--
+-- DB archive increment script for version 2.1.0 (archive tables of db_schema_postgreSql_archive_0_6.sql)
+--
+
+--
+-- table: archive_message
+--   new columns of table message (see db_schema_postgreSql_2_1_0.sql);
+--   archivingBatchJob puts large payloads back into column payload, payload_file is kept for reference only
+--
+ALTER TABLE cleverbus_archive.archive_message ADD COLUMN payload_file character varying(255);
+ALTER TABLE cleverbus_archive.archive_message ADD COLUMN children_remaining integer;
@@ -16,19 +16,31 @@
 
 package org.cleverbus.core.alerts;
 
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.Arrays;
+import java.util.Collections;
 
+import org.cleverbus.api.entity.MsgStateEnum;
+import org.cleverbus.core.monitoring.MessageStateCounters;
 import org.cleverbus.spi.alerts.AlertInfo;
 import org.cleverbus.spi.alerts.AlertListener;
 import org.cleverbus.spi.alerts.AlertsConfiguration;
 import org.cleverbus.test.AbstractTest;
 
+import org.apache.camel.impl.DefaultCamelContext;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 
 /**
@@ -66,4 +78,159 @@ public class AlertsCheckingServiceDbImplTest extends AbstractTest {
         verify(alertsDao).runQuery(alert.getSql());
         verify(listener).onAlert(alert, 2L);
     }
+
+    @Test
+    public void testCheckAlertsByStateCounters() {
+        // prepare data
+        AlertsCheckingServiceDbImpl checkingService = new AlertsCheckingServiceDbImpl();
+
+        AlertInfo alert = new AlertInfo("ID", 1, "SELECT COUNT(*) FROM message WHERE state = 'WAITING_FOR_RES'"
+                + " AND last_update_timestamp < (current_timestamp - interval '3600 seconds')", true, null, null);
+
+        AlertsConfiguration alertsConfig = mock(AlertsConfiguration.class);
+        when(alertsConfig.getAlerts(true)).thenReturn(Arrays.asList(alert));
+
+        AlertListener listener = mock(AlertListener.class);
+        when(listener.supports(alert)).thenReturn(true);
+
+        AlertsDao alertsDao = mock(AlertsDao.class);
+
+        MessageStateCounters stateCounters = mock(MessageStateCounters.class);
+        when(stateCounters.isEnabled()).thenReturn(true);
+        when(stateCounters.getCount(MsgStateEnum.WAITING_FOR_RES, null)).thenReturn(5);
+        when(stateCounters.getCount(MsgStateEnum.WAITING_FOR_RES, 3600)).thenReturn(2);
+
+        setPrivateField(checkingService, "alertsConfig", alertsConfig);
+        setPrivateField(checkingService, "listeners", Arrays.asList(listener));
+        setPrivateField(checkingService, "alertsDao", alertsDao);
+        setPrivateField(checkingService, "stateCounters", stateCounters);
+
+        // action
+        checkingService.checkAlerts();
+
+        // verify: messages updated before the interval
+        verify(alertsDao, never()).runQuery(anyString());
+        verify(listener).onAlert(alert, 3L);
+    }
+
+    @Test
+    public void testMergedAlerts() {
+        // prepare data
+        AlertsCheckingServiceDbImpl checkingService = new AlertsCheckingServiceDbImpl();
+
+        String condition = " AND last_update_timestamp < (current_timestamp - interval '3600 seconds')";
+        AlertInfo failedAlert = new AlertInfo("FAILED", 1, "SELECT COUNT(*) FROM message WHERE state = 'FAILED'"
+                + condition, true, null, null);
+        AlertInfo partlyFailedAlert = new AlertInfo("PARTLY_FAILED", 1,
+                "select count(*) from message where state='PARTLY_FAILED'" + condition, true, null, null);
+        AlertInfo otherAlert = new AlertInfo("OTHER", 1, "SELECT COUNT(*) FROM message WHERE state = 'OK'",
+                true, null, null);
+
+        AlertsConfiguration alertsConfig = mock(AlertsConfiguration.class);
+        when(alertsConfig.getAlerts(true)).thenReturn(Arrays.asList(failedAlert, partlyFailedAlert, otherAlert));
+
+        AlertListener listener = mock(AlertListener.class);
+        when(listener.supports(failedAlert)).thenReturn(true);
+        when(listener.supports(otherAlert)).thenReturn(true);
+
+        AlertsDao alertsDao = mock(AlertsDao.class);
+        when(alertsDao.runGroupQuery(anyString())).thenReturn(Collections.singletonMap("FAILED", 3L));
+        when(alertsDao.runQuery(anyString())).thenReturn(2L);
+
+        setPrivateField(checkingService, "alertsConfig", alertsConfig);
+        setPrivateField(checkingService, "listeners", Arrays.asList(listener));
+        setPrivateField(checkingService, "alertsDao", alertsDao);
+
+        // action
+        checkingService.checkAlerts();
+
+        // verify: the same condition => one query
+        verify(alertsDao).runGroupQuery("SELECT state, COUNT(*) FROM message WHERE state IN ('FAILED', "
+                + "'PARTLY_FAILED')" + condition + " GROUP BY state");
+        verify(alertsDao).runQuery(otherAlert.getSql());
+        verify(listener).onAlert(failedAlert, 3L);
+        verify(listener).onAlert(otherAlert, 2L);
+        verify(listener, never()).onAlert(eq(partlyFailedAlert), anyLong());
+    }
+
+    @Test
+    public void testCachedResults() {
+        // prepare data
+        AlertsCheckingServiceDbImpl checkingService = new AlertsCheckingServiceDbImpl();
+
+        AlertInfo alert = new AlertInfo("ID", 1, "sql", true, null, null);
+
+        AlertsConfiguration alertsConfig = mock(AlertsConfiguration.class);
+        when(alertsConfig.getAlerts(true)).thenReturn(Arrays.asList(alert));
+
+        AlertListener listener = mock(AlertListener.class);
+        when(listener.supports(alert)).thenReturn(true);
+
+        AlertsDao alertsDao = mock(AlertsDao.class);
+        when(alertsDao.runQuery(anyString())).thenReturn(2L);
+
+        setPrivateField(checkingService, "alertsConfig", alertsConfig);
+        setPrivateField(checkingService, "listeners", Arrays.asList(listener));
+        setPrivateField(checkingService, "alertsDao", alertsDao);
+        setPrivateField(checkingService, "repeatInterval", 300);
+
+        // action
+        checkingService.checkAlerts();
+        checkingService.checkAlerts();
+
+        // verify: query is run once only, listener is notified by each check
+        verify(alertsDao).runQuery(alert.getSql());
+        verify(listener, times(2)).onAlert(alert, 2L);
+
+        checkingService.clearCache();
+        checkingService.checkAlerts();
+
+        verify(alertsDao, times(2)).runQuery(alert.getSql());
+    }
+
+    @Test
+    public void testQueryTimeout() {
+        // prepare data
+        AlertsCheckingServiceDbImpl checkingService = new AlertsCheckingServiceDbImpl();
+
+        AlertInfo slowAlert = new AlertInfo("SLOW", 1, "slow sql", true, null, null);
+        AlertInfo fastAlert = new AlertInfo("FAST", 1, "fast sql", true, null, null);
+
+        AlertsConfiguration alertsConfig = mock(AlertsConfiguration.class);
+        when(alertsConfig.getAlerts(true)).thenReturn(Arrays.asList(slowAlert, fastAlert));
+
+        AlertListener listener = mock(AlertListener.class);
+        when(listener.supports(slowAlert)).thenReturn(true);
+        when(listener.supports(fastAlert)).thenReturn(true);
+
+        AlertsDao alertsDao = mock(AlertsDao.class);
+        when(alertsDao.runQuery(fastAlert.getSql())).thenReturn(2L);
+        when(alertsDao.runQuery(slowAlert.getSql())).thenAnswer(new Answer<Long>() {
+            @Override
+            public Long answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(5000);
+                return 2L;
+            }
+        });
+
+        setPrivateField(checkingService, "alertsConfig", alertsConfig);
+        setPrivateField(checkingService, "listeners", Arrays.asList(listener));
+        setPrivateField(checkingService, "alertsDao", alertsDao);
+        setPrivateField(checkingService, "camelContext", new DefaultCamelContext());
+        setPrivateField(checkingService, "parallelism", 2);
+        setPrivateField(checkingService, "queryTimeout", 1);
+
+        // action
+        try {
+            checkingService.checkAlerts();
+        } finally {
+            checkingService.stopExecutor();
+        }
+
+        // verify: slow alert is skipped
+        verify(listener).onAlert(fastAlert, 2L);
+        verify(listener, never()).onAlert(eq(slowAlert), anyLong());
+        assertThat(Arrays.toString(checkingService.getAlertLatency()), containsString("SLOW:"));
+        assertThat(Arrays.toString(checkingService.getAlertLatency()), containsString("1 timeouts"));
+    }
 }
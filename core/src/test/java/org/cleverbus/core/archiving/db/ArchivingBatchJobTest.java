@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cleverbus.core.archiving.db;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import javax.sql.DataSource;
+
+import org.cleverbus.api.entity.ExternalCall;
+import org.cleverbus.api.entity.Message;
+import org.cleverbus.api.entity.MsgStateEnum;
+import org.cleverbus.api.entity.Request;
+import org.cleverbus.api.entity.Response;
+import org.cleverbus.api.file.FileRepository;
+import org.cleverbus.api.file.OutputStreamWriterCallback;
+import org.cleverbus.core.AbstractCoreDbTest;
+import org.cleverbus.core.common.file.DefaultFileRepository;
+import org.cleverbus.test.ExternalSystemTestEnum;
+import org.cleverbus.test.ServiceTestEnum;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+
+/**
+ * Test suite for {@link ArchivingBatchJob}.
+ */
+public class ArchivingBatchJobTest extends AbstractCoreDbTest {
+
+    private static final String[] TABLES = {"message", "external_call", "request", "response"};
+
+    @Autowired
+    private DataSource dataSource;
+
+    private ArchivingBatchJob job;
+
+    private Message[] messages;
+
+    private Request orphanRequest;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Before
+    public void prepareJob() {
+        for (String table : TABLES) {
+            getJdbcTemplate().execute("CREATE TABLE archive_" + table + " AS SELECT * FROM " + table + " WHERE 1 = 0");
+        }
+
+        job = new ArchivingBatchJob();
+        job.setDataSource(dataSource);
+        job.setTransactionManager(jpaTransactionManager);
+        setPrivateField(job, "archiveOlderInDays", 7);
+        setPrivateField(job, "batchSize", 2);
+        setPrivateField(job, "target", ArchivingBatchJob.ArchiveTarget.TABLES);
+        setPrivateField(job, "archiveTablePrefix", "archive_");
+        setPrivateField(job, "maxLatency", 1000L);
+        setPrivateField(job, "maxPause", 1);
+
+        prepareData();
+    }
+
+    @After
+    public void dropArchiveTables() {
+        for (String table : TABLES) {
+            getJdbcTemplate().execute("DROP TABLE archive_" + table);
+        }
+    }
+
+    @Test
+    public void testArchiveIntoTables() throws Exception {
+        // large payload of one message is stored in the file repository
+        DefaultFileRepository fileRepository = new DefaultFileRepository();
+        setPrivateField(fileRepository, "tempDir", tempFolder.getRoot());
+        setPrivateField(fileRepository, "fileRepoDir", tempFolder.getRoot());
+        setPrivateField(job, "fileRepository", fileRepository);
+
+        String fileId = fileRepository.saveFile(new OutputStreamWriterCallback() {
+            @Override
+            public void writeTo(OutputStream os) throws IOException {
+                os.write("large payload".getBytes(StandardCharsets.UTF_8));
+            }
+        }, Arrays.asList("payload", "2015-01-01"));
+        setPayloadFile(messages[1], fileId);
+
+        job.startArchivingData();
+
+        // old messages in final states
+        for (int i = 0; i < 3; i++) {
+            assertArchived(messages[i].getMsgId(), true);
+        }
+        assertThat(count("archive_external_call", "msg_id = " + messages[0].getMsgId()), is(1));
+        assertThat(count("archive_request", "msg_id = " + messages[0].getMsgId()), is(1));
+        assertThat(count("archive_response", "msg_id = " + messages[0].getMsgId()), is(1));
+        assertThat(count("external_call", "msg_id = " + messages[0].getMsgId()), is(0));
+        assertThat(count("request", "msg_id = " + messages[0].getMsgId()), is(0));
+        assertThat(count("response", "msg_id = " + messages[0].getMsgId()), is(0));
+
+        // large payload is in the archive, the file is deleted
+        assertThat(getJdbcTemplate().queryForObject("SELECT payload FROM archive_message WHERE msg_id = "
+                + messages[1].getMsgId(), String.class), is("large payload"));
+        assertThat(new File(tempFolder.getRoot(), fileId).exists(), is(false));
+
+        // not final or not old enough
+        assertArchived(messages[3].getMsgId(), false);
+        assertArchived(messages[4].getMsgId(), false);
+
+        // request without message
+        assertThat(count("archive_request", "req_id = " + orphanRequest.getId()), is(1));
+        assertThat(count("archive_response", "req_id = " + orphanRequest.getId()), is(1));
+        assertThat(count("request", "req_id = " + orphanRequest.getId()), is(0));
+    }
+
+    @Test
+    public void testArchiveIntoOlderTables() {
+        getJdbcTemplate().execute("ALTER TABLE archive_message DROP COLUMN children_remaining");
+
+        job.startArchivingData();
+
+        // nothing is archived, data would be lost
+        assertThat(count("archive_message", "1 = 1"), is(0));
+        assertThat(count("archive_request", "1 = 1"), is(0));
+        for (Message message : messages) {
+            assertArchived(message.getMsgId(), false);
+        }
+    }
+
+    @Test
+    public void testArchiveIntoFile() throws Exception {
+        final List<byte[]> files = new ArrayList<byte[]>();
+
+        FileRepository fileRepository = mock(FileRepository.class);
+        when(fileRepository.saveFile(any(OutputStreamWriterCallback.class), anyListOf(String.class)))
+                .thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                ((OutputStreamWriterCallback) invocation.getArguments()[0]).writeTo(os);
+                files.add(os.toByteArray());
+                return UUID.randomUUID().toString();
+            }
+        });
+
+        when(fileRepository.readFile("payload/large")).thenReturn(
+                new ByteArrayInputStream("large payload".getBytes(StandardCharsets.UTF_8)));
+        setPayloadFile(messages[1], "payload/large");
+
+        setPrivateField(job, "fileRepository", fileRepository);
+        setPrivateField(job, "target", ArchivingBatchJob.ArchiveTarget.FILE);
+
+        job.startArchivingData();
+
+        List<String> lines = new ArrayList<String>();
+        for (byte[] file : files) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new GZIPInputStream(new ByteArrayInputStream(file)), StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+
+        // 3 messages with external call, request and response + request with response
+        assertThat(lines.size(), is(8));
+        assertThat(lines.get(0), containsString("{\"table\":\"message\",\"row\":{\"msg_id\":"
+                + messages[0].getMsgId() + ","));
+        assertThat(lines.get(0), containsString("\"payload\":\"payload \\\"0\\\"\\nline\""));
+        assertThat(lines.get(1), containsString("\"payload\":\"large payload\""));
+        verify(fileRepository).deleteFile("payload/large");
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(count("message", "msg_id = " + messages[i].getMsgId()), is(0));
+        }
+        assertThat(count("message", "msg_id = " + messages[3].getMsgId()), is(1));
+        assertThat(count("archive_message", "1 = 1"), is(0));
+    }
+
+    private void prepareData() {
+        final Date oldDate = DateTime.now().minusDays(10).toDate();
+        final MsgStateEnum[] states = {MsgStateEnum.OK, MsgStateEnum.FAILED, MsgStateEnum.CANCEL,
+                MsgStateEnum.PARTLY_FAILED, MsgStateEnum.OK};
+
+        messages = createAndSaveMessages(states.length, new MessageProcessor() {
+            private int index = 0;
+
+            @Override
+            public void process(Message message) {
+                message.setState(states[index]);
+                message.setPayload("payload \"" + index + "\"\nline");
+                // the last message is not old enough
+                if (index < states.length - 1) {
+                    message.setLastUpdateTimestamp(oldDate);
+                }
+                index++;
+            }
+        });
+
+        TransactionTemplate tx = new TransactionTemplate(jpaTransactionManager);
+        tx.execute(new TransactionCallback<Object>() {
+            @Override
+            public Object doInTransaction(TransactionStatus status) {
+                Message msg = em.merge(messages[0]);
+
+                ExternalCall extCall = ExternalCall.createProcessingCall("direct:someOperation",
+                        UUID.randomUUID().toString(), msg);
+                em.persist(extCall);
+
+                Request request = Request.createRequest("http://localhost", UUID.randomUUID().toString(),
+                        "request", msg);
+                em.persist(request);
+                em.persist(Response.createResponse(request, "response", null, msg));
+
+                orphanRequest = Request.createRequest("http://localhost", UUID.randomUUID().toString(),
+                        "request", null);
+                orphanRequest.setReqTimestamp(oldDate);
+                em.persist(orphanRequest);
+                em.persist(Response.createResponse(orphanRequest, "response", null, null));
+
+                em.flush();
+                return null;
+            }
+        });
+    }
+
+    private void setPayloadFile(Message message, String fileId) {
+        getJdbcTemplate().update("UPDATE message SET payload = '', payload_file = ? WHERE msg_id = ?", fileId,
+                message.getMsgId());
+    }
+
+    private void assertArchived(Long msgId, boolean archived) {
+        assertThat("message " + msgId, count("archive_message", "msg_id = " + msgId), is(archived ? 1 : 0));
+        assertThat("message " + msgId, count("message", "msg_id = " + msgId), is(archived ? 0 : 1));
+    }
+
+    private int count(String table, String condition) {
+        return getJdbcTemplate().queryForObject("SELECT COUNT(*) FROM " + table + " WHERE " + condition,
+                Integer.class);
+    }
+}
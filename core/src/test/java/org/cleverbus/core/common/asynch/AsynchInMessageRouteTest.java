@@ -19,6 +19,11 @@ package org.cleverbus.core.common.asynch;
 import org.apache.camel.*;
 import org.apache.camel.builder.AdviceWithRouteBuilder;
 import org.apache.camel.component.mock.MockEndpoint;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.apache.camel.impl.SimpleRegistry;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.time.DateUtils;
 import org.cleverbus.api.asynch.AsynchConstants;
 import org.cleverbus.api.asynch.model.CallbackResponse;
@@ -29,23 +34,28 @@ import org.cleverbus.api.entity.MsgStateEnum;
 import org.cleverbus.api.exception.StoppingException;
 import org.cleverbus.api.exception.ThrottlingExceededException;
 import org.cleverbus.core.AbstractCoreDbTest;
+import org.cleverbus.core.common.file.DefaultFileRepository;
 import org.cleverbus.test.ActiveRoutes;
 import org.cleverbus.test.ExternalSystemTestEnum;
 import org.cleverbus.test.ServiceTestEnum;
 import org.hamcrest.CoreMatchers;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.test.jdbc.JdbcTestUtils;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Nullable;
+import java.io.File;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.assertThat;
@@ -73,6 +83,9 @@ public class AsynchInMessageRouteTest extends AbstractCoreDbTest {
     @EndpointInject(uri = "mock:test")
     private MockEndpoint mock;
 
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
     @Before
     public void prepareData() {
         getHeaders().put(AsynchConstants.SERVICE_HEADER, ServiceTestEnum.CUSTOMER);
@@ -236,6 +249,121 @@ public class AsynchInMessageRouteTest extends AbstractCoreDbTest {
         mock.assertIsSatisfied();
     }
 
+    @Test
+    public void testLargePayload() throws Exception {
+        getCamelContext().getRouteDefinition(AsynchInMessageRoute.ROUTE_ID_ASYNC)
+                .adviceWith(getCamelContext(), new AdviceWithRouteBuilder() {
+                    @Override
+                    public void configure() throws Exception {
+                        weaveAddLast().to("mock:test");
+                    }
+                });
+
+        DefaultFileRepository fileRepository = enableLargePayloads();
+
+        mock.expectedMessageCount(1);
+
+        String payload = StringUtils.repeat("<large>payload</large>", 100);
+        try {
+            producer.sendBodyAndHeaders(payload, getHeaders());
+        } finally {
+            disableLargePayloads();
+        }
+
+        mock.assertIsSatisfied();
+
+        // payload is stored in the file only
+        Map<String, Object> row = getJdbcTemplate().queryForMap("select payload, payload_file, envelope from message");
+        assertThat((String) row.get("payload"), is(""));
+        assertThat(row.get("envelope"), nullValue());
+        String fileId = (String) row.get("payload_file");
+        assertThat(fileId, notNullValue());
+        assertThat(FileUtils.readFileToString(new File(tempFolder.getRoot(), fileId), "UTF-8"), is(payload));
+
+        // payload is read back as stream cache in the processing route
+        SimpleRegistry registry = new SimpleRegistry();
+        registry.put("fileRepository", fileRepository);
+        DefaultCamelContext camelContext = new DefaultCamelContext(registry);
+        camelContext.start();
+        try {
+            AsynchMessageRoute msgRoute = new AsynchMessageRoute();
+            msgRoute.setContext(camelContext);
+
+            Message msg = new Message();
+            msg.setPayloadFile(fileId);
+
+            Exchange exchange = new DefaultExchange(camelContext);
+            exchange.getIn().setBody(msg);
+
+            msgRoute.setPayloadBody(exchange);
+
+            assertThat(exchange.getIn().getBody(), instanceOf(StreamCache.class));
+            assertThat(exchange.getIn().getBody(String.class), is(payload));
+
+            // stream cache can be read repeatedly
+            ((StreamCache) exchange.getIn().getBody()).reset();
+            assertThat(exchange.getIn().getBody(String.class), is(payload));
+        } finally {
+            camelContext.stop();
+        }
+    }
+
+    @Test
+    public void testLargePayload_insertFailed() throws Exception {
+        getCamelContext().getRouteDefinition(AsynchInMessageRoute.ROUTE_ID_ASYNC)
+                .adviceWith(getCamelContext(), new AdviceWithRouteBuilder() {
+                    @Override
+                    public void configure() throws Exception {
+                        weaveAddLast().to("mock:test");
+                    }
+                });
+
+        enableLargePayloads();
+
+        mock.expectedMessageCount(1);
+
+        // add message with the same msgID => insert fails
+        String sql = "INSERT INTO message "
+                + " (correlation_id, failed_count, failed_desc, failed_error_code, last_update_timestamp, msg_timestamp,"
+                + "     object_id, operation_name, payload, receive_timestamp, service, source_system, state, msg_id,"
+                + "     guaranteed_order, exclude_failed_state)"
+                + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+        getJdbcTemplate().update(sql, getTraceHeader().getTraceIdentifier().getCorrelationID(), 0, "", "", null,
+                new Date(), "", "opName", "payload", new Date(), ServiceTestEnum.CUSTOMER.toString(),
+                ExternalSystemTestEnum.CRM.toString(), MsgStateEnum.NEW.toString(), 1, false, false);
+
+        try {
+            producer.sendBodyAndHeaders(StringUtils.repeat("<large>payload</large>", 100), getHeaders());
+        } finally {
+            disableLargePayloads();
+        }
+
+        assertErrorResponse("Unique index or primary key violation");
+
+        // payload file was deleted
+        File payloadDir = new File(tempFolder.getRoot(), AsynchInMessageRoute.PAYLOAD_FOLDER);
+        assertThat(payloadDir.isDirectory(), is(true));
+        assertThat(FileUtils.listFiles(payloadDir, null, true).isEmpty(), is(true));
+    }
+
+    private DefaultFileRepository enableLargePayloads() {
+        DefaultFileRepository fileRepository = new DefaultFileRepository();
+        setPrivateField(fileRepository, "tempDir", tempFolder.getRoot());
+        setPrivateField(fileRepository, "fileRepoDir", tempFolder.getRoot());
+
+        Object routeBean = getApplicationContext().getBean(AsynchInMessageRoute.ROUTE_BEAN);
+        setPrivateField(routeBean, "fileRepository", fileRepository);
+        setPrivateField(routeBean, "largePayloadThreshold", 100);
+
+        return fileRepository;
+    }
+
+    private void disableLargePayloads() {
+        Object routeBean = getApplicationContext().getBean(AsynchInMessageRoute.ROUTE_BEAN);
+        setPrivateField(routeBean, "fileRepository", null);
+        setPrivateField(routeBean, "largePayloadThreshold", -1);
+    }
+
     private void assertErrorResponse(String addInfo) throws InterruptedException {
         mock.assertIsSatisfied();
 
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cleverbus.core.common.asynch;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.Date;
+
+import org.cleverbus.api.entity.ExternalCall;
+import org.cleverbus.api.entity.ExternalCallStateEnum;
+import org.cleverbus.api.entity.Message;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Test suite for {@link ExternalCallOkCache}.
+ */
+public class ExternalCallOkCacheTest {
+
+    private ExternalCallOkCache cache;
+
+    @Before
+    public void prepareCache() {
+        cache = new ExternalCallOkCache();
+        cache.setMaxSize(2);
+        cache.setTtl(60);
+        cache.initCache();
+    }
+
+    @Test
+    public void testOkCall() {
+        ExternalCall extCall = createOkCall("uri", "key", 1L, new Date(1000));
+        cache.putOkCall(extCall);
+
+        assertThat(cache.getOkMsgTimestamp("uri", "key"), is(new Date(1000)));
+        assertThat(cache.getOkMsgTimestamp("uri", "otherKey"), nullValue());
+        assertThat(cache.getCountOfHits(), is(1L));
+        assertThat(cache.getCountOfMisses(), is(1L));
+    }
+
+    @Test
+    public void testEviction() {
+        cache.putOkCall(createOkCall("uri", "key1", 1L, new Date(1000)));
+        cache.putOkCall(createOkCall("uri", "key2", 2L, new Date(2000)));
+        cache.putOkCall(createOkCall("uri", "key3", 3L, new Date(3000)));
+
+        assertThat(cache.getSize(), is(2));
+        assertThat(cache.getOkMsgTimestamp("uri", "key1"), nullValue());
+        assertThat(cache.getOkMsgTimestamp("uri", "key3"), is(new Date(3000)));
+    }
+
+    @Test
+    public void testRemoveMessageCalls() {
+        cache.putOkCall(createOkCall("uri", "key1", 1L, new Date(1000)));
+        cache.putOkCall(createOkCall("uri", "key2", 2L, new Date(2000)));
+
+        cache.removeMessageCalls(1L);
+
+        assertThat(cache.getOkMsgTimestamp("uri", "key1"), nullValue());
+        assertThat(cache.getOkMsgTimestamp("uri", "key2"), is(new Date(2000)));
+    }
+
+    @Test
+    public void testDisabledCache() {
+        cache = new ExternalCallOkCache();
+        cache.setMaxSize(0);
+        cache.setTtl(60);
+        cache.initCache();
+
+        cache.putOkCall(createOkCall("uri", "key", 1L, new Date(1000)));
+
+        assertThat(cache.isEnabled(), is(false));
+        assertThat(cache.getOkMsgTimestamp("uri", "key"), nullValue());
+    }
+
+    private static ExternalCall createOkCall(String operationName, String entityId, Long msgId, Date msgTimestamp) {
+        Message msg = new Message();
+        msg.setMsgId(msgId);
+        msg.setMsgTimestamp(msgTimestamp);
+
+        ExternalCall extCall = ExternalCall.createProcessingCall(operationName, entityId, msg);
+        extCall.setState(ExternalCallStateEnum.OK);
+        return extCall;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cleverbus.core.common.asynch.msg;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Test suite for {@link AdaptiveConsumersController}.
+ */
+public class AdaptiveConsumersControllerTest {
+
+    private AdaptiveConsumersController controller;
+
+    @Before
+    public void prepareController() {
+        controller = new AdaptiveConsumersController();
+        controller.setMaxConsumers(8);
+        controller.setMinConsumers(2);
+        controller.setInterval(0);
+        controller.setTargetWaitTime(1000);
+        controller.setEnabled(true);
+        controller.setCurrentConsumers(4);
+    }
+
+    @Test
+    public void testGrowWhenMessagesWait() {
+        controller.evaluate(100, 10, 10 * 5000);
+        assertThat(controller.getCurrentConsumers(), is(5));
+
+        controller.evaluate(100, 20, 20 * 5000);
+        controller.evaluate(100, 30, 30 * 5000);
+        controller.evaluate(100, 40, 40 * 5000);
+        assertThat(controller.getCurrentConsumers(), is(8));
+
+        // short waiting time => no change
+        controller.evaluate(100, 50, 40 * 5000 + 10 * 100);
+        assertThat(controller.getCurrentConsumers(), is(8));
+    }
+
+    @Test
+    public void testShrinkWhenQueueIsEmpty() {
+        controller.evaluate(0, 10, 0);
+        assertThat(controller.getCurrentConsumers(), is(3));
+
+        controller.evaluate(0, 20, 0);
+        controller.evaluate(0, 30, 0);
+        assertThat(controller.getCurrentConsumers(), is(2));
+    }
+
+    @Test
+    public void testShrinkWhenExternalCallsAreSlow() {
+        controller.addExternalCall(100);
+        controller.evaluate(100, 10, 10 * 5000);
+        assertThat(controller.getCurrentConsumers(), is(5));
+
+        // external calls are much slower => target system is overloaded
+        controller.addExternalCall(500);
+        controller.evaluate(100, 20, 20 * 5000);
+        assertThat(controller.getCurrentConsumers(), is(4));
+        assertThat(controller.getExternalCallLatency(), is(500L));
+    }
+
+    @Test
+    public void testLimitOfActiveConsumers() throws Exception {
+        controller.setCurrentConsumers(2);
+
+        assertThat(controller.enter(0), is(true));
+        assertThat(tryEnterInOtherThread(), is(true));
+        assertThat(controller.getActiveConsumers(), is(2));
+
+        // limit is reached
+        assertThat(tryEnterInOtherThread(), is(false));
+
+        controller.leave();
+        assertThat(controller.getActiveConsumers(), is(1));
+        assertThat(tryEnterInOtherThread(), is(true));
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        controller.setCurrentConsumers(1);
+        controller.setEnabled(false);
+
+        assertThat(controller.enter(0), is(true));
+        assertThat(tryEnterInOtherThread(), is(true));
+
+        controller.evaluate(0, 10, 0);
+        assertThat(controller.getCurrentConsumers(), is(2));
+    }
+
+    /**
+     * Enters in new thread which stays alive (as consumer thread) after the test.
+     */
+    private boolean tryEnterInOtherThread() throws InterruptedException {
+        final AtomicBoolean result = new AtomicBoolean();
+        final Object stop = new Object();
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.set(controller.enter(50));
+
+                    synchronized (stop) {
+                        stop.wait(5000);
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        thread.join(1000);
+
+        return result.get();
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cleverbus.core.common.asynch.msg;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.cleverbus.api.entity.Message;
+import org.cleverbus.api.entity.MsgStateEnum;
+import org.cleverbus.core.AbstractCoreDbTest;
+import org.cleverbus.core.common.dao.MessageDao;
+import org.cleverbus.spi.msg.MessageService;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+
+/**
+ * Test suite for {@link FunnelRegistry}.
+ */
+public class FunnelRegistryTest extends AbstractCoreDbTest {
+
+    private static final String FUNNEL_COMP_ID = "funnel_registryTest";
+
+    private static final int IDLE_INTERVAL = 600;
+
+    @Autowired
+    private FunnelRegistry funnelRegistry;
+
+    @Autowired
+    private MessageService messageService;
+
+    @Autowired
+    private MessageDao messageDao;
+
+    @Before
+    public void enableRegistry() {
+        funnelRegistry.setEnabled(true);
+    }
+
+    @After
+    public void disableRegistry() {
+        funnelRegistry.setEnabled(false);
+    }
+
+    @Test
+    public void testLoadingFromDb() {
+        final String funnelValue = "loadingFromDb";
+
+        Message[] messages = createFunnelMessages(funnelValue, MsgStateEnum.POSTPONED, MsgStateEnum.PROCESSING,
+                MsgStateEnum.OK, MsgStateEnum.FAILED, MsgStateEnum.WAITING_FOR_RES);
+
+        Collection<String> funnelValues = Collections.singletonList(funnelValue);
+
+        assertThat(messageService.getCountProcessingMessagesForFunnel(funnelValues, IDLE_INTERVAL, FUNNEL_COMP_ID),
+                is(2));
+        assertThat(messageService.getMsgIdsForGuaranteedOrderForFunnel(funnelValues, IDLE_INTERVAL, false,
+                FUNNEL_COMP_ID), is(Arrays.asList(messages[0].getMsgId(), messages[1].getMsgId(),
+                messages[3].getMsgId(), messages[4].getMsgId())));
+        assertThat(messageService.getMsgIdsForGuaranteedOrderForFunnel(funnelValues, IDLE_INTERVAL, true,
+                FUNNEL_COMP_ID), is(Arrays.asList(messages[0].getMsgId(), messages[1].getMsgId(),
+                messages[4].getMsgId())));
+
+        // the same results as database queries
+        assertThat(messageService.getCountProcessingMessagesForFunnel(funnelValues, IDLE_INTERVAL, FUNNEL_COMP_ID),
+                is(countProcessingMessagesInDb(funnelValues)));
+        assertThat(messageService.getMsgIdsForGuaranteedOrderForFunnel(funnelValues, IDLE_INTERVAL, false,
+                FUNNEL_COMP_ID), is(getMsgIdsForGuaranteedOrderInDb(funnelValues)));
+    }
+
+    @Test
+    public void testStateTransitions() {
+        final String funnelValue = "stateTransitions";
+
+        Message[] messages = createFunnelMessages(funnelValue, MsgStateEnum.PROCESSING, MsgStateEnum.PROCESSING);
+
+        Collection<String> funnelValues = Collections.singletonList(funnelValue);
+
+        assertThat(messageService.getCountProcessingMessagesForFunnel(funnelValues, IDLE_INTERVAL, FUNNEL_COMP_ID),
+                is(2));
+
+        // second message is postponed
+        messageService.setStatePostponed(messages[1]);
+
+        assertThat(messageService.getCountProcessingMessagesForFunnel(funnelValues, IDLE_INTERVAL, FUNNEL_COMP_ID),
+                is(1));
+        assertThat(messageService.getMsgIdsForGuaranteedOrderForFunnel(funnelValues, IDLE_INTERVAL, false,
+                FUNNEL_COMP_ID), is(Arrays.asList(messages[0].getMsgId(), messages[1].getMsgId())));
+
+        // first message is finished
+        messageService.setStateOk(messages[0], getHeaders());
+
+        assertThat(messageService.getCountProcessingMessagesForFunnel(funnelValues, IDLE_INTERVAL, FUNNEL_COMP_ID),
+                is(0));
+        assertThat(messageService.getMsgIdsForGuaranteedOrderForFunnel(funnelValues, IDLE_INTERVAL, false,
+                FUNNEL_COMP_ID), is(Collections.singletonList(messages[1].getMsgId())));
+
+        // registry is consistent with database
+        assertThat(countProcessingMessagesInDb(funnelValues), is(0));
+        assertThat(getMsgIdsForGuaranteedOrderInDb(funnelValues),
+                is(Collections.singletonList(messages[1].getMsgId())));
+    }
+
+    @Test
+    public void testChangeOfFunnelValues() {
+        final String funnelValue = "changeOfFunnelValues";
+        final String newFunnelValue = "changeOfFunnelValues_new";
+
+        Message[] messages = createFunnelMessages(funnelValue, MsgStateEnum.PROCESSING);
+
+        Collection<String> funnelValues = Collections.singletonList(funnelValue);
+        Collection<String> newFunnelValues = Collections.singletonList(newFunnelValue);
+
+        assertThat(messageService.getCountProcessingMessagesForFunnel(funnelValues, IDLE_INTERVAL, FUNNEL_COMP_ID),
+                is(1));
+        assertThat(messageService.getCountProcessingMessagesForFunnel(newFunnelValues, IDLE_INTERVAL,
+                FUNNEL_COMP_ID), is(0));
+
+        messageService.setFunnelComponentIdAndValue(messages[0], FUNNEL_COMP_ID, newFunnelValues);
+
+        assertThat(messageService.getCountProcessingMessagesForFunnel(funnelValues, IDLE_INTERVAL, FUNNEL_COMP_ID),
+                is(0));
+        assertThat(messageService.getCountProcessingMessagesForFunnel(newFunnelValues, IDLE_INTERVAL,
+                FUNNEL_COMP_ID), is(1));
+    }
+
+    @Test
+    public void testChangeIsAppliedAfterCommit() {
+        final String funnelValue = "appliedAfterCommit";
+
+        final Message[] messages = createFunnelMessages(funnelValue, MsgStateEnum.PROCESSING);
+
+        final Collection<String> funnelValues = Collections.singletonList(funnelValue);
+
+        assertThat(messageService.getCountProcessingMessagesForFunnel(funnelValues, IDLE_INTERVAL, FUNNEL_COMP_ID),
+                is(1));
+
+        TransactionTemplate tx = new TransactionTemplate(jpaTransactionManager);
+        tx.execute(new TransactionCallback<Object>() {
+            @Override
+            public Object doInTransaction(TransactionStatus status) {
+                messageService.setStatePostponed(messageDao.getMessage(messages[0].getMsgId()));
+
+                // not committed yet
+                assertThat(funnelRegistry.getCountProcessingMessages(funnelValues, IDLE_INTERVAL, FUNNEL_COMP_ID),
+                        is(1));
+
+                status.setRollbackOnly();
+                return null;
+            }
+        });
+
+        // rollback => no change
+        assertThat(messageService.getCountProcessingMessagesForFunnel(funnelValues, IDLE_INTERVAL, FUNNEL_COMP_ID),
+                is(1));
+    }
+
+    private Message[] createFunnelMessages(final String funnelValue, final MsgStateEnum... states) {
+        final DateTime now = DateTime.now();
+
+        return createAndSaveMessages(states.length, new MessageProcessor() {
+            private int index = 0;
+
+            @Override
+            public void process(Message message) {
+                message.setState(states[index]);
+                message.setMsgTimestamp(now.plusSeconds(index).toDate());
+                message.setStartProcessTimestamp(now.toDate());
+                message.setFunnelComponentId(FUNNEL_COMP_ID);
+                message.setFunnelValues(Collections.singletonList(funnelValue));
+                index++;
+            }
+        });
+    }
+
+    private int countProcessingMessagesInDb(final Collection<String> funnelValues) {
+        TransactionTemplate tx = new TransactionTemplate(jpaTransactionManager);
+        return tx.execute(new TransactionCallback<Integer>() {
+            @Override
+            public Integer doInTransaction(TransactionStatus status) {
+                return messageDao.getCountProcessingMessagesForFunnel(funnelValues, IDLE_INTERVAL, FUNNEL_COMP_ID);
+            }
+        });
+    }
+
+    private List<Long> getMsgIdsForGuaranteedOrderInDb(final Collection<String> funnelValues) {
+        funnelRegistry.setEnabled(false);
+        try {
+            return messageService.getMsgIdsForGuaranteedOrderForFunnel(funnelValues, IDLE_INTERVAL, false,
+                    FUNNEL_COMP_ID);
+        } finally {
+            funnelRegistry.setEnabled(true);
+        }
+    }
+}
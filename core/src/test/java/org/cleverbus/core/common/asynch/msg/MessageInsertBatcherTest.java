@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cleverbus.core.common.asynch.msg;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.cleverbus.api.entity.Message;
+import org.cleverbus.core.AbstractCoreDbTest;
+import org.cleverbus.test.ExternalSystemTestEnum;
+import org.cleverbus.test.ServiceTestEnum;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+
+/**
+ * Test suite for {@link MessageInsertBatcher}.
+ */
+public class MessageInsertBatcherTest extends AbstractCoreDbTest {
+
+    private static final int THREADS = 10;
+
+    @Autowired
+    private MessageInsertBatcher insertBatcher;
+
+    private ExecutorService executor;
+
+    private final List<Message> messages = new ArrayList<Message>();
+
+    @Before
+    public void prepareBatcher() {
+        insertBatcher.setEnabled(true);
+        insertBatcher.setMaxDelay(200);
+        insertBatcher.setMaxBatchSize(THREADS);
+        insertBatcher.resetStatistics();
+
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void deleteMessages() {
+        executor.shutdownNow();
+        insertBatcher.setEnabled(false);
+
+        // messages are committed, they mustn't affect other tests
+        for (Message msg : messages) {
+            if (msg.getMsgId() != null) {
+                getJdbcTemplate().update("DELETE FROM funnel WHERE msg_id = ?", msg.getMsgId());
+                getJdbcTemplate().update("DELETE FROM message WHERE msg_id = ?", msg.getMsgId());
+            }
+        }
+    }
+
+    @Test
+    public void testGroupInsert() throws Exception {
+        List<Future<Exception>> results = insertConcurrently(THREADS);
+
+        for (Future<Exception> result : results) {
+            assertThat(result.get(), nullValue());
+        }
+
+        // each caller returns after commit of its message
+        for (Message msg : messages) {
+            assertThat(msg.getMsgId(), notNullValue());
+            assertThat(countMessages(msg), is(1));
+        }
+
+        assertTrue("messages should be inserted in less transactions than one per message",
+                insertBatcher.getCountOfBatches() < THREADS);
+        assertThat(insertBatcher.getCountOfFailedBatches(), is(0L));
+    }
+
+    @Test
+    public void testGroupInsertWithWrongMessage() throws Exception {
+        // all messages in one group - the group is closed when it's full
+        insertBatcher.setMaxDelay(5000);
+
+        // two messages with the same correlation ID - the second one violates unique constraint
+        String correlationId = "duplicateCorrelationId";
+        messages.add(createMessage(correlationId));
+        messages.add(createMessage(correlationId));
+        for (int i = 0; i < THREADS - 2; i++) {
+            messages.add(createMessage("correlationId" + i));
+        }
+
+        // cascaded funnels must be inserted again after the group is rolled back
+        for (Message msg : messages) {
+            msg.setFunnelValues(Arrays.asList("funnelValue1", "funnelValue2"));
+        }
+
+        List<Future<Exception>> results = insertConcurrently(0);
+
+        int failures = 0;
+        for (Future<Exception> result : results) {
+            if (result.get() != null) {
+                failures++;
+            }
+        }
+
+        assertThat(failures, is(1));
+
+        // other messages are inserted
+        int inserted = 0;
+        for (Message msg : messages) {
+            if (msg.getMsgId() != null && countMessages(msg) == 1) {
+                inserted++;
+
+                assertThat(getJdbcTemplate().queryForObject("SELECT COUNT(*) FROM funnel WHERE msg_id = ?",
+                        Integer.class, msg.getMsgId()), is(2));
+            }
+        }
+        assertThat(inserted, is(THREADS - 1));
+    }
+
+    @Test
+    public void testInsertWithoutGroupCommit() {
+        insertBatcher.setEnabled(false);
+
+        Message msg = createMessage("correlationId");
+        messages.add(msg);
+
+        insertBatcher.insertMessage(msg);
+
+        assertThat(countMessages(msg), is(1));
+        assertThat(insertBatcher.getCountOfBatches(), is(0L));
+    }
+
+    /**
+     * Inserts prepared messages and specified count of new messages concurrently.
+     *
+     * @param count count of new messages
+     * @return results of inserts (exception if insert failed)
+     */
+    private List<Future<Exception>> insertConcurrently(int count) {
+        for (int i = 0; i < count; i++) {
+            messages.add(createMessage("correlationId" + i));
+        }
+
+        final CountDownLatch startLatch = new CountDownLatch(1);
+
+        List<Future<Exception>> results = new ArrayList<Future<Exception>>();
+        for (final Message msg : messages) {
+            results.add(executor.submit(new Callable<Exception>() {
+                @Override
+                public Exception call() throws Exception {
+                    startLatch.await();
+                    try {
+                        insertBatcher.insertMessage(msg);
+                        return null;
+                    } catch (Exception ex) {
+                        return ex;
+                    }
+                }
+            }));
+        }
+
+        startLatch.countDown();
+        return results;
+    }
+
+    private Message createMessage(String correlationId) {
+        Message msg = createMessage(ExternalSystemTestEnum.CRM, ServiceTestEnum.CUSTOMER, "testOperation",
+                "test payload");
+        msg.setCorrelationId(correlationId);
+        return msg;
+    }
+
+    private int countMessages(Message msg) {
+        return getJdbcTemplate().queryForObject("SELECT COUNT(*) FROM message WHERE msg_id = ?",
+                Integer.class, msg.getMsgId());
+    }
+}
@@ -18,17 +18,24 @@ package org.cleverbus.core.common.asynch.msg;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
 
 import java.util.concurrent.CountDownLatch;
 
+import org.cleverbus.api.entity.ExternalCall;
+import org.cleverbus.api.entity.ExternalCallStateEnum;
 import org.cleverbus.api.entity.Message;
 import org.cleverbus.api.entity.MsgStateEnum;
 import org.cleverbus.core.AbstractCoreDbTest;
+import org.cleverbus.core.common.asynch.ExternalCallOkCache;
 
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.context.ContextConfiguration;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
 
 
 /**
@@ -42,6 +49,9 @@ public class MessageOperationServiceTest extends AbstractCoreDbTest {
     @Autowired
     private MessageOperationService operationService;
 
+    @Autowired
+    private ExternalCallOkCache extCallOkCache;
+
     @Test
     public void testRestartForFailedMessage() {
         // prepare message in FAILED state
@@ -61,6 +71,42 @@ public class MessageOperationServiceTest extends AbstractCoreDbTest {
         assertThat(msgDB.getState(), is(MsgStateEnum.PARTLY_FAILED));
     }
 
+    @Test
+    public void testRestartRemovesCachedCallsAfterCommit() {
+        final Message[] messages = createAndSaveMessages(1, new MessageProcessor() {
+            @Override
+            public void process(Message message) {
+                message.setState(MsgStateEnum.FAILED);
+            }
+        });
+
+        final ExternalCall extCall = ExternalCall.createProcessingCall("uri", "key", messages[0]);
+        extCall.setState(ExternalCallStateEnum.OK);
+
+        extCallOkCache.setMaxSize(10);
+        try {
+            extCallOkCache.putOkCall(extCall);
+
+            TransactionTemplate tx = new TransactionTemplate(jpaTransactionManager);
+            tx.execute(new TransactionCallback<Object>() {
+                @Override
+                public Object doInTransaction(TransactionStatus status) {
+                    operationService.restartMessage(messages[0].getMsgId(), false);
+
+                    // call finished by concurrent processing before commit of the restart
+                    extCallOkCache.putOkCall(extCall);
+                    assertThat(extCallOkCache.getOkMsgTimestamp("uri", "key"), notNullValue());
+                    return null;
+                }
+            });
+
+            assertThat(extCallOkCache.getOkMsgTimestamp("uri", "key"), nullValue());
+        } finally {
+            extCallOkCache.clear();
+            extCallOkCache.setMaxSize(0);
+        }
+    }
+
     @Test
     public void testRestartForFailedMessage_multiThreaded() throws Exception {
         // prepare message in FAILED state
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cleverbus.core.common.asynch.msg;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cleverbus.api.entity.BindingTypeEnum;
+import org.cleverbus.api.entity.Message;
+import org.cleverbus.api.entity.MsgStateEnum;
+import org.cleverbus.common.log.Log;
+import org.cleverbus.core.AbstractCoreDbTest;
+import org.cleverbus.spi.msg.MessageService;
+import org.cleverbus.test.ExternalSystemTestEnum;
+import org.cleverbus.test.ServiceTestEnum;
+
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+
+/**
+ * Comparison of bulk insert of messages ({@link MessageService#insertMessages}) with inserts one by one,
+ * results are written to the log. Run by profile "benchmark" only.
+ */
+public class MessageServiceBenchmark extends AbstractCoreDbTest {
+
+    private static final int COUNT = 1000;
+
+    @Autowired
+    private MessageService messageService;
+
+    @Test
+    public void benchmarkInsertMessages() {
+        Message parentMsg = createAndSaveMessages(1, new MessageProcessor() {
+            @Override
+            public void process(Message message) {
+                message.setState(MsgStateEnum.PROCESSING);
+            }
+        })[0];
+
+        try {
+            // warm up
+            insertBulk(parentMsg);
+            insertOneByOne(parentMsg);
+
+            long bulkTime = Math.max(insertBulk(parentMsg), 1);
+            long singleTime = Math.max(insertOneByOne(parentMsg), 1);
+
+            Log.info("Insert of {} messages: insertMessages() {} ms ({} rows/s), insertMessage() one by one {} ms"
+                    + " ({} rows/s)", COUNT, bulkTime, COUNT * 1000L / bulkTime, singleTime,
+                    COUNT * 1000L / singleTime);
+        } finally {
+            getJdbcTemplate().update("DELETE FROM message WHERE msg_id = ?", parentMsg.getMsgId());
+        }
+    }
+
+    private long insertBulk(Message parentMsg) {
+        List<Message> messages = createChildMessages(parentMsg);
+
+        long start = System.currentTimeMillis();
+        messageService.insertMessages(messages);
+        long time = System.currentTimeMillis() - start;
+
+        deleteChildMessages(parentMsg);
+        return time;
+    }
+
+    private long insertOneByOne(Message parentMsg) {
+        List<Message> messages = createChildMessages(parentMsg);
+
+        long start = System.currentTimeMillis();
+        for (Message msg : messages) {
+            messageService.insertMessage(msg);
+        }
+        long time = System.currentTimeMillis() - start;
+
+        deleteChildMessages(parentMsg);
+        return time;
+    }
+
+    private List<Message> createChildMessages(Message parentMsg) {
+        List<Message> childMessages = new ArrayList<Message>(COUNT);
+        for (int i = 0; i < COUNT; i++) {
+            Message msg = createMessage(ExternalSystemTestEnum.CRM, ServiceTestEnum.CUSTOMER, "testOperation",
+                    "test payload");
+            msg.setParentMsgId(parentMsg.getMsgId());
+            msg.setParentBindingType(BindingTypeEnum.HARD);
+            childMessages.add(msg);
+        }
+        return childMessages;
+    }
+
+    private void deleteChildMessages(Message parentMsg) {
+        getJdbcTemplate().update("DELETE FROM message WHERE parent_msg_id = ?", parentMsg.getMsgId());
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cleverbus.core.common.asynch.msg;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.cleverbus.api.entity.BindingTypeEnum;
+import org.cleverbus.api.entity.Message;
+import org.cleverbus.api.entity.MsgStateEnum;
+import org.cleverbus.api.exception.InternalErrorEnum;
+import org.cleverbus.core.AbstractCoreDbTest;
+import org.cleverbus.spi.msg.MessageService;
+import org.cleverbus.test.ExternalSystemTestEnum;
+import org.cleverbus.test.ServiceTestEnum;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+
+/**
+ * Test suite for inserts and state transitions in {@link MessageServiceImpl}.
+ */
+public class MessageServiceImplTest extends AbstractCoreDbTest {
+
+    @Autowired
+    private MessageService messageService;
+
+    private final List<Long> msgIds = new ArrayList<Long>();
+
+    @After
+    public void deleteMessages() {
+        // messages are committed, they mustn't affect other tests (e.g. polling of POSTPONED messages)
+        for (Long msgId : msgIds) {
+            getJdbcTemplate().update("DELETE FROM message WHERE msg_id = ?", msgId);
+        }
+    }
+
+    @Test
+    public void testInsertMessages() {
+        Message parentMsg = createAndSaveMessage(MsgStateEnum.PROCESSING);
+
+        List<Message> childMessages = createChildMessages(parentMsg, 120);
+        try {
+            messageService.insertMessages(childMessages);
+
+            Set<Long> ids = new HashSet<Long>();
+            for (Message msg : childMessages) {
+                ids.add(msg.getMsgId());
+            }
+
+            assertThat(ids.size(), is(childMessages.size()));
+            assertThat(countChildMessages(parentMsg), is(childMessages.size()));
+            assertThat(getDbValue(parentMsg, "children_remaining"), is((Object) childMessages.size()));
+        } finally {
+            deleteChildMessages(parentMsg);
+        }
+    }
+
+    /**
+     * Bulk insert of more messages than one JDBC batch, the same rows must be inserted as one by one.
+     */
+    @Test
+    public void testInsertMessagesSameAsOneByOne() {
+        final int count = 1000;
+
+        Message parentMsg = createAndSaveMessage(MsgStateEnum.PROCESSING);
+        try {
+            List<Message> bulkMessages = createChildMessages(parentMsg, count);
+            messageService.insertMessages(bulkMessages);
+
+            List<Message> singleMessages = createChildMessages(parentMsg, count);
+            for (Message msg : singleMessages) {
+                messageService.insertMessage(msg);
+            }
+
+            // each message has own ID which corresponds to the inserted row
+            Set<Long> ids = new HashSet<Long>();
+            for (List<Message> messages : Arrays.asList(bulkMessages, singleMessages)) {
+                for (Message msg : messages) {
+                    assertThat(msg.getMsgId() != null, is(true));
+                    ids.add(msg.getMsgId());
+
+                    assertThat(getDbValue(msg, "correlation_id"), is((Object) msg.getCorrelationId()));
+                    assertThat(getDbValue(msg, "state"), is((Object) msg.getState().name()));
+                }
+            }
+
+            assertThat(ids.size(), is(2 * count));
+            assertThat(countChildMessages(parentMsg), is(2 * count));
+        } finally {
+            deleteChildMessages(parentMsg);
+        }
+    }
+
+    @Test
+    public void testSetStateOk() {
+        Message msg = createAndSaveMessage(MsgStateEnum.PROCESSING);
+
+        // payload is not written with the state
+        getJdbcTemplate().update("UPDATE message SET payload = 'changed payload' WHERE msg_id = ?", msg.getMsgId());
+
+        messageService.setStateOk(msg, getHeaders());
+
+        assertThat(msg.getState(), is(MsgStateEnum.OK));
+        assertThat(getDbValue(msg, "state"), is((Object) MsgStateEnum.OK.name()));
+        assertThat(getDbValue(msg, "payload"), is((Object) "changed payload"));
+    }
+
+    @Test
+    public void testSetStateOkAfterConcurrentChange() {
+        Message msg = createAndSaveMessage(MsgStateEnum.PROCESSING);
+
+        // e.g. repair process changed the state in the meantime
+        changeDbState(msg, MsgStateEnum.PARTLY_FAILED);
+
+        messageService.setStateOk(msg, getHeaders());
+
+        assertThat(getDbValue(msg, "state"), is((Object) MsgStateEnum.PARTLY_FAILED.name()));
+    }
+
+    @Test
+    public void testSetStatePartlyFailed() {
+        Message msg = createAndSaveMessage(MsgStateEnum.PROCESSING);
+
+        messageService.setStatePartlyFailed(msg, new IllegalStateException("test error"), InternalErrorEnum.E115,
+                "custom data", getHeaders());
+
+        Map<String, Object> row = getJdbcTemplate().queryForMap(
+                "SELECT state, failed_count, failed_error_code, custom_data FROM message WHERE msg_id = ?",
+                msg.getMsgId());
+
+        assertThat(row.get("state"), is((Object) MsgStateEnum.PARTLY_FAILED.name()));
+        assertThat(row.get("failed_count"), is((Object) 1));
+        assertThat(row.get("failed_error_code"), is((Object) InternalErrorEnum.E115.getErrorCode()));
+        assertThat(row.get("custom_data"), is((Object) "custom data"));
+
+        // without error
+        changeDbState(msg, MsgStateEnum.PROCESSING);
+        msg.setState(MsgStateEnum.PROCESSING);
+
+        messageService.setStatePartlyFailedWithoutError(msg);
+
+        assertThat(getDbValue(msg, "state"), is((Object) MsgStateEnum.PARTLY_FAILED.name()));
+        assertThat(getDbValue(msg, "failed_count"), is((Object) 1));
+    }
+
+    @Test
+    public void testSetStatePartlyFailedOfParentMessage() {
+        Message msg = createAndSaveMessage(MsgStateEnum.PROCESSING);
+        msg.setParentMessage(true);
+
+        // business error added by child message in the meantime
+        getJdbcTemplate().update("UPDATE message SET business_error = 'child error' WHERE msg_id = ?",
+                msg.getMsgId());
+
+        messageService.setStatePartlyFailed(msg, new IllegalStateException("test error"), InternalErrorEnum.E115,
+                "custom data", getHeaders());
+
+        Map<String, Object> row = getJdbcTemplate().queryForMap("SELECT state, failed_count, failed_error_code,"
+                + " failed_desc, custom_data, business_error FROM message WHERE msg_id = ?", msg.getMsgId());
+
+        assertThat(row.get("state"), is((Object) MsgStateEnum.PARTLY_FAILED.name()));
+        assertThat(row.get("failed_count"), is((Object) 1));
+        assertThat(row.get("failed_error_code"), is((Object) InternalErrorEnum.E115.getErrorCode()));
+        assertThat(row.get("failed_desc"), notNullValue());
+        assertThat(row.get("custom_data"), is((Object) "custom data"));
+        assertThat(row.get("business_error"), is((Object) "child error"));
+    }
+
+    @Test
+    public void testSetStatePostponed() {
+        Message msg = createAndSaveMessage(MsgStateEnum.PROCESSING);
+
+        messageService.setStatePostponed(msg);
+
+        assertThat(getDbValue(msg, "state"), is((Object) MsgStateEnum.POSTPONED.name()));
+    }
+
+    @Test
+    public void testSetStateWaiting() {
+        Message msg = createAndSaveMessage(MsgStateEnum.PROCESSING);
+        msg.setParentMessage(true);
+
+        messageService.setStateWaiting(msg);
+
+        assertThat(msg.getState(), is(MsgStateEnum.WAITING));
+        assertThat(getDbValue(msg, "state"), is((Object) MsgStateEnum.WAITING.name()));
+
+        // parent message has been already finished
+        Message finishedMsg = createAndSaveMessage(MsgStateEnum.PROCESSING);
+        finishedMsg.setParentMessage(true);
+        changeDbState(finishedMsg, MsgStateEnum.OK);
+
+        messageService.setStateWaiting(finishedMsg);
+
+        assertThat(finishedMsg.getState(), is(MsgStateEnum.PROCESSING));
+        assertThat(getDbValue(finishedMsg, "state"), is((Object) MsgStateEnum.OK.name()));
+    }
+
+    @Test
+    public void testSetStateOkOfChildMessage() {
+        final Message parentMsg = createAndSaveMessage(MsgStateEnum.WAITING);
+
+        Message childMsg = createAndSaveMessages(1, new MessageProcessor() {
+            @Override
+            public void process(Message message) {
+                message.setParentMsgId(parentMsg.getMsgId());
+                message.setParentBindingType(BindingTypeEnum.HARD);
+            }
+        })[0];
+        msgIds.add(0, childMsg.getMsgId());
+
+        messageService.setStateOk(childMsg, getHeaders());
+
+        assertThat(getDbValue(childMsg, "state"), is((Object) MsgStateEnum.OK.name()));
+        assertThat(getDbValue(parentMsg, "state"), is((Object) MsgStateEnum.OK.name()));
+    }
+
+    @Test
+    public void testSetStateOkOfChildMessagesWithCounter() {
+        Message parentMsg = createAndSaveMessage(MsgStateEnum.WAITING);
+
+        List<Message> childMessages = createChildMessages(parentMsg, 3);
+        try {
+            messageService.insertMessages(childMessages);
+
+            childMessages.get(0).setBusinessError("error1");
+            messageService.setStateOk(childMessages.get(0), getHeaders());
+            // the same child message can't be counted twice
+            messageService.setStateOk(childMessages.get(0), getHeaders());
+
+            childMessages.get(1).setBusinessError("error2");
+            messageService.setStateOk(childMessages.get(1), getHeaders());
+
+            assertThat(getDbValue(parentMsg, "children_remaining"), is((Object) 1));
+            assertThat(getDbValue(parentMsg, "state"), is((Object) MsgStateEnum.WAITING.name()));
+
+            messageService.setStateOk(childMessages.get(2), getHeaders());
+
+            assertThat(getDbValue(parentMsg, "children_remaining"), is((Object) 0));
+            assertThat(getDbValue(parentMsg, "state"), is((Object) MsgStateEnum.OK.name()));
+            assertThat(getDbValue(parentMsg, "business_error"),
+                    is((Object) ("error1" + Message.ERR_DESC_SEPARATOR + "error2")));
+        } finally {
+            deleteChildMessages(parentMsg);
+        }
+    }
+
+    private Message createAndSaveMessage(final MsgStateEnum state) {
+        Message msg = createAndSaveMessages(1, new MessageProcessor() {
+            @Override
+            public void process(Message message) {
+                message.setState(state);
+            }
+        })[0];
+
+        msgIds.add(msg.getMsgId());
+        return msg;
+    }
+
+    private List<Message> createChildMessages(Message parentMsg, int count) {
+        List<Message> childMessages = new ArrayList<Message>(count);
+        for (int i = 0; i < count; i++) {
+            Message msg = createMessage(ExternalSystemTestEnum.CRM, ServiceTestEnum.CUSTOMER, "testOperation",
+                    "test payload");
+            msg.setParentMsgId(parentMsg.getMsgId());
+            msg.setParentBindingType(BindingTypeEnum.HARD);
+            childMessages.add(msg);
+        }
+        return childMessages;
+    }
+
+    private int countChildMessages(Message parentMsg) {
+        return getJdbcTemplate().queryForObject("SELECT COUNT(*) FROM message WHERE parent_msg_id = ?",
+                Integer.class, parentMsg.getMsgId());
+    }
+
+    private void deleteChildMessages(Message parentMsg) {
+        getJdbcTemplate().update("DELETE FROM message WHERE parent_msg_id = ?", parentMsg.getMsgId());
+    }
+
+    private void changeDbState(Message msg, MsgStateEnum state) {
+        getJdbcTemplate().update("UPDATE message SET state = ? WHERE msg_id = ?", state.name(), msg.getMsgId());
+    }
+
+    private Object getDbValue(Message msg, String column) {
+        return getJdbcTemplate().queryForObject("SELECT " + column + " FROM message WHERE msg_id = ?",
+                Object.class, msg.getMsgId());
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cleverbus.core.common.asynch.msg;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cleverbus.api.asynch.msg.ChildMessage;
+import org.cleverbus.api.asynch.msg.MessageSplitterCallback;
+import org.cleverbus.api.entity.BindingTypeEnum;
+import org.cleverbus.api.entity.Message;
+import org.cleverbus.api.entity.MsgStateEnum;
+import org.cleverbus.core.common.asynch.AsynchMessageRoute;
+import org.cleverbus.spi.msg.MessageService;
+import org.cleverbus.test.ExternalSystemTestEnum;
+import org.cleverbus.test.ServiceTestEnum;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.junit.Test;
+
+
+/**
+ * Test suite for {@link MessageSplitterImpl}.
+ */
+public class MessageSplitterImplTest {
+
+    @Test
+    public void testLanes() {
+        List<Message> messages = Arrays.asList(createMessage("a"), createMessage(), createMessage("b"),
+                createMessage("a"), createMessage("b", "c"), createMessage("c"));
+
+        // sequential processing
+        List<List<Message>> lanes = MessageSplitterImpl.getLanes(messages, 1, true);
+        assertThat(lanes.size(), is(1));
+        assertThat(lanes.get(0), is(messages));
+
+        // round robin without funnel order
+        lanes = MessageSplitterImpl.getLanes(messages, 2, false);
+        assertThat(lanes.size(), is(2));
+        assertThat(lanes.get(0), is(Arrays.asList(messages.get(0), messages.get(2), messages.get(4))));
+        assertThat(lanes.get(1), is(Arrays.asList(messages.get(1), messages.get(3), messages.get(5))));
+
+        // funnel order: groups (a), (no value) and (b, c)
+        lanes = MessageSplitterImpl.getLanes(messages, 3, true);
+        assertThat(lanes.size(), is(3));
+        assertThat(lanes.get(0), is(Arrays.asList(messages.get(0), messages.get(3))));
+        assertThat(lanes.get(1), is(Collections.singletonList(messages.get(1))));
+        assertThat(lanes.get(2), is(Arrays.asList(messages.get(2), messages.get(4), messages.get(5))));
+
+        // no child messages
+        assertThat(MessageSplitterImpl.getLanes(Collections.<Message>emptyList(), 3, true).isEmpty(), is(true));
+    }
+
+    @Test
+    public void testParallelSplit() throws Exception {
+        final int childCount = 12;
+        final int parallelism = 3;
+
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch processed = new CountDownLatch(childCount);
+
+        DefaultCamelContext camelCtx = new DefaultCamelContext();
+        camelCtx.addRoutes(new RouteBuilder() {
+            @Override
+            public void configure() throws Exception {
+                from(AsynchMessageRoute.URI_SYNC_MSG)
+                    .process(new Processor() {
+                        @Override
+                        public void process(Exchange exchange) throws Exception {
+                            int current = running.incrementAndGet();
+                            synchronized (maxRunning) {
+                                maxRunning.set(Math.max(maxRunning.get(), current));
+                            }
+
+                            Thread.sleep(50);
+
+                            running.decrementAndGet();
+                            processed.countDown();
+                        }
+                    });
+            }
+        });
+        camelCtx.start();
+
+        try {
+            final Message parentMsg = createMessage();
+            parentMsg.setMsgId(1L);
+
+            MessageSplitterCallback callback = new MessageSplitterCallback() {
+                @Override
+                public List<ChildMessage> getChildMessages(Message msg, Object body) {
+                    List<ChildMessage> childMessages = new ArrayList<ChildMessage>();
+                    for (int i = 0; i < childCount; i++) {
+                        childMessages.add(new ChildMessage(parentMsg, BindingTypeEnum.HARD, ServiceTestEnum.CUSTOMER,
+                                "testOperation", "child " + i, null, null, Collections.<String>emptyList()));
+                    }
+                    return childMessages;
+                }
+            };
+
+            MessageSplitterImpl splitter = new MessageSplitterImpl(mock(MessageService.class), camelCtx, callback,
+                    parallelism, true);
+
+            splitter.splitMessage(parentMsg, "body");
+
+            assertThat(processed.await(10, TimeUnit.SECONDS), is(true));
+
+            assertThat(maxRunning.get(), greaterThan(1));
+            assertThat(maxRunning.get(), lessThanOrEqualTo(parallelism));
+        } finally {
+            camelCtx.stop();
+        }
+    }
+
+    private static Message createMessage(String... funnelValues) {
+        Message msg = new Message();
+        msg.setState(MsgStateEnum.PROCESSING);
+        msg.setCorrelationId("corr");
+        msg.setSourceSystem(ExternalSystemTestEnum.CRM);
+        msg.setMsgTimestamp(new Date());
+        msg.setReceiveTimestamp(new Date());
+        msg.setFunnelValues(Arrays.asList(funnelValues));
+        return msg;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cleverbus.core.common.asynch.msg;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.cleverbus.api.asynch.AsynchConstants;
+import org.cleverbus.api.entity.Message;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Test suite for {@link MsgPriorityQueueFactory}.
+ */
+public class MsgPriorityQueueFactoryTest {
+
+    private final CamelContext camelContext = new DefaultCamelContext();
+
+    private MsgPriorityQueueFactory factory;
+
+    @Before
+    public void prepareFactory() {
+        factory = new MsgPriorityQueueFactory();
+        factory.setCapacity(3);
+    }
+
+    @Test
+    public void testOrder() {
+        BlockingQueue<Exchange> queue = factory.create();
+
+        queue.offer(createExchange(1L, 10, 100L));
+        queue.offer(createExchange(2L, 5, 300L));
+        queue.offer(createExchange(3L, 5, 200L));
+
+        // priority first, then insert time
+        assertThat(getMsgId(queue.poll()), is(3L));
+        assertThat(getMsgId(queue.poll()), is(2L));
+        assertThat(getMsgId(queue.poll()), is(1L));
+        assertThat(queue.poll(), nullValue());
+    }
+
+    @Test
+    public void testCapacity() {
+        BlockingQueue<Exchange> queue = factory.create();
+
+        for (long i = 1; i <= 3; i++) {
+            assertThat(queue.offer(createExchange(i, 1, i)), is(true));
+        }
+
+        assertThat(factory.isFull(), is(true));
+        assertThat(queue.remainingCapacity(), is(0));
+        assertThat(queue.offer(createExchange(4L, 1, 4L)), is(false));
+
+        try {
+            queue.add(createExchange(4L, 1, 4L));
+            fail("queue is full");
+        } catch (IllegalStateException ex) {
+            // it's ok
+        }
+
+        assertThat(factory.getQueueDepth(), is(3));
+
+        // free place after taking message
+        queue.poll();
+        assertThat(factory.isFull(), is(false));
+        assertThat(queue.offer(createExchange(4L, 1, 4L)), is(true));
+
+        queue.clear();
+        assertThat(queue.remainingCapacity(), is(3));
+        assertThat(factory.getQueueDepth(), is(0));
+    }
+
+    @Test
+    public void testCapacityAfterRemovals() {
+        BlockingQueue<Exchange> queue = factory.create();
+
+        Exchange first = createExchange(1L, 1, 1L);
+        Exchange second = createExchange(2L, 1, 2L);
+        Exchange third = createExchange(3L, 1, 3L);
+        queue.offer(first);
+        queue.offer(second);
+        queue.offer(third);
+
+        // removal by iterator
+        Iterator<Exchange> it = queue.iterator();
+        it.next();
+        it.remove();
+        assertThat(queue.remainingCapacity(), is(1));
+
+        // already removed exchange doesn't free place again
+        queue.removeAll(Arrays.asList(first, second, third));
+        assertThat(queue.size(), is(0));
+        assertThat(queue.remainingCapacity(), is(3));
+
+        queue.offer(first);
+        queue.offer(second);
+        queue.retainAll(Collections.singletonList(second));
+        assertThat(queue.remainingCapacity(), is(2));
+
+        queue.offer(first);
+        queue.offer(third);
+        queue.removeIf(new Predicate<Exchange>() {
+            @Override
+            public boolean test(Exchange exchange) {
+                return getMsgId(exchange) != 2L;
+            }
+        });
+        assertThat(queue.size(), is(1));
+        assertThat(queue.remainingCapacity(), is(2));
+
+        queue.clear();
+        assertThat(queue.remainingCapacity(), is(3));
+        for (long i = 1; i <= 3; i++) {
+            assertThat(queue.offer(createExchange(i, 1, i)), is(true));
+        }
+        assertThat(queue.offer(createExchange(4L, 1, 4L)), is(false));
+    }
+
+    @Test
+    public void testPutWaitsForFreePlace() throws Exception {
+        final BlockingQueue<Exchange> queue = factory.create();
+
+        for (long i = 1; i <= 3; i++) {
+            queue.put(createExchange(i, 1, i));
+        }
+
+        final CountDownLatch inserted = new CountDownLatch(1);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    queue.put(createExchange(4L, 1, 4L));
+                    inserted.countDown();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        producer.start();
+
+        assertThat(inserted.await(200, TimeUnit.MILLISECONDS), is(false));
+
+        assertThat(getMsgId(queue.take()), is(1L));
+
+        assertThat(inserted.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(queue.size(), is(3));
+    }
+
+    @Test
+    public void testStatistics() {
+        BlockingQueue<Exchange> queue = factory.create();
+
+        long now = System.currentTimeMillis();
+        queue.offer(createExchange(1L, 1, now - 1000));
+        queue.offer(createExchange(2L, 1, now - 3000));
+
+        queue.poll();
+        queue.poll();
+
+        assertThat(factory.getCountOfTakenMessages(), is(2L));
+        assertThat(factory.getMaxWaitingTime() >= 3000, is(true));
+        assertThat(factory.getAverageWaitingTime() >= 2000, is(true));
+
+        factory.addRejectedMessage();
+        assertThat(factory.getCountOfRejectedMessages(), is(1L));
+
+        factory.reset();
+        assertThat(factory.getCountOfTakenMessages(), is(0L));
+        assertThat(factory.getCountOfRejectedMessages(), is(0L));
+    }
+
+    private Exchange createExchange(Long msgId, int priority, Long insertTime) {
+        Message msg = new Message();
+        msg.setMsgId(msgId);
+        msg.setProcessingPriority(priority);
+
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getIn().setBody(msg);
+        exchange.getIn().setHeader(AsynchConstants.MSG_QUEUE_INSERT_HEADER, insertTime);
+        return exchange;
+    }
+
+    private static Long getMsgId(Exchange exchange) {
+        return exchange.getIn().getBody(Message.class).getMsgId();
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cleverbus.core.common.asynch.queue;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.cleverbus.api.entity.Message;
+import org.cleverbus.api.entity.MsgStateEnum;
+import org.cleverbus.core.AbstractCoreDbTest;
+import org.cleverbus.core.common.asynch.AsynchMessageRoute;
+import org.cleverbus.test.ActiveRoutes;
+import org.cleverbus.test.ExternalSystemTestEnum;
+import org.cleverbus.test.ServiceTestEnum;
+
+import org.apache.camel.EndpointInject;
+import org.apache.camel.component.mock.MockEndpoint;
+import org.apache.commons.lang.time.DateUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+
+/**
+ * Test suite for {@link GuaranteedOrderSequencer}.
+ */
+@ActiveRoutes(classes = AsynchMessageRoute.class)
+public class GuaranteedOrderSequencerTest extends AbstractCoreDbTest {
+
+    private static final String FUNNEL_VALUE = "sequencerFunnelValue";
+
+    @EndpointInject(uri = "mock:test")
+    private MockEndpoint mock;
+
+    @Autowired
+    private GuaranteedOrderSequencer sequencer;
+
+    @Autowired
+    private MessagePollExecutor messagePollExecutor;
+
+    private final List<Long> msgIds = new ArrayList<Long>();
+
+    @Before
+    public void prepareExecutor() {
+        setPrivateField(messagePollExecutor, "targetURI", "mock:test");
+        setPrivateField(messagePollExecutor, "postponedIntervalWhenFailed", 300);
+    }
+
+    @After
+    public void deleteMessages() {
+        new TransactionTemplate(jpaTransactionManager).execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                for (Long msgId : msgIds) {
+                    em.remove(em.find(Message.class, msgId));
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testDispatchAfterPredecessorFinished() throws Exception {
+        Message first = insertMessage(MsgStateEnum.PROCESSING, 0, false);
+        Message second = insertMessage(MsgStateEnum.POSTPONED, 1, false);
+
+        sequencer.messagePostponed(second);
+        assertThat(sequencer.getCountOfWaitingMessages(), is(1));
+
+        mock.expectedMessageCount(1);
+
+        changeState(first, MsgStateEnum.OK);
+        sequencer.messageFinished(first, false);
+
+        mock.assertIsSatisfied();
+        assertThat(mock.getExchanges().get(0).getIn().getBody(Message.class).getMsgId(), is(second.getMsgId()));
+        assertThat(findState(second), is(MsgStateEnum.PROCESSING));
+        assertThat(sequencer.getCountOfWaitingMessages(), is(0));
+    }
+
+    @Test
+    public void testNoDispatchAfterFailedPredecessor() throws Exception {
+        Message first = insertMessage(MsgStateEnum.PROCESSING, 0, false);
+        Message second = insertMessage(MsgStateEnum.POSTPONED, 1, false);
+        Message third = insertMessage(MsgStateEnum.POSTPONED, 2, true);
+
+        sequencer.messagePostponed(third);
+        sequencer.messagePostponed(second);
+        assertThat(sequencer.getCountOfWaitingMessages(), is(2));
+
+        // failed message blocks the next message
+        changeState(first, MsgStateEnum.FAILED);
+        sequencer.messageFinished(first, true);
+
+        assertThat(sequencer.getCountOfWaitingMessages(), is(2));
+        assertThat(findState(second), is(MsgStateEnum.POSTPONED));
+
+        // cleanup - second message is finished, third one excludes FAILED messages
+        mock.expectedMessageCount(1);
+
+        changeState(second, MsgStateEnum.FAILED);
+        sequencer.messageFinished(second, true);
+
+        mock.assertIsSatisfied();
+        assertThat(findState(third), is(MsgStateEnum.PROCESSING));
+    }
+
+    @Test
+    public void testPredecessorFinishedBeforePostponing() throws Exception {
+        Message first = insertMessage(MsgStateEnum.PROCESSING, 0, false);
+        Message second = insertMessage(MsgStateEnum.POSTPONED, 1, false);
+
+        mock.expectedMessageCount(1);
+
+        // predecessor finishes during order check of the second message
+        changeState(first, MsgStateEnum.OK);
+        sequencer.messageFinished(first, false);
+
+        sequencer.messagePostponed(second);
+
+        mock.assertIsSatisfied();
+        assertThat(findState(second), is(MsgStateEnum.PROCESSING));
+        assertThat(sequencer.getCountOfWaitingMessages(), is(0));
+    }
+
+    @Test
+    public void testMessageTakenByPolling() throws Exception {
+        Message first = insertMessage(MsgStateEnum.PROCESSING, 0, false);
+        Message second = insertMessage(MsgStateEnum.POSTPONED, 1, false);
+        Message third = insertMessage(MsgStateEnum.POSTPONED, 2, false);
+
+        sequencer.messagePostponed(second);
+        sequencer.messagePostponed(third);
+
+        // second message is taken by polling (e.g. on another node)
+        changeState(second, MsgStateEnum.PROCESSING);
+
+        mock.expectedMessageCount(0);
+
+        changeState(first, MsgStateEnum.OK);
+        sequencer.messageFinished(first, false);
+
+        // the taken message doesn't wait anymore, the third one waits for it
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sequencer.getCountOfWaitingMessages() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(sequencer.getCountOfWaitingMessages(), is(1));
+
+        mock.assertIsSatisfied();
+        assertThat(findState(third), is(MsgStateEnum.POSTPONED));
+
+        // cleanup
+        sequencer.removeExpiredMessages(System.currentTimeMillis() + GuaranteedOrderSequencer.MAX_WAITING_MILLIS + 1);
+    }
+
+    @Test
+    public void testExpiredWaitingMessages() throws Exception {
+        insertMessage(MsgStateEnum.PROCESSING, 0, false);
+        Message second = insertMessage(MsgStateEnum.POSTPONED, 1, false);
+
+        sequencer.messagePostponed(second);
+        assertThat(sequencer.getCountOfWaitingMessages(), is(1));
+
+        // predecessor is finished on another node
+        sequencer.removeExpiredMessages(System.currentTimeMillis() + GuaranteedOrderSequencer.MAX_WAITING_MILLIS / 2);
+        assertThat(sequencer.getCountOfWaitingMessages(), is(1));
+
+        sequencer.removeExpiredMessages(System.currentTimeMillis() + GuaranteedOrderSequencer.MAX_WAITING_MILLIS + 1);
+        assertThat(sequencer.getCountOfWaitingMessages(), is(0));
+    }
+
+    private Message insertMessage(final MsgStateEnum state, final int order, final boolean excludeFailedState) {
+        Message msg = new TransactionTemplate(jpaTransactionManager).execute(new TransactionCallback<Message>() {
+            @Override
+            public Message doInTransaction(TransactionStatus status) {
+                Date currDate = new Date();
+
+                Message msg = createMessage(ExternalSystemTestEnum.CRM, ServiceTestEnum.CUSTOMER, "setCustomer",
+                        "xml");
+                msg.setState(state);
+                msg.setMsgTimestamp(DateUtils.addSeconds(currDate, order - 60));
+                msg.setStartProcessTimestamp(DateUtils.addSeconds(currDate, -1));
+                msg.setGuaranteedOrder(true);
+                msg.setExcludeFailedState(excludeFailedState);
+                msg.setFunnelValues(Collections.singletonList(FUNNEL_VALUE));
+
+                em.persist(msg);
+                return msg;
+            }
+        });
+
+        msgIds.add(msg.getMsgId());
+        return msg;
+    }
+
+    private void changeState(final Message msg, final MsgStateEnum state) {
+        msg.setState(state);
+        getJdbcTemplate().update("UPDATE message SET state = ? WHERE msg_id = ?", state.name(), msg.getMsgId());
+    }
+
+    private MsgStateEnum findState(Message msg) {
+        return MsgStateEnum.valueOf(getJdbcTemplate().queryForObject("SELECT state FROM message WHERE msg_id = ?",
+                String.class, msg.getMsgId()));
+    }
+}
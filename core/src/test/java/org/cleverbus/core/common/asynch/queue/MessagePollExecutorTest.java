@@ -19,6 +19,11 @@ package org.cleverbus.core.common.asynch.queue;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import java.util.Arrays;
 import java.util.Date;
@@ -30,6 +35,7 @@ import javax.persistence.Query;
 
 import org.cleverbus.api.entity.Message;
 import org.cleverbus.api.entity.MsgStateEnum;
+import org.cleverbus.api.exception.LockFailureException;
 import org.cleverbus.core.AbstractCoreDbTest;
 import org.cleverbus.core.common.asynch.AsynchMessageRoute;
 import org.cleverbus.test.ActiveRoutes;
@@ -71,6 +77,11 @@ public class MessagePollExecutorTest extends AbstractCoreDbTest {
     @Autowired
     private MessagePollExecutor messagePollExecutor;
 
+    @Autowired
+    private MessagePollStatistics statistics;
+
+    private long lastMsgTimestamp;
+
     @Before
     public void prepareData() {
         // set failed limit
@@ -78,6 +89,8 @@ public class MessagePollExecutorTest extends AbstractCoreDbTest {
         setPrivateField(messagesPool, "postponedInterval", 0);
         setPrivateField(messagePollExecutor, "targetURI", "mock:test");
         setPrivateField(messagePollExecutor, "postponedIntervalWhenFailed", 0);
+        setPrivateField(messagePollExecutor, "batchSize", 1);
+        setPrivateField(messagePollExecutor, "workers", 1);
 
         // firstly commit messages to DB (we can commit because we have embedded DB for tests only)
         TransactionTemplate txTemplate = new TransactionTemplate(jpaTransactionManager);
@@ -93,7 +106,10 @@ public class MessagePollExecutorTest extends AbstractCoreDbTest {
 
     private Message insertNewMessage(String correlationId, MsgStateEnum state,
             boolean guaranteedOrder, @Nullable String... funnelValues) {
-        Date currDate = new Date();
+        // messages inserted later must be younger even if they are inserted in the same millisecond
+        long now = Math.max(System.currentTimeMillis(), lastMsgTimestamp + 1);
+        lastMsgTimestamp = now;
+        Date currDate = new Date(now);
 
         Message msg = new Message();
         msg.setState(state);
@@ -162,6 +178,91 @@ public class MessagePollExecutorTest extends AbstractCoreDbTest {
         assertThat(msg.getState(), is(MsgStateEnum.PROCESSING));
     }
 
+    @Test
+    public void testGetNextMessages_batch() throws InterruptedException {
+        setPrivateField(messagePollExecutor, "batchSize", 2);
+
+        mock.expectedMessageCount(3);
+
+        // two batches: the first one is full, the second one contains the rest
+        messagePollExecutor.run();
+
+        mock.assertIsSatisfied();
+
+        // postponed message goes first
+        assertThat(mock.getExchanges().get(0).getIn().getBody(Message.class).getCorrelationId(), is("1234_4567"));
+
+        // verify messages
+        for (String correlationId : Arrays.asList("1234_4567", "1234_4567_8", "1234_4567_9")) {
+            Message msg = findMessage(correlationId);
+            assertThat(msg, notNullValue());
+            assertThat(msg.getState(), is(MsgStateEnum.PROCESSING));
+        }
+    }
+
+    @Test
+    public void testGetNextMessages_moreWorkers() throws InterruptedException {
+        setPrivateField(messagePollExecutor, "batchSize", 2);
+        setPrivateField(messagePollExecutor, "workers", 3);
+
+        long processedBefore = statistics.getCountOfProcessedMessages();
+
+        mock.expectedMessageCount(3);
+
+        messagePollExecutor.run();
+
+        mock.assertIsSatisfied();
+
+        assertThat(statistics.getCountOfProcessedMessages() - processedBefore, is(3L));
+
+        for (String correlationId : Arrays.asList("1234_4567", "1234_4567_8", "1234_4567_9")) {
+            Message msg = findMessage(correlationId);
+            assertThat(msg, notNullValue());
+            assertThat(msg.getState(), is(MsgStateEnum.PROCESSING));
+        }
+    }
+
+    @Test
+    public void testGetNextMessages_moreWorkersOneByOne() throws InterruptedException {
+        setPrivateField(messagePollExecutor, "workers", 3);
+
+        mock.expectedMessageCount(3);
+
+        // more workers lock messages in batches (of one message) so each message is taken once
+        messagePollExecutor.run();
+
+        mock.assertIsSatisfied();
+
+        for (String correlationId : Arrays.asList("1234_4567", "1234_4567_8", "1234_4567_9")) {
+            Message msg = findMessage(correlationId);
+            assertThat(msg, notNullValue());
+            assertThat(msg.getState(), is(MsgStateEnum.PROCESSING));
+        }
+    }
+
+    @Test
+    public void testGetNextMessages_lockFailureLimit() throws InterruptedException {
+        MessagesPool failingPool = mock(MessagesPool.class);
+        when(failingPool.getNextMessages(anyInt())).thenThrow(new LockFailureException("locked"));
+
+        setPrivateField(messagePollExecutor, "messagesPool", failingPool);
+        setPrivateField(messagePollExecutor, "batchSize", 2);
+        setPrivateField(messagePollExecutor, "workers", 3);
+        setPrivateField(messagePollExecutor, "lockFailureLimit", 5);
+
+        long failuresBefore = statistics.getCountOfLockFailures();
+        try {
+            messagePollExecutor.run();
+        } finally {
+            setPrivateField(messagePollExecutor, "messagesPool", messagesPool);
+        }
+
+        // the budget is shared by all workers, each worker stops when it's exhausted
+        long failures = statistics.getCountOfLockFailures() - failuresBefore;
+        assertThat(failures >= 6 && failures <= 8, is(true));
+        verify(failingPool, times((int) failures)).getNextMessages(2);
+    }
+
     @SuppressWarnings("unchecked")
     @Nullable
     private Message findMessage(String correlationId) {
@@ -19,7 +19,13 @@ package org.cleverbus.core.common.asynch.repair;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.junit.Assert.assertThat;
+import static org.mockito.AdditionalAnswers.delegatesTo;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
 
+import java.util.Date;
+import java.util.List;
 import java.util.UUID;
 
 import org.cleverbus.api.entity.ExternalCall;
@@ -34,12 +40,17 @@ import org.cleverbus.test.ServiceTestEnum;
 import org.joda.time.DateTime;
 import org.junit.Test;
 import org.kubek2k.springockito.annotations.SpringockitoContextLoader;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.test.context.ContextConfiguration;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
 import org.springframework.transaction.support.TransactionTemplate;
 
 
@@ -91,6 +102,46 @@ public class RepairExternalCallDbImplTest extends AbstractCoreDbTest {
         assertThat(found.getState(), is(ExternalCallStateEnum.FAILED));
     }
 
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void testRepairRacesWithFinishedCall() throws Exception {
+        final ExternalCall externalCall = createAndSaveExternalCalls(1)[0];
+
+        // the call is finished after repair has found it
+        ExternalCallDao racingDao = mock(ExternalCallDao.class, delegatesTo(externalCallDao));
+        doAnswer(new Answer<List<ExternalCall>>() {
+            @Override
+            public List<ExternalCall> answer(InvocationOnMock invocation) throws Throwable {
+                List<ExternalCall> extCalls = externalCallDao.findProcessingExternalCalls(
+                        (Integer) invocation.getArguments()[0]);
+
+                TransactionTemplate tx = new TransactionTemplate(jpaTransactionManager);
+                tx.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+                tx.execute(new TransactionCallbackWithoutResult() {
+                    @Override
+                    protected void doInTransactionWithoutResult(TransactionStatus status) {
+                        assertThat(externalCallDao.finishExternalCall(externalCall, ExternalCallStateEnum.OK,
+                                new Date()), is(true));
+                    }
+                });
+
+                return extCalls;
+            }
+        }).when(racingDao).findProcessingExternalCalls(anyInt());
+
+        externalCallService.setExternalCallDao(racingDao);
+        try {
+            externalCallService.repairProcessingExternalCalls();
+        } finally {
+            externalCallService.setExternalCallDao(externalCallDao);
+        }
+
+        ExternalCall found = externalCallDao.getExternalCall(
+                externalCall.getOperationName(), externalCall.getEntityId());
+        assertThat(found, notNullValue());
+        assertThat(found.getState(), is(ExternalCallStateEnum.OK));
+    }
+
     private ExternalCall[] createAndSaveExternalCalls(final int quantity) {
         TransactionTemplate tx = new TransactionTemplate(jpaTransactionManager);
         return tx.execute(new TransactionCallback<ExternalCall[]>() {
@@ -100,11 +151,11 @@ public class RepairExternalCallDbImplTest extends AbstractCoreDbTest {
                 for (int i = 0; i < extCalls.length; i++) {
                     Message message = createMessage(ExternalSystemTestEnum.CRM, ServiceTestEnum.CUSTOMER,
                             "someOperation", "some payload");
+                    em.persist(message);
 
                     extCalls[i] = ExternalCall.createProcessingCall(
                             "direct:someOperation", UUID.randomUUID().toString(), message);
                     extCalls[i].setLastUpdateTimestamp(DateTime.now().minusHours(1).toDate());
-                    em.persist(message);
                     em.persist(extCalls[i]);
                 }
                 em.flush();
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cleverbus.core.common.dao;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.cleverbus.api.entity.Message;
+import org.cleverbus.api.entity.MsgStateEnum;
+import org.cleverbus.common.log.Log;
+import org.cleverbus.core.AbstractCoreDbTest;
+import org.cleverbus.test.ExternalSystemTestEnum;
+import org.cleverbus.test.ServiceTestEnum;
+
+import org.hibernate.Session;
+import org.hibernate.stat.Statistics;
+import org.joda.time.DateTime;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.annotation.Transactional;
+
+
+/**
+ * Test suite for funnel queries of {@link MessageDaoJpaImpl}.
+ */
+@Transactional
+public class MessageDaoFunnelQueryTest extends AbstractCoreDbTest {
+
+    private static final String FUNNEL_COMP_ID = "funnel_daoTest";
+
+    @Autowired
+    private MessageDao messageDao;
+
+    @Test
+    public void testFunnelQueries() {
+        DateTime now = DateTime.now();
+
+        // messages with the same timestamp - parent (lower ID) vs. child
+        Message first = createFunnelMessage(MsgStateEnum.PROCESSING, now, "value1");
+        Message second = createFunnelMessage(MsgStateEnum.POSTPONED, now, "value1", "value2");
+        Message third = createFunnelMessage(MsgStateEnum.PARTLY_FAILED, now.plusSeconds(1), "value2");
+        createFunnelMessage(MsgStateEnum.OK, now.minusSeconds(1), "value1");
+        createFunnelMessage(MsgStateEnum.PROCESSING, now, "value3");
+
+        List<String> funnelValues = Arrays.asList("value1", "value2");
+
+        // second message is counted twice because of two funnel values (the same as before)
+        assertThat(messageDao.getCountProcessingMessagesForFunnel(funnelValues, 60, FUNNEL_COMP_ID), is(1));
+
+        List<Message> messages = messageDao.getMessagesForGuaranteedOrderForFunnel(funnelValues, 60, false,
+                FUNNEL_COMP_ID);
+        assertThat(messages, is(Arrays.asList(second, second, first, third)));
+
+        messages = messageDao.getMessagesForGuaranteedOrderForRoute(funnelValues, false);
+        assertThat(messages, is(Arrays.asList(second, second, first, third)));
+    }
+
+    /**
+     * Funnel queries with different count of funnel values should share Hibernate query plans.
+     * Hibernate 4.3 doesn't expose query plan cache statistics, count of distinct query strings
+     * (= count of query plans) is used instead.
+     */
+    @Test
+    public void testQueryPlanReuse() {
+        Statistics statistics = em.unwrap(Session.class).getSessionFactory().getStatistics();
+        boolean statisticsEnabled = statistics.isStatisticsEnabled();
+        statistics.setStatisticsEnabled(true);
+        statistics.clear();
+
+        try {
+            int maxValues = 20;
+            int rounds = 5;
+
+            for (int round = 0; round < rounds; round++) {
+                for (int count = 1; count <= maxValues; count++) {
+                    List<String> funnelValues = new ArrayList<String>(count);
+                    for (int i = 0; i < count; i++) {
+                        funnelValues.add("value_" + round + "_" + i);
+                    }
+
+                    messageDao.getCountProcessingMessagesForFunnel(funnelValues, 60, FUNNEL_COMP_ID);
+                    messageDao.getMessagesForGuaranteedOrderForFunnel(funnelValues, 60, false, FUNNEL_COMP_ID);
+                    messageDao.getMessagesForGuaranteedOrderForRoute(funnelValues, false);
+                }
+            }
+
+            long executions = statistics.getQueryExecutionCount();
+            int plans = statistics.getQueries().length;
+            double hitRate = 100.0 * (executions - plans) / executions;
+
+            Log.info("Funnel queries: {} executions, {} distinct query plans, plan cache hit rate {}%",
+                    executions, plans, String.format("%.1f", hitRate));
+
+            // count of values is padded to power of two => sizes 1, 2, 4, 8, 16, 32 for each of three queries
+            assertThat(executions, is((long) rounds * maxValues * 3));
+            assertThat(plans, lessThanOrEqualTo(6 * 3));
+        } finally {
+            statistics.setStatisticsEnabled(statisticsEnabled);
+        }
+    }
+
+    private Message createFunnelMessage(MsgStateEnum state, DateTime msgTimestamp, String... funnelValues) {
+        Message msg = createMessage(ExternalSystemTestEnum.CRM, ServiceTestEnum.CUSTOMER, "testOperation",
+                "test payload");
+        msg.setState(state);
+        msg.setMsgTimestamp(msgTimestamp.toDate());
+        msg.setStartProcessTimestamp(new DateTime().toDate());
+        msg.setFunnelComponentId(FUNNEL_COMP_ID);
+        msg.setGuaranteedOrder(true);
+        msg.setFunnelValues(Arrays.asList(funnelValues));
+
+        em.persist(msg);
+        em.flush();
+
+        return msg;
+    }
+}
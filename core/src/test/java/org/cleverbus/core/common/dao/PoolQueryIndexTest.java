@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cleverbus.core.common.dao;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+
+import org.cleverbus.api.entity.ExternalCall;
+import org.cleverbus.api.entity.ExternalCallStateEnum;
+import org.cleverbus.api.entity.Message;
+import org.cleverbus.api.entity.Request;
+import org.cleverbus.common.log.Log;
+import org.cleverbus.core.AbstractCoreDbTest;
+import org.cleverbus.test.ExternalSystemTestEnum;
+import org.cleverbus.test.ServiceTestEnum;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.annotation.Transactional;
+
+
+/**
+ * Benchmark of pool and repair queries of {@link ExternalCallDaoJpaImpl} and {@link RequestResponseDaoJpaImpl}
+ * against big tables - checks that queries use the indexes and measures their duration.
+ */
+@Transactional
+public class PoolQueryIndexTest extends AbstractCoreDbTest {
+
+    private static final int ROWS = 50000;
+
+    private static final int ROUNDS = 100;
+
+    private static final long ID_OFFSET = 10000000L;
+
+    @Autowired
+    private ExternalCallDao externalCallDao;
+
+    @Autowired
+    private RequestResponseDao requestResponseDao;
+
+    @Before
+    public void seedTables() {
+        Message msg = createMessage(ExternalSystemTestEnum.CRM, ServiceTestEnum.CUSTOMER, "testOperation",
+                "test payload");
+        em.persist(msg);
+        em.flush();
+
+        long start = System.currentTimeMillis();
+
+        // every 10th call is confirmation, 1% of calls is FAILED, 1% is PROCESSING, the rest is OK
+        em.createNativeQuery("INSERT INTO external_call (call_id, msg_id, operation_name, state, entity_id,"
+                + "     msg_timestamp, creation_timestamp, last_update_timestamp, failed_count) "
+                + "SELECT X + " + ID_OFFSET + ", " + msg.getMsgId() + ","
+                + "     CASE WHEN MOD(X, 10) = 0 THEN '" + ExternalCall.CONFIRM_OPERATION + "'"
+                + "         ELSE 'operation' || MOD(X, 50) END,"
+                + "     CASE MOD(X, 100) WHEN 0 THEN 'FAILED' WHEN 1 THEN 'PROCESSING' ELSE 'OK' END,"
+                + "     'entity' || X,"
+                + "     DATEADD('SECOND', -X, CURRENT_TIMESTAMP()), DATEADD('SECOND', -X, CURRENT_TIMESTAMP()),"
+                + "     DATEADD('SECOND', -X, CURRENT_TIMESTAMP()), 0 "
+                + "FROM SYSTEM_RANGE(1, " + ROWS + ")").executeUpdate();
+
+        em.createNativeQuery("INSERT INTO request (req_id, res_join_id, uri, req_envelope, req_timestamp) "
+                + "SELECT X + " + ID_OFFSET + ", 'join' || X, 'http://localhost/service' || MOD(X, 20),"
+                + "     'request', DATEADD('SECOND', -X, CURRENT_TIMESTAMP()) "
+                + "FROM SYSTEM_RANGE(1, " + ROWS + ")").executeUpdate();
+
+        Log.info("Tables external_call and request seeded with {} rows each in {} ms",
+                ROWS, System.currentTimeMillis() - start);
+    }
+
+    @Test
+    public void testFindConfirmation() {
+        assertIndexUsed("SELECT * FROM external_call"
+                + " WHERE operation_name = '" + ExternalCall.CONFIRM_OPERATION + "' AND state = 'FAILED'"
+                + "     AND last_update_timestamp < CURRENT_TIMESTAMP()"
+                + " ORDER BY creation_timestamp LIMIT 1", "EXT_CONFIRM_IDX");
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            ExternalCall extCall = externalCallDao.findConfirmation(60);
+
+            assertThat(extCall, notNullValue());
+            assertThat(extCall.getState(), is(ExternalCallStateEnum.FAILED));
+        }
+        logDuration("findConfirmation", start);
+    }
+
+    @Test
+    public void testFindProcessingExternalCalls() {
+        assertIndexUsed("SELECT * FROM external_call"
+                + " WHERE state = 'PROCESSING' AND last_update_timestamp < CURRENT_TIMESTAMP()", "EXT_POOL_IDX");
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            List<ExternalCall> extCalls = externalCallDao.findProcessingExternalCalls(60);
+
+            assertThat(extCalls.isEmpty(), is(false));
+        }
+        logDuration("findProcessingExternalCalls", start);
+    }
+
+    @Test
+    public void testFindLastRequest() {
+        assertIndexUsed("SELECT * FROM request"
+                + " WHERE res_join_id = 'join1' AND uri = 'http://localhost/service1'"
+                + " ORDER BY req_timestamp LIMIT 1", "REQ_RES_JOIN_IDX");
+
+        long start = System.nanoTime();
+        for (int i = 1; i <= ROUNDS; i++) {
+            Request req = requestResponseDao.findLastRequest("http://localhost/service" + (i % 20), "join" + i);
+
+            assertThat(req, notNullValue());
+        }
+        logDuration("findLastRequest", start);
+    }
+
+    private void assertIndexUsed(String sql, String indexName) {
+        String plan = (String) em.createNativeQuery("EXPLAIN " + sql).getSingleResult();
+
+        Log.debug("Query plan: {}", plan);
+        assertThat(plan, containsString(indexName));
+    }
+
+    private void logDuration(String query, long startNanos) {
+        double avgMillis = (System.nanoTime() - startNanos) / 1000000.0 / ROUNDS;
+
+        Log.info("Query {}: {} ms per query ({} rows in table)", query, String.format("%.3f", avgMillis), ROWS);
+    }
+}
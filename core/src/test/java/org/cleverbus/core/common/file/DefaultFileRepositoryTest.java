@@ -21,9 +21,11 @@ import static org.junit.Assert.assertThat;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.cleverbus.api.file.FileContentTypeExtEnum;
@@ -101,4 +103,37 @@ public class DefaultFileRepositoryTest extends AbstractCoreTest {
         assertThat(targetFile.exists(), is(true));
         assertThat(targetFile.isDirectory(), is(false));
     }
+
+    @Test
+    public void testSavingAndReadingFile() throws Exception {
+        fileRepository.checkDirs();
+
+        String fileId = fileRepository.saveFile(new OutputStreamWriterCallback() {
+            @Override
+            public void writeTo(OutputStream os) throws IOException {
+                IOUtils.copy(new StringReader("large payload"), os);
+            }
+        }, Arrays.asList("payload", "2015-01-01"));
+
+        assertThat(fileId.startsWith("payload/2015-01-01/"), is(true));
+        assertThat(new File(tempFolder.getRoot(), fileId).exists(), is(true));
+
+        InputStream is = fileRepository.readFile(fileId);
+        try {
+            assertThat(IOUtils.toString(is, "UTF-8"), is("large payload"));
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+
+        assertThat(fileRepository.deleteFile(fileId), is(true));
+        assertThat(new File(tempFolder.getRoot(), fileId).exists(), is(false));
+        assertThat(fileRepository.deleteFile(fileId), is(false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReadingFileOutsideRepository() throws Exception {
+        fileRepository.checkDirs();
+
+        fileRepository.readFile("../" + tempFolder.getRoot().getName() + "_other/file");
+    }
 }
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cleverbus.core.common.xml;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.cleverbus.api.asynch.model.TraceHeader;
+import org.cleverbus.common.log.Log;
+
+import org.junit.Test;
+
+
+/**
+ * Comparison of transformation and unmarshalling by new factories and by factories cached in {@link XmlHelper},
+ * results are written to the log. Run by profile "benchmark" only.
+ */
+public class XmlHelperBenchmark {
+
+    private static final String TRACE_HEADER = "<traceHeader xmlns=\"http://cleverbus.org/ws/Common-v1\">"
+            + "<traceIdentifier>"
+            + "<applicationID>ERP</applicationID>"
+            + "<timestamp>2013-09-27T10:23:34.6987744+02:00</timestamp>"
+            + "<correlationID>da793349-b486-489a-9180-200789b7007f</correlationID>"
+            + "</traceIdentifier>"
+            + "</traceHeader>";
+
+    private static final int COUNT = 500;
+
+    @Test
+    public void benchmarkTransformAndUnmarshal() throws Exception {
+        // warm up
+        processUncached(100);
+        processCached(100);
+
+        long start = System.nanoTime();
+        processUncached(COUNT);
+        long uncachedTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        processCached(COUNT);
+        long cachedTime = System.nanoTime() - start;
+
+        Log.info("Transformation and unmarshalling of {} trace headers: new factories {} us/msg,"
+                + " cached factories {} us/msg", COUNT, uncachedTime / COUNT / 1000, cachedTime / COUNT / 1000);
+    }
+
+    private void processUncached(int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            transformer.transform(new StreamSource(new StringReader(TRACE_HEADER)),
+                    new StreamResult(new StringWriter()));
+
+            JAXBContext.newInstance(TraceHeader.class).createUnmarshaller()
+                    .unmarshal(new StreamSource(new StringReader(TRACE_HEADER)), TraceHeader.class);
+        }
+    }
+
+    private void processCached(int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            XmlHelper.transformToString(new StreamSource(new StringReader(TRACE_HEADER)));
+
+            XmlHelper.getUnmarshaller(TraceHeader.class)
+                    .unmarshal(new StreamSource(new StringReader(TRACE_HEADER)), TraceHeader.class);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cleverbus.core.common.xml;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.cleverbus.api.asynch.model.TraceHeader;
+
+import org.junit.Test;
+
+
+/**
+ * Test suite for {@link XmlHelper}.
+ */
+public class XmlHelperTest {
+
+    private static final String TRACE_HEADER = "<traceHeader xmlns=\"http://cleverbus.org/ws/Common-v1\">"
+            + "<traceIdentifier>"
+            + "<applicationID>ERP</applicationID>"
+            + "<timestamp>2013-09-27T10:23:34.6987744+02:00</timestamp>"
+            + "<correlationID>da793349-b486-489a-9180-200789b7007f</correlationID>"
+            + "</traceIdentifier>"
+            + "</traceHeader>";
+
+    @Test
+    public void testTransformToString() throws Exception {
+        String xml = XmlHelper.transformToString(new StreamSource(new StringReader(TRACE_HEADER)));
+
+        assertThat(xml.contains("<correlationID>da793349-b486-489a-9180-200789b7007f</correlationID>"), is(true));
+
+        // transformer is reused
+        assertThat(XmlHelper.getIdentityTransformer(), sameInstance(XmlHelper.getIdentityTransformer()));
+    }
+
+    @Test
+    public void testUnmarshalling() throws Exception {
+        assertThat(XmlHelper.getJaxbContext(TraceHeader.class),
+                sameInstance(XmlHelper.getJaxbContext(TraceHeader.class)));
+
+        Unmarshaller unmarshaller = XmlHelper.getUnmarshaller(TraceHeader.class);
+        assertThat(XmlHelper.getUnmarshaller(TraceHeader.class), sameInstance(unmarshaller));
+
+        TraceHeader header = unmarshaller.unmarshal(new StreamSource(new StringReader(TRACE_HEADER)),
+                TraceHeader.class).getValue();
+        assertThat(header.getTraceIdentifier().getApplicationID(), is("ERP"));
+
+        // other thread has own unmarshaller
+        final AtomicReference<Unmarshaller> otherUnmarshaller = new AtomicReference<Unmarshaller>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    otherUnmarshaller.set(XmlHelper.getUnmarshaller(TraceHeader.class));
+                } catch (Exception ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+
+        assertThat(otherUnmarshaller.get(), not(sameInstance(unmarshaller)));
+    }
+
+    /**
+     * Cached transformer and unmarshaller give the same results as new factories, repeatedly.
+     */
+    @Test
+    public void testCachedSameAsUncached() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            StringWriter uncachedXml = new StringWriter();
+            TransformerFactory.newInstance().newTransformer().transform(
+                    new StreamSource(new StringReader(TRACE_HEADER)), new StreamResult(uncachedXml));
+
+            TraceHeader uncachedHeader = JAXBContext.newInstance(TraceHeader.class).createUnmarshaller()
+                    .unmarshal(new StreamSource(new StringReader(TRACE_HEADER)), TraceHeader.class).getValue();
+
+            String cachedXml = XmlHelper.transformToString(new StreamSource(new StringReader(TRACE_HEADER)));
+
+            TraceHeader cachedHeader = XmlHelper.getUnmarshaller(TraceHeader.class)
+                    .unmarshal(new StreamSource(new StringReader(TRACE_HEADER)), TraceHeader.class).getValue();
+
+            assertThat(cachedXml, is(uncachedXml.toString()));
+            assertThat(cachedHeader.getTraceIdentifier().getApplicationID(),
+                    is(uncachedHeader.getTraceIdentifier().getApplicationID()));
+            assertThat(cachedHeader.getTraceIdentifier().getCorrelationID(),
+                    is(uncachedHeader.getTraceIdentifier().getCorrelationID()));
+            assertThat(cachedHeader.getTraceIdentifier().getTimestamp(),
+                    is(uncachedHeader.getTraceIdentifier().getTimestamp()));
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cleverbus.core.monitoring;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.Collections;
+
+import org.cleverbus.api.entity.Message;
+import org.cleverbus.api.entity.MsgStateEnum;
+import org.cleverbus.core.AbstractCoreDbTest;
+import org.cleverbus.spi.msg.MessageService;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+
+/**
+ * Test suite for {@link MessageStateCounters}.
+ */
+public class MessageStateCountersTest extends AbstractCoreDbTest {
+
+    private static final int BUCKET_MILLIS = 10;
+
+    @Autowired
+    private MessageStateCounters stateCounters;
+
+    @Autowired
+    private MessageService messageService;
+
+    @Before
+    public void enableCounters() {
+        stateCounters.setBucketMillis(BUCKET_MILLIS);
+        stateCounters.setEnabled(true);
+    }
+
+    @After
+    public void disableCounters() {
+        stateCounters.setEnabled(false);
+        stateCounters.setBucketMillis(MessageStateCounters.DEFAULT_BUCKET_MILLIS);
+    }
+
+    @Test
+    public void testTotalCounts() {
+        Message[] messages = createMessages(MsgStateEnum.PROCESSING, MsgStateEnum.PROCESSING,
+                MsgStateEnum.PROCESSING, MsgStateEnum.PARTLY_FAILED);
+
+        // loaded from database
+        assertCountsAsInDb();
+        assertThat(stateCounters.getCount(MsgStateEnum.PROCESSING, null), is(3));
+
+        // state transitions
+        messageService.setStateOk(messages[0], getHeaders());
+        messageService.setStatePostponed(messages[1]);
+        messageService.setStateWaitingForResponse(messages[2]);
+        messageService.setStateProcessing(messages[2]);
+        messageService.setStateFailed(messages[3], new IllegalStateException("failed"), null, null,
+                getHeaders());
+
+        assertThat(stateCounters.getCount(MsgStateEnum.PROCESSING, null), is(1));
+        assertCountsAsInDb();
+    }
+
+    @Test
+    public void testChangeIsAppliedAfterCommit() {
+        final Message[] messages = createMessages(MsgStateEnum.PROCESSING);
+
+        final int processingCount = stateCounters.getCount(MsgStateEnum.PROCESSING, null);
+
+        TransactionTemplate tx = new TransactionTemplate(jpaTransactionManager);
+        tx.execute(new TransactionCallback<Object>() {
+            @Override
+            public Object doInTransaction(TransactionStatus status) {
+                messageService.setStatePostponed(messages[0]);
+
+                status.setRollbackOnly();
+                return null;
+            }
+        });
+
+        // rollback => no change
+        assertThat(stateCounters.getCount(MsgStateEnum.PROCESSING, null), is(processingCount));
+    }
+
+    @Test
+    public void testIntervalCounts() throws Exception {
+        Message[] messages = createMessages(MsgStateEnum.PROCESSING, MsgStateEnum.PROCESSING,
+                MsgStateEnum.PROCESSING);
+
+        // interval goes beyond enabling of the counters
+        assertThat(stateCounters.getCount(MsgStateEnum.OK, 1), nullValue());
+
+        Thread.sleep(1000 + 2 * BUCKET_MILLIS);
+
+        messageService.setStateOk(messages[0], getHeaders());
+        messageService.setStateOk(messages[1], getHeaders());
+        messageService.setStatePostponed(messages[2]);
+
+        assertThat(stateCounters.getCount(MsgStateEnum.OK, 1), is(2));
+        assertThat(stateCounters.getCount(MsgStateEnum.POSTPONED, 1), is(1));
+        assertThat(stateCounters.getCount(MsgStateEnum.PROCESSING, 1), is(0));
+        assertThat(stateCounters.getCount(MsgStateEnum.OK, 1), is(messageService.getCountMessages(MsgStateEnum.OK, 1)));
+
+        // previous state is not known => interval counts of this state are not available
+        messages[2].setState(MsgStateEnum.PROCESSING);
+        stateCounters.messageChanged(Collections.singleton(MsgStateEnum.POSTPONED), messages[2]);
+
+        assertThat(stateCounters.getCount(MsgStateEnum.POSTPONED, 1), nullValue());
+        assertThat(stateCounters.getCount(MsgStateEnum.OK, 1), is(2));
+    }
+
+    private void assertCountsAsInDb() {
+        for (MsgStateEnum state : MsgStateEnum.values()) {
+            assertThat("count of " + state, stateCounters.getCount(state, null),
+                    is(messageService.getCountMessages(state, null)));
+        }
+    }
+
+    private Message[] createMessages(final MsgStateEnum... states) {
+        final DateTime now = DateTime.now();
+
+        return createAndSaveMessages(states.length, new MessageProcessor() {
+            private int index = 0;
+
+            @Override
+            public void process(Message message) {
+                message.setState(states[index]);
+                message.setMsgTimestamp(now.plusSeconds(index).toDate());
+                message.setStartProcessTimestamp(now.toDate());
+                index++;
+            }
+        });
+    }
+}
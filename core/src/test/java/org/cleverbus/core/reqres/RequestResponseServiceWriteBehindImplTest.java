@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cleverbus.core.reqres;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.UUID;
+
+import org.cleverbus.api.entity.Request;
+import org.cleverbus.api.entity.Response;
+import org.cleverbus.core.AbstractCoreDbTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+
+/**
+ * Test suite for {@link RequestResponseServiceWriteBehindImpl}.
+ */
+public class RequestResponseServiceWriteBehindImplTest extends AbstractCoreDbTest {
+
+    private static final String URI = "direct://writeBehindTarget";
+
+    @Autowired
+    private RequestResponseServiceWriteBehindImpl requestResponseService;
+
+    private String joinId;
+
+    @Before
+    public void prepareService() {
+        joinId = UUID.randomUUID().toString();
+        requestResponseService.resetCounters();
+    }
+
+    @After
+    public void deleteRequests() {
+        requestResponseService.setWriteBehind(false);
+
+        // requests/responses are committed, they mustn't affect other tests
+        getJdbcTemplate().update("DELETE FROM response WHERE req_id IN (SELECT req_id FROM request WHERE uri = ?)",
+                URI);
+        getJdbcTemplate().update("DELETE FROM request WHERE uri = ?", URI);
+    }
+
+    @Test
+    public void testWriteBehind() throws Exception {
+        requestResponseService.setWriteBehind(true);
+
+        Request request = Request.createRequest(URI, joinId, "request", null);
+        requestResponseService.insertRequest(request);
+
+        // request is joined in memory before it's saved
+        assertThat(requestResponseService.findLastRequest(URI, joinId), sameInstance(request));
+
+        Response response = Response.createResponse(request, "response", null, null);
+        requestResponseService.insertResponse(response);
+
+        waitForWriting(2);
+
+        assertThat(request.getId(), notNullValue());
+        assertThat(getJdbcTemplate().queryForObject("SELECT req_id FROM response WHERE res_id = ?", Long.class,
+                response.getId()), is(request.getId()));
+        assertThat(requestResponseService.getCountOfDropped(), is(0L));
+        assertThat(requestResponseService.getCountOfFailed(), is(0L));
+
+        // request is found in database when response has been joined
+        assertThat(requestResponseService.findLastRequest(URI, joinId).getId(), is(request.getId()));
+    }
+
+    @Test
+    public void testSynchronousSaving() {
+        Request request = Request.createRequest(URI, joinId, "request", null);
+        requestResponseService.insertRequest(request);
+
+        // request is saved immediately
+        assertThat(request.getId(), notNullValue());
+        assertThat(requestResponseService.findLastRequest(URI, joinId).getId(), is(request.getId()));
+        assertThat(requestResponseService.getCountOfWritten(), is(0L));
+    }
+
+    private void waitForWriting(long count) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 10000;
+        while (requestResponseService.getCountOfWritten() < count && System.currentTimeMillis() < timeout) {
+            Thread.sleep(50);
+        }
+
+        assertThat(requestResponseService.getCountOfWritten(), is(count));
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cleverbus.core.throttling;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.cleverbus.common.log.Log;
+import org.cleverbus.spi.throttling.ThrottleCounter;
+import org.cleverbus.spi.throttling.ThrottleScope;
+
+import org.junit.Test;
+
+
+/**
+ * Comparison of throughput of {@link ThrottleCounterMemoryImpl} and {@link ThrottleCounterSlidingWindowImpl},
+ * results are written to the log. Run by profile "benchmark" only.
+ */
+public class ThrottleCounterBenchmark {
+
+    private static final int THREADS = 4;
+
+    private static final int REQUESTS = 5000;
+
+    private static final int INTERVAL = 60;
+
+    @Test
+    public void benchmarkCounters() throws Exception {
+        // warm up
+        measure(new ThrottleCounterMemoryImpl());
+        measure(new ThrottleCounterSlidingWindowImpl());
+
+        long memoryTime = measure(new ThrottleCounterMemoryImpl());
+        long windowTime = measure(new ThrottleCounterSlidingWindowImpl());
+
+        Log.info("Throttle counters ({} threads, {} requests per thread, interval {} s):"
+                + " ThrottleCounterMemoryImpl {} ms, ThrottleCounterSlidingWindowImpl {} ms",
+                THREADS, REQUESTS, INTERVAL, memoryTime, windowTime);
+    }
+
+    private long measure(final ThrottleCounter counter) throws Exception {
+        final CountDownLatch latch = new CountDownLatch(THREADS);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ThrottleScope scope = new ThrottleScope("crm", "op1");
+                    for (int i = 0; i < REQUESTS; i++) {
+                        counter.count(scope, INTERVAL);
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            }
+        };
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < THREADS; i++) {
+            new Thread(task).start();
+        }
+        latch.await();
+        return System.currentTimeMillis() - start;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cleverbus.core.throttling;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.AdditionalAnswers.delegatesTo;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cleverbus.core.AbstractCoreDbTest;
+import org.cleverbus.core.common.dao.ThrottleCounterDao;
+import org.cleverbus.spi.throttling.ThrottleScope;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.beans.factory.annotation.Autowired;
+
+
+/**
+ * Test suite for {@link ThrottleCounterDbImpl}.
+ */
+public class ThrottleCounterDbImplTest extends AbstractCoreDbTest {
+
+    @Autowired
+    private ThrottleCounterDao throttleCounterDao;
+
+    @Test
+    public void testEventualCounting() throws Exception {
+        ThrottleCounterDbImpl node1 = createCounter("node1", false);
+        ThrottleCounterDbImpl node2 = createCounter("node2", false);
+
+        ThrottleScope scope1 = new ThrottleScope("crm", "op1");
+        ThrottleScope scope2 = new ThrottleScope("crm", "op2");
+
+        assertThat(node1.count(scope1, 10), is(1));
+        assertThat(node1.count(scope1, 10), is(2));
+        assertThat(node1.count(scope2, 10), is(1));
+        assertThat(node2.count(scope1, 10), is(1));
+
+        // nodes don't know about each other before flush
+        node1.flush();
+        node2.flush();
+        node1.flush();
+
+        assertThat(node1.count(scope1, 10), is(4));
+        assertThat(node2.count(scope1, 10), is(4));
+        assertThat(node2.count(scope2, 10), is(2));
+
+        // verify DB
+        node1.flush();
+        node2.flush();
+        assertThat(sumCounts(), is(7L));
+    }
+
+    @Test
+    public void testStrictCounting() throws Exception {
+        ThrottleCounterDbImpl node1 = createCounter("node1", true);
+        ThrottleCounterDbImpl node2 = createCounter("node2", true);
+
+        ThrottleScope scope1 = new ThrottleScope("crm", "op1");
+        ThrottleScope scope2 = new ThrottleScope("crm", "op2");
+
+        assertThat(node1.count(scope1, 10), is(1));
+        assertThat(node2.count(scope1, 10), is(2));
+        assertThat(node2.count(scope2, 10), is(1));
+        assertThat(node1.count(scope1, 10), is(3));
+
+        assertThat(sumCounts(), is(4L));
+    }
+
+    @Test
+    public void testConcurrentStrictCounting() throws Exception {
+        final ThrottleCounterDbImpl node = createCounter("node1", true);
+        final ThrottleScope scope = new ThrottleScope("crm", "concurrentOp");
+
+        // embedded H2 locks whole tables so concurrent inserts of the same bucket can't be reproduced directly,
+        //  it's verified that requests count only into buckets which had been created before
+        final Set<Date> createdBuckets = Collections.newSetFromMap(new ConcurrentHashMap<Date, Boolean>());
+        final AtomicInteger uncreatedBucketUpdates = new AtomicInteger();
+
+        ThrottleCounterDao checkingDao = mock(ThrottleCounterDao.class, delegatesTo(throttleCounterDao));
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                Object[] args = invocation.getArguments();
+                Date bucket = (Date) args[3];
+                int count = (Integer) args[4];
+
+                if (count > 0 && !createdBuckets.contains(bucket)) {
+                    uncreatedBucketUpdates.incrementAndGet();
+                }
+
+                throttleCounterDao.addCount((String) args[0], (String) args[1], (String) args[2], bucket, count);
+
+                if (count == 0) {
+                    createdBuckets.add(bucket);
+                }
+                return null;
+            }
+        }).when(checkingDao).addCount(anyString(), anyString(), anyString(), any(Date.class), anyInt());
+        setPrivateField(node, "throttleCounterDao", checkingDao);
+
+        final int threads = 10;
+        final int requests = 20;
+        final CountDownLatch startLatch = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        try {
+            for (int i = 0; i < threads; i++) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        // all threads start in the same bucket
+                        startLatch.await();
+
+                        int maxCount = 0;
+                        for (int j = 0; j < requests; j++) {
+                            maxCount = Math.max(maxCount, node.count(scope, 10));
+                        }
+                        return maxCount;
+                    }
+                }));
+            }
+
+            startLatch.countDown();
+
+            int maxCount = 0;
+            for (Future<Integer> result : results) {
+                // no exception (e.g. violation of unique constraint of bucket)
+                maxCount = Math.max(maxCount, result.get(30, TimeUnit.SECONDS));
+            }
+
+            assertThat(maxCount, is(threads * requests));
+            assertThat(uncreatedBucketUpdates.get(), is(0));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(getJdbcTemplate().queryForObject("SELECT SUM(req_count) FROM throttle_counter"
+                + " WHERE service_name = 'concurrentOp'", Long.class), is((long) threads * requests));
+    }
+
+    private ThrottleCounterDbImpl createCounter(String nodeId, boolean strict) {
+        ThrottleCounterDbImpl counter = new ThrottleCounterDbImpl();
+        setPrivateField(counter, "throttleCounterDao", throttleCounterDao);
+        counter.setTransactionManager(jpaTransactionManager);
+        counter.setNodeId(nodeId);
+        counter.setStrict(strict);
+
+        return counter;
+    }
+
+    private long sumCounts() {
+        return getJdbcTemplate().queryForObject("SELECT SUM(req_count) FROM throttle_counter", Long.class);
+    }
+}
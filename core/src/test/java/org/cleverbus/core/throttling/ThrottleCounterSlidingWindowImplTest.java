@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2015
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cleverbus.core.throttling;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.cleverbus.spi.throttling.ThrottleScope;
+
+import org.joda.time.DateTimeUtils;
+import org.junit.After;
+import org.junit.Test;
+
+
+/**
+ * Test suite for {@link ThrottleCounterSlidingWindowImpl}.
+ */
+public class ThrottleCounterSlidingWindowImplTest {
+
+    @After
+    public void resetTime() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Test
+    public void testCounting() throws Exception {
+        ThrottleCounterSlidingWindowImpl counter = new ThrottleCounterSlidingWindowImpl();
+
+        ThrottleScope scope1 = new ThrottleScope("crm", "op1");
+        int count = counter.count(scope1, 10);
+        assertThat(count, is(1));
+
+        ThrottleScope scope2 = new ThrottleScope("crm", "op2");
+        count = counter.count(scope2, 10);
+        assertThat(count, is(1));
+        count = counter.count(scope2, 10);
+        assertThat(count, is(2));
+
+        ThrottleScope scope3 = new ThrottleScope("erp", "op1");
+        count = counter.count(scope3, 10);
+        assertThat(count, is(1));
+
+        count = counter.count(scope1, 10);
+        assertThat(count, is(2));
+
+        ThrottleScope scope4 = new ThrottleScope("crm", "op4");
+        count = counter.count(scope4, 1);
+        assertThat(count, is(1));
+
+        Thread.sleep(1500);
+
+        count = counter.count(scope4, 1);
+        assertThat(count, is(1));
+
+        // bigger interval than before - requests older than previous interval aren't known
+        count = counter.count(scope4, 10);
+        assertThat(count, is(2));
+
+        // smaller interval again
+        count = counter.count(scope4, 1);
+        assertThat(count, is(3));
+
+        // test dump
+        counter.dumpMemory();
+    }
+
+    @Test
+    public void testMultiThreadCounting() throws Exception {
+        final ThrottleCounterSlidingWindowImpl counter = new ThrottleCounterSlidingWindowImpl();
+
+        // prepare threads
+        final int threads = 5;
+        final int requests = 1000;
+        final CountDownLatch latch = new CountDownLatch(threads);
+        Runnable task = new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < requests; i++) {
+                        // new instance for each call
+                        ThrottleScope scope1 = new ThrottleScope("crm", "op1");
+                        ThrottleScope scope2 = new ThrottleScope("crm", "op2");
+
+                        counter.count(scope1, 10);
+                        counter.count(scope2, 10);
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            }
+        };
+
+        // start processing and waits for result
+        for (int i = 0; i < threads; i++) {
+            new Thread(task).start();
+        }
+
+        latch.await();
+
+        // verify counters
+        ThrottleScope scope1 = new ThrottleScope("crm", "op1");
+        ThrottleScope scope2 = new ThrottleScope("crm", "op2");
+
+        int count = counter.count(scope1, 10);
+        assertThat(count, is(threads * requests + 1));
+
+        count = counter.count(scope2, 10);
+        assertThat(count, is(threads * requests + 1));
+    }
+
+    @Test
+    public void testExpiredWindow() {
+        long now = DateTimeUtils.currentTimeMillis();
+        DateTimeUtils.setCurrentMillisFixed(now);
+
+        ThrottleCounterSlidingWindowImpl counter = new ThrottleCounterSlidingWindowImpl();
+        counter.setBucketMillis(1);
+        ThrottleScope scope = new ThrottleScope("crm", "op1");
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(counter.count(scope, 2), is(i + 1));
+        }
+
+        // the last millisecond of the interval
+        DateTimeUtils.setCurrentMillisFixed(now + 2000);
+        assertThat(counter.count(scope, 2), is(101));
+
+        // all previous requests are out of the interval
+        DateTimeUtils.setCurrentMillisFixed(now + 2001);
+        assertThat(counter.count(scope, 2), is(2));
+
+        // long time without requests
+        DateTimeUtils.setCurrentMillisFixed(now + 100000);
+        assertThat(counter.count(scope, 2), is(1));
+    }
+
+    /**
+     * Compares results with {@link ThrottleCounterMemoryImpl} for random requests in time,
+     * the results must be the same with 1 millisecond buckets.
+     */
+    @Test
+    public void testSameResultsAsMemoryImpl() {
+        long now = DateTimeUtils.currentTimeMillis();
+        DateTimeUtils.setCurrentMillisFixed(now);
+
+        ThrottleCounterMemoryImpl memoryCounter = new ThrottleCounterMemoryImpl();
+        ThrottleCounterSlidingWindowImpl windowCounter = new ThrottleCounterSlidingWindowImpl();
+        windowCounter.setBucketMillis(1);
+
+        ThrottleScope[] scopes = new ThrottleScope[] {new ThrottleScope("crm", "op1"),
+                new ThrottleScope("crm", "op2"), new ThrottleScope("erp", ThrottleScope.ANY_SERVICE)};
+
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            now += random.nextInt(5);
+            DateTimeUtils.setCurrentMillisFixed(now);
+
+            ThrottleScope scope = scopes[random.nextInt(scopes.length)];
+
+            assertThat("request " + i, windowCounter.count(scope, 2), is(memoryCounter.count(scope, 2)));
+        }
+    }
+
+    /**
+     * Bigger buckets can count more requests than {@link ThrottleCounterMemoryImpl} but never less.
+     */
+    @Test
+    public void testBiggerBucketsNeverCountLess() {
+        assertNeverCountsLess(2, 5);
+    }
+
+    /**
+     * Long interval is covered by limited count of bigger buckets.
+     */
+    @Test
+    public void testLongIntervalNeverCountsLess() {
+        assertNeverCountsLess(3600, 1000);
+    }
+
+    /**
+     * Requests are kept when the interval (and so the size of buckets) changes.
+     */
+    @Test
+    public void testChangedBucketSize() {
+        long now = DateTimeUtils.currentTimeMillis();
+        DateTimeUtils.setCurrentMillisFixed(now);
+
+        ThrottleCounterSlidingWindowImpl counter = new ThrottleCounterSlidingWindowImpl();
+        ThrottleScope scope = new ThrottleScope("crm", "op1");
+
+        for (int i = 0; i < 10; i++) {
+            DateTimeUtils.setCurrentMillisFixed(now + i * 500);
+            counter.count(scope, 60);
+        }
+
+        // bigger buckets for longer interval
+        DateTimeUtils.setCurrentMillisFixed(now + 5000);
+        assertThat(counter.count(scope, 3600), is(11));
+
+        // smaller buckets again
+        DateTimeUtils.setCurrentMillisFixed(now + 5100);
+        assertThat(counter.count(scope, 60), is(12));
+    }
+
+    private void assertNeverCountsLess(int interval, int maxStepMillis) {
+        long now = DateTimeUtils.currentTimeMillis();
+        DateTimeUtils.setCurrentMillisFixed(now);
+
+        ThrottleCounterMemoryImpl memoryCounter = new ThrottleCounterMemoryImpl();
+        ThrottleCounterSlidingWindowImpl windowCounter = new ThrottleCounterSlidingWindowImpl();
+
+        ThrottleScope scope = new ThrottleScope("crm", "op1");
+
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            now += random.nextInt(maxStepMillis);
+            DateTimeUtils.setCurrentMillisFixed(now);
+
+            int memoryCount = memoryCounter.count(scope, interval);
+            int windowCount = windowCounter.count(scope, interval);
+
+            assertThat("request " + i, windowCount >= memoryCount, is(true));
+        }
+    }
+}
@@ -21,6 +21,9 @@ import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.junit.Assert.assertThat;
 
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.Attribute;
 
 import org.cleverbus.spi.throttling.ThrottleProps;
 import org.cleverbus.spi.throttling.ThrottleScope;
@@ -67,6 +70,67 @@ public class ThrottlingPropertiesConfigurationTest {
         assertThrottleProp(conf, "erp", "createDeposit", 5, 15);
     }
 
+    @Test
+    public void testConfChangedViaJmx() throws Exception {
+        String prefix = ThrottlingPropertiesConfiguration.PROPERTY_PREFIX;
+        Properties props = new Properties();
+        props.put(ThrottlingPropertiesConfiguration.DEFAULT_LIMIT_PROP, "5");
+        props.put(ThrottlingPropertiesConfiguration.DEFAULT_INTERVAL_PROP, "15");
+        props.put(prefix + "crm.op1", "10");
+
+        ThrottlingPropertiesConfiguration conf = new ThrottlingPropertiesConfiguration(props);
+
+        // resolved scopes are cached
+        assertThrottleProp(conf, "crm", "op1", 10, 15);
+        assertThrottleProp(conf, "CRM", "OP1", 10, 15);
+        assertThrottleProp(conf, "crm", "op2", 5, 15);
+
+        // change configuration
+        JmxThrottlingConfiguration jmxConf = new JmxThrottlingConfiguration(conf);
+        jmxConf.setAttribute(new Attribute("crm.op1", "20/30"));
+        jmxConf.setAttribute(new Attribute("crm.*", "40/30"));
+
+        assertThrottleProp(conf, "crm", "op1", 20, 30);
+        assertThrottleProp(conf, "CRM", "OP1", 20, 30);
+        assertThrottleProp(conf, "crm", "op2", 40, 30);
+        assertThrottleProp(conf, "erp", "op1", 5, 15);
+    }
+
+    @Test
+    public void testConfChangedDuringLookups() throws Exception {
+        Properties props = new Properties();
+        props.put(ThrottlingPropertiesConfiguration.DEFAULT_LIMIT_PROP, "5");
+        props.put(ThrottlingPropertiesConfiguration.DEFAULT_INTERVAL_PROP, "15");
+
+        final ThrottlingPropertiesConfiguration conf = new ThrottlingPropertiesConfiguration(props);
+        final JmxThrottlingConfiguration jmxConf = new JmxThrottlingConfiguration(conf);
+        final AtomicBoolean running = new AtomicBoolean(true);
+
+        // lookups run concurrently with changes
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                while (running.get()) {
+                    conf.getThrottleProps(new ThrottleScope("crm", "op1"));
+                }
+            }
+        };
+        reader.start();
+
+        try {
+            for (int i = 1; i <= 1000; i++) {
+                jmxConf.setAttribute(new Attribute("crm.op1", i + "/30"));
+                assertThrottleProp(conf, "crm", "op1", i, 30);
+            }
+        } finally {
+            running.set(false);
+            reader.join();
+        }
+
+        // no change is lost
+        assertThrottleProp(conf, "crm", "op1", 1000, 30);
+    }
+
     private void assertThrottleProp(ThrottlingPropertiesConfiguration conf, String sourceSystem, String serviceName,
                                     int expLimit, int expInterval) {
         ThrottleScope throttleScope = new ThrottleScope(sourceSystem, serviceName);
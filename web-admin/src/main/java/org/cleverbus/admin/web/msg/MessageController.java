@@ -19,6 +19,9 @@ package org.cleverbus.admin.web.msg;
 import static org.springframework.util.StringUtils.hasText;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Date;
@@ -29,10 +32,14 @@ import java.util.SortedSet;
 import java.util.TreeSet;
 
 import org.cleverbus.api.entity.Message;
+import org.cleverbus.api.exception.IntegrationException;
+import org.cleverbus.api.file.FileRepository;
 import org.cleverbus.common.log.Log;
+import org.cleverbus.core.common.asynch.AsynchInMessageRoute;
 import org.cleverbus.modules.ExternalSystemEnum;
 import org.cleverbus.spi.msg.MessageService;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.dom4j.Document;
 import org.dom4j.DocumentHelper;
@@ -66,6 +73,15 @@ public class MessageController {
     @Autowired
     private MessageLogParser messageLogParser;
 
+    // large payloads are stored in the database without file repository
+    @Autowired(required = false)
+    private FileRepository fileRepository;
+
+    /**
+     * Max. count of chars of large payload (stored in the file repository) which are displayed.
+     */
+    private static final int MAX_PAYLOAD_FILE_CHARS = 1024 * 1024;
+
     @RequestMapping(value = "/{msgId}", method = RequestMethod.GET)
     public String getMsgDetailByMsgId(@PathVariable("msgId") Long msgId, Model model)  {
         Message msg = messageService.findEagerMessageById(msgId);
@@ -77,8 +93,12 @@ public class MessageController {
             if (StringUtils.isNotEmpty(msg.getEnvelope())) {
                 msg.setEnvelope(prettyPrintXML(msg.getEnvelope()));
             }
+            // large payload is stored in the file repository
+            if (msg.getPayloadFile() != null) {
+                msg.setPayload(readPayloadFile(msg.getPayloadFile()));
+
             // pretty-print payload
-            if (StringUtils.isNotEmpty(msg.getPayload())) {
+            } else if (StringUtils.isNotEmpty(msg.getPayload())) {
                 msg.setPayload(prettyPrintXML(msg.getPayload()));
             }
 
@@ -88,6 +108,39 @@ public class MessageController {
         return "msg";
     }
 
+    /**
+     * Reads large payload from the file repository, too large payload is truncated.
+     *
+     * @param fileId the file identifier
+     * @return payload or description why payload can't be read
+     */
+    private String readPayloadFile(String fileId) {
+        if (fileRepository == null) {
+            return "(payload is stored in the file '" + fileId + "', file repository isn't available)";
+        }
+
+        Reader reader = null;
+        try {
+            InputStream is = fileRepository.readFile(fileId);
+            reader = new InputStreamReader(is, AsynchInMessageRoute.PAYLOAD_ENCODING);
+
+            char[] buffer = new char[MAX_PAYLOAD_FILE_CHARS];
+            int length = IOUtils.read(reader, buffer);
+            String payload = new String(buffer, 0, length);
+
+            if (reader.read() >= 0) {
+                payload += "\n... (truncated, the whole payload is in the file '" + fileId + "')";
+            }
+            return payload;
+        } catch (IOException ex) {
+            return "(payload file '" + fileId + "' can't be read: " + ex.getMessage() + ")";
+        } catch (IntegrationException ex) {
+            return "(payload file '" + fileId + "' can't be read: " + ex.getMessage() + ")";
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
     @RequestMapping(value = "/{msgId}/log", method = RequestMethod.GET)
     public String getLogOfMsgByMsgId(@PathVariable("msgId") Long msgId, Model model)  {
         Message msg = messageService.findMessageById(msgId);